@@ -410,6 +410,20 @@ public class KylinConfig {
         return nodes.split("\\s*,\\s*");
     }
 
+    // in ms, events of cache changes are batched for this long before sent to rest servers
+    public long getBroadcastDelay() {
+        return Long.parseLong(this.getOptional("kylin.rest.broadcast.delay", "1000"));
+    }
+
+    public int getBroadcastThreads() {
+        return Integer.parseInt(this.getOptional("kylin.rest.broadcast.threads", "4"));
+    }
+
+    // in ms, ACLs cached longer are read again, in case a broadcast was lost
+    public long getAclCacheTtl() {
+        return Long.parseLong(this.getOptional("kylin.rest.acl.cache.ttl", String.valueOf(5 * 60 * 1000)));
+    }
+
     /**
      * @return
      */
@@ -452,6 +466,87 @@ public class KylinConfig {
         return Boolean.parseBoolean(this.getOptional("kylin.query.cache.enabled", "true"));
     }
 
+    public boolean isQueryPlanCacheEnabled() {
+        return Boolean.parseBoolean(this.getOptional("kylin.query.plan.cache.enabled", "true"));
+    }
+
+    public int getQueryPlanCacheSize() {
+        return Integer.parseInt(this.getOptional("kylin.query.plan.cache.size", "500"));
+    }
+
+    // plans alive at a time, each pins an Optiq connection
+    public int getQueryPlanCacheMaxPinned() {
+        return Integer.parseInt(this.getOptional("kylin.query.plan.cache.max.pinned", "64"));
+    }
+
+    public int getQueryConnectionPoolMaxIdle() {
+        return Integer.parseInt(this.getOptional("kylin.query.connection.pool.max.idle", "16"));
+    }
+
+    // per project, including those pinned by cached plans
+    public int getQueryConnectionPoolMaxActive() {
+        return Integer.parseInt(this.getOptional("kylin.query.connection.pool.max.active", "128"));
+    }
+
+    // in ms, to wait for a connection at max active
+    public long getQueryConnectionPoolMaxWait() {
+        return Long.parseLong(this.getOptional("kylin.query.connection.pool.max.wait", "30000"));
+    }
+
+    public int getQueryConnectionPoolWarmUp() {
+        return Integer.parseInt(this.getOptional("kylin.query.connection.pool.warmup", "2"));
+    }
+
+    public int getQueryConcurrencyMax() {
+        return Integer.parseInt(this.getOptional("kylin.query.concurrency.max", "20"));
+    }
+
+    // slots a project may take at once, the default applies to projects not configured
+    public int getQueryConcurrencyMaxOfProject(String project) {
+        String dft = this.getOptional("kylin.query.concurrency.max.project", String.valueOf(getQueryConcurrencyMax()));
+        return Integer.parseInt(this.getOptional("kylin.query.concurrency.max.project." + project, dft));
+    }
+
+    public int getQueryConcurrencyMaxOfUser() {
+        return Integer.parseInt(this.getOptional("kylin.query.concurrency.max.user", "5"));
+    }
+
+    // slots a count distinct query takes, others take one
+    public int getQueryCountDistinctWeight() {
+        return Integer.parseInt(this.getOptional("kylin.query.concurrency.weight.count.distinct", "2"));
+    }
+
+    public int getQueryQueueSize() {
+        return Integer.parseInt(this.getOptional("kylin.query.queue.size", "100"));
+    }
+
+    public long getQueryQueueTimeout() {
+        return Long.parseLong(this.getOptional("kylin.query.queue.timeout", "30000"));
+    }
+
+    // in ms, 0 for no limit
+    public long getQueryTimeout() {
+        return Long.parseLong(this.getOptional("kylin.query.timeout", "300000"));
+    }
+
+    // in ms, queries longer than this keep their trace, 0 to keep none
+    public long getQuerySlowThreshold() {
+        return Long.parseLong(this.getOptional("kylin.query.slow.threshold", "30000"));
+    }
+
+    public int getQuerySlowStoreSize() {
+        return Integer.parseInt(this.getOptional("kylin.query.slow.store.size", "100"));
+    }
+
+    public long getQueryMemoryBudget() {
+        return Long.parseLong(this.getOptional("kylin.query.memory.budget", String.valueOf(3L * 1024 * 1024 * 1024)));
+    }
+
+    // of all running queries, defaults to half of the heap
+    public long getQueryMemoryBudgetTotal() {
+        return Long.parseLong(this.getOptional("kylin.query.memory.budget.total", String.valueOf(Runtime.getRuntime().maxMemory() / 2)));
+    }
+
     public int getHBaseKeyValueSize() {
         return Integer.parseInt(this.getOptional("kylin.hbase.client.keyvalue.maxsize", "10485760"));
     }
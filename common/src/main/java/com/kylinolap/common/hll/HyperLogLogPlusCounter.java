@@ -38,6 +38,10 @@ import com.ning.compress.lzf.LZFEncoder;
  * - LZF compression ratio is around 65%-80%, fast - GZIP compression ratio is
  * around 41%-46%, very slow
  * 
+ * Registers are packed 8 per long (register i is byte (i & 7) of word i / 8) so
+ * that merge can take the max of 8 registers at a time without branching. A
+ * register never exceeds 65 - p, hence the high bit of every byte is clear.
+ * 
  * @author yangli9
  */
 public class HyperLogLogPlusCounter implements Comparable<HyperLogLogPlusCounter> {
@@ -45,7 +49,11 @@ public class HyperLogLogPlusCounter implements Comparable<HyperLogLogPlusCounter
     private final int p;
     private final int m;
     private final HashFunction hashFunc;
-    byte[] registers;
+    long[] registers;
+
+    // estimate is expensive (a pass over all registers), cache it until next mutation
+    private long cachedEstimate;
+    private boolean estimateValid = false;
 
     public HyperLogLogPlusCounter() {
         this(10);
@@ -65,12 +73,12 @@ public class HyperLogLogPlusCounter implements Comparable<HyperLogLogPlusCounter
         this.p = p;
         this.m = (int) Math.pow(2, p);
         this.hashFunc = hashFunc;
-        this.registers = new byte[m];
+        this.registers = new long[(m + 7) / 8];
     }
 
     public void clear() {
-        for (int i = 0; i < m; i++)
-            registers[i] = 0;
+        Arrays.fill(registers, 0L);
+        estimateValid = false;
     }
 
     public void add(String value) {
@@ -86,22 +94,50 @@ public class HyperLogLogPlusCounter implements Comparable<HyperLogLogPlusCounter
         int bucket = (int) (hash & bucketMask);
         int firstOnePos = Long.numberOfLeadingZeros(hash | bucketMask) + 1;
 
-        if (firstOnePos > registers[bucket])
-            registers[bucket] = (byte) firstOnePos;
+        if (firstOnePos > getRegister(bucket)) {
+            setRegister(bucket, firstOnePos);
+            estimateValid = false;
+        }
     }
 
     public void merge(HyperLogLogPlusCounter another) {
         assert this.p == another.p;
         assert this.hashFunc == another.hashFunc;
 
-        for (int i = 0; i < m; i++) {
-            if (registers[i] < another.registers[i])
-                registers[i] = another.registers[i];
+        long[] words = registers;
+        long[] anotherWords = another.registers;
+        for (int i = 0; i < words.length; i++) {
+            words[i] = maxPerByte(words[i], anotherWords[i]);
         }
+        estimateValid = false;
+    }
+
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    // branch-free max of 8 packed registers, requires the high bit of each byte to be clear
+    static long maxPerByte(long x, long y) {
+        // per byte, (x | 0x80) - y never borrows from the next byte, and its high bit is set iff x >= y
+        long ge = (((x | HIGH_BITS) - y) & HIGH_BITS) >>> 7;
+        long mask = ge * 0xFF;
+        return (x & mask) | (y & ~mask);
+    }
+
+    int getRegister(int i) {
+        return (int) (registers[i >>> 3] >>> ((i & 7) << 3)) & 0xFF;
+    }
+
+    void setRegister(int i, int value) {
+        int shift = (i & 7) << 3;
+        int w = i >>> 3;
+        registers[w] = (registers[w] & ~(0xFFL << shift)) | ((long) (value & 0xFF) << shift);
     }
 
     public long getCountEstimate() {
-        return new HLLCSnapshot(this).getCountEstimate();
+        if (!estimateValid) {
+            cachedEstimate = new HLLCSnapshot(this).getCountEstimate();
+            estimateValid = true;
+        }
+        return cachedEstimate;
     }
 
     public int getMemBytes() {
@@ -115,12 +151,20 @@ public class HyperLogLogPlusCounter implements Comparable<HyperLogLogPlusCounter
     private int size() {
         int size = 0;
         for (int i = 0; i < m; i++) {
-            if (registers[i] > 0)
+            if (getRegister(i) > 0)
                 size++;
         }
         return size;
     }
 
+    // INV_POW2[r] == 2^-r, for every possible register value r
+    static final double[] INV_POW2 = new double[66];
+    static {
+        for (int r = 0; r < INV_POW2.length; r++) {
+            INV_POW2[r] = Math.pow(2, -r);
+        }
+    }
+
     // ============================================================================
 
     // a memory efficient snapshot of HLL registers which can yield count
@@ -135,14 +179,11 @@ public class HyperLogLogPlusCounter implements Comparable<HyperLogLogPlusCounter
             registerSum = 0;
             zeroBuckets = 0;
 
-            byte[] registers = hllc.registers;
             for (int i = 0; i < hllc.m; i++) {
-                if (registers[i] == 0) {
-                    registerSum++;
+                int r = hllc.getRegister(i);
+                if (r == 0)
                     zeroBuckets++;
-                } else {
-                    registerSum += 1.0 / (1 << registers[i]);
-                }
+                registerSum += INV_POW2[r];
             }
         }
 
@@ -237,14 +278,15 @@ public class HyperLogLogPlusCounter implements Comparable<HyperLogLogPlusCounter
         if (scheme == 0) { // map scheme
             BytesUtil.writeVInt(size, out);
             for (int i = 0; i < m; i++) {
-                if (registers[i] > 0) {
+                int r = getRegister(i);
+                if (r > 0) {
                     BytesUtil.writeUnsigned(i, indexLen, out);
-                    out.put(registers[i]);
+                    out.put((byte) r);
                 }
             }
         } else { // array scheme
             for (int i = 0; i < m; i++) {
-                out.put(registers[i]);
+                out.put((byte) getRegister(i));
             }
         }
 
@@ -280,13 +322,14 @@ public class HyperLogLogPlusCounter implements Comparable<HyperLogLogPlusCounter
             int indexLen = getRegisterIndexSize();
             for (int i = 0; i < size; i++) {
                 int key = BytesUtil.readUnsigned(in, indexLen);
-                registers[key] = in.get();
+                setRegister(key, in.get());
             }
         } else { // array scheme
             for (int i = 0; i < m; i++) {
-                registers[i] = in.get();
+                setRegister(i, in.get());
             }
         }
+        estimateValid = false;
     }
 
     private int getRegisterIndexSize() {
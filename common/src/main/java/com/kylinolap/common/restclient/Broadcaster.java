@@ -16,12 +16,17 @@
 
 package com.kylinolap.common.restclient;
 
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,32 +35,34 @@ import com.kylinolap.common.KylinConfig;
 
 /**
  * Broadcast kylin event out
- * 
+ *
+ * Events are held for a short delay and coalesced, the latest event of an
+ * entity replaces earlier ones. Each rest server then gets all of them in one
+ * request. Drops and ACL changes are critical and go out almost at once.
+ *
+ * A fixed pool of workers sends to the servers, one batch at a time to each
+ * server in order, on a kept alive connection. A failed batch is retried with
+ * backoff, together with events queued meanwhile. After MAX_RETRIES, the
+ * events of a server are replaced by one wipe of all its caches, retried
+ * until it's back, as nothing missed is dropped.
+ *
  * @author jianliu
- * 
+ *
  */
 public class Broadcaster {
 
     private static final Logger logger = LoggerFactory.getLogger(Broadcaster.class);
 
-    private static List<BroadcastEvent> broadcaseEvents = new ArrayList<BroadcastEvent>();
+    static final long CRITICAL_DELAY = 50; // ms, still coalesces a burst of events
+    static final long RETRY_BACKOFF = 1000; // ms, doubles on each retry
+    static final long RETRY_BACKOFF_MAX = 60 * 1000;
+    static final int MAX_RETRIES = 10;
 
     static class BroadcasterHolder {
-        static final Broadcaster INSTANCE = new Broadcaster();
-    }
-
-    private Broadcaster() {
-        Timer timer = new Timer();
-        TimerTask task = new TimerTask() {
-            public void run() {
-                Broadcaster.flush();
-            }
-        };
-
-        timer.schedule(task, new Date(), 10 * 1000);
+        static final Broadcaster INSTANCE = new Broadcaster(KylinConfig.getInstanceFromEnv().getBroadcastThreads());
     }
 
-    public Broadcaster getInstance() {
+    public static Broadcaster getInstance() {
         return BroadcasterHolder.INSTANCE;
     }
 
@@ -65,64 +72,206 @@ public class Broadcaster {
 
     /**
      * Broadcast the cubedesc event out
-     * 
+     *
      * @param action
      *            event action
      */
-    public static synchronized void queue(String type, String action, String key) {
-        BroadcastEvent event = BroadcasterHolder.INSTANCE.new BroadcastEvent(type, action, key);
+    public static void queue(String type, String action, String key) {
+        getInstance().enqueue(new BroadcastEvent(type, action, key));
+    }
+
+    /**
+     * Sends queued events without waiting out the delay, e.g. once a request
+     * changing metadata is done.
+     */
+    public static void flush() {
+        getInstance().flushPending();
+    }
+
+    public static String genEventkey(String type, String action, String name) {
+        String time = String.valueOf(System.currentTimeMillis());
+        return time + "_" + type + "_" + action + "_" + name;
+    }
+
+    // ============================================================================
+
+    private final ScheduledExecutorService executor;
+    // by entity, guarded by this
+    private final LinkedHashMap<String, BroadcastEvent> pending = new LinkedHashMap<String, BroadcastEvent>();
+    private final Map<String, NodeChannel> channels = new HashMap<String, NodeChannel>();
+    private ScheduledFuture<?> scheduledFlush;
+    private long scheduledFlushTime;
+
+    Broadcaster(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Broadcaster-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    protected String[] getNodes() {
+        return KylinConfig.getInstanceFromEnv().getRestServers();
+    }
+
+    protected long getDelay() {
+        return KylinConfig.getInstanceFromEnv().getBroadcastDelay();
+    }
+
+    protected long getRetryBackoff() {
+        return RETRY_BACKOFF;
+    }
+
+    protected int getMaxRetries() {
+        return MAX_RETRIES;
+    }
+
+    protected RestClient createClient(String node) {
+        return new RestClient(node);
+    }
 
-        if (!broadcaseEvents.contains(event)) {
-            broadcaseEvents.add(event);
+    synchronized void enqueue(BroadcastEvent event) {
+        // the latest of an entity goes last
+        pending.remove(event.getEntityKey());
+        pending.put(event.getEntityKey(), event);
+        scheduleFlush(event.isCritical() ? CRITICAL_DELAY : getDelay());
+    }
+
+    private void scheduleFlush(long delay) {
+        long time = System.currentTimeMillis() + delay;
+        if (scheduledFlush != null && !scheduledFlush.isDone()) {
+            if (scheduledFlushTime <= time)
+                return;
+            scheduledFlush.cancel(false);
         }
+
+        scheduledFlushTime = time;
+        scheduledFlush = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flushPending();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
-    public static synchronized void flush() {
-        String[] nodes = KylinConfig.getInstanceFromEnv().getRestServers();
+    synchronized void flushPending() {
+        if (pending.isEmpty())
+            return;
+
+        List<BroadcastEvent> events = new ArrayList<BroadcastEvent>(pending.values());
+        pending.clear();
+
+        String[] nodes = getNodes();
         if (nodes == null)
             return;
 
-        for (BroadcastEvent event : broadcaseEvents) {
-            for (String nodeUri : nodes) {
-                logger.debug("Broadcast nodeUri: " + nodeUri + ", type: " + event.getType() + ", action: " + event.getAction() + ", name: " + event.getName());
-                WipeCacheThread thread = BroadcasterHolder.INSTANCE.new WipeCacheThread(nodeUri, event.getType(), event.getAction(), event.getName());
-                thread.start();
+        for (String node : nodes) {
+            NodeChannel channel = channels.get(node);
+            if (channel == null) {
+                channel = new NodeChannel(node, createClient(node));
+                channels.put(node, channel);
             }
+            channel.offer(events);
         }
+    }
 
-        broadcaseEvents.clear();
+    void shutdown() {
+        executor.shutdownNow();
     }
 
-    public static String genEventkey(String type, String action, String name) {
-        String time = String.valueOf(System.currentTimeMillis());
-        return time + "_" + type + "_" + action + "_" + name;
+    // metadata reloads cube and project caches too, ACLs are on their own
+    static List<BroadcastEvent> wipeAllEvents() {
+        List<BroadcastEvent> events = new ArrayList<BroadcastEvent>();
+        events.add(new BroadcastEvent(TYPE.METADATA.getType(), EVENT.CREATE.getType(), "metadata"));
+        events.add(new BroadcastEvent(TYPE.ACL.getType(), EVENT.UPDATE.getType(), "ALL"));
+        return events;
     }
 
-    protected class WipeCacheThread extends Thread {
-        private String nodeUri;
-        private String type;
-        private String action;
-        private String name;
+    private static void merge(Map<String, BroadcastEvent> events, List<BroadcastEvent> later) {
+        for (BroadcastEvent event : later) {
+            events.remove(event.getEntityKey());
+            events.put(event.getEntityKey(), event);
+        }
+    }
 
-        public WipeCacheThread(String nodeUri, String type, String action, String name) {
-            this.nodeUri = nodeUri;
-            this.type = type;
-            this.action = action;
-            this.name = name;
+    // sends to one rest server, a batch at a time
+    private class NodeChannel implements Runnable {
+        private final String node;
+        private final RestClient client;
+        // guarded by this
+        private final LinkedHashMap<String, BroadcastEvent> events = new LinkedHashMap<String, BroadcastEvent>();
+        private boolean scheduled; // a send is scheduled or running
+        private boolean wipeAll; // events are a wipe of all, later ones are covered by it
+        private int retries; // of the running send only
+
+        NodeChannel(String node, RestClient client) {
+            this.node = node;
+            this.client = client;
+        }
+
+        synchronized void offer(List<BroadcastEvent> batch) {
+            if (!wipeAll) {
+                merge(events, batch);
+            }
+            if (!scheduled) {
+                scheduled = true;
+                executor.execute(this);
+            }
         }
 
-        /*
-         * (non-Javadoc)
-         * 
-         * @see java.lang.Thread#run()
-         */
         @Override
         public void run() {
-            RestClient restClient = new RestClient(nodeUri);
+            List<BroadcastEvent> batch;
+            boolean sendingWipeAll;
+            synchronized (this) {
+                batch = new ArrayList<BroadcastEvent>(events.values());
+                events.clear();
+                // events offered during the send are not covered
+                sendingWipeAll = wipeAll;
+                wipeAll = false;
+            }
+
             try {
-                restClient.wipeCache(this.type, this.action, this.name);
-            } catch (IOException e) {
-                logger.error("Thread failed during wipe cache at " + type + "." + action + "." + name, e);
+                logger.debug("Broadcast " + batch.size() + " events to " + node + ": " + batch);
+                client.wipeCache(batch);
+                retries = 0;
+            } catch (Exception e) {
+                synchronized (this) {
+                    // events queued meanwhile are later than the failed ones
+                    LinkedHashMap<String, BroadcastEvent> retry = new LinkedHashMap<String, BroadcastEvent>();
+                    merge(retry, batch);
+                    merge(retry, new ArrayList<BroadcastEvent>(events.values()));
+                    events.clear();
+
+                    retries++;
+                    if (sendingWipeAll || retries > getMaxRetries()) {
+                        // too many to keep, and the server may have missed more while unreachable
+                        if (!sendingWipeAll) {
+                            logger.error("Broadcast to " + node + " failed " + retries + " times, " + retry.size() + " events replaced by a wipe of all caches", e);
+                        }
+                        wipeAll = true;
+                        merge(events, wipeAllEvents());
+                    } else {
+                        events.putAll(retry);
+                    }
+
+                    long backoff = Math.min(getRetryBackoff() << (Math.min(retries, getMaxRetries()) - 1), RETRY_BACKOFF_MAX);
+                    logger.warn("Broadcast to " + node + " failed, retry in " + backoff + " ms", e);
+                    executor.schedule(this, backoff, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+
+            synchronized (this) {
+                if (events.isEmpty()) {
+                    scheduled = false;
+                } else {
+                    executor.execute(this);
+                }
             }
         }
     }
@@ -151,7 +300,7 @@ public class Broadcaster {
     }
 
     public enum TYPE {
-        CUBE("cube"), METADATA("metadata"), PROJECT("project");
+        CUBE("cube"), METADATA("metadata"), PROJECT("project"), ACL("acl");
         private String text;
 
         private TYPE(String text) {
@@ -177,11 +326,14 @@ public class Broadcaster {
         }
     }
 
-    public class BroadcastEvent {
+    public static class BroadcastEvent {
         private String type;
         private String action;
         private String name;
 
+        public BroadcastEvent() {
+        }
+
         public BroadcastEvent(String type, String action, String name) {
             super();
             this.type = type;
@@ -213,11 +365,19 @@ public class Broadcaster {
             this.name = name;
         }
 
+        // events of the same entity coalesce
+        String getEntityKey() {
+            return type + "/" + name;
+        }
+
+        boolean isCritical() {
+            return EVENT.DROP.getType().equalsIgnoreCase(action) || TYPE.ACL.getType().equalsIgnoreCase(type);
+        }
+
         @Override
         public int hashCode() {
             final int prime = 31;
             int result = 1;
-            result = prime * result + getOuterType().hashCode();
             result = prime * result + ((action == null) ? 0 : action.hashCode());
             result = prime * result + ((name == null) ? 0 : name.hashCode());
             result = prime * result + ((type == null) ? 0 : type.hashCode());
@@ -233,8 +393,6 @@ public class Broadcaster {
             if (getClass() != obj.getClass())
                 return false;
             BroadcastEvent other = (BroadcastEvent) obj;
-            if (!getOuterType().equals(other.getOuterType()))
-                return false;
             if (action == null) {
                 if (other.action != null)
                     return false;
@@ -253,9 +411,9 @@ public class Broadcaster {
             return true;
         }
 
-        private Broadcaster getOuterType() {
-            return Broadcaster.this;
+        @Override
+        public String toString() {
+            return type + "." + action + "." + name;
         }
-
     }
 }
@@ -17,6 +17,7 @@
 package com.kylinolap.common.restclient;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -24,14 +25,18 @@ import org.apache.commons.httpclient.Credentials;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 
+import com.kylinolap.common.util.JsonUtil;
+
 /**
  * @author yangli9
  */
@@ -76,7 +81,11 @@ public class RestClient {
         this.password = password;
         this.baseUrl = "http://" + host + ":" + port + "/kylin/api";
 
-        client = new HttpClient();
+        // connections are kept alive, and a server down doesn't hold the caller for long
+        MultiThreadedHttpConnectionManager connManager = new MultiThreadedHttpConnectionManager();
+        connManager.getParams().setConnectionTimeout(10 * 1000);
+        connManager.getParams().setSoTimeout(60 * 1000);
+        client = new HttpClient(connManager);
 
         if (userName != null && password != null) {
             client.getParams().setAuthenticationPreemptive(true);
@@ -103,6 +112,36 @@ public class RestClient {
         }
     }
 
+    /**
+     * Wipes caches of the events in one request, or one request per event if
+     * the server is of a version without the batch API.
+     */
+    public void wipeCache(List<Broadcaster.BroadcastEvent> events) throws IOException {
+        String url = baseUrl + "/cache/batch";
+        PutMethod put = new PutMethod(url);
+
+        int code;
+        try {
+            put.setRequestEntity(new StringRequestEntity(JsonUtil.writeValueAsString(events), "application/json", "UTF-8"));
+            code = client.executeMethod(put);
+            String msg = Bytes.toString(put.getResponseBody());
+
+            if (code != 200 && code != 404 && code != 405)
+                throw new IOException("Invalid response " + code + " with cache wipe url " + url + "\n" + msg);
+
+        } catch (HttpException ex) {
+            throw new IOException(ex);
+        } finally {
+            put.releaseConnection();
+        }
+
+        if (code != 200) {
+            for (Broadcaster.BroadcastEvent event : events) {
+                wipeCache(event.getType(), event.getAction(), event.getName());
+            }
+        }
+    }
+
     public String getKylinProperties() throws IOException {
         String url = baseUrl + "/admin/config";
         HttpMethod get = new GetMethod(url);
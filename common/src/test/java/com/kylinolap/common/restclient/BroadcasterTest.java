@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.common.restclient;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.kylinolap.common.restclient.Broadcaster.BroadcastEvent;
+import com.kylinolap.common.util.JsonUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Broadcasts among rest servers run in process, each taking the batch API.
+ *
+ * @author yangli9
+ */
+public class BroadcasterTest {
+
+    private List<Node> nodes;
+    private TestBroadcaster broadcaster;
+
+    @Before
+    public void setup() throws IOException {
+        nodes = new ArrayList<Node>();
+        for (int i = 0; i < 3; i++) {
+            nodes.add(new Node());
+        }
+        broadcaster = new TestBroadcaster(nodes, 60 * 1000);
+    }
+
+    @After
+    public void after() {
+        broadcaster.shutdown();
+        for (Node node : nodes) {
+            node.stop();
+        }
+    }
+
+    @Test
+    public void testCoalesceIntoOneBatch() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            for (int cube = 0; cube < 10; cube++) {
+                broadcaster.enqueue(new BroadcastEvent("cube", "update", "cube_" + cube));
+            }
+        }
+        broadcaster.enqueue(new BroadcastEvent("project", "create", "p"));
+        broadcaster.enqueue(new BroadcastEvent("project", "update", "p"));
+        broadcaster.flushPending();
+
+        for (Node node : nodes) {
+            node.awaitEvents(11);
+            assertEquals(1, node.requests.get());
+            assertEquals(new BroadcastEvent("cube", "update", "cube_0"), node.events.get(0));
+            // the latest event of an entity wins
+            assertEquals(new BroadcastEvent("project", "update", "p"), node.events.get(10));
+        }
+    }
+
+    @Test
+    public void testCriticalGoesAtOnce() throws Exception {
+        // the delay is a minute, drops don't wait for it
+        broadcaster.enqueue(new BroadcastEvent("cube", "drop", "cube_0"));
+
+        for (Node node : nodes) {
+            node.awaitEvents(1);
+            assertEquals(new BroadcastEvent("cube", "drop", "cube_0"), node.events.get(0));
+        }
+    }
+
+    @Test
+    public void testRetryWithLaterEvents() throws Exception {
+        Node down = nodes.get(1);
+        down.failures.set(2);
+
+        broadcaster.enqueue(new BroadcastEvent("cube", "update", "cube_0"));
+        broadcaster.flushPending();
+        nodes.get(0).awaitEvents(1);
+        broadcaster.enqueue(new BroadcastEvent("cube", "update", "cube_1"));
+        broadcaster.flushPending();
+
+        down.awaitEvents(2);
+        assertEquals(0, down.failures.get());
+        assertTrue(down.events.containsAll(Arrays.asList(new BroadcastEvent("cube", "update", "cube_0"), new BroadcastEvent("cube", "update", "cube_1"))));
+        for (Node node : nodes) {
+            node.awaitEvents(2);
+        }
+    }
+
+    @Test
+    public void testWipeAllAfterMaxRetries() throws Exception {
+        Node down = nodes.get(1);
+        down.failures.set(broadcaster.getMaxRetries() + 2);
+
+        broadcaster.enqueue(new BroadcastEvent("cube", "update", "cube_0"));
+        broadcaster.flushPending();
+
+        // the event is not dropped, but replaced by a wipe of all caches
+        down.awaitEvents(Broadcaster.wipeAllEvents().size());
+        assertEquals(0, down.failures.get());
+        assertEquals(Broadcaster.wipeAllEvents(), down.events);
+        nodes.get(0).awaitEvents(1);
+        assertEquals(Arrays.asList(new BroadcastEvent("cube", "update", "cube_0")), nodes.get(0).events);
+
+        // back to events once through
+        broadcaster.enqueue(new BroadcastEvent("cube", "update", "cube_1"));
+        broadcaster.flushPending();
+        down.awaitEvents(Broadcaster.wipeAllEvents().size() + 1);
+        assertEquals(new BroadcastEvent("cube", "update", "cube_1"), down.events.get(down.events.size() - 1));
+    }
+
+    private static class TestBroadcaster extends Broadcaster {
+        private final String[] uris;
+        private final long delay;
+
+        TestBroadcaster(List<Node> nodes, long delay) {
+            super(2);
+            this.uris = new String[nodes.size()];
+            for (int i = 0; i < uris.length; i++) {
+                uris[i] = "127.0.0.1:" + nodes.get(i).server.getAddress().getPort();
+            }
+            this.delay = delay;
+        }
+
+        @Override
+        protected String[] getNodes() {
+            return uris;
+        }
+
+        @Override
+        protected long getDelay() {
+            return delay;
+        }
+
+        @Override
+        protected long getRetryBackoff() {
+            return 10;
+        }
+
+        @Override
+        protected int getMaxRetries() {
+            return 3;
+        }
+    }
+
+    // a rest server that takes cache wipes, and fails as many as asked first
+    private static class Node implements HttpHandler {
+        final HttpServer server;
+        final List<BroadcastEvent> events = new ArrayList<BroadcastEvent>();
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        Node() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/kylin/api/cache/batch", this);
+            server.start();
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                if (failures.get() > 0) {
+                    failures.decrementAndGet();
+                    exchange.sendResponseHeaders(500, -1);
+                    return;
+                }
+                BroadcastEvent[] batch = JsonUtil.readValue(exchange.getRequestBody(), BroadcastEvent[].class);
+                synchronized (this) {
+                    events.addAll(Arrays.asList(batch));
+                    requests.incrementAndGet();
+                    notifyAll();
+                }
+                exchange.sendResponseHeaders(200, -1);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        synchronized void awaitEvents(int n) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10 * 1000;
+            while (events.size() < n) {
+                long wait = deadline - System.currentTimeMillis();
+                assertTrue("waited too long for " + n + " events, got " + events, wait > 0);
+                wait(wait);
+            }
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+    }
+}
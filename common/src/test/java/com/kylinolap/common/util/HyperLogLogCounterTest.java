@@ -26,7 +26,10 @@ import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import com.kylinolap.common.hll.HyperLogLogPlusCounter;
+import com.kylinolap.common.hll.HyperLogLogPlusTable;
 
 /**
  * @author yangli9
@@ -203,6 +206,132 @@ public class HyperLogLogCounterTest {
         System.out.println("Perf test result: " + duration / 1000 + " seconds");
     }
 
+    @Test
+    public void equivalenceTest() throws IOException {
+        Random rand = new Random(4);
+        for (int round = 0; round < 50; round++) {
+            int p = 4 + rand.nextInt(13);
+            HyperLogLogPlusCounter merged = new HyperLogLogPlusCounter(p);
+            ReferenceHLLC refMerged = new ReferenceHLLC(p);
+
+            for (int k = 0; k < 5; k++) {
+                HyperLogLogPlusCounter hllc = new HyperLogLogPlusCounter(p);
+                ReferenceHLLC ref = new ReferenceHLLC(p);
+                int n = rand.nextInt(k % 2 == 0 ? 100 : 100000);
+                for (int i = 0; i < n; i++) {
+                    String v = String.valueOf(rand.nextLong());
+                    hllc.add(v);
+                    ref.add(v);
+                }
+                Assert.assertEquals(ref.getCountEstimate(), hllc.getCountEstimate());
+
+                merged.merge(hllc);
+                refMerged.merge(ref);
+                Assert.assertEquals(refMerged.getCountEstimate(), merged.getCountEstimate());
+            }
+
+            // cached estimate must follow mutation
+            merged.add(String.valueOf(rand.nextLong()));
+            checkSerialize(merged);
+            merged.clear();
+            Assert.assertEquals(0, merged.getCountEstimate());
+        }
+    }
+
+    @Test
+    public void testMergePerformance() {
+        int N = 100; // HLLC to merge
+        int M = 100; // for M times, use 10000 for real perf test
+
+        HyperLogLogPlusCounter samples[] = new HyperLogLogPlusCounter[N];
+        ReferenceHLLC refSamples[] = new ReferenceHLLC[N];
+        for (int i = 0; i < N; i++) {
+            samples[i] = newHLLC();
+            refSamples[i] = new ReferenceHLLC(16);
+            for (int k = 0; k < 1000; k++) {
+                String str = String.valueOf(rand1.nextLong());
+                samples[i].add(str);
+                refSamples[i].add(str);
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        HyperLogLogPlusCounter sum = newHLLC();
+        for (int i = 0; i < M; i++) {
+            sum.clear();
+            for (int j = 0; j < N; j++)
+                sum.merge(samples[j]);
+            sum.getCountEstimate();
+        }
+        long duration = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        ReferenceHLLC refSum = new ReferenceHLLC(16);
+        for (int i = 0; i < M; i++) {
+            refSum.clear();
+            for (int j = 0; j < N; j++)
+                refSum.merge(refSamples[j]);
+            refSum.getCountEstimate();
+        }
+        long refDuration = System.currentTimeMillis() - start;
+
+        System.out.println("Merge perf test result: " + duration + " ms, byte-by-byte reference: " + refDuration + " ms");
+        Assert.assertEquals(refSum.getCountEstimate(), sum.getCountEstimate());
+    }
+
+    // the original byte-per-register implementation, as the baseline for equivalence and performance
+    private static class ReferenceHLLC {
+        final int p;
+        final int m;
+        final HashFunction hashFunc = Hashing.murmur3_128();
+        final byte[] registers;
+
+        ReferenceHLLC(int p) {
+            this.p = p;
+            this.m = (int) Math.pow(2, p);
+            this.registers = new byte[m];
+        }
+
+        void clear() {
+            for (int i = 0; i < m; i++)
+                registers[i] = 0;
+        }
+
+        void add(String value) {
+            long hash = hashFunc.hashString(value).asLong();
+            int bucketMask = m - 1;
+            int bucket = (int) (hash & bucketMask);
+            int firstOnePos = Long.numberOfLeadingZeros(hash | bucketMask) + 1;
+            if (firstOnePos > registers[bucket])
+                registers[bucket] = (byte) firstOnePos;
+        }
+
+        void merge(ReferenceHLLC another) {
+            for (int i = 0; i < m; i++) {
+                if (registers[i] < another.registers[i])
+                    registers[i] = another.registers[i];
+            }
+        }
+
+        long getCountEstimate() {
+            double registerSum = 0;
+            int zeroBuckets = 0;
+            for (int i = 0; i < m; i++) {
+                if (registers[i] == 0)
+                    zeroBuckets++;
+                registerSum += Math.pow(2, -registers[i]);
+            }
+            double alpha = 1 / (2 * Math.log(2) * (1 + (3 * Math.log(2) - 1) / m));
+            double estimate = alpha * m * m / registerSum;
+            if (zeroBuckets >= m * 0.07) {
+                estimate = m * Math.log(m * 1.0 / zeroBuckets);
+            } else if (HyperLogLogPlusTable.isBiasCorrection(m, estimate)) {
+                estimate = HyperLogLogPlusTable.biasCorrection(p, estimate);
+            }
+            return Math.round(estimate);
+        }
+    }
+
     private HyperLogLogPlusCounter newHLLC() {
         return new HyperLogLogPlusCounter(16);
     }
@@ -164,7 +164,11 @@ public class CubeManager {
             return null;
 
         DictionaryManager dictMgr = getDictionaryManager();
-        DictionaryInfo dictInfo = dictMgr.buildDictionary(cubeSeg.getCubeDesc(), col, factColumnsPath);
+        DictionaryInfo dictInfo;
+        if (cubeSeg.getCubeDesc().getRowkey().isUseGlobalDictionary(col))
+            dictInfo = buildGlobalDictionary(cubeSeg, col, factColumnsPath);
+        else
+            dictInfo = dictMgr.buildDictionary(cubeSeg.getCubeDesc(), col, factColumnsPath);
         cubeSeg.putDictResPath(col, dictInfo.getResourcePath());
 
         saveResource(cubeSeg.getCubeInstance());
@@ -172,6 +176,30 @@ public class CubeManager {
         return dictInfo;
     }
 
+    /**
+     * append new values of the fact column to the cube's global dictionary,
+     * which encodes the column of precise (bitmap) count distinct, or a
+     * dimension declared with "global" dictionary
+     */
+    public DictionaryInfo buildGlobalDictionary(CubeSegment cubeSeg, TblColRef col, String factColumnsPath) throws IOException {
+        DictionaryManager dictMgr = getDictionaryManager();
+        return dictMgr.appendGlobalDictionary(cubeSeg.getCubeInstance().getName(), col, factColumnsPath);
+    }
+
+    /**
+     * return null if the cube has no global dictionary for given column
+     */
+    public Dictionary<?> getGlobalDictionary(CubeInstance cube, TblColRef col) {
+        DictionaryManager dictMgr = getDictionaryManager();
+        String dictResPath = dictMgr.getGlobalDictionaryPath(cube.getName(), col);
+        try {
+            DictionaryInfo info = dictMgr.getDictionaryInfo(dictResPath);
+            return info == null ? null : info.getDictionaryObject();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to get global dictionary for cube " + cube.getName() + ", col " + col, e);
+        }
+    }
+
     /**
      * return null if no dictionary for given column
      */
@@ -375,6 +403,10 @@ public class CubeManager {
      */
     public void loadCubeCache(CubeInstance cube) {
         try {
+            // global dictionaries may have been appended by the new segment
+            for (TblColRef col : listGlobalDictionaryColumns(cube.getDescriptor())) {
+                getDictionaryManager().evictDictionaryCache(getDictionaryManager().getGlobalDictionaryPath(cube.getName(), col));
+            }
             loadCubeInstance(cube.getResourcePath());
         } catch (IOException e) {
             logger.error(e.getLocalizedMessage(), e);
@@ -440,7 +472,10 @@ public class CubeManager {
 
         for (DimensionDesc dim : cube.getDescriptor().getDimensions()) {
             for (TblColRef col : dim.getColumnRefs()) {
-                if (newSeg.getCubeDesc().getRowkey().isUseDictionary(col)) {
+                if (newSeg.getCubeDesc().getRowkey().isUseGlobalDictionary(col)) {
+                    // shared by all segments, nothing to merge
+                    newSeg.putDictResPath(col, dictMgr.getGlobalDictionaryPath(cube.getName(), col));
+                } else if (newSeg.getCubeDesc().getRowkey().isUseDictionary(col)) {
                     if (cube.getDescriptor().getFactTable().equalsIgnoreCase((String) dictMgr.decideSourceData(cube.getDescriptor(), col, null)[0])) {
                         colsNeedMeringDict.add(col);
                     } else {
@@ -482,6 +517,17 @@ public class CubeManager {
         }
     }
 
+    private List<TblColRef> listGlobalDictionaryColumns(CubeDesc cubeDesc) {
+        List<TblColRef> result = new ArrayList<TblColRef>(cubeDesc.listBitmapMeasureColumns());
+        for (DimensionDesc dim : cubeDesc.getDimensions()) {
+            for (TblColRef col : dim.getColumnRefs()) {
+                if (cubeDesc.getRowkey().isUseGlobalDictionary(col) && result.contains(col) == false)
+                    result.add(col);
+            }
+        }
+        return result;
+    }
+
     private DictionaryInfo mergeDictionaries(CubeSegment cubeSeg, List<DictionaryInfo> dicts, TblColRef col) throws IOException {
         DictionaryManager dictMgr = getDictionaryManager();
         DictionaryInfo dictInfo = dictMgr.mergeDictionary(dicts);
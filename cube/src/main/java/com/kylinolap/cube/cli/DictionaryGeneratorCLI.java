@@ -61,6 +61,12 @@ public class DictionaryGeneratorCLI {
                                                       // sanity check
             }
         }
+
+        // global dictionaries of precise count distinct, shared by all segments
+        for (TblColRef col : cubeSeg.getCubeDesc().listBitmapMeasureColumns()) {
+            logger.info("Appending global dictionary for " + col);
+            cubeMgr.buildGlobalDictionary(cubeSeg, col, factColumnsPath);
+        }
     }
 
 }
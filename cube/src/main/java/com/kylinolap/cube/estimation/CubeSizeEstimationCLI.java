@@ -11,6 +11,7 @@ import com.kylinolap.cube.CubeInstance;
 import com.kylinolap.cube.CubeManager;
 import com.kylinolap.cube.cuboid.Cuboid;
 import com.kylinolap.cube.cuboid.CuboidScheduler;
+import com.kylinolap.cube.kv.DimensionEncoding;
 import com.kylinolap.metadata.model.cube.CubeDesc;
 import com.kylinolap.metadata.model.cube.DimensionDesc;
 import com.kylinolap.metadata.model.cube.HierarchyDesc;
@@ -90,7 +91,9 @@ public class CubeSizeEstimationCLI {
         int[] ret = new int[rowKeyColDescs.length];
         for (int i = 0; i < rowKeyColDescs.length; ++i) {
             RowKeyColDesc rowKeyColDesc = rowKeyColDescs[rowKeyColDescs.length - 1 - i];
-            if (rowKeyColDesc.getDictionary() == null) {
+            if (rowKeyColDesc.getEncoding() != null) {
+                ret[i] = DimensionEncoding.create(rowKeyColDesc.getEncoding()).getLengthOfEncoding();
+            } else if (rowKeyColDesc.getDictionary() == null) {
                 if (rowKeyColDesc.getLength() == 0)
                     throw new IllegalStateException("The non-dictionary col " + rowKeyColDesc.getColumn() + " has length of 0");
                 ret[i] = rowKeyColDesc.getLength();
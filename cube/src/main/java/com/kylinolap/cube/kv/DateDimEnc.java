@@ -0,0 +1,57 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.cube.kv;
+
+import java.util.Date;
+
+import com.kylinolap.dict.DateStrDictionary;
+
+/**
+ * Date as days since epoch in 3 bytes, or time as milliseconds since epoch in
+ * 8 bytes. Both are order preserving.
+ * 
+ * @author yangli9
+ */
+public class DateDimEnc extends IntegerDimEnc {
+
+    public static final String ENCODING_DATE = "date";
+    public static final String ENCODING_TIME = "time";
+
+    private static final long MILLIS_PER_DAY = 24L * 3600 * 1000;
+
+    private final boolean isTime;
+
+    public DateDimEnc(boolean isTime) {
+        super(isTime ? 8 : 3);
+        this.isTime = isTime;
+    }
+
+    @Override
+    protected long valueToLong(String value) {
+        long millis = DateStrDictionary.stringToMillis(value.trim());
+        return isTime ? millis : Math.round(Math.floor((double) millis / MILLIS_PER_DAY));
+    }
+
+    @Override
+    protected String longToValue(long v) {
+        if (isTime)
+            return DateStrDictionary.dateToString(new Date(v));
+        else
+            return DateStrDictionary.dateToString(new Date(v * MILLIS_PER_DAY), "yyyy-MM-dd");
+    }
+
+}
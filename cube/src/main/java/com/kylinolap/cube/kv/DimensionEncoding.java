@@ -0,0 +1,106 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.cube.kv;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Encodes a rowkey column into fixed length bytes without a dictionary. The
+ * byte order of encoded values follows the value order, so range filters and
+ * fuzzy keys work on the encoded bytes directly. NULL is encoded as all 0xFF.
+ * 
+ * @author yangli9
+ */
+abstract public class DimensionEncoding {
+
+    public static final byte NULL = (byte) 0xff;
+
+    /**
+     * Creates encoding by name, like "integer:4", "date", "time",
+     * "fixed_length:20".
+     */
+    public static DimensionEncoding create(String encoding) {
+        if (encoding == null)
+            throw new NullPointerException();
+
+        String name = encoding;
+        int arg = 0;
+        int cut = encoding.indexOf(':');
+        if (cut >= 0) {
+            name = encoding.substring(0, cut);
+            arg = Integer.parseInt(encoding.substring(cut + 1).trim());
+        }
+        name = name.trim().toLowerCase();
+
+        if (IntegerDimEnc.ENCODING_NAME.equals(name))
+            return new IntegerDimEnc(arg);
+        else if (DateDimEnc.ENCODING_DATE.equals(name))
+            return new DateDimEnc(false);
+        else if (DateDimEnc.ENCODING_TIME.equals(name))
+            return new DateDimEnc(true);
+        else if (FixedLenDimEnc.ENCODING_NAME.equals(name))
+            return new FixedLenDimEnc(arg);
+        else
+            throw new IllegalArgumentException("Unknown dimension encoding '" + encoding + "'");
+    }
+
+    public static boolean isNull(byte[] bytes, int offset, int len) {
+        for (int i = offset, end = offset + len; i < end; i++) {
+            if (bytes[i] != NULL)
+                return false;
+        }
+        return true;
+    }
+
+    public static void fillNull(byte[] output, int outputOffset, int len) {
+        Arrays.fill(output, outputOffset, outputOffset + len, NULL);
+    }
+
+    abstract public int getLengthOfEncoding();
+
+    /**
+     * Writes exactly getLengthOfEncoding() bytes. A null value is encoded as
+     * NULL.
+     * 
+     * @throws IllegalArgumentException
+     *             if the value can't be encoded
+     */
+    abstract public void encode(byte[] value, int valueLen, byte[] output, int outputOffset);
+
+    /**
+     * @return the string value, or null if the bytes encode NULL
+     */
+    abstract public String decode(byte[] bytes, int offset, int len);
+
+    /**
+     * @return false if the value can't be told from others once encoded, like
+     *         a string truncated or a time in a date
+     */
+    public boolean isExact(String value) {
+        byte[] bytes = Bytes.toBytes(value);
+        byte[] encoded = new byte[getLengthOfEncoding()];
+        try {
+            encode(bytes, bytes.length, encoded, 0);
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+        return value.equals(decode(encoded, 0, encoded.length));
+    }
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.cube.kv;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * String in fixed length bytes, longer values are truncated and shorter ones
+ * padded. Truncated values are not exact, filters on them are widened to be
+ * inclusive when translated to encoded bytes.
+ * 
+ * @author yangli9
+ */
+public class FixedLenDimEnc extends DimensionEncoding {
+
+    public static final String ENCODING_NAME = "fixed_length";
+
+    private final int fixedLen;
+
+    public FixedLenDimEnc(int len) {
+        if (len <= 0)
+            throw new IllegalArgumentException("fixed_length encoding length must be positive, but is " + len);
+        this.fixedLen = len;
+    }
+
+    @Override
+    public int getLengthOfEncoding() {
+        return fixedLen;
+    }
+
+    @Override
+    public void encode(byte[] value, int valueLen, byte[] output, int outputOffset) {
+        if (value == null) {
+            fillNull(output, outputOffset, fixedLen);
+            return;
+        }
+
+        int n = Math.min(valueLen, fixedLen);
+        System.arraycopy(value, 0, output, outputOffset, n);
+        Arrays.fill(output, outputOffset + n, outputOffset + fixedLen, RowConstants.ROWKEY_PLACE_HOLDER_BYTE);
+    }
+
+    @Override
+    public String decode(byte[] bytes, int offset, int len) {
+        if (isNull(bytes, offset, len))
+            return null;
+
+        int end = offset + len;
+        while (end > offset && bytes[end - 1] == RowConstants.ROWKEY_PLACE_HOLDER_BYTE)
+            end--;
+        return Bytes.toString(bytes, offset, end - offset);
+    }
+
+}
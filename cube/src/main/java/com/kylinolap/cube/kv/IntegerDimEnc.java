@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.cube.kv;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * Fixed length signed integer. The sign bit is flipped so negative numbers
+ * sort before positive ones. The biggest value of the length is reserved for
+ * NULL.
+ * 
+ * @author yangli9
+ */
+public class IntegerDimEnc extends DimensionEncoding {
+
+    public static final String ENCODING_NAME = "integer";
+
+    private final int fixedLen;
+    private final long minValue;
+    private final long maxValue;
+
+    public IntegerDimEnc(int len) {
+        if (len <= 0 || len > 8)
+            throw new IllegalArgumentException("integer encoding length must be between 1 and 8, but is " + len);
+
+        this.fixedLen = len;
+        this.minValue = len == 8 ? Long.MIN_VALUE : -(1L << (len * 8 - 1));
+        this.maxValue = (len == 8 ? Long.MAX_VALUE : (1L << (len * 8 - 1)) - 1) - 1; // max is NULL
+    }
+
+    @Override
+    public int getLengthOfEncoding() {
+        return fixedLen;
+    }
+
+    @Override
+    public void encode(byte[] value, int valueLen, byte[] output, int outputOffset) {
+        if (value == null) {
+            fillNull(output, outputOffset, fixedLen);
+            return;
+        }
+
+        long v = valueToLong(Bytes.toString(value, 0, valueLen));
+        if (v < minValue || v > maxValue)
+            throw new IllegalArgumentException("Value " + v + " exceeds the range of " + fixedLen + " bytes integer");
+
+        v = v ^ minValue; // flip sign bit
+        for (int i = fixedLen - 1; i >= 0; i--) {
+            output[outputOffset + i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    @Override
+    public String decode(byte[] bytes, int offset, int len) {
+        if (isNull(bytes, offset, len))
+            return null;
+
+        long v = 0;
+        for (int i = offset, end = offset + len; i < end; i++) {
+            v = (v << 8) | (bytes[i] & 0xff);
+        }
+        v = v ^ (1L << (len * 8 - 1)); // flip sign bit back
+        int shift = 64 - len * 8;
+        v = (v << shift) >> shift; // sign extend
+        return longToValue(v);
+    }
+
+    protected long valueToLong(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("'" + value + "' is not an integer", e);
+        }
+    }
+
+    protected String longToValue(long v) {
+        return String.valueOf(v);
+    }
+
+}
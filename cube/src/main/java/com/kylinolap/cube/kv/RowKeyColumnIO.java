@@ -17,6 +17,7 @@
 package com.kylinolap.cube.kv;
 
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.hadoop.hbase.util.Bytes;
 import org.slf4j.Logger;
@@ -39,6 +40,8 @@ public class RowKeyColumnIO {
 
     private static final Logger logger = LoggerFactory.getLogger(RowKeyColumnIO.class);
 
+    private static final ConcurrentHashMap<String, DimensionEncoding> encodingCache = new ConcurrentHashMap<String, DimensionEncoding>();
+
     private CubeSegment seg;
     private RowKeyDesc rowkeyDesc;
     private boolean forceNoDict = Boolean.getBoolean("forceNoDict");
@@ -53,6 +56,10 @@ public class RowKeyColumnIO {
     }
 
     public int getColumnLength(TblColRef col) {
+        DimensionEncoding enc = getEncoding(col);
+        if (enc != null)
+            return enc.getLengthOfEncoding();
+
         Dictionary<String> dict = getDictionary(col);
         if (dict == null) {
             return rowkeyDesc.getColumnLength(col);
@@ -67,6 +74,19 @@ public class RowKeyColumnIO {
 
     public void writeColumn(TblColRef column, byte[] value, int valueLen, int roundingFlag, byte dft, byte[] output, int outputOffset) {
 
+        // encoded value, order preserving thus needs no rounding
+        DimensionEncoding enc = getEncoding(column);
+        if (enc != null) {
+            try {
+                enc.encode(value, valueLen, output, outputOffset);
+            } catch (IllegalArgumentException ex) {
+                for (int i = outputOffset; i < outputOffset + enc.getLengthOfEncoding(); i++)
+                    output[i] = dft;
+                logger.error("Can't encode value " + Bytes.toString(value, 0, valueLen) + " of " + column + ". Using default value " + String.format("\\x%02X", dft));
+            }
+            return;
+        }
+
         Dictionary<String> dict = getDictionary(column);
         int columnLen = getColumnLength(column);
 
@@ -103,6 +123,11 @@ public class RowKeyColumnIO {
     }
 
     public String readColumnString(TblColRef col, byte[] bytes, int bytesLen) {
+        DimensionEncoding enc = getEncoding(col);
+        if (enc != null) {
+            return enc.decode(bytes, 0, bytesLen);
+        }
+
         Dictionary<String> dict = getDictionary(col);
         if (dict == null) {
             bytes = Bytes.head(bytes, bytesLen);
@@ -155,6 +180,19 @@ public class RowKeyColumnIO {
         return stripBytes;
     }
 
+    public DimensionEncoding getEncoding(TblColRef col) {
+        String encoding = rowkeyDesc.getEncoding(col);
+        if (encoding == null || encoding.length() == 0)
+            return null;
+
+        DimensionEncoding enc = encodingCache.get(encoding);
+        if (enc == null) {
+            enc = DimensionEncoding.create(encoding);
+            encodingCache.put(encoding, enc);
+        }
+        return enc;
+    }
+
     public Dictionary<String> getDictionary(TblColRef col) {
         if (forceNoDict)
             return null;
@@ -133,4 +133,23 @@ public class RowValueDecoder implements Cloneable {
         return false;
     }
 
+    // HLL counters are not accounted by coprocessor memory check, unlike bitmaps
+    public boolean hasHLLCCountDistinct() {
+        for (int i = projectionIndex.nextSetBit(0); i >= 0; i = projectionIndex.nextSetBit(i + 1)) {
+            FunctionDesc func = measures[i].getFunction();
+            if (func.isCountDistinct() && func.getReturnDataType().isHLLC()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static boolean hasHLLCCountDistinct(Collection<RowValueDecoder> rowValueDecoders) {
+        for (RowValueDecoder decoder : rowValueDecoders) {
+            if (decoder.hasHLLCCountDistinct())
+                return true;
+        }
+        return false;
+    }
+
 }
@@ -0,0 +1,135 @@
+/*
+
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.cube.measure;
+
+import it.uniroma3.mat.extendedset.intset.ConciseSet;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import com.kylinolap.common.util.BytesUtil;
+
+/**
+ * Precise distinct counter, a compressed bitmap of (global) dictionary IDs.
+ * 
+ * @author yangli9
+ */
+public class BitmapCounter implements Comparable<BitmapCounter> {
+
+    private ConciseSet set;
+
+    public BitmapCounter() {
+        set = new ConciseSet();
+    }
+
+    public BitmapCounter(BitmapCounter another) {
+        this();
+        merge(another);
+    }
+
+    public void clear() {
+        set.clear();
+    }
+
+    public void add(int id) {
+        set.add(id);
+    }
+
+    public void merge(BitmapCounter another) {
+        if (another.set.isEmpty())
+            return;
+        set.addAll(another.set);
+    }
+
+    public long getCount() {
+        return set.size();
+    }
+
+    public boolean contains(int id) {
+        return set.contains(id);
+    }
+
+    // an upper bound of memory consumption, words of the compressed bitmap can't exceed either
+    // the number of IDs or the number of 31-bit blocks up to the largest ID
+    public int getMemBytes() {
+        if (set.isEmpty())
+            return 32;
+        int words = Math.min(set.size() + 1, set.last() / 31 + 1);
+        return 32 + 4 * words;
+    }
+
+    public void writeBitmap(ByteBuffer out) {
+        if (set.isEmpty()) { // ConciseSet.toByteBuffer() throws exception when set is empty
+            BytesUtil.writeVInt(0, out);
+            return;
+        }
+        ByteBuffer bytes = set.toByteBuffer();
+        BytesUtil.writeVInt(bytes.limit(), out);
+        out.put(bytes.array(), 0, bytes.limit());
+    }
+
+    public void readBitmap(ByteBuffer in) {
+        int len = BytesUtil.readVInt(in);
+        if (len == 0) {
+            set = new ConciseSet();
+            return;
+        }
+        IntBuffer intBuffer = ByteBuffer.wrap(in.array(), in.arrayOffset() + in.position(), len).asIntBuffer();
+        int[] words = new int[intBuffer.capacity()];
+        intBuffer.get(words);
+        in.position(in.position() + len);
+        set = new ConciseSet(words, false);
+    }
+
+    @Override
+    public int hashCode() {
+        return set.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        BitmapCounter other = (BitmapCounter) obj;
+        return set.equals(other.set);
+    }
+
+    @Override
+    public int compareTo(BitmapCounter o) {
+        if (o == null)
+            return 1;
+
+        long e1 = this.getCount();
+        long e2 = o.getCount();
+
+        if (e1 == e2)
+            return 0;
+        else if (e1 > e2)
+            return 1;
+        else
+            return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "BitmapCounter [count=" + getCount() + "]";
+    }
+}
@@ -0,0 +1,52 @@
+/*
+
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.cube.measure;
+
+import java.nio.ByteBuffer;
+
+import com.kylinolap.common.util.BytesUtil;
+
+/**
+ * Serializes BitmapCounter. The input value of a bitmap measure is the 4 bytes
+ * global dictionary ID of the distinct column.
+ * 
+ * @author yangli9
+ */
+public class BitmapSerializer extends MeasureSerializer<BitmapCounter> {
+
+    BitmapCounter current = new BitmapCounter();
+
+    @Override
+    public void serialize(BitmapCounter value, ByteBuffer out) {
+        value.writeBitmap(out);
+    }
+
+    @Override
+    public BitmapCounter deserialize(ByteBuffer in) {
+        current.readBitmap(in);
+        return current;
+    }
+
+    @Override
+    public BitmapCounter valueOf(byte[] value) {
+        current.clear();
+        if (value != null)
+            current.add(BytesUtil.readUnsigned(value, 0, value.length));
+        return current;
+    }
+
+}
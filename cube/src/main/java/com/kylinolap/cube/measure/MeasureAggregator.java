@@ -36,8 +36,12 @@ abstract public class MeasureAggregator<V> {
         } else if (FunctionDesc.FUNC_COUNT_DISTINCT.equalsIgnoreCase(funcName)) {
             if (DataType.getInstance(returnType).isHLLC())
                 return new HLLCAggregator();
+            else if (DataType.getInstance(returnType).isBitmap())
+                return new BitmapAggregator();
             else
                 return new LDCAggregator();
+        } else if (FunctionDesc.FUNC_TOP_N.equalsIgnoreCase(funcName)) {
+            return new TopNAggregator();
         } else if (FunctionDesc.FUNC_MAX.equalsIgnoreCase(funcName)) {
             if (isInteger(returnType))
                 return new LongMaxAggregator();
@@ -97,4 +101,9 @@ abstract public class MeasureAggregator<V> {
 
     // get an estimate of memory consumption
     abstract public int getMemBytes();
+
+    // whether memory consumption grows as more values are aggregated
+    public boolean isMemoryVariable() {
+        return false;
+    }
 }
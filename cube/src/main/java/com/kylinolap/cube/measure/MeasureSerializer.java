@@ -43,6 +43,12 @@ abstract public class MeasureSerializer<T> implements BytesSerializer<T> {
         if (type.isHLLC()) {
             return new HLLCSerializer(type.getPrecision());
         }
+        if (type.isBitmap()) {
+            return new BitmapSerializer();
+        }
+        if (type.isTopN()) {
+            return new TopNCounterSerializer(type.getPrecision());
+        }
 
         Class<?> clz = implementations.get(type.getName());
         if (clz == null)
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.cube.measure;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.kylinolap.common.util.ByteArray;
+import com.kylinolap.common.util.BytesUtil;
+
+/**
+ * Keeps the top keys by sum of a metric, in a bounded space, the space-saving
+ * way.
+ *
+ * Each counter has a value and an error, the true sum of its key is between
+ * value - error and value. Counters more than N (EXTRA_SPACE_RATE times) are
+ * kept; when they grow beyond twice of that, the smallest are dropped and the
+ * biggest value dropped becomes the floor. A key not kept has a true sum no
+ * more than the floor, so a key offered later starts from the floor, with the
+ * floor as its error. Merging counters adds up values, errors and floors, a
+ * key missing on one side takes the floor of that side.
+ *
+ * Result is exact (zero floor and errors) as long as the distinct keys ever
+ * offered fit in the capacity. The bounds assume the metric is not negative.
+ * Sums are kept in BigDecimal, exact for decimal and integer metrics.
+ *
+ * @author yangli9
+ */
+public class TopNCounter {
+
+    public static final int EXTRA_SPACE_RATE = 10;
+
+    private static final Comparator<Counter> DESCENDING = new Comparator<Counter>() {
+        @Override
+        public int compare(Counter o1, Counter o2) {
+            return o2.value.compareTo(o1.value);
+        }
+    };
+
+    private final int n;
+    private final int capacity;
+    private HashMap<ByteArray, Counter> counters;
+    private BigDecimal floor = BigDecimal.ZERO; // upper bound of the sum of any key not kept
+    private long keyBytes; // total length of keys, for memory estimation
+
+    public TopNCounter(int n) {
+        this.n = n;
+        this.capacity = n * EXTRA_SPACE_RATE;
+        this.counters = new HashMap<ByteArray, Counter>();
+    }
+
+    public TopNCounter(TopNCounter another) {
+        this(another.n);
+        merge(another);
+    }
+
+    public int getN() {
+        return n;
+    }
+
+    public int size() {
+        return counters.size();
+    }
+
+    /**
+     * @return the max sum a key not in counters may have, zero if no key was
+     *         ever dropped
+     */
+    public BigDecimal getFloor() {
+        return floor;
+    }
+
+    public void clear() {
+        counters.clear();
+        floor = BigDecimal.ZERO;
+        keyBytes = 0;
+    }
+
+    /**
+     * @param key
+     *            kept as is, must not be changed by caller afterwards
+     */
+    public void offer(byte[] key, BigDecimal value) {
+        ByteArray k = new ByteArray(key);
+        Counter c = counters.get(k);
+        if (c == null) {
+            addCounter(k, new Counter(key, floor.add(value), floor));
+        } else {
+            c.value = c.value.add(value);
+        }
+    }
+
+    public void merge(TopNCounter another) {
+        BigDecimal anotherFloor = another.floor;
+        if (anotherFloor.signum() != 0) {
+            // keys here but not there may have up to the other floor
+            for (Map.Entry<ByteArray, Counter> e : counters.entrySet()) {
+                if (another.counters.containsKey(e.getKey()) == false) {
+                    Counter c = e.getValue();
+                    c.value = c.value.add(anotherFloor);
+                    c.error = c.error.add(anotherFloor);
+                }
+            }
+        }
+
+        BigDecimal thisFloor = floor;
+        for (Map.Entry<ByteArray, Counter> e : another.counters.entrySet()) {
+            Counter o = e.getValue();
+            Counter c = counters.get(e.getKey());
+            if (c == null) {
+                // no retain in the middle, the floor of this side must not change
+                counters.put(e.getKey(), new Counter(o.key, o.value.add(thisFloor), o.error.add(thisFloor)));
+                keyBytes += o.key.length;
+            } else {
+                c.value = c.value.add(o.value);
+                c.error = c.error.add(o.error);
+            }
+        }
+        floor = floor.add(anotherFloor);
+
+        if (counters.size() > capacity * 2)
+            retain(capacity);
+    }
+
+    private void addCounter(ByteArray k, Counter c) {
+        counters.put(k, c);
+        keyBytes += c.key.length;
+        if (counters.size() > capacity * 2)
+            retain(capacity);
+    }
+
+    /**
+     * Returns the top k counters, biggest first.
+     */
+    public List<Counter> topK(int k) {
+        List<Counter> sorted = sortedCounters();
+        return sorted.size() > k ? sorted.subList(0, k) : sorted;
+    }
+
+    /**
+     * @return true if the top k counters have exact values, and no key
+     *         dropped may rank among them
+     */
+    public boolean isTopKExact(int k) {
+        List<Counter> top = topK(k);
+        for (Counter c : top) {
+            if (c.error.signum() != 0)
+                return false;
+        }
+        if (floor.signum() == 0)
+            return true;
+        return top.size() == k && top.get(k - 1).value.compareTo(floor) >= 0;
+    }
+
+    private List<Counter> sortedCounters() {
+        List<Counter> list = new ArrayList<Counter>(counters.values());
+        Collections.sort(list, DESCENDING);
+        return list;
+    }
+
+    private void retain(int size) {
+        List<Counter> sorted = sortedCounters();
+        if (sorted.size() <= size)
+            return;
+
+        floor = floor.max(sorted.get(size).value);
+        for (int i = size; i < sorted.size(); i++) {
+            Counter c = sorted.get(i);
+            counters.remove(new ByteArray(c.key));
+            keyBytes -= c.key.length;
+        }
+    }
+
+    public int getMemBytes() {
+        return 64 + counters.size() * 160 + (int) keyBytes;
+    }
+
+    // writes no more than the capacity, the floor accounts for the rest
+    public void writeCounters(ByteBuffer out) {
+        List<Counter> sorted = sortedCounters();
+        BigDecimal writeFloor = floor;
+        if (sorted.size() > capacity) {
+            writeFloor = floor.max(sorted.get(capacity).value);
+            sorted = sorted.subList(0, capacity);
+        }
+
+        writeDecimal(writeFloor, out);
+        BytesUtil.writeVInt(sorted.size(), out);
+        for (Counter c : sorted) {
+            BytesUtil.writeByteArray(c.key, out);
+            writeDecimal(c.value, out);
+            writeDecimal(c.error, out);
+        }
+    }
+
+    public void readCounters(ByteBuffer in) {
+        clear();
+        floor = readDecimal(in);
+        int size = BytesUtil.readVInt(in);
+        for (int i = 0; i < size; i++) {
+            byte[] key = BytesUtil.readByteArray(in);
+            BigDecimal value = readDecimal(in);
+            BigDecimal error = readDecimal(in);
+            counters.put(new ByteArray(key), new Counter(key, value, error));
+            keyBytes += key.length;
+        }
+    }
+
+    private static void writeDecimal(BigDecimal value, ByteBuffer out) {
+        BytesUtil.writeVInt(value.scale(), out);
+        BytesUtil.writeByteArray(value.unscaledValue().toByteArray(), out);
+    }
+
+    private static BigDecimal readDecimal(ByteBuffer in) {
+        int scale = BytesUtil.readVInt(in);
+        return new BigDecimal(new BigInteger(BytesUtil.readByteArray(in)), scale);
+    }
+
+    @Override
+    public int hashCode() {
+        return counters.keySet().hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        TopNCounter other = (TopNCounter) obj;
+        if (n != other.n)
+            return false;
+        if (floor.compareTo(other.floor) != 0)
+            return false;
+        return counters.equals(other.counters);
+    }
+
+    @Override
+    public String toString() {
+        return "TopNCounter [n=" + n + ", floor=" + floor + ", " + topK(n) + "]";
+    }
+
+    public static class Counter {
+        private final byte[] key;
+        private BigDecimal value;
+        private BigDecimal error; // true sum is between value - error and value
+
+        Counter(byte[] key, BigDecimal value, BigDecimal error) {
+            this.key = key;
+            this.value = value;
+            this.error = error;
+        }
+
+        public byte[] getKey() {
+            return key;
+        }
+
+        public BigDecimal getValue() {
+            return value;
+        }
+
+        public BigDecimal getError() {
+            return error;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * new ByteArray(key).hashCode() + value.stripTrailingZeros().hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null || getClass() != obj.getClass())
+                return false;
+            Counter other = (Counter) obj;
+            return value.compareTo(other.value) == 0 && error.compareTo(other.error) == 0 && new ByteArray(key).equals(new ByteArray(other.key));
+        }
+
+        @Override
+        public String toString() {
+            return new String(key) + "=" + value + (error.signum() == 0 ? "" : "(+-" + error + ")");
+        }
+    }
+}
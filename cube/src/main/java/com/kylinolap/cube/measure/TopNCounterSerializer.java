@@ -0,0 +1,84 @@
+/*
+
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.cube.measure;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * The input value of a TopN measure is the metric in text, a zero byte and
+ * then the key bytes. Builders that have the two apart take the other valueOf
+ * to save the concatenation.
+ * 
+ * @author yangli9
+ */
+public class TopNCounterSerializer extends MeasureSerializer<TopNCounter> {
+
+    TopNCounter current;
+
+    TopNCounterSerializer(int n) {
+        current = new TopNCounter(n);
+    }
+
+    @Override
+    public void serialize(TopNCounter value, ByteBuffer out) {
+        value.writeCounters(out);
+    }
+
+    @Override
+    public TopNCounter deserialize(ByteBuffer in) {
+        current.readCounters(in);
+        return current;
+    }
+
+    // value bytes are the metric in text, a zero and then the key
+    @Override
+    public TopNCounter valueOf(byte[] value) {
+        if (value == null)
+            return valueOf(null, 0, 0, null, 0, 0);
+
+        int sep = 0;
+        while (value[sep] != 0)
+            sep++;
+        return valueOf(value, 0, sep, value, sep + 1, value.length - sep - 1);
+    }
+
+    /**
+     * Takes the metric text and the key from the source buffers, the key is
+     * copied. An empty metric counts as zero, a null key makes an empty
+     * counter.
+     */
+    public TopNCounter valueOf(byte[] metric, int metricOffset, int metricLength, byte[] key, int keyOffset, int keyLength) {
+        current.clear();
+        if (key != null) {
+            BigDecimal metricValue = metricLength == 0 ? BigDecimal.ZERO : new BigDecimal(Bytes.toString(metric, metricOffset, metricLength));
+            current.offer(Bytes.copy(key, keyOffset, keyLength), metricValue);
+        }
+        return current;
+    }
+
+    public static byte[] valueBytes(BigDecimal metric, byte[] key, int keyOffset, int keyLength) {
+        byte[] metricBytes = Bytes.toBytes(metric.toPlainString());
+        byte[] result = new byte[metricBytes.length + 1 + keyLength];
+        System.arraycopy(metricBytes, 0, result, 0, metricBytes.length);
+        System.arraycopy(key, keyOffset, result, metricBytes.length + 1, keyLength);
+        return result;
+    }
+
+}
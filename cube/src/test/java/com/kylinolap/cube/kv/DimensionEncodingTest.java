@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.cube.kv;
+
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+/**
+ * @author yangli9
+ */
+public class DimensionEncodingTest {
+
+    @Test
+    public void testInteger() {
+        DimensionEncoding enc = DimensionEncoding.create("integer:2");
+        assertEquals(2, enc.getLengthOfEncoding());
+        verifyOrderAndRoundTrip(enc, "-32768", "-1", "0", "1", "255", "32766");
+        verifyNull(enc);
+
+        enc = DimensionEncoding.create("integer:4");
+        verifyOrderAndRoundTrip(enc, "-2147483648", "-5", "0", "5", "2147483646");
+
+        enc = DimensionEncoding.create("integer:8");
+        verifyOrderAndRoundTrip(enc, String.valueOf(Long.MIN_VALUE), "-100", "0", "100", String.valueOf(Long.MAX_VALUE - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIntegerOverflow() {
+        encode(DimensionEncoding.create("integer:1"), "128");
+    }
+
+    @Test
+    public void testDate() {
+        DimensionEncoding enc = DimensionEncoding.create("date");
+        assertEquals(3, enc.getLengthOfEncoding());
+        verifyOrderAndRoundTrip(enc, "1960-02-29", "1970-01-01", "2012-12-15", "2013-01-01", "2099-12-31");
+        verifyNull(enc);
+    }
+
+    @Test
+    public void testTime() {
+        DimensionEncoding enc = DimensionEncoding.create("time");
+        assertEquals(8, enc.getLengthOfEncoding());
+        verifyOrderAndRoundTrip(enc, "1969-12-31 23:59:59", "2012-12-15 00:00:00", "2012-12-15 00:00:01", "2013-01-01 12:30:00");
+    }
+
+    @Test
+    public void testFixedLength() {
+        DimensionEncoding enc = DimensionEncoding.create("fixed_length:4");
+        verifyOrderAndRoundTrip(enc, "", "a", "ab", "abcd");
+        assertEquals("abcd", decode(enc, encode(enc, "abcdef")));
+        verifyNull(enc);
+    }
+
+    @Test
+    public void testIsExact() {
+        DimensionEncoding enc = DimensionEncoding.create("fixed_length:4");
+        assertTrue(enc.isExact("abcd"));
+        assertFalse(enc.isExact("abcdef"));
+
+        enc = DimensionEncoding.create("integer:4");
+        assertTrue(enc.isExact("5"));
+        assertFalse(enc.isExact("5000000000"));
+
+        enc = DimensionEncoding.create("date");
+        assertTrue(enc.isExact("2012-12-15"));
+        assertFalse(enc.isExact("2012-12-15 10:00:00"));
+    }
+
+    private void verifyOrderAndRoundTrip(DimensionEncoding enc, String... sortedValues) {
+        byte[] last = null;
+        for (String v : sortedValues) {
+            byte[] bytes = encode(enc, v);
+            assertEquals(v, decode(enc, bytes));
+            if (last != null)
+                assertTrue(v, Bytes.compareTo(last, bytes) < 0);
+            last = bytes;
+        }
+    }
+
+    private void verifyNull(DimensionEncoding enc) {
+        byte[] bytes = new byte[enc.getLengthOfEncoding()];
+        enc.encode(null, 0, bytes, 0);
+        assertNull(decode(enc, bytes));
+    }
+
+    private byte[] encode(DimensionEncoding enc, String value) {
+        byte[] v = Bytes.toBytes(value);
+        byte[] bytes = new byte[enc.getLengthOfEncoding()];
+        enc.encode(v, v.length, bytes, 0);
+        return bytes;
+    }
+
+    private String decode(DimensionEncoding enc, byte[] bytes) {
+        return enc.decode(bytes, 0, bytes.length);
+    }
+}
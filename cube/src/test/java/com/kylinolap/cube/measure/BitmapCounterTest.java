@@ -0,0 +1,92 @@
+/*
+
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.cube.measure;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import com.kylinolap.cube.kv.RowConstants;
+
+/**
+ * @author yangli9
+ */
+public class BitmapCounterTest {
+
+    Random rand = new Random(1);
+
+    @Test
+    public void testMergeIsPrecise() {
+        HashSet<Integer> truth = new HashSet<Integer>();
+        BitmapAggregator agg = new BitmapAggregator();
+        BitmapSerializer serializer = (BitmapSerializer) MeasureSerializer.create("bitmap");
+
+        for (int i = 0; i < 100000; i++) {
+            int id = rand.nextInt(50000);
+            truth.add(id);
+            agg.aggregate(serializer.valueOf(Bytes.toBytes(id)));
+        }
+        assertEquals(truth.size(), agg.getState().getCount());
+
+        // null value counts nothing
+        agg.aggregate(serializer.valueOf(null));
+        assertEquals(truth.size(), agg.getState().getCount());
+    }
+
+    @Test
+    public void testSerialize() {
+        BitmapSerializer serializer = new BitmapSerializer();
+        ByteBuffer buf = ByteBuffer.allocate(RowConstants.ROWVALUE_BUFFER_SIZE);
+
+        BitmapCounter empty = new BitmapCounter();
+        BitmapCounter sparse = new BitmapCounter();
+        BitmapCounter dense = new BitmapCounter();
+        for (int i = 0; i < 1000; i++)
+            sparse.add(rand.nextInt(10000000));
+        for (int i = 0; i < 100000; i++)
+            dense.add(i);
+
+        serializer.serialize(empty, buf);
+        serializer.serialize(sparse, buf);
+        serializer.serialize(dense, buf);
+        buf.flip();
+        System.out.println("size: " + buf.limit());
+
+        assertEquals(empty, new BitmapCounter(serializer.deserialize(buf)));
+        assertEquals(sparse, new BitmapCounter(serializer.deserialize(buf)));
+        assertEquals(dense, new BitmapCounter(serializer.deserialize(buf)));
+        assertEquals(0, buf.remaining());
+    }
+
+    @Test
+    public void testMemBytesIsUpperBound() {
+        BitmapCounter c = new BitmapCounter();
+        for (int i = 0; i < 10000; i++) {
+            c.add(rand.nextInt(1000000));
+            if (i % 1000 == 0) {
+                ByteBuffer buf = ByteBuffer.allocate(RowConstants.ROWVALUE_BUFFER_SIZE);
+                c.writeBitmap(buf);
+                assertTrue(buf.position() <= c.getMemBytes());
+            }
+        }
+    }
+}
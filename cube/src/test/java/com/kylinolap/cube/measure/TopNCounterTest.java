@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.cube.measure;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import com.kylinolap.cube.kv.RowConstants;
+
+/**
+ * @author yangli9
+ */
+public class TopNCounterTest {
+
+    Random rand = new Random(1);
+
+    @Test
+    public void testExactWithinCapacity() {
+        int n = 10;
+        long[] truth = new long[n * TopNCounter.EXTRA_SPACE_RATE];
+        TopNAggregator agg = new TopNAggregator();
+        TopNCounterSerializer serializer = (TopNCounterSerializer) MeasureSerializer.create("topn(" + n + ")");
+
+        for (int i = 0; i < 100000; i++) {
+            int key = rand.nextInt(truth.length);
+            long value = rand.nextInt(100);
+            truth[key] += value;
+            byte[] bytes = Bytes.toBytes(key);
+            agg.aggregate(serializer.valueOf(TopNCounterSerializer.valueBytes(BigDecimal.valueOf(value), bytes, 0, bytes.length)));
+        }
+
+        List<TopNCounter.Counter> top = agg.getState().topK(n);
+        assertEquals(n, top.size());
+        for (int i = 0; i < n; i++) {
+            TopNCounter.Counter c = top.get(i);
+            assertEquals(truth[Bytes.toInt(c.getKey())], c.getValue().longValueExact());
+            assertEquals(0, c.getError().signum());
+            if (i > 0)
+                assertTrue(top.get(i - 1).getValue().compareTo(c.getValue()) >= 0);
+        }
+    }
+
+    @Test
+    public void testErrorBoundBeyondCapacity() {
+        int n = 5;
+        int keys = 1000;
+        long[] truth = new long[keys];
+        TopNCounterSerializer serializer = new TopNCounterSerializer(n);
+        ByteBuffer buf = ByteBuffer.allocate(RowConstants.ROWVALUE_BUFFER_SIZE);
+
+        // partial counters, as of mappers, merged after a round trip of serialization
+        TopNCounter merged = new TopNCounter(n);
+        for (int part = 0; part < 8; part++) {
+            TopNCounter partial = new TopNCounter(n);
+            for (int i = 0; i < 20000; i++) {
+                int key = (int) Math.min(keys - 1, Math.abs(rand.nextGaussian()) * keys / 4);
+                long value = 1 + rand.nextInt(10);
+                truth[key] += value;
+                partial.offer(Bytes.toBytes(key), BigDecimal.valueOf(value));
+            }
+            buf.clear();
+            serializer.serialize(partial, buf);
+            buf.flip();
+            merged.merge(serializer.deserialize(buf));
+        }
+
+        assertTrue(merged.getFloor().signum() > 0);
+        boolean[] kept = new boolean[keys];
+        for (TopNCounter.Counter c : merged.topK(Integer.MAX_VALUE)) {
+            int key = Bytes.toInt(c.getKey());
+            kept[key] = true;
+            assertTrue(c.getValue().longValue() >= truth[key]);
+            assertTrue(c.getValue().subtract(c.getError()).longValue() <= truth[key]);
+        }
+        for (int key = 0; key < keys; key++) {
+            if (kept[key] == false)
+                assertTrue(truth[key] <= merged.getFloor().longValue());
+        }
+    }
+
+    @Test
+    public void testTopKExact() {
+        TopNCounter counter = new TopNCounter(2);
+        counter.offer(Bytes.toBytes(0), BigDecimal.TEN);
+        counter.offer(Bytes.toBytes(1), BigDecimal.TEN);
+        for (int i = 2; i < 100; i++)
+            counter.offer(Bytes.toBytes(i), BigDecimal.ONE);
+
+        // light keys dropped, the heavy ones stay exact above the floor
+        assertTrue(counter.getFloor().signum() > 0);
+        assertTrue(counter.isTopKExact(2));
+        assertEquals(BigDecimal.TEN, counter.topK(2).get(1).getValue());
+
+        // the floor passes the heavy ones, the top are bounds only
+        for (int i = 100; i < 1000; i++)
+            counter.offer(Bytes.toBytes(i), BigDecimal.ONE);
+        assertFalse(counter.isTopKExact(2));
+    }
+
+    @Test
+    public void testDecimalPrecision() {
+        TopNCounterSerializer serializer = new TopNCounterSerializer(10);
+        TopNAggregator agg = new TopNAggregator();
+        byte[] key = Bytes.toBytes("k");
+        for (int i = 0; i < 1000; i++) {
+            agg.aggregate(serializer.valueOf(TopNCounterSerializer.valueBytes(new BigDecimal("0.01"), key, 0, key.length)));
+        }
+        agg.aggregate(serializer.valueOf(TopNCounterSerializer.valueBytes(new BigDecimal("12345678901234567.89"), key, 0, key.length)));
+
+        assertEquals(new BigDecimal("12345678901234577.89"), agg.getState().topK(1).get(0).getValue());
+    }
+
+    @Test
+    public void testMerge() {
+        TopNCounter a = new TopNCounter(2);
+        TopNCounter b = new TopNCounter(2);
+        a.offer(Bytes.toBytes("x"), BigDecimal.valueOf(1));
+        a.offer(Bytes.toBytes("y"), BigDecimal.valueOf(5));
+        b.offer(Bytes.toBytes("x"), BigDecimal.valueOf(10));
+        b.offer(Bytes.toBytes("z"), BigDecimal.valueOf(3));
+        a.merge(b);
+
+        List<TopNCounter.Counter> top = a.topK(2);
+        assertEquals("x", Bytes.toString(top.get(0).getKey()));
+        assertEquals(BigDecimal.valueOf(11), top.get(0).getValue());
+        assertEquals("y", Bytes.toString(top.get(1).getKey()));
+        assertEquals(BigDecimal.valueOf(5), top.get(1).getValue());
+    }
+
+    @Test
+    public void testSerialize() {
+        TopNCounterSerializer serializer = new TopNCounterSerializer(100);
+        ByteBuffer buf = ByteBuffer.allocate(RowConstants.ROWVALUE_BUFFER_SIZE);
+
+        TopNCounter empty = new TopNCounter(100);
+        TopNCounter counter = new TopNCounter(100);
+        for (int i = 0; i < 500; i++)
+            counter.offer(Bytes.toBytes("key" + rand.nextInt(200)), BigDecimal.valueOf(rand.nextDouble()));
+
+        serializer.serialize(empty, buf);
+        serializer.serialize(counter, buf);
+        buf.flip();
+
+        assertEquals(empty, new TopNCounter(serializer.deserialize(buf)));
+        assertEquals(counter, new TopNCounter(serializer.deserialize(buf)));
+        assertEquals(0, buf.remaining());
+    }
+}
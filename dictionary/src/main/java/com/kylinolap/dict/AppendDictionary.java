@@ -0,0 +1,191 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.dict;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.kylinolap.common.util.ByteArray;
+
+/**
+ * A dictionary whose IDs are assigned by the order values arrive. Existing IDs
+ * never change as new values are appended, thus the dictionary can be shared by
+ * all segments of a cube (a global dictionary) and anything encoded with it,
+ * like the bitmap of a precise count distinct, can be merged across segments
+ * without re-encoding.
+ * 
+ * The price is IDs are NOT order preserving, so rounding lookup is not
+ * supported.
+ * 
+ * @author yangli9
+ */
+public class AppendDictionary extends Dictionary<String> {
+
+    public static final int SIZE_OF_ID = 4;
+    public static final int MAX_VALUES = NULL_ID[SIZE_OF_ID]; // ID 0xffffff reserved for NULL
+
+    private ArrayList<byte[]> idToValue;
+    transient private HashMap<ByteArray, Integer> valueToId;
+    transient private int maxValueLength;
+
+    public AppendDictionary() { // default constructor for Writable interface
+        idToValue = new ArrayList<byte[]>();
+        valueToId = new HashMap<ByteArray, Integer>();
+    }
+
+    /**
+     * Appends a value if not exists yet.
+     * 
+     * @return the ID of the value
+     */
+    public int appendValue(String value) {
+        byte[] valueBytes = Bytes.toBytes(value);
+        ByteArray key = new ByteArray(valueBytes);
+        Integer id = valueToId.get(key);
+        if (id != null)
+            return id;
+
+        if (idToValue.size() >= MAX_VALUES)
+            throw new IllegalStateException("Too many values for an append dictionary, the max is " + MAX_VALUES);
+
+        id = idToValue.size();
+        idToValue.add(valueBytes);
+        valueToId.put(key, id);
+        maxValueLength = Math.max(maxValueLength, valueBytes.length);
+        return id;
+    }
+
+    public int size() {
+        return idToValue.size();
+    }
+
+    @Override
+    public int getMinId() {
+        return 0;
+    }
+
+    @Override
+    public int getMaxId() {
+        return idToValue.size() - 1;
+    }
+
+    @Override
+    public int getSizeOfId() {
+        return SIZE_OF_ID;
+    }
+
+    @Override
+    public int getSizeOfValue() {
+        return maxValueLength;
+    }
+
+    @Override
+    protected int getIdFromValueImpl(String value, int roundingFlag) {
+        byte[] valueBytes = Bytes.toBytes(value);
+        return getIdFromValueBytesImpl(valueBytes, 0, valueBytes.length, roundingFlag);
+    }
+
+    @Override
+    protected int getIdFromValueBytesImpl(byte[] value, int offset, int len, int roundingFlag) {
+        byte[] valueBytes = value;
+        if (offset != 0 || len != value.length)
+            valueBytes = Bytes.copy(value, offset, len);
+
+        Integer id = valueToId.get(new ByteArray(valueBytes));
+        if (id == null)
+            throw new IllegalArgumentException("Not a valid value: " + Bytes.toString(valueBytes));
+        return id;
+    }
+
+    @Override
+    protected String getValueFromIdImpl(int id) {
+        return Bytes.toString(getValueBytes(id));
+    }
+
+    @Override
+    protected int getValueBytesFromIdImpl(int id, byte[] returnValue, int offset) {
+        byte[] valueBytes = getValueBytes(id);
+        System.arraycopy(valueBytes, 0, returnValue, offset, valueBytes.length);
+        return valueBytes.length;
+    }
+
+    private byte[] getValueBytes(int id) {
+        if (id < 0 || id >= idToValue.size())
+            throw new IllegalArgumentException("Not a valid ID: " + id);
+        return idToValue.get(id);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(idToValue.size());
+        for (byte[] valueBytes : idToValue) {
+            out.writeInt(valueBytes.length);
+            out.write(valueBytes);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int n = in.readInt();
+        idToValue = new ArrayList<byte[]>(n);
+        valueToId = new HashMap<ByteArray, Integer>(n * 4 / 3 + 1);
+        maxValueLength = 0;
+        for (int i = 0; i < n; i++) {
+            byte[] valueBytes = new byte[in.readInt()];
+            in.readFully(valueBytes);
+            idToValue.add(valueBytes);
+            valueToId.put(new ByteArray(valueBytes), i);
+            maxValueLength = Math.max(maxValueLength, valueBytes.length);
+        }
+    }
+
+    @Override
+    public void dump(PrintStream out) {
+        out.println("Total " + idToValue.size() + " values");
+        for (int i = 0; i < idToValue.size(); i++) {
+            out.println(i + " (" + Integer.toHexString(i) + "): " + getValueFromId(i));
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 1;
+        for (byte[] valueBytes : idToValue)
+            h = 31 * h + Bytes.hashCode(valueBytes);
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if ((o instanceof AppendDictionary) == false)
+            return false;
+        AppendDictionary that = (AppendDictionary) o;
+        if (this.idToValue.size() != that.idToValue.size())
+            return false;
+        for (int i = 0; i < idToValue.size(); i++) {
+            if (Bytes.equals(this.idToValue.get(i), that.idToValue.get(i)) == false)
+                return false;
+        }
+        return true;
+    }
+
+}
@@ -41,7 +41,7 @@ import org.apache.commons.lang.StringUtils;
  */
 public class DateStrDictionary extends Dictionary<String> {
 
-    static final String DEFAULT_DATE_PATTERN = "yyyy-MM-dd";
+    public static final String DEFAULT_DATE_PATTERN = "yyyy-MM-dd";
     static final String DEFAULT_DATETIME_PATTERN_WITHOUT_MILLISECONDS = "yyyy-MM-dd HH:mm:ss";
     static final String DEFAULT_DATETIME_PATTERN_WITH_MILLISECONDS = "yyyy-MM-dd HH:mm:ss.SSS";
 
@@ -27,6 +27,7 @@ import org.apache.commons.compress.utils.IOUtils;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,6 +40,7 @@ import com.kylinolap.dict.lookup.ReadableTable;
 import com.kylinolap.dict.lookup.TableSignature;
 import com.kylinolap.metadata.MetadataManager;
 import com.kylinolap.metadata.model.cube.CubeDesc;
+import com.kylinolap.metadata.model.cube.RowKeyColDesc;
 import com.kylinolap.metadata.model.cube.TblColRef;
 
 public class DictionaryManager {
@@ -47,6 +49,8 @@ public class DictionaryManager {
 
     private static final DictionaryInfo NONE_INDICATOR = new DictionaryInfo();
 
+    private static final String GLOBAL_DICT_PREFIX = "global_";
+
     // static cached instances
     private static final ConcurrentHashMap<KylinConfig, DictionaryManager> SERVICE_CACHE = new ConcurrentHashMap<KylinConfig, DictionaryManager>();
 
@@ -168,6 +172,57 @@ public class DictionaryManager {
         return trySaveNewDict(dict, dictInfo);
     }
 
+    /**
+     * Appends distinct values of a fact column to the global dictionary of a
+     * cube, creating the dictionary for the first time. IDs assigned before are
+     * never changed, so all segments of the cube share one ID space.
+     */
+    public DictionaryInfo appendGlobalDictionary(String cubeName, TblColRef col, String factColumnsPath) throws IOException {
+        ReadableTable inpTable = new FileTable(factColumnsPath + "/" + col.getName(), -1);
+
+        String resourcePath = getGlobalDictionaryPath(cubeName, col);
+        DictionaryInfo dictInfo = load(resourcePath, true); // skip cache, the cached one is read only
+        AppendDictionary dict;
+        if (dictInfo == null) {
+            dictInfo = new DictionaryInfo(col.getTable(), col.getName(), col.getColumn().getZeroBasedIndex(), col.getDatatype(), inpTable.getSignature(), inpTable.getColumnDelimeter());
+            dictInfo.setUuid(GLOBAL_DICT_PREFIX + cubeName);
+            dictInfo.setDictionaryClass(AppendDictionary.class.getName());
+            dict = new AppendDictionary();
+        } else {
+            dict = (AppendDictionary) dictInfo.getDictionaryObject();
+            dictInfo.setInput(inpTable.getSignature());
+        }
+
+        int before = dict.size();
+        for (byte[] value : DictionaryGenerator.loadColumnValues(inpTable, 0)) {
+            dict.appendValue(Bytes.toString(value));
+        }
+        logger.info("Appended " + (dict.size() - before) + " new values to global dictionary " + resourcePath + ", total " + dict.size());
+
+        dictInfo.setCardinality(dict.size());
+        dictInfo.setDictionaryObject(dict);
+        save(dictInfo);
+        dictCache.put(resourcePath, dictInfo);
+
+        return dictInfo;
+    }
+
+    /**
+     * Drops the cached copy, so the next get reads the latest from store. Needed
+     * for global dictionaries which are appended in place.
+     */
+    public void evictDictionaryCache(String resourcePath) {
+        dictCache.remove(resourcePath);
+    }
+
+    public String getGlobalDictionaryPath(String cubeName, TblColRef col) {
+        DictionaryInfo info = new DictionaryInfo();
+        info.setSourceTable(col.getTable());
+        info.setSourceColumn(col.getName());
+        info.setUuid(GLOBAL_DICT_PREFIX + cubeName);
+        return info.getResourcePath();
+    }
+
     /**
      * Get column origin
      *
@@ -202,8 +257,15 @@ public class DictionaryManager {
 
         String useDict = cube.getRowkey().getDictionary(col);
 
-        // normal case, source from lookup table
-        if ("true".equals(useDict) || "string".equals(useDict) || "number".equals(useDict) || "any".equals(useDict)) {
+        // global dictionary, values collected from fact table (no FK to PK swap)
+        if (cube.getRowkey().isUseGlobalDictionary(col)) {
+            srcTable = col.getTable();
+            srcCol = col.getName();
+            srcColIdx = col.getColumn().getZeroBasedIndex();
+            table = new FileTable(factColumnsPath + "/" + col.getName(), -1);
+        }
+        // normal case, source from lookup table; global on lookup table degrades to this
+        else if ("true".equals(useDict) || "string".equals(useDict) || "number".equals(useDict) || "any".equals(useDict) || RowKeyColDesc.DICT_GLOBAL.equals(useDict)) {
             // FK on fact table, use PK from lookup instead
             if (cube.isFactTable(col.getTable())) {
                 TblColRef pkCol = cube.findPKByFK(col);
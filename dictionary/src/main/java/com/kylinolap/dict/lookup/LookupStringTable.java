@@ -17,6 +17,9 @@
 package com.kylinolap.dict.lookup;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import com.kylinolap.metadata.model.schema.TableDesc;
 
@@ -30,6 +33,72 @@ public class LookupStringTable extends LookupTable<String> {
         super(tableDesc, keyColumns, table);
     }
 
+    // rows numbered and value indexes, for queries on the lookup table alone,
+    // built on first use; the rows are those of the table, not copied
+    private volatile String[][] rowArray;
+    private final Map<Integer, Map<String, int[]>> valueIndexes = new HashMap<Integer, Map<String, int[]>>();
+
+    /**
+     * @return all rows, each having all the columns, row numbers are
+     *         consistent across calls
+     */
+    public String[][] getRowArray() {
+        String[][] result = rowArray;
+        if (result == null) {
+            synchronized (this) {
+                result = rowArray;
+                if (result == null) {
+                    result = buildRowArray();
+                    rowArray = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    private String[][] buildRowArray() {
+        int nCols = tableDesc.getColumns().length;
+        String[][] result = getAllRows().toArray(new String[0][]);
+        for (int r = 0; r < result.length; r++) {
+            if (result[r].length < nCols)
+                result[r] = Arrays.copyOf(result[r], nCols);
+        }
+        return result;
+    }
+
+    /**
+     * @return row numbers (of getRowArray()) by value of the column
+     */
+    public synchronized Map<String, int[]> getValueIndex(int col) {
+        Map<String, int[]> index = valueIndexes.get(col);
+        if (index == null) {
+            index = buildValueIndex(getRowArray(), col);
+            valueIndexes.put(col, index);
+        }
+        return index;
+    }
+
+    private static Map<String, int[]> buildValueIndex(String[][] rows, int col) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (String[] row : rows) {
+            Integer c = counts.get(row[col]);
+            counts.put(row[col], c == null ? 1 : c + 1);
+        }
+        Map<String, int[]> index = new HashMap<String, int[]>(counts.size() * 2);
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            index.put(e.getKey(), new int[e.getValue()]);
+        }
+        Map<String, Integer> filled = new HashMap<String, Integer>(counts.size() * 2);
+        for (int r = 0; r < rows.length; r++) {
+            String v = rows[r][col];
+            Integer f = filled.get(v);
+            int pos = f == null ? 0 : f;
+            index.get(v)[pos] = r;
+            filled.put(v, pos + 1);
+        }
+        return index;
+    }
+
     @Override
     protected String[] convertRow(String[] cols) {
         return cols;
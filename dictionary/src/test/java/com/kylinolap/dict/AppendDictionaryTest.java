@@ -0,0 +1,74 @@
+/*
+
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.dict;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+/**
+ * @author yangli9
+ */
+public class AppendDictionaryTest {
+
+    @Test
+    public void testAppendKeepsIds() throws IOException {
+        AppendDictionary dict = new AppendDictionary();
+        assertEquals(0, dict.appendValue("b"));
+        assertEquals(1, dict.appendValue("a"));
+        assertEquals(0, dict.appendValue("b"));
+
+        // as if a new segment comes
+        AppendDictionary copy = roundTrip(dict);
+        assertEquals(dict, copy);
+        assertEquals(2, copy.appendValue("c"));
+        assertEquals(1, copy.appendValue("a"));
+
+        assertEquals(0, copy.getIdFromValue("b"));
+        assertEquals("c", copy.getValueFromId(2));
+        byte[] bytes = Bytes.toBytes("xxa");
+        assertEquals(1, copy.getIdFromValueBytes(bytes, 2, 1));
+        assertEquals(2, copy.getMaxId());
+        assertEquals(4, copy.getSizeOfId());
+        assertEquals(copy.nullId(), copy.getIdFromValue(null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotFound() {
+        AppendDictionary dict = new AppendDictionary();
+        dict.appendValue("a");
+        dict.getIdFromValue("b");
+    }
+
+    private AppendDictionary roundTrip(AppendDictionary dict) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(bout);
+        dict.write(dout);
+        dout.close();
+
+        AppendDictionary result = new AppendDictionary();
+        result.readFields(new DataInputStream(new ByteArrayInputStream(bout.toByteArray())));
+        return result;
+    }
+}
@@ -32,6 +32,8 @@ import net.hydromatic.avatica.AvaticaStatement;
 import net.hydromatic.avatica.Meta;
 import net.hydromatic.avatica.UnregisteredDriver;
 
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,9 +49,13 @@ import com.kylinolap.jdbc.KylinPrepare.PrepareResult;
 public abstract class KylinConnectionImpl extends AvaticaConnection {
     private static final Logger logger = LoggerFactory.getLogger(KylinConnectionImpl.class);
 
+    private static final int MAX_HTTP_CONNECTIONS = 20;
+
     private final String baseUrl;
     private final String project;
     private MetaProject metaProject;
+    private MultiThreadedHttpConnectionManager httpConnectionManager;
+    private HttpClient httpClient;
     public final List<AvaticaStatement> statements;
     static final Trojan TROJAN = createTrojan();
 
@@ -117,10 +123,48 @@ public abstract class KylinConnectionImpl extends AvaticaConnection {
         return (isSsl ? "https://" : "http://") + this.baseUrl + ":" + (isSsl ? 443 : 80) + "/kylin/api/query";
     }
 
+    // streams results of both plain and prepared statements
+    public String getQueryStreamUrl() {
+        return getQueryUrl() + "/stream/json";
+    }
+
     public String getProject() {
         return this.project;
     }
 
+    /**
+     * HTTP connections are pooled per JDBC connection and kept alive, saving
+     * the TCP and TLS handshake of each request. Requests must release their
+     * connection back to the pool.
+     */
+    public synchronized HttpClient getHttpClient() {
+        if (httpClient == null) {
+            httpConnectionManager = new MultiThreadedHttpConnectionManager();
+            httpConnectionManager.getParams().setDefaultMaxConnectionsPerHost(MAX_HTTP_CONNECTIONS);
+            httpConnectionManager.getParams().setMaxTotalConnections(MAX_HTTP_CONNECTIONS);
+            httpClient = new HttpClient(httpConnectionManager);
+        }
+        return httpClient;
+    }
+
+    // approximate mode, e.g. samplingRatio=0.1 or latencyTarget=2000 (ms) in connection properties
+    public double getSamplingRatio() {
+        return Double.parseDouble(this.info.getProperty("samplingRatio", "1.0"));
+    }
+
+    public long getLatencyTarget() {
+        return Long.parseLong(this.info.getProperty("latencyTarget", "0"));
+    }
+
+    // resultFormat=json for the JSON response, e.g. to debug; compress=true for slow networks
+    public boolean isBinaryResult() {
+        return "json".equalsIgnoreCase(this.info.getProperty("resultFormat", "binary")) == false;
+    }
+
+    public boolean isCompressResult() {
+        return Boolean.parseBoolean(this.info.getProperty("compress", "false"));
+    }
+
     public Meta getMeta() {
         return this.meta;
     }
@@ -147,6 +191,14 @@ public abstract class KylinConnectionImpl extends AvaticaConnection {
 
         this.metaProject = null;
         this.statements.clear();
+
+        synchronized (this) {
+            if (httpConnectionManager != null) {
+                httpConnectionManager.shutdown();
+                httpConnectionManager = null;
+                httpClient = null;
+            }
+        }
     }
 
     @Override
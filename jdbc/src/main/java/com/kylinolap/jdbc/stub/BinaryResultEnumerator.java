@@ -0,0 +1,303 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.jdbc.stub;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.httpclient.HttpMethodBase;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kylinolap.jdbc.util.SQLTypeMap;
+import com.ning.compress.lzf.LZFDecoder;
+
+/**
+ * Reads the binary result format of the server, see BinaryResultWriter of
+ * kylin-server for the layout. Values come typed, so no string parsing per
+ * row; strings are dictionary encoded per block and converted to the column
+ * type once per distinct value.
+ *
+ * A block (up to 1024 rows) is decoded at a time. Like ResultStreamEnumerator,
+ * closing before the end aborts the HTTP request.
+ *
+ * @author yangli9
+ */
+public class BinaryResultEnumerator implements ResultEnumerator {
+
+    public static final String CONTENT_TYPE = "application/x-kylin-result";
+
+    static final byte[] MAGIC = { 'K', 'Y', 'R', 'B' };
+    static final byte VERSION = 1;
+    static final byte FLAG_LZF = 1;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final HttpMethodBase method; // null if not from HTTP
+    private final DataInputStream in;
+    private final boolean compressed;
+    private List<SQLResponseStub.ColumnMetaStub> columnMetas;
+    private int[] columnTypes;
+    private boolean isPartial;
+
+    private Object[][] block; // [row][column]
+    private int blockRows;
+    private int next;
+    private Object[] current;
+    private boolean finished;
+
+    public BinaryResultEnumerator(InputStream in, HttpMethodBase method) throws SQLException {
+        this.method = method;
+        this.in = new DataInputStream(in);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            this.in.readFully(magic);
+            if (Arrays.equals(magic, MAGIC) == false)
+                throw new SQLException("Not a binary query response");
+            byte version = this.in.readByte();
+            if (version != VERSION)
+                throw new SQLException("Unsupported binary query response version " + version);
+            this.compressed = (this.in.readByte() & FLAG_LZF) != 0;
+
+            JsonNode header = MAPPER.readTree(readBytes());
+            columnMetas = MAPPER.readValue(header.get("columnMetas").traverse(), new TypeReference<List<SQLResponseStub.ColumnMetaStub>>() {
+            });
+        } catch (IOException e) {
+            close();
+            throw new SQLException(e.getLocalizedMessage(), e);
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+
+        this.columnTypes = new int[columnMetas.size()];
+        for (int i = 0; i < columnTypes.length; i++) {
+            columnTypes[i] = columnMetas.get(i).getColumnType();
+        }
+    }
+
+    @Override
+    public List<SQLResponseStub.ColumnMetaStub> getColumnMetas() {
+        return columnMetas;
+    }
+
+    @Override
+    public boolean isPartial() {
+        return isPartial;
+    }
+
+    @Override
+    public Object[] current() {
+        return current;
+    }
+
+    @Override
+    public boolean moveNext() {
+        if (finished)
+            return false;
+
+        try {
+            if (next == blockRows && readBlock() == false) {
+                current = null;
+                return false;
+            }
+            current = block[next++];
+            return true;
+        } catch (IOException e) {
+            close();
+            throw new IllegalStateException("Failed to read query results", e);
+        }
+    }
+
+    private boolean readBlock() throws IOException {
+        int rawLength = in.readInt();
+        if (rawLength == 0) {
+            JsonNode trailer = MAPPER.readTree(readBytes());
+            isPartial = trailer.path("partial").asBoolean();
+            finish();
+            return false;
+        }
+        if (rawLength < 0) {
+            String message = new String(readBytes(), "UTF-8");
+            finish();
+            throw new IllegalStateException("Query failed while fetching results: " + message);
+        }
+
+        byte[] raw;
+        if (compressed) {
+            raw = LZFDecoder.decode(readBytes());
+        } else {
+            raw = new byte[rawLength];
+            in.readFully(raw);
+        }
+        decodeBlock(new DataInputStream(new ByteArrayInputStream(raw)));
+        return true;
+    }
+
+    private void decodeBlock(DataInputStream din) throws IOException {
+        int rows = (int) readVarLong(din);
+        int columns = columnTypes.length;
+        block = new Object[rows][columns];
+        blockRows = rows;
+        next = 0;
+
+        byte[] nulls = new byte[(rows + 7) / 8];
+        for (int c = 0; c < columns; c++) {
+            din.readFully(nulls);
+            int type = columnTypes[c];
+
+            if (isString(type)) {
+                Object[] dict = new Object[(int) readVarLong(din)];
+                for (int i = 0; i < dict.length; i++) {
+                    byte[] bytes = new byte[(int) readVarLong(din)];
+                    din.readFully(bytes);
+                    dict[i] = SQLTypeMap.wrapObject(new String(bytes, "UTF-8"), type);
+                }
+                for (int r = 0; r < rows; r++) {
+                    if (isNull(nulls, r) == false)
+                        block[r][c] = dict[(int) readVarLong(din)];
+                }
+                continue;
+            }
+
+            for (int r = 0; r < rows; r++) {
+                if (isNull(nulls, r))
+                    continue;
+                switch (type) {
+                case Types.TINYINT:
+                    block[r][c] = (byte) unzigzag(readVarLong(din));
+                    break;
+                case Types.SMALLINT:
+                    block[r][c] = (short) unzigzag(readVarLong(din));
+                    break;
+                case Types.INTEGER:
+                    block[r][c] = (int) unzigzag(readVarLong(din));
+                    break;
+                case Types.BIGINT:
+                    block[r][c] = unzigzag(readVarLong(din));
+                    break;
+                case Types.BIT:
+                case Types.BOOLEAN:
+                    block[r][c] = readVarLong(din) != 0;
+                    break;
+                case Types.REAL:
+                case Types.FLOAT:
+                case Types.DOUBLE:
+                    block[r][c] = din.readDouble();
+                    break;
+                case Types.NUMERIC:
+                case Types.DECIMAL:
+                    int scale = (int) unzigzag(readVarLong(din));
+                    byte[] unscaled = new byte[(int) readVarLong(din)];
+                    din.readFully(unscaled);
+                    block[r][c] = new BigDecimal(new BigInteger(unscaled), scale);
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected column type " + type);
+                }
+            }
+        }
+    }
+
+    // same as kindOf() of the server writer
+    private static boolean isString(int sqlType) {
+        switch (sqlType) {
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+        case Types.BIGINT:
+        case Types.BIT:
+        case Types.BOOLEAN:
+        case Types.REAL:
+        case Types.FLOAT:
+        case Types.DOUBLE:
+        case Types.NUMERIC:
+        case Types.DECIMAL:
+            return false;
+        default:
+            return true;
+        }
+    }
+
+    private static boolean isNull(byte[] nulls, int row) {
+        return (nulls[row >> 3] & (1 << (row & 7))) != 0;
+    }
+
+    private byte[] readBytes() throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return v;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    @Override
+    public void reset() {
+        throw new UnsupportedOperationException("Results are streamed and can't be reset");
+    }
+
+    private void finish() {
+        finished = true;
+        try {
+            in.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        if (method != null)
+            method.releaseConnection();
+    }
+
+    @Override
+    public void close() {
+        if (finished)
+            return;
+
+        // stop the query on server instead of reading the rest
+        finished = true;
+        if (method != null) {
+            method.abort();
+            method.releaseConnection();
+        }
+        try {
+            in.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
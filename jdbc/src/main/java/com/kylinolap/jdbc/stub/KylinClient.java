@@ -26,6 +26,7 @@ import net.hydromatic.avatica.ColumnMetaData;
 import net.hydromatic.avatica.ColumnMetaData.Rep;
 import net.hydromatic.avatica.ColumnMetaData.ScalarType;
 
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.commons.httpclient.HttpMethodBase;
@@ -42,7 +43,6 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.HashMultimap;
 import com.kylinolap.jdbc.KylinConnectionImpl;
-import com.kylinolap.jdbc.KylinEnumerator;
 import com.kylinolap.jdbc.KylinJdbc41Factory.KylinJdbc41PreparedStatement;
 import com.kylinolap.jdbc.KylinMetaImpl.MetaCatalog;
 import com.kylinolap.jdbc.KylinMetaImpl.MetaColumn;
@@ -69,7 +69,7 @@ public class KylinClient implements RemoteClient {
     @Override
     public void connect() throws ConnectionException {
         PostMethod post = new PostMethod(conn.getConnectUrl());
-        HttpClient httpClient = new HttpClient();
+        HttpClient httpClient = conn.getHttpClient();
 
         if (conn.getConnectUrl().toLowerCase().startsWith("https://")) {
             registerSsl();
@@ -92,13 +92,15 @@ public class KylinClient implements RemoteClient {
         } catch (IOException e) {
             logger.error(e.getLocalizedMessage(), e);
             throw new ConnectionException(e.getLocalizedMessage());
+        } finally {
+            post.releaseConnection();
         }
     }
 
     @Override
     public MetaProject getMetadata(String project) throws ConnectionException {
         GetMethod get = new GetMethod(conn.getMetaProjectUrl(project));
-        HttpClient httpClient = new HttpClient();
+        HttpClient httpClient = conn.getHttpClient();
 
         if (conn.getConnectUrl().toLowerCase().startsWith("https://")) {
             registerSsl();
@@ -115,7 +117,7 @@ public class KylinClient implements RemoteClient {
                 throw new ConnectionException("Authentication Failed.");
             }
 
-            tableMetaStubs = new ObjectMapper().readValue(get.getResponseBodyAsString(), new TypeReference<List<TableMetaStub>>() {
+            tableMetaStubs = new ObjectMapper().readValue(get.getResponseBodyAsStream(), new TypeReference<List<TableMetaStub>>() {
             });
 
             List<MetaTable> tables = new ArrayList<MetaTable>();
@@ -157,6 +159,8 @@ public class KylinClient implements RemoteClient {
         } catch (IOException e) {
             logger.error(e.getLocalizedMessage(), e);
             throw new ConnectionException(e.getLocalizedMessage());
+        } finally {
+            get.releaseConnection();
         }
     }
 
@@ -170,41 +174,22 @@ public class KylinClient implements RemoteClient {
         return column;
     }
 
+    /**
+     * Rows are converted as the response streams in, see
+     * ResultStreamEnumerator. The result set holds the HTTP connection until
+     * it's read through or closed.
+     */
     @Override
     public DataSet<Object[]> query(AvaticaStatement statement, String sql) throws SQLException {
-        SQLResponseStub queryRes = null;
-
         List<StateParam> params = null;
         if (statement instanceof KylinJdbc41PreparedStatement) {
             params = genPrestateStates(statement);
         }
 
-        queryRes = runKylinQuery(sql, params);
-
-        List<ColumnMetaData> metas = genColumnMeta(queryRes);
-        List<Object[]> data = genResultData(queryRes, metas);
+        ResultEnumerator enumerator = runKylinQuery(sql, params);
+        List<ColumnMetaData> metas = genColumnMeta(enumerator.getColumnMetas());
 
-        return new DataSet<Object[]>(metas, new KylinEnumerator<Object[]>(data));
-    }
-
-    /**
-     * @param queryRes
-     * @param metas
-     * @return
-     */
-    private List<Object[]> genResultData(SQLResponseStub queryRes, List<ColumnMetaData> metas) {
-        List<Object[]> data = new ArrayList<Object[]>();
-        for (String[] result : queryRes.getResults()) {
-            Object[] row = new Object[result.length];
-
-            for (int i = 0; i < result.length; i++) {
-                ColumnMetaData meta = metas.get(i);
-                row[i] = SQLTypeMap.wrapObject(result[i], meta.type.type);
-            }
-
-            data.add(row);
-        }
-        return data;
+        return new DataSet<Object[]>(metas, enumerator);
     }
 
     /**
@@ -227,10 +212,10 @@ public class KylinClient implements RemoteClient {
      * @param queryRes
      * @return
      */
-    private List<ColumnMetaData> genColumnMeta(SQLResponseStub queryRes) {
+    private List<ColumnMetaData> genColumnMeta(List<SQLResponseStub.ColumnMetaStub> columnMetas) {
         List<ColumnMetaData> metas = new ArrayList<ColumnMetaData>();
-        for (int i = 0; i < queryRes.getColumnMetas().size(); i++) {
-            SQLResponseStub.ColumnMetaStub scm = queryRes.getColumnMetas().get(i);
+        for (int i = 0; i < columnMetas.size(); i++) {
+            SQLResponseStub.ColumnMetaStub scm = columnMetas.get(i);
             ScalarType type = ColumnMetaData.scalar(scm.getColumnType(), scm.getColumnTypeName(), Rep.of(SQLTypeMap.convert(scm.getColumnType())));
 
             ColumnMetaData meta = new ColumnMetaData(i, scm.isAutoIncrement(), scm.isCaseSensitive(), scm.isSearchable(), scm.isCurrency(), scm.getIsNullable(), scm.isSigned(), scm.getDisplaySize(), scm.getLabel(), scm.getName(), scm.getSchemaName(), scm.getPrecision(), scm.getScale(), scm.getTableName(), scm.getSchemaName(), type, scm.isReadOnly(), scm.isWritable(), scm.isWritable(), null);
@@ -242,28 +227,31 @@ public class KylinClient implements RemoteClient {
     }
 
     /**
-     * @param sql
-     * @return
-     * @throws IOException
+     * @return the response being received, to read rows from
      */
-    private SQLResponseStub runKylinQuery(String sql, List<StateParam> params) throws SQLException {
-        String url = conn.getQueryUrl();
+    private ResultEnumerator runKylinQuery(String sql, List<StateParam> params) throws SQLException {
+        String url = conn.getQueryStreamUrl();
         String project = conn.getProject();
         QueryRequest request = null;
 
         if (null != params) {
             request = new PreQueryRequest();
             ((PreQueryRequest) request).setParams(params);
-            url += "/prestate";
         } else {
             request = new QueryRequest();
         }
         request.setSql(sql);
         request.setProject(project);
+        request.setSamplingRatio(conn.getSamplingRatio());
+        request.setLatencyTarget(conn.getLatencyTarget());
 
         PostMethod post = new PostMethod(url);
         addPostHeaders(post);
-        HttpClient httpClient = new HttpClient();
+        if (conn.isBinaryResult()) {
+            // a server not knowing the binary format answers JSON
+            post.setRequestHeader("Accept", BinaryResultEnumerator.CONTENT_TYPE + (conn.isCompressResult() ? ";compress=lzf" : "") + ", application/json");
+        }
+        HttpClient httpClient = conn.getHttpClient();
         if (conn.getQueryUrl().toLowerCase().startsWith("https://")) {
             registerSsl();
         }
@@ -276,32 +264,33 @@ public class KylinClient implements RemoteClient {
         } catch (JsonProcessingException e) {
             logger.error(e.getLocalizedMessage(), e);
         }
-        String response = null;
-        SQLResponseStub queryRes = null;
 
         try {
             StringRequestEntity requestEntity = new StringRequestEntity(postBody, "application/json", "UTF-8");
             post.setRequestEntity(requestEntity);
 
             httpClient.executeMethod(post);
-            response = post.getResponseBodyAsString();
 
             if (post.getStatusCode() != 200 && post.getStatusCode() != 201) {
+                String response = post.getResponseBodyAsString();
+                post.releaseConnection();
                 logger.error("Failed to query", response);
                 throw new SQLException(response);
             }
 
-            queryRes = new ObjectMapper().readValue(response, SQLResponseStub.class);
-
+            Header contentType = post.getResponseHeader("Content-Type");
+            if (contentType != null && contentType.getValue().startsWith(BinaryResultEnumerator.CONTENT_TYPE))
+                return new BinaryResultEnumerator(post.getResponseBodyAsStream(), post);
+            return new ResultStreamEnumerator(post.getResponseBodyAsStream(), post);
         } catch (HttpException e) {
+            post.releaseConnection();
             logger.error(e.getLocalizedMessage(), e);
             throw new SQLException(e.getLocalizedMessage());
         } catch (IOException e) {
+            post.releaseConnection();
             logger.error(e.getLocalizedMessage(), e);
             throw new SQLException(e.getLocalizedMessage());
         }
-
-        return queryRes;
     }
 
     private void addPostHeaders(HttpMethodBase method) {
@@ -317,6 +306,8 @@ public class KylinClient implements RemoteClient {
     public class QueryRequest {
         private String sql;
         private String project;
+        private double samplingRatio = 1.0;
+        private long latencyTarget = 0;
 
         public String getSql() {
             return sql;
@@ -333,6 +324,22 @@ public class KylinClient implements RemoteClient {
         public void setProject(String project) {
             this.project = project;
         }
+
+        public double getSamplingRatio() {
+            return samplingRatio;
+        }
+
+        public void setSamplingRatio(double samplingRatio) {
+            this.samplingRatio = samplingRatio;
+        }
+
+        public long getLatencyTarget() {
+            return latencyTarget;
+        }
+
+        public void setLatencyTarget(long latencyTarget) {
+            this.latencyTarget = latencyTarget;
+        }
     }
 
     public class PreQueryRequest extends QueryRequest {
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.jdbc.stub;
+
+import java.util.List;
+
+import net.hydromatic.linq4j.Enumerator;
+
+/**
+ * Rows of a query response being received, in whichever format the server
+ * answered.
+ *
+ * @author yangli9
+ */
+public interface ResultEnumerator extends Enumerator<Object[]> {
+
+    List<SQLResponseStub.ColumnMetaStub> getColumnMetas();
+
+    // valid after the last row, the server stopped at a scan threshold
+    boolean isPartial();
+}
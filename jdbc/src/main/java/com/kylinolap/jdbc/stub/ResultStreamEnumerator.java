@@ -0,0 +1,197 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.jdbc.stub;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.httpclient.HttpMethodBase;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kylinolap.jdbc.util.SQLTypeMap;
+
+/**
+ * Enumerates rows of a query response while it is being received, parsing
+ * the JSON incrementally. Only the current row is in memory; the server is
+ * held back by TCP flow control until rows are read.
+ *
+ * Closing before the end aborts the HTTP request, which cancels the query on
+ * server. Otherwise the connection goes back to the pool for keep-alive.
+ *
+ * @author yangli9
+ */
+public class ResultStreamEnumerator implements ResultEnumerator {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final HttpMethodBase method; // null if not from HTTP
+    private final JsonParser parser;
+    private List<SQLResponseStub.ColumnMetaStub> columnMetas;
+    private int[] columnTypes;
+    private boolean isException;
+    private String exceptionMessage;
+    private boolean isPartial;
+
+    private Object[] current;
+    private boolean finished;
+
+    public ResultStreamEnumerator(InputStream in, HttpMethodBase method) throws SQLException {
+        this.method = method;
+        try {
+            this.parser = MAPPER.getFactory().createParser(in);
+            if (parser.nextToken() != JsonToken.START_OBJECT)
+                throw new SQLException("Not a query response");
+
+            // fields before results, columnMetas is always among them
+            if (readFields() == false) {
+                finish();
+                throw new SQLException(isException ? exceptionMessage : "No results in query response");
+            }
+        } catch (IOException e) {
+            close();
+            throw new SQLException(e.getLocalizedMessage(), e);
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+        if (columnMetas == null) {
+            close();
+            throw new SQLException("No column metadata before results");
+        }
+
+        this.columnTypes = new int[columnMetas.size()];
+        for (int i = 0; i < columnTypes.length; i++) {
+            columnTypes[i] = columnMetas.get(i).getColumnType();
+        }
+    }
+
+    /**
+     * @return true if stopped at the start of results, false if at the end of
+     *         the response
+     */
+    private boolean readFields() throws IOException {
+        JsonToken token;
+        while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("results".equals(field) && parser.getCurrentToken() == JsonToken.START_ARRAY) {
+                return true;
+            } else if ("columnMetas".equals(field) && parser.getCurrentToken() == JsonToken.START_ARRAY) {
+                columnMetas = parser.readValueAs(new TypeReference<List<SQLResponseStub.ColumnMetaStub>>() {
+                });
+            } else if ("isException".equals(field)) {
+                isException = parser.getValueAsBoolean();
+            } else if ("exceptionMessage".equals(field)) {
+                exceptionMessage = parser.getCurrentToken() == JsonToken.VALUE_NULL ? null : parser.getText();
+            } else if ("partial".equals(field)) {
+                isPartial = parser.getValueAsBoolean();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (token != JsonToken.END_OBJECT)
+            throw new IOException("Unexpected " + token + " in query response");
+        return false;
+    }
+
+    @Override
+    public List<SQLResponseStub.ColumnMetaStub> getColumnMetas() {
+        return columnMetas;
+    }
+
+    @Override
+    public boolean isPartial() {
+        return isPartial;
+    }
+
+    @Override
+    public Object[] current() {
+        return current;
+    }
+
+    @Override
+    public boolean moveNext() {
+        if (finished)
+            return false;
+
+        try {
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.START_ARRAY) {
+                List<Object> row = new ArrayList<Object>(columnTypes.length);
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    String value = token == JsonToken.VALUE_NULL ? null : parser.getText();
+                    row.add(SQLTypeMap.wrapObject(value, columnTypes[row.size()]));
+                }
+                current = row.toArray();
+                return true;
+            }
+
+            // end of results, then the rest of the response
+            current = null;
+            readFields();
+            finish();
+            if (isException)
+                throw new IllegalStateException("Query failed while fetching results: " + exceptionMessage);
+            return false;
+        } catch (IOException e) {
+            close();
+            throw new IllegalStateException("Failed to read query results", e);
+        }
+    }
+
+    @Override
+    public void reset() {
+        throw new UnsupportedOperationException("Results are streamed and can't be reset");
+    }
+
+    private void finish() {
+        finished = true;
+        try {
+            parser.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        if (method != null)
+            method.releaseConnection();
+    }
+
+    @Override
+    public void close() {
+        if (finished)
+            return;
+
+        // stop the query on server instead of reading the rest
+        finished = true;
+        if (method != null) {
+            method.abort();
+            method.releaseConnection();
+        }
+        if (parser != null) {
+            try {
+                parser.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
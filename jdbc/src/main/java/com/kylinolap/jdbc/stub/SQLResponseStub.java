@@ -17,6 +17,7 @@ package com.kylinolap.jdbc.stub;
 
 import java.io.Serializable;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author xduo
@@ -52,6 +53,16 @@ public class SQLResponseStub implements Serializable {
 
     private boolean hitCache = false;
 
+    private boolean isApproximate = false;
+
+    private double sampledRatio = 1.0;
+
+    private Double approximateError;
+
+    private String queryId;
+
+    private Map<String, Object> trace;
+
     public SQLResponseStub() {
     }
 
@@ -135,6 +146,46 @@ public class SQLResponseStub implements Serializable {
         this.hitCache = hitCache;
     }
 
+    public boolean isApproximate() {
+        return isApproximate;
+    }
+
+    public void setApproximate(boolean isApproximate) {
+        this.isApproximate = isApproximate;
+    }
+
+    public double getSampledRatio() {
+        return sampledRatio;
+    }
+
+    public void setSampledRatio(double sampledRatio) {
+        this.sampledRatio = sampledRatio;
+    }
+
+    public Double getApproximateError() {
+        return approximateError;
+    }
+
+    public void setApproximateError(Double approximateError) {
+        this.approximateError = approximateError;
+    }
+
+    public String getQueryId() {
+        return queryId;
+    }
+
+    public void setQueryId(String queryId) {
+        this.queryId = queryId;
+    }
+
+    public Map<String, Object> getTrace() {
+        return trace;
+    }
+
+    public void setTrace(Map<String, Object> trace) {
+        this.trace = trace;
+    }
+
     public static long getSerialversionuid() {
         return serialVersionUID;
     }
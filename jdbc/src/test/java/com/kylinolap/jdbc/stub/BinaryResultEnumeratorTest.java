@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.jdbc.stub;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+import com.ning.compress.lzf.LZFEncoder;
+
+/**
+ * @author yangli9
+ *
+ */
+public class BinaryResultEnumeratorTest {
+
+    static final String HEADER = "{\"columnMetas\":[{\"name\":\"LSTG_FORMAT_NAME\",\"label\":\"LSTG_FORMAT_NAME\",\"columnType\":12,\"columnTypeName\":\"VARCHAR\"}," //
+            + "{\"name\":\"CNT\",\"label\":\"CNT\",\"columnType\":-5,\"columnTypeName\":\"BIGINT\"}," //
+            + "{\"name\":\"GMV\",\"label\":\"GMV\",\"columnType\":3,\"columnTypeName\":\"DECIMAL\"}," //
+            + "{\"name\":\"AVG_PRICE\",\"label\":\"AVG_PRICE\",\"columnType\":8,\"columnTypeName\":\"DOUBLE\"}],\"cube\":\"test_kylin_cube\"}";
+
+    @Test
+    public void testRead() throws Exception {
+        BinaryResultEnumerator e = new BinaryResultEnumerator(new ByteArrayInputStream(response(false, false)), null);
+        assertEquals(4, e.getColumnMetas().size());
+        assertRows(e);
+        assertFalse(e.moveNext());
+        assertTrue(e.isPartial());
+        e.close();
+    }
+
+    @Test
+    public void testReadCompressed() throws Exception {
+        BinaryResultEnumerator e = new BinaryResultEnumerator(new ByteArrayInputStream(response(true, false)), null);
+        assertRows(e);
+        assertFalse(e.moveNext());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFailAfterRows() throws Exception {
+        BinaryResultEnumerator e = new BinaryResultEnumerator(new ByteArrayInputStream(response(false, true)), null);
+        assertRows(e);
+        e.moveNext();
+    }
+
+    @Test(expected = SQLException.class)
+    public void testNotBinary() throws Exception {
+        new BinaryResultEnumerator(new ByteArrayInputStream("{\"columnMetas\":[]}".getBytes()), null);
+    }
+
+    private void assertRows(BinaryResultEnumerator e) {
+        assertTrue(e.moveNext());
+        assertArrayEquals(new Object[] { "FP-GTC", 3L, new BigDecimal("100.50"), 33.5 }, e.current());
+        assertTrue(e.moveNext());
+        assertArrayEquals(new Object[] { "ABIN", -1L, null, null }, e.current());
+        assertTrue(e.moveNext());
+        assertArrayEquals(new Object[] { "FP-GTC", null, new BigDecimal("-7"), 0.25 }, e.current());
+    }
+
+    // see BinaryResultWriter of kylin-server
+    private static byte[] response(boolean compress, boolean fail) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        out.write(BinaryResultEnumerator.MAGIC);
+        out.writeByte(BinaryResultEnumerator.VERSION);
+        out.writeByte(compress ? BinaryResultEnumerator.FLAG_LZF : 0);
+        writeBytes(out, HEADER.getBytes("UTF-8"));
+
+        ByteArrayOutputStream blockBuf = new ByteArrayOutputStream();
+        DataOutputStream block = new DataOutputStream(blockBuf);
+        block.writeByte(3); // rows
+        // LSTG_FORMAT_NAME, dictionary of 2
+        block.writeByte(0);
+        block.writeByte(2);
+        writeString(block, "FP-GTC");
+        writeString(block, "ABIN");
+        block.writeByte(0);
+        block.writeByte(1);
+        block.writeByte(0);
+        // CNT, zigzag
+        block.writeByte(1 << 2);
+        block.writeByte(6);
+        block.writeByte(1);
+        // GMV, scale, length, unscaled
+        block.writeByte(1 << 1);
+        block.writeByte(4);
+        block.writeByte(2);
+        block.writeShort(10050);
+        block.writeByte(0);
+        block.writeByte(1);
+        block.writeByte(-7);
+        // AVG_PRICE
+        block.writeByte(1 << 1);
+        block.writeDouble(33.5);
+        block.writeDouble(0.25);
+        byte[] raw = blockBuf.toByteArray();
+
+        out.writeInt(raw.length);
+        if (compress)
+            writeBytes(out, LZFEncoder.encode(raw));
+        else
+            out.write(raw);
+
+        if (fail) {
+            out.writeInt(-1);
+            writeBytes(out, "Scan row count exceeded threshold".getBytes("UTF-8"));
+        } else {
+            out.writeInt(0);
+            writeBytes(out, "{\"isException\":false,\"partial\":true}".getBytes("UTF-8"));
+        }
+        return buf.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeByte(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.jdbc.stub;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+/**
+ * @author yangli9
+ *
+ */
+public class ResultStreamEnumeratorTest {
+
+    static final String COLUMN_METAS = "\"columnMetas\":[{\"name\":\"LSTG_FORMAT_NAME\",\"label\":\"LSTG_FORMAT_NAME\",\"columnType\":12,\"columnTypeName\":\"VARCHAR\"}," //
+            + "{\"name\":\"GMV\",\"label\":\"GMV\",\"columnType\":3,\"columnTypeName\":\"DECIMAL\"}]";
+
+    @Test
+    public void testStream() throws SQLException {
+        String json = "{" + COLUMN_METAS + ",\"cube\":\"test_kylin_cube\",\"results\":[[\"FP-GTC\",\"100.5\"],[\"ABIN\",null]]" //
+                + ",\"isException\":false,\"exceptionMessage\":null,\"partial\":true,\"totalScanCount\":42}";
+        ResultStreamEnumerator e = new ResultStreamEnumerator(stream(json), null);
+        assertEquals(2, e.getColumnMetas().size());
+
+        assertTrue(e.moveNext());
+        assertArrayEquals(new Object[] { "FP-GTC", new BigDecimal("100.5") }, e.current());
+        assertTrue(e.moveNext());
+        assertArrayEquals(new Object[] { "ABIN", null }, e.current());
+        assertFalse(e.moveNext());
+        assertTrue(e.isPartial());
+        assertFalse(e.moveNext());
+        e.close();
+    }
+
+    @Test
+    public void testBufferedResponse() throws SQLException {
+        // fields in order of SQLResponse, results before cube
+        String json = "{" + COLUMN_METAS + ",\"results\":[[\"FP-GTC\",\"100.5\"]],\"cube\":\"test_kylin_cube\",\"affectedRowCount\":0,\"isException\":false}";
+        ResultStreamEnumerator e = new ResultStreamEnumerator(stream(json), null);
+        assertTrue(e.moveNext());
+        assertFalse(e.moveNext());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFailAfterRows() throws SQLException {
+        String json = "{" + COLUMN_METAS + ",\"results\":[[\"FP-GTC\",\"100.5\"]],\"isException\":true,\"exceptionMessage\":\"Scan row count exceeded threshold\"}";
+        ResultStreamEnumerator e = new ResultStreamEnumerator(stream(json), null);
+        assertTrue(e.moveNext());
+        e.moveNext();
+    }
+
+    @Test
+    public void testCloseEarly() throws SQLException {
+        final boolean[] closed = new boolean[1];
+        InputStream in = new ByteArrayInputStream(("{" + COLUMN_METAS + ",\"results\":[[\"FP-GTC\",\"100.5\"],[\"ABIN\",\"1\"]]}").getBytes()) {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+            }
+        };
+        ResultStreamEnumerator e = new ResultStreamEnumerator(in, null);
+        assertTrue(e.moveNext());
+        e.close();
+        assertTrue(closed[0]);
+        assertFalse(e.moveNext());
+    }
+
+    private static InputStream stream(String json) {
+        return new ByteArrayInputStream(json.getBytes());
+    }
+}
@@ -38,6 +38,8 @@ import com.kylinolap.cube.cuboid.Cuboid;
 import com.kylinolap.cube.kv.AbstractRowKeyEncoder;
 import com.kylinolap.cube.kv.RowConstants;
 import com.kylinolap.cube.measure.MeasureCodec;
+import com.kylinolap.cube.measure.TopNCounterSerializer;
+import com.kylinolap.dict.Dictionary;
 import com.kylinolap.job.constant.BatchConstants;
 import com.kylinolap.job.hadoop.AbstractHadoopJob;
 import com.kylinolap.job.hadoop.hive.JoinedFlatTableDesc;
@@ -45,6 +47,7 @@ import com.kylinolap.metadata.model.cube.CubeDesc;
 import com.kylinolap.metadata.model.cube.FunctionDesc;
 import com.kylinolap.metadata.model.cube.MeasureDesc;
 import com.kylinolap.metadata.model.cube.ParameterDesc;
+import com.kylinolap.metadata.model.cube.TblColRef;
 
 /**
  * @author George Song (ysong1)
@@ -78,6 +81,7 @@ public class BaseCuboidMapper<KEYIN> extends Mapper<KEYIN, Text, Text, Text> {
     private BytesSplitter bytesSplitter;
     private AbstractRowKeyEncoder rowKeyEncoder;
     private MeasureCodec measureCodec;
+    private Dictionary<?>[] globalDicts; // [i] is the global dictionary of i.th measure if it's a bitmap count distinct
 
     @Override
     protected void setup(Context context) throws IOException {
@@ -106,6 +110,7 @@ public class BaseCuboidMapper<KEYIN> extends Mapper<KEYIN, Text, Text, Text> {
 
         measureCodec = new MeasureCodec(cubeDesc.getMeasures());
         measures = new Object[cubeDesc.getMeasures().size()];
+        initGlobalDicts(CubeManager.getInstance(config));
 
         int colCount = cubeDesc.getRowkey().getRowKeyColumns().length;
         keyBytesBuf = new byte[colCount][];
@@ -113,6 +118,21 @@ public class BaseCuboidMapper<KEYIN> extends Mapper<KEYIN, Text, Text, Text> {
         initNullBytes();
     }
 
+    private void initGlobalDicts(CubeManager cubeMgr) {
+        List<MeasureDesc> measureDescs = cubeDesc.getMeasures();
+        globalDicts = new Dictionary<?>[measureDescs.size()];
+        for (int i = 0; i < measureDescs.size(); i++) {
+            FunctionDesc func = measureDescs.get(i).getFunction();
+            if (func.isBitmapCountDistinct() == false)
+                continue;
+
+            TblColRef col = func.getParameter().getColRefs().get(0);
+            globalDicts[i] = cubeMgr.getGlobalDictionary(cube, col);
+            if (globalDicts[i] == null)
+                throw new IllegalStateException("No global dictionary found for " + col + " of cube " + cubeName);
+        }
+    }
+
     private void initNullBytes() {
         nullBytes = Lists.newArrayList();
         nullBytes.add(HIVE_NULL);
@@ -124,14 +144,18 @@ public class BaseCuboidMapper<KEYIN> extends Mapper<KEYIN, Text, Text, Text> {
         }
     }
 
-    private boolean isNull(byte[] v) {
+    private boolean isNull(byte[] v, int offset, int length) {
         for (byte[] nullByte : nullBytes) {
-            if (Bytes.equals(v, nullByte))
+            if (Bytes.equals(v, offset, length, nullByte, 0, nullByte.length))
                 return true;
         }
         return false;
     }
 
+    private boolean isNull(byte[] v) {
+        return v != null && isNull(v, 0, v.length);
+    }
+
     private byte[] buildKey(SplittedBytes[] splitBuffers) {
         int[] rowKeyColumnIndexes = intermediateTableDesc.getRowKeyColumnIndexes();
         for (int i = 0; i < baseCuboid.getColumns().size(); i++) {
@@ -147,6 +171,10 @@ public class BaseCuboidMapper<KEYIN> extends Mapper<KEYIN, Text, Text, Text> {
     private void buildValue(SplittedBytes[] splitBuffers) {
 
         for (int i = 0; i < measures.length; i++) {
+            if (cubeDesc.getMeasures().get(i).getFunction().isTopN()) {
+                measures[i] = getTopNValue(splitBuffers, i);
+                continue;
+            }
             byte[] valueBytes = getValueBytes(splitBuffers, i);
             measures[i] = measureCodec.getSerializer(i).valueOf(valueBytes);
         }
@@ -192,9 +220,28 @@ public class BaseCuboidMapper<KEYIN> extends Mapper<KEYIN, Text, Text, Text> {
             result = null;
         }
 
+        // precise count distinct takes the global dictionary ID
+        if (result != null && globalDicts[measureIdx] != null) {
+            int id = globalDicts[measureIdx].getIdFromValueBytes(result, 0, result.length);
+            result = Bytes.toBytes(id);
+        }
+
         return result;
     }
 
+    // TOP_N(metric, key) takes the metric and the key together, straight from the split buffers
+    private Object getTopNValue(SplittedBytes[] splitBuffers, int measureIdx) {
+        int[] flatTableIdx = intermediateTableDesc.getMeasureColumnIndexes()[measureIdx];
+        SplittedBytes metric = splitBuffers[flatTableIdx[0]];
+        SplittedBytes key = splitBuffers[flatTableIdx[1]];
+        TopNCounterSerializer serializer = (TopNCounterSerializer) measureCodec.getSerializer(measureIdx);
+        if (isNull(key.value, 0, key.length))
+            return serializer.valueOf(null, 0, 0, null, 0, 0);
+
+        int metricLength = isNull(metric.value, 0, metric.length) ? 0 : metric.length;
+        return serializer.valueOf(metric.value, 0, metricLength, key.value, 0, key.length);
+    }
+
     @Override
     public void map(KEYIN key, Text value, Context context) throws IOException, InterruptedException {
         counter++;
@@ -35,6 +35,8 @@ import com.kylinolap.job.constant.BatchConstants;
 import com.kylinolap.job.hadoop.AbstractHadoopJob;
 import com.kylinolap.job.hadoop.hive.JoinedFlatTableDesc;
 import com.kylinolap.metadata.model.cube.CubeDesc;
+import com.kylinolap.metadata.model.cube.FunctionDesc;
+import com.kylinolap.metadata.model.cube.MeasureDesc;
 import com.kylinolap.metadata.model.cube.RowKeyDesc;
 import com.kylinolap.metadata.model.cube.TblColRef;
 
@@ -47,12 +49,15 @@ public class FactDistinctColumnsMapper<KEYIN> extends Mapper<KEYIN, Text, ShortW
     private CubeInstance cube;
     private CubeDesc cubeDesc;
     private int[] factDictCols;
+    private int[] bitmapCols; // [i] is the flat table index of i.th bitmap measure column, or -1 if collected as dimension already
 
     private JoinedFlatTableDesc intermediateTableDesc;
     private String intermediateTableRowDelimiter;
     private byte byteRowDelimiter;
     private BytesSplitter bytesSplitter;
 
+    private int bitmapColKeyBase;
+
     private ShortWritable outputKey = new ShortWritable();
     private Text outputValue = new Text();
 
@@ -90,6 +95,27 @@ public class FactDistinctColumnsMapper<KEYIN> extends Mapper<KEYIN, Text, ShortW
         this.factDictCols = new int[factDictCols.size()];
         for (int i = 0; i < factDictCols.size(); i++)
             this.factDictCols[i] = factDictCols.get(i);
+
+        // columns of bitmap count distinct, their values go to global dictionary
+        List<TblColRef> bitmapColumns = cubeDesc.listBitmapMeasureColumns();
+        List<MeasureDesc> measures = cubeDesc.getMeasures();
+        int[][] flatTableMeasureIndexes = intermediateTableDesc.getMeasureColumnIndexes();
+        this.bitmapCols = new int[bitmapColumns.size()];
+        for (int i = 0; i < bitmapColumns.size(); i++) {
+            TblColRef col = bitmapColumns.get(i);
+            bitmapCols[i] = -1;
+            int dimIdx = columns.indexOf(col);
+            if (dimIdx >= 0 && factDictCols.contains(dimIdx))
+                continue;
+            for (int j = 0; j < measures.size(); j++) {
+                FunctionDesc func = measures.get(j).getFunction();
+                if (func.isBitmapCountDistinct() && func.getParameter().getColRefs().get(0).equals(col)) {
+                    bitmapCols[i] = flatTableMeasureIndexes[j][0];
+                    break;
+                }
+            }
+        }
+        this.bitmapColKeyBase = columns.size();
     }
 
     @Override
@@ -107,5 +133,13 @@ public class FactDistinctColumnsMapper<KEYIN> extends Mapper<KEYIN, Text, ShortW
             context.write(outputKey, outputValue);
         }
 
+        for (int i = 0; i < bitmapCols.length; i++) {
+            if (bitmapCols[i] < 0)
+                continue;
+            outputKey.set((short) (bitmapColKeyBase + i));
+            SplittedBytes bytes = splitBuffers[bitmapCols[i]];
+            outputValue.set(bytes.value, 0, bytes.length);
+            context.write(outputKey, outputValue);
+        }
     }
 }
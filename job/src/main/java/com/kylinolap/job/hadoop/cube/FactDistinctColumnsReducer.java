@@ -46,6 +46,7 @@ import com.kylinolap.metadata.model.cube.TblColRef;
 public class FactDistinctColumnsReducer extends Reducer<ShortWritable, Text, NullWritable, Text> {
 
     private List<TblColRef> columnList = new ArrayList<TblColRef>();
+    private List<TblColRef> bitmapColumnList = new ArrayList<TblColRef>();
 
     @Override
     protected void setup(Context context) throws IOException {
@@ -58,11 +59,13 @@ public class FactDistinctColumnsReducer extends Reducer<ShortWritable, Text, Nul
         long baseCuboidId = Cuboid.getBaseCuboidId(cubeDesc);
         Cuboid baseCuboid = Cuboid.findById(cubeDesc, baseCuboidId);
         columnList = baseCuboid.getColumns();
+        bitmapColumnList = cubeDesc.listBitmapMeasureColumns();
     }
 
     @Override
     public void reduce(ShortWritable key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-        TblColRef col = columnList.get(key.get());
+        int colIdx = key.get();
+        TblColRef col = colIdx < columnList.size() ? columnList.get(colIdx) : bitmapColumnList.get(colIdx - columnList.size());
 
         HashSet<ByteArray> set = new HashSet<ByteArray>();
         for (Text textValue : values) {
@@ -64,13 +64,15 @@ public class MergeCuboidMapper extends Mapper<Text, Text, Text, Text> {
     private RowKeySplitter rowKeySplitter;
 
     private HashMap<TblColRef, Boolean> dictsNeedMerging = new HashMap<TblColRef, Boolean>();
+    private boolean anyDictNeedMerging;
 
     private Boolean checkNeedMerging(TblColRef col) throws IOException {
         Boolean ret = dictsNeedMerging.get(col);
         if (ret != null)
             return ret;
         else {
-            ret = cubeDesc.getRowkey().isUseDictionary(col) && cubeDesc.getFactTable().equalsIgnoreCase((String) DictionaryManager.getInstance(config).decideSourceData(cubeDesc, col, null)[0]);
+            // global dictionary is shared by segments, IDs need no rewrite
+            ret = cubeDesc.getRowkey().isUseDictionary(col) && !cubeDesc.getRowkey().isUseGlobalDictionary(col) && cubeDesc.getFactTable().equalsIgnoreCase((String) DictionaryManager.getInstance(config).decideSourceData(cubeDesc, col, null)[0]);
             dictsNeedMerging.put(col, ret);
             return ret;
         }
@@ -119,10 +121,21 @@ public class MergeCuboidMapper extends Mapper<Text, Text, Text, Text> {
         sourceCubeSegment = findSegmentWithJobID(jobID, cube);
 
         this.rowKeySplitter = new RowKeySplitter(sourceCubeSegment, 65, 255);
+
+        for (TblColRef col : Cuboid.findById(cubeDesc, Cuboid.getBaseCuboidId(cubeDesc)).getColumns()) {
+            if (checkNeedMerging(col))
+                anyDictNeedMerging = true;
+        }
     }
 
     @Override
     public void map(Text key, Text value, Context context) throws IOException, InterruptedException {
+        // all rowkey IDs are stable across segments, pass through
+        if (anyDictNeedMerging == false) {
+            context.write(key, value);
+            return;
+        }
+
         long cuboidID = rowKeySplitter.split(key.getBytes(), key.getBytes().length);
         Cuboid cuboid = Cuboid.findById(cubeDesc, cuboidID);
 
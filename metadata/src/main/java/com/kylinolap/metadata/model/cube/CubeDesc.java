@@ -119,6 +119,7 @@ public class CubeDesc extends RootPersistentEntity {
     private LinkedHashSet<TblColRef> dimensionColumns = new LinkedHashSet<TblColRef>();
     private Map<TblColRef, DeriveInfo> derivedToHostMap = Maps.newHashMap();
     private Map<Array<TblColRef>, List<DeriveInfo>> hostToDerivedMap = Maps.newHashMap();
+    private Map<TblColRef, DeriveInfo> lookupJoinedToHostMap = Maps.newHashMap();
 
     /**
      * Error messages during resolving json metadata
@@ -263,6 +264,26 @@ public class CubeDesc extends RootPersistentEntity {
         return derivedToHostMap.get(derived);
     }
 
+    /**
+     * @return whether the column is on a lookup table of the cube but not a
+     *         dimension, which is answered by joining the snapshot on FK
+     */
+    public boolean isLookupJoined(TblColRef col) {
+        return lookupJoinedToHostMap.containsKey(col);
+    }
+
+    /**
+     * @return the FK columns (on rowkey) to join the lookup snapshot with, or
+     *         null if the column is not lookup joined
+     */
+    public DeriveInfo getLookupJoinInfo(TblColRef col) {
+        return lookupJoinedToHostMap.get(col);
+    }
+
+    public Set<TblColRef> listLookupJoinedColumns() {
+        return lookupJoinedToHostMap.keySet();
+    }
+
     public Map<Array<TblColRef>, List<DeriveInfo>> getHostToDerivedInfo(List<TblColRef> rowCols, Collection<TblColRef> wantedCols) {
         Map<Array<TblColRef>, List<DeriveInfo>> result = new HashMap<Array<TblColRef>, List<DeriveInfo>>();
         for (Entry<Array<TblColRef>, List<DeriveInfo>> entry : hostToDerivedMap.entrySet()) {
@@ -474,6 +495,7 @@ public class CubeDesc extends RootPersistentEntity {
         initJoinColumns(tables);
         initDimensionColumns(tables);
         initMeasureColumns(tables);
+        initLookupJoinedColumns(tables);
 
         rowkey.init(this);
         if (hbaseMapping != null) {
@@ -568,6 +590,33 @@ public class CubeDesc extends RootPersistentEntity {
         }
     }
 
+    private void initLookupJoinedColumns(Map<String, TableDesc> tables) {
+        for (DimensionDesc dim : dimensions) {
+            TableDesc dimTable = tables.get(dim.getTable());
+            JoinDesc join = dim.getJoin();
+            if (dimTable == null || join == null)
+                continue;
+
+            // the FK must be on rowkey, to be the key of hash join
+            TblColRef[] fk = join.getForeignKeyColumns();
+            boolean fkOnRowKey = fk.length > 0;
+            for (TblColRef col : fk) {
+                if (dimensionColumns.contains(col) == false || isDerived(col))
+                    fkOnRowKey = false;
+            }
+            if (fkOnRowKey == false)
+                continue;
+
+            for (ColumnDesc col : dimTable.getColumns()) {
+                if (findColumnRef(dimTable.getName(), col.getName()) != null)
+                    continue;
+                TblColRef ref = new TblColRef(col);
+                if (lookupJoinedToHostMap.containsKey(ref) == false)
+                    lookupJoinedToHostMap.put(ref, new DeriveInfo(DeriveType.LOOKUP, dim, fk, false));
+            }
+        }
+    }
+
     private String[][] splitDerivedColumnAndExtra(String[] derived) {
         String[] cols = new String[derived.length];
         String[] extra = new String[derived.length];
@@ -788,6 +837,23 @@ public class CubeDesc extends RootPersistentEntity {
         }
     }
 
+    /**
+     * Columns of precise (bitmap) count distinct measures, these require a
+     * global dictionary shared by all segments of the cube.
+     */
+    public List<TblColRef> listBitmapMeasureColumns() {
+        List<TblColRef> result = Lists.newArrayList();
+        for (MeasureDesc measure : measures) {
+            FunctionDesc func = measure.getFunction();
+            if (func.isBitmapCountDistinct()) {
+                TblColRef col = func.getParameter().getColRefs().get(0);
+                if (result.contains(col) == false)
+                    result.add(col);
+            }
+        }
+        return result;
+    }
+
     public boolean hasHolisticCountDistinctMeasures() {
         for (MeasureDesc measure : measures) {
             if (measure.getFunction().isHolisticCountDistinct()) {
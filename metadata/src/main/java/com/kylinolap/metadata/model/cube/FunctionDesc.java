@@ -32,6 +32,7 @@ public class FunctionDesc {
     public static final String FUNC_MAX = "MAX";
     public static final String FUNC_COUNT = "COUNT";
     public static final String FUNC_COUNT_DISTINCT = "COUNT_DISTINCT";
+    public static final String FUNC_TOP_N = "TOP_N";
 
     public static final String PARAMTER_TYPE_CONSTANT = "constant";
     public static final String PARAMETER_TYPE_COLUMN = "column";
@@ -58,7 +59,7 @@ public class FunctionDesc {
     }
 
     public boolean needRewrite() {
-        return !isSum() && !isHolisticCountDistinct() && !isAppliedOnDimension();
+        return !isSum() && !isHolisticCountDistinct() && !isAppliedOnDimension() && !isTopN();
     }
 
     public boolean isMin() {
@@ -89,6 +90,16 @@ public class FunctionDesc {
         }
     }
 
+    // TOP_N(metric, key), the top keys by sum of metric
+    public boolean isTopN() {
+        return FUNC_TOP_N.equalsIgnoreCase(expression);
+    }
+
+    // precise count distinct, a bitmap of dictionary IDs
+    public boolean isBitmapCountDistinct() {
+        return isCountDistinct() && returnDataType != null && returnDataType.isBitmap();
+    }
+
     /**
      * Get Full Expression such as sum(amount), count(1), count(*)...
      */
@@ -135,7 +146,7 @@ public class FunctionDesc {
     }
 
     public String getSQLType() {
-        if (isCountDistinct())
+        if (isCountDistinct() || isTopN())
             return "any";
         else if (isSum() || isMax() || isMin())
             return parameter.getColRefs().get(0).getType().getName();
@@ -27,12 +27,22 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 @JsonAutoDetect(fieldVisibility = Visibility.NONE, getterVisibility = Visibility.NONE, isGetterVisibility = Visibility.NONE, setterVisibility = Visibility.NONE)
 public class RowKeyColDesc {
 
+    /**
+     * An append-only dictionary shared by all segments of the cube. Merge then
+     * needs no re-encoding, but IDs are not in value order, so range filters on
+     * the column can't narrow the scan. Only applies to fact table columns.
+     */
+    public static final String DICT_GLOBAL = "global";
+
     @JsonProperty("column")
     private String column;
     @JsonProperty("length")
     private int length;
     @JsonProperty("dictionary")
     private String dictionary;
+    // dictionary-free fixed length encoding, like "integer:4", "date", "time", "fixed_length:20"
+    @JsonProperty("encoding")
+    private String encoding;
     @JsonProperty("mandatory")
     private boolean mandatory = false;
 
@@ -44,6 +54,10 @@ public class RowKeyColDesc {
         return dictionary;
     }
 
+    public String getEncoding() {
+        return encoding;
+    }
+
     public String getColumn() {
         return column;
     }
@@ -78,7 +92,7 @@ public class RowKeyColDesc {
 
     @Override
     public String toString() {
-        return "RowKeyColDesc [column=" + column + ", length=" + length + ", dictionary=" + dictionary + ", mandatory=" + mandatory + "]";
+        return "RowKeyColDesc [column=" + column + ", length=" + length + ", dictionary=" + dictionary + ", encoding=" + encoding + ", mandatory=" + mandatory + "]";
     }
 
 }
@@ -148,6 +148,10 @@ public class RowKeyDesc {
         return getColDesc(col).getDictionary();
     }
 
+    public String getEncoding(TblColRef col) {
+        return getColDesc(col).getEncoding();
+    }
+
     private RowKeyColDesc getColDesc(TblColRef col) {
         RowKeyColDesc desc = columnMap.get(col);
         if (desc == null)
@@ -160,6 +164,10 @@ public class RowKeyDesc {
         return !StringUtils.isBlank(useDictionary) && !"false".equals(useDictionary);
     }
 
+    public boolean isUseGlobalDictionary(TblColRef col) {
+        return RowKeyColDesc.DICT_GLOBAL.equals(getDictionary(col)) && cubeRef.isFactTable(col.getTable());
+    }
+
     public boolean isUseDictionary() {
         for (RowKeyColDesc col : getRowKeyColumns()) {
             if (isUseDictionary(col.getColRef())) {
@@ -34,7 +34,7 @@ import com.kylinolap.metadata.model.cube.TblColRef.InnerDataTypeEnum;
 public class DataType {
 
     public static final String VALID_TYPES_STRING = "any|char|varchar|boolean|integer|tinyint|smallint|bigint|decimal|numeric|float|real|double" //
-            + "|date|time|datetime|timestamp|byte|int|short|long|string|hllc" //
+            + "|date|time|datetime|timestamp|byte|int|short|long|string|hllc|bitmap|topn" //
             + "|" + InnerDataTypeEnum.LITERAL.getDataType() //
             + "|" + InnerDataTypeEnum.DERIVED.getDataType();
 
@@ -156,6 +156,9 @@ public class DataType {
 
         if (isHLLC() && HLLC_PRECISIONS.contains(precision) == false)
             throw new IllegalArgumentException("HLLC precision must be one of " + HLLC_PRECISIONS);
+
+        if (isTopN() && precision <= 0)
+            throw new IllegalArgumentException("TopN must specify a positive N, like topn(100)");
     }
 
     private String replaceLegacy(String str) {
@@ -180,6 +183,10 @@ public class DataType {
             return 8;
         } else if (isHLLC()) {
             return 1 << precision;
+        } else if (isBitmap()) {
+            return 8 * 1024; // a guess, bitmap size depends on the distinct values it holds
+        } else if (isTopN()) {
+            return precision * 32 * 10; // key, sum and error of the counters kept, 10 times of N
         }
         throw new IllegalStateException("The return type : " + name + " is not recognized;");
     }
@@ -232,6 +239,14 @@ public class DataType {
         return name.equals("hllc");
     }
 
+    public boolean isBitmap() {
+        return name.equals("bitmap");
+    }
+
+    public boolean isTopN() {
+        return name.equals("topn");
+    }
+
     public String getName() {
         return name;
     }
@@ -30,6 +30,7 @@ import com.kylinolap.metadata.model.cube.CubeDesc;
 import com.kylinolap.metadata.model.cube.FunctionDesc;
 import com.kylinolap.metadata.model.cube.MeasureDesc;
 import com.kylinolap.metadata.model.cube.ParameterDesc;
+import com.kylinolap.metadata.model.cube.TblColRef;
 import com.kylinolap.metadata.model.schema.ColumnDesc;
 import com.kylinolap.metadata.model.schema.DataType;
 import com.kylinolap.metadata.model.schema.TableDesc;
@@ -114,8 +115,21 @@ public class FunctionRule implements IValidatorRule<CubeDesc> {
                 context.addResult(ResultLevel.ERROR, "Return type for function " + func + " must be one of " + DataType.INTEGER_FAMILY);
             }
         } else if (funcDesc.isCountDistinct()) {
-            if (rtype.isHLLC() == false && funcDesc.isHolisticCountDistinct() == false) {
-                context.addResult(ResultLevel.ERROR, "Return type for function " + func + " must be hllc(10), hllc(12) etc.");
+            if (rtype.isHLLC() == false && rtype.isBitmap() == false && funcDesc.isHolisticCountDistinct() == false) {
+                context.addResult(ResultLevel.ERROR, "Return type for function " + func + " must be hllc(10), hllc(12) etc., or bitmap");
+            }
+            if (rtype.isBitmap() && (funcDesc.getParameter().getColRefs() == null || funcDesc.getParameter().getColRefs().size() != 1)) {
+                context.addResult(ResultLevel.ERROR, "Precise count distinct (bitmap) must be on one and only one column -- " + funcDesc);
+            }
+        } else if (funcDesc.isTopN()) {
+            if (rtype.isTopN() == false) {
+                context.addResult(ResultLevel.ERROR, "Return type for function " + func + " must be topn(100), topn(1000) etc.");
+            }
+            List<TblColRef> colRefs = funcDesc.getParameter().getColRefs();
+            if (colRefs == null || colRefs.size() != 2) {
+                context.addResult(ResultLevel.ERROR, "TopN must be on two columns, the metric to sum and the key to rank -- " + funcDesc);
+            } else if (colRefs.get(0).getType().isNumberFamily() == false) {
+                context.addResult(ResultLevel.ERROR, "The first column of TopN must be numeric -- " + funcDesc);
             }
         } else if (funcDesc.isMax() || funcDesc.isMin() || funcDesc.isSum()) {
             if (rtype.isNumberFamily() == false) {
@@ -59,6 +59,16 @@ public class RowKeyAttrRule implements IValidatorRule<CubeDesc> {
             if (rd.getLength() != 0 && !StringUtils.isEmpty(rd.getDictionary())) {
                 context.addResult(ResultLevel.ERROR, "Rowkey column " + rd.getColumn() + " must not have both 'length' and 'dictionary' attribute");
             }
+            if (!StringUtils.isEmpty(rd.getEncoding())) {
+                if (rd.getLength() != 0 || !StringUtils.isEmpty(rd.getDictionary())) {
+                    context.addResult(ResultLevel.ERROR, "Rowkey column " + rd.getColumn() + " with 'encoding' must not have 'length' or 'dictionary' attribute");
+                }
+                String error = checkEncoding(rd.getEncoding());
+                if (error != null) {
+                    context.addResult(ResultLevel.ERROR, "Rowkey column " + rd.getColumn() + " has invalid encoding '" + rd.getEncoding() + "', " + error);
+                }
+                continue;
+            }
             if (rd.getLength() == 0 && StringUtils.isEmpty(rd.getDictionary())) {
                 context.addResult(ResultLevel.ERROR, "Rowkey column " + rd.getColumn() + " must not have both 'length' and 'dictionary' empty");
             }
@@ -66,4 +76,37 @@ public class RowKeyAttrRule implements IValidatorRule<CubeDesc> {
 
     }
 
+    /**
+     * Checks an encoding like "integer:4", "date", "time", "fixed_length:20",
+     * the way DimensionEncoding of cube creates them.
+     * 
+     * @return the error, or null if the encoding is good
+     */
+    static String checkEncoding(String encoding) {
+        String name = encoding;
+        String arg = null;
+        int cut = encoding.indexOf(':');
+        if (cut >= 0) {
+            name = encoding.substring(0, cut);
+            arg = encoding.substring(cut + 1).trim();
+        }
+        name = name.trim().toLowerCase();
+
+        if ("date".equals(name) || "time".equals(name))
+            return arg == null ? null : name + " takes no length";
+
+        int len;
+        try {
+            len = arg == null ? 0 : Integer.parseInt(arg);
+        } catch (NumberFormatException e) {
+            return "length '" + arg + "' is not a number";
+        }
+        if ("integer".equals(name))
+            return len >= 1 && len <= 8 ? null : "integer length must be between 1 and 8, like integer:4";
+        else if ("fixed_length".equals(name))
+            return len > 0 ? null : "fixed_length must have a positive length, like fixed_length:20";
+        else
+            return "must be one of integer:N, date, time, fixed_length:N";
+    }
+
 }
@@ -16,6 +16,8 @@
 
 package com.kylinolap.metadata;
 
+import static org.junit.Assert.*;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -23,6 +25,8 @@ import org.junit.Test;
 import com.kylinolap.common.util.JsonUtil;
 import com.kylinolap.common.util.LocalFileMetadataTestCase;
 import com.kylinolap.metadata.model.cube.CubeDesc;
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.metadata.model.schema.TableDesc;
 
 /**
  * @author yangli9
@@ -47,4 +51,24 @@ public class CubeDescTest extends LocalFileMetadataTestCase {
         @SuppressWarnings("unused")
         CubeDesc desc2 = JsonUtil.readValue(str, CubeDesc.class);
     }
+
+    @Test
+    public void testLookupJoined() throws Exception {
+        MetadataManager metaMgr = MetadataManager.getInstance(this.getTestConfig());
+        CubeDesc desc = metaMgr.getCubeDesc("test_kylin_cube_with_slr_desc");
+        TableDesc sites = metaMgr.getTableDesc("TEST_SITES");
+
+        // derived column is not lookup joined
+        TblColRef siteName = new TblColRef(sites.findColumnByName("SITE_NAME"));
+        assertTrue(desc.isDerived(siteName));
+        assertFalse(desc.isLookupJoined(siteName));
+
+        // other columns of the lookup table join on FK
+        TblColRef domainCode = new TblColRef(sites.findColumnByName("SITE_DOMAIN_CODE"));
+        assertTrue(desc.isLookupJoined(domainCode));
+        TblColRef[] hosts = desc.getLookupJoinInfo(domainCode).columns;
+        assertEquals(1, hosts.length);
+        assertEquals("LSTG_SITE_ID", hosts[0].getName());
+        assertFalse(desc.listDimensionColumnsIncludingDerived().contains(domainCode));
+    }
 }
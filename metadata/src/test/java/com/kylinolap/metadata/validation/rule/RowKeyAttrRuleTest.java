@@ -53,4 +53,17 @@ public class RowKeyAttrRuleTest {
         assertTrue("Failed to validate rowkey", vContext.getResults().length == 1);
         assertTrue("Failed to validate mandatory error", vContext.getResults()[0].getMessage().startsWith("Rowkey column"));
     }
+
+    @Test
+    public void testEncoding() {
+        assertNull(RowKeyAttrRule.checkEncoding("integer:4"));
+        assertNull(RowKeyAttrRule.checkEncoding("date"));
+        assertNull(RowKeyAttrRule.checkEncoding("TIME"));
+        assertNull(RowKeyAttrRule.checkEncoding("fixed_length: 20"));
+        assertNotNull(RowKeyAttrRule.checkEncoding("integer"));
+        assertNotNull(RowKeyAttrRule.checkEncoding("integer:9"));
+        assertNotNull(RowKeyAttrRule.checkEncoding("fixed_length:abc"));
+        assertNotNull(RowKeyAttrRule.checkEncoding("date:3"));
+        assertNotNull(RowKeyAttrRule.checkEncoding("dict"));
+    }
 }
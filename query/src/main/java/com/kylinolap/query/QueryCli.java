@@ -15,12 +15,11 @@
  */
 package com.kylinolap.query;
 
-import java.io.File;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.Statement;
+import java.util.Properties;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -51,14 +50,11 @@ public class QueryCli {
         KylinConfig config = KylinConfig.createInstanceFromUri(commandLine.getOptionValue(OPTION_METADATA.getOpt()));
         String sql = commandLine.getOptionValue(OPTION_SQL.getOpt());
 
-        Class.forName("net.hydromatic.optiq.jdbc.Driver");
-        File olapTmp = OLAPSchemaFactory.createTempOLAPJson(null, config);
-
         Connection conn = null;
         Statement stmt = null;
         ResultSet rs = null;
         try {
-            conn = DriverManager.getConnection("jdbc:calcite:model=" + olapTmp.getAbsolutePath());
+            conn = OLAPSchemaFactory.createConnection(null, config, new Properties());
 
             stmt = conn.createStatement();
             rs = stmt.executeQuery(sql);
@@ -35,6 +35,8 @@ import com.kylinolap.metadata.model.cube.MeasureDesc;
 import com.kylinolap.metadata.model.cube.TblColRef;
 import com.kylinolap.query.relnode.OLAPContext;
 import com.kylinolap.storage.IStorageEngine;
+import com.kylinolap.storage.MemoryBudget;
+import com.kylinolap.storage.QueryTrace;
 import com.kylinolap.storage.StorageEngineFactory;
 import com.kylinolap.storage.filter.CompareTupleFilter;
 import com.kylinolap.storage.filter.TupleFilter;
@@ -53,6 +55,10 @@ public class CubeEnumerator implements Enumerator<Object[]> {
     private final Object[] current;
     private ITupleIterator cursor;
     private int[] fieldIndexes;
+    private MemoryBudget memoryBudget; // not null if rows are held by Optiq
+    private final QueryTrace trace; // null if not traced
+    private long storageNanos; // time in storage, added to trace on close
+    private long storageRows;
 
     public CubeEnumerator(OLAPContext olapContext, DataContext optiqContext) {
         this.olapContext = olapContext;
@@ -60,6 +66,7 @@ public class CubeEnumerator implements Enumerator<Object[]> {
         this.current = new Object[olapContext.olapRowType.getFieldCount()];
         this.cursor = null;
         this.fieldIndexes = null;
+        this.trace = olapContext.storageContext.getQueryTrace();
     }
 
     @Override
@@ -69,22 +76,29 @@ public class CubeEnumerator implements Enumerator<Object[]> {
 
     @Override
     public boolean moveNext() {
-        if (cursor == null) {
-            cursor = queryStorage();
-        }
-
-        if (!cursor.hasNext()) {
-            return false;
+        long start = trace == null ? 0 : System.nanoTime();
+        ITuple tuple = nextTuple();
+        if (trace != null) {
+            storageNanos += System.nanoTime() - start;
         }
-
-        ITuple tuple = cursor.next();
         if (tuple == null) {
             return false;
         }
+        storageRows++;
         convertCurrentRow(tuple);
+        if (memoryBudget != null) {
+            memoryBudget.consume(MemoryBudget.estimateRowBytes(current));
+        }
         return true;
     }
 
+    private ITuple nextTuple() {
+        if (cursor == null) {
+            cursor = queryStorage();
+        }
+        return cursor.hasNext() ? cursor.next() : null;
+    }
+
     @Override
     public void reset() {
         close();
@@ -96,6 +110,12 @@ public class CubeEnumerator implements Enumerator<Object[]> {
         if (cursor != null) {
             cursor.close();
         }
+        if (trace != null) {
+            trace.count(QueryTrace.COUNTER_STORAGE_MS, storageNanos / 1000000);
+            trace.count(QueryTrace.COUNTER_STORAGE_ROWS, storageRows);
+            storageNanos = 0;
+            storageRows = 0;
+        }
     }
 
     private Object[] convertCurrentRow(ITuple tuple) {
@@ -136,7 +156,7 @@ public class CubeEnumerator implements Enumerator<Object[]> {
         setConnectionProperties();
 
         // bind dynamic variables
-        bindVariable(olapContext.filter);
+        bindVariable(olapContext.filter, optiqContext);
 
         // build dimension & metrics
         Collection<TblColRef> dimensions = new HashSet<TblColRef>();
@@ -151,9 +171,20 @@ public class CubeEnumerator implements Enumerator<Object[]> {
         }
 
         this.fieldIndexes = null;
+        this.memoryBudget = isBufferedAbove() ? olapContext.storageContext.getMemoryBudget() : null;
         return iterator;
     }
 
+    // whether Optiq above this enumerator holds a row for each row given: a sort
+    // holds every row; an aggregation holds groups, a group per row only if
+    // storage aggregated exactly, otherwise rows merge into fewer groups
+    private boolean isBufferedAbove() {
+        boolean aggregated = olapContext.aggregations.size() > 0 || olapContext.groupByColumns.size() > 0;
+        if (aggregated)
+            return olapContext.storageContext.isExactAggregation();
+        return olapContext.storageContext.hasSort();
+    }
+
     private void buildDimensionsAndMetrics(Collection<TblColRef> dimensions, Collection<FunctionDesc> metrics) {
 
         for (FunctionDesc func : olapContext.aggregations) {
@@ -190,13 +221,14 @@ public class CubeEnumerator implements Enumerator<Object[]> {
         }
     }
 
-    private void bindVariable(TupleFilter filter) {
+    // dynamic parameters of the query go into filter
+    static void bindVariable(TupleFilter filter, DataContext optiqContext) {
         if (filter == null) {
             return;
         }
 
         for (TupleFilter childFilter : filter.getChildren()) {
-            bindVariable(childFilter);
+            bindVariable(childFilter, optiqContext);
         }
 
         if (filter instanceof CompareTupleFilter && optiqContext != null) {
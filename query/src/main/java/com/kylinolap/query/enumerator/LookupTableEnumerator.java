@@ -16,33 +16,51 @@
 
 package com.kylinolap.query.enumerator;
 
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import net.hydromatic.linq4j.Enumerator;
+import net.hydromatic.optiq.DataContext;
 
 import com.kylinolap.cube.CubeInstance;
 import com.kylinolap.cube.CubeManager;
 import com.kylinolap.dict.lookup.LookupStringTable;
 import com.kylinolap.metadata.model.cube.DimensionDesc;
+import com.kylinolap.metadata.model.cube.FunctionDesc;
+import com.kylinolap.metadata.model.cube.TblColRef;
 import com.kylinolap.metadata.model.schema.ColumnDesc;
 import com.kylinolap.query.relnode.OLAPContext;
 import com.kylinolap.query.schema.OLAPTable;
 import com.kylinolap.storage.tuple.Tuple;
 
 /**
+ * Scans the snapshot of a lookup table for a query on the table alone. Rows
+ * are filtered on the rows of the snapshot as they are (using value index for
+ * equalities), only the needed columns are converted, and DISTINCT and LIMIT
+ * stop the scan early when it's safe. Rows returned are a superset of the
+ * result, Optiq still applies the filter afterwards.
+ *
  * @author yangli9
- * 
+ *
  */
 public class LookupTableEnumerator implements Enumerator<Object[]> {
 
-    private final Collection<String[]> allRows;
+    private final String[][] rows;
     private final List<ColumnDesc> colDescs;
+    private final boolean[] needed;
+    private final LookupTableFilter filter;
+    private final int[] candidates;
+    private final Set<List<Object>> distinct;
+    private final int limit;
     private final Object[] current;
-    private Iterator<String[]> iterator;
 
-    public LookupTableEnumerator(OLAPContext olapContext) {
+    private int position;
+    private int passCount;
+
+    public LookupTableEnumerator(OLAPContext olapContext, DataContext optiqContext) {
 
         String lookupTableName = olapContext.firstTableScan.getCubeTable();
         DimensionDesc dim = olapContext.cubeDesc.findDimensionByTable(lookupTableName);
@@ -51,32 +69,93 @@ public class LookupTableEnumerator implements Enumerator<Object[]> {
 
         CubeInstance cube = olapContext.cubeInstance;
         CubeManager cubeMgr = CubeManager.getInstance(cube.getConfig());
-        LookupStringTable table = cubeMgr.getLookupTable(cube.getLatestReadySegment(), dim);
-        this.allRows = table.getAllRows();
+        final LookupStringTable table = cubeMgr.getLookupTable(cube.getLatestReadySegment(), dim);
+        this.rows = table.getRowArray();
 
         OLAPTable olapTable = (OLAPTable) olapContext.firstTableScan.getOlapTable();
         this.colDescs = olapTable.getExposedColumns();
         this.current = new Object[colDescs.size()];
 
+        // filter, bind dynamic variables first
+        CubeEnumerator.bindVariable(olapContext.filter, optiqContext);
+        if (olapContext.filter != null) {
+            this.filter = new LookupTableFilter(olapContext.filter, lookupTableName);
+            this.candidates = filter.findCandidates(new LookupTableFilter.ValueIndexProvider() {
+                @Override
+                public Map<String, int[]> getValueIndex(int col) {
+                    return table.getValueIndex(col);
+                }
+            });
+        } else {
+            this.filter = null;
+            this.candidates = null;
+        }
+
+        // projection, a query without aggregation may have no project on top of the scan
+        boolean aggregated = !olapContext.aggregations.isEmpty() || !olapContext.groupByColumns.isEmpty();
+        Set<String> neededNames = new HashSet<String>();
+        for (TblColRef col : olapContext.allColumns)
+            neededNames.add(col.getName());
+        for (TblColRef col : olapContext.groupByColumns)
+            neededNames.add(col.getName());
+        for (FunctionDesc func : olapContext.aggregations) {
+            if (func.getParameter() != null && func.getParameter().isColumnType())
+                neededNames.add(func.getParameter().getValue());
+        }
+        this.needed = new boolean[colDescs.size()];
+        Set<String> groupByNames = new HashSet<String>();
+        for (TblColRef col : olapContext.groupByColumns)
+            groupByNames.add(col.getName());
+        Set<String> projectedNames = new HashSet<String>();
+        for (int i = 0; i < colDescs.size(); i++) {
+            ColumnDesc colDesc = colDescs.get(i);
+            needed[i] = colDesc.getZeroBasedIndex() >= 0 && (!aggregated || neededNames.contains(colDesc.getName()));
+            if (needed[i])
+                projectedNames.add(colDesc.getName());
+        }
+
+        // DISTINCT, i.e. group by without aggregation
+        boolean isDistinct = olapContext.aggregations.isEmpty() && !olapContext.groupByColumns.isEmpty();
+        this.distinct = isDistinct ? new HashSet<List<Object>>() : null;
+
+        // LIMIT, when each row passing the whole filter is a row of the result
+        boolean canLimit = olapContext.storageContext.hasLimit() //
+                && !olapContext.storageContext.hasSort() //
+                && (filter == null || filter.isComplete()) //
+                && olapContext.aggregations.isEmpty() //
+                && (olapContext.groupByColumns.isEmpty() || projectedNames.equals(groupByNames));
+        this.limit = canLimit ? olapContext.storageContext.getLimit() : Integer.MAX_VALUE;
+
         reset();
     }
 
     @Override
     public boolean moveNext() {
-        boolean hasNext = iterator.hasNext();
-        if (hasNext) {
-            String[] row = iterator.next();
+        int total = candidates == null ? rows.length : candidates.length;
+        while (passCount < limit && position < total) {
+            int row = candidates == null ? position : candidates[position];
+            position++;
+
+            int result = filter == null ? LookupTableFilter.PASS : filter.evaluate(rows[row]);
+            if (result == LookupTableFilter.FAIL)
+                continue;
+
             for (int i = 0, n = colDescs.size(); i < n; i++) {
-                ColumnDesc colDesc = colDescs.get(i);
-                int colIdx = colDesc.getZeroBasedIndex();
-                if (colIdx >= 0) {
-                    current[i] = Tuple.convertOptiqCellValue(row[colIdx], colDesc.getDatatype());
+                if (needed[i]) {
+                    ColumnDesc colDesc = colDescs.get(i);
+                    current[i] = Tuple.convertOptiqCellValue(rows[row][colDesc.getZeroBasedIndex()], colDesc.getDatatype());
                 } else {
-                    current[i] = null; // fake column
+                    current[i] = null; // fake column or not needed
                 }
             }
+            if (distinct != null && distinct.add(Arrays.asList(current.clone())) == false)
+                continue;
+
+            if (result == LookupTableFilter.PASS)
+                passCount++;
+            return true;
         }
-        return hasNext;
+        return false;
     }
 
     @Override
@@ -86,7 +165,10 @@ public class LookupTableEnumerator implements Enumerator<Object[]> {
 
     @Override
     public void reset() {
-        this.iterator = allRows.iterator();
+        this.position = 0;
+        this.passCount = 0;
+        if (distinct != null)
+            distinct.clear();
     }
 
     @Override
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.query.enumerator;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.kylinolap.dict.DateStrDictionary;
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.metadata.model.schema.ColumnDesc;
+import com.kylinolap.metadata.model.schema.DataType;
+import com.kylinolap.storage.filter.CompareTupleFilter;
+import com.kylinolap.storage.filter.TupleFilter;
+import com.kylinolap.storage.filter.TupleFilter.FilterOperatorEnum;
+
+/**
+ * Filter of a query on a lookup table alone, evaluated on snapshot rows. Takes the compares ANDed at top on string, number and date columns of
+ * the table, in SQL semantic of the column type. The rest is left to Optiq,
+ * which applies the whole filter again after the scan anyway.
+ *
+ * A value it can't interpret (null, not a number, etc.) lets the row pass as
+ * UNKNOWN, so that rows dropped are always ones the filter drops.
+ *
+ * @author yangli9
+ */
+public class LookupTableFilter {
+
+    public static final int PASS = 0;
+    public static final int FAIL = 1;
+    public static final int UNKNOWN = 2;
+
+    private static final int KIND_STRING = 0;
+    private static final int KIND_NUMBER = 1;
+    private static final int KIND_DATE = 2;
+
+    private final List<Compare> compares = new ArrayList<Compare>();
+    private boolean complete = true;
+
+    public LookupTableFilter(TupleFilter filter, String lookupTableName) {
+        if (filter != null)
+            take(filter, lookupTableName);
+    }
+
+    private void take(TupleFilter filter, String lookupTableName) {
+        if (filter.getOperator() == FilterOperatorEnum.AND) {
+            for (TupleFilter child : filter.getChildren()) {
+                take(child, lookupTableName);
+            }
+            return;
+        }
+
+        Compare comp = filter instanceof CompareTupleFilter ? toCompare((CompareTupleFilter) filter, lookupTableName) : null;
+        if (comp == null)
+            complete = false;
+        else
+            compares.add(comp);
+    }
+
+    private Compare toCompare(CompareTupleFilter filter, String lookupTableName) {
+        TblColRef col = filter.getColumn();
+        if (col == null || col.getTable().equalsIgnoreCase(lookupTableName) == false || col.getColumn().getZeroBasedIndex() < 0)
+            return null;
+        if (filter.getValues().isEmpty() || filter.getVariables().containsValue(null))
+            return null; // not bound
+
+        FilterOperatorEnum op = filter.getOperator();
+        if (op != FilterOperatorEnum.EQ && op != FilterOperatorEnum.NEQ && op != FilterOperatorEnum.LT && op != FilterOperatorEnum.LTE //
+                && op != FilterOperatorEnum.GT && op != FilterOperatorEnum.GTE && op != FilterOperatorEnum.IN)
+            return null;
+        if (op != FilterOperatorEnum.IN && filter.getValues().size() != 1)
+            return null;
+
+        int kind;
+        ColumnDesc colDesc = col.getColumn();
+        DataType type = colDesc.getType();
+        if (type.isStringFamily())
+            kind = KIND_STRING;
+        else if (type.isNumberFamily())
+            kind = KIND_NUMBER;
+        else if ("date".equals(type.getName()))
+            kind = KIND_DATE;
+        else
+            return null;
+
+        Compare comp = new Compare(colDesc.getZeroBasedIndex(), op, kind);
+        for (String value : filter.getValues()) {
+            Object v = parse(value, kind);
+            if (v == null)
+                return null;
+            comp.constants.add(v);
+        }
+        comp.stringConstants.addAll(filter.getValues());
+        return comp;
+    }
+
+    private static Object parse(String value, int kind) {
+        if (value == null)
+            return null;
+        try {
+            switch (kind) {
+            case KIND_STRING:
+                return value;
+            case KIND_NUMBER:
+                return new BigDecimal(value.trim());
+            case KIND_DATE:
+                return DateStrDictionary.stringToMillis(value);
+            default:
+                return null;
+            }
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the whole filter is taken, i.e. a PASS row passes the
+     *         original filter
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return PASS, FAIL or UNKNOWN
+     */
+    public int evaluate(String[] row) {
+        int result = PASS;
+        for (Compare comp : compares) {
+            int r = comp.evaluate(row[comp.col]);
+            if (r == FAIL)
+                return FAIL;
+            if (r == UNKNOWN)
+                result = UNKNOWN;
+        }
+        return result;
+    }
+
+    /**
+     * Uses the value index of the most selective equality on a string
+     * column, if any.
+     *
+     * @return candidate rows in ascending order, or null for all rows
+     */
+    public int[] findCandidates(ValueIndexProvider indexes) {
+        int[] best = null;
+        for (Compare comp : compares) {
+            if (comp.kind != KIND_STRING || (comp.op != FilterOperatorEnum.EQ && comp.op != FilterOperatorEnum.IN))
+                continue;
+
+            Map<String, int[]> index = indexes.getValueIndex(comp.col);
+            int size = 0;
+            for (String value : comp.stringConstants) {
+                int[] rows = index.get(value);
+                size += rows == null ? 0 : rows.length;
+            }
+            if (best != null && size >= best.length)
+                continue;
+
+            int[] candidates = new int[size];
+            int n = 0;
+            for (String value : comp.stringConstants) {
+                int[] rows = index.get(value);
+                if (rows != null) {
+                    System.arraycopy(rows, 0, candidates, n, rows.length);
+                    n += rows.length;
+                }
+            }
+            Arrays.sort(candidates);
+            best = candidates;
+        }
+        return best;
+    }
+
+    public interface ValueIndexProvider {
+        /**
+         * @return row numbers by value of the column
+         */
+        Map<String, int[]> getValueIndex(int col);
+    }
+
+    private static class Compare {
+        final int col;
+        final FilterOperatorEnum op;
+        final int kind;
+        final List<Object> constants = new ArrayList<Object>();
+        final Set<String> stringConstants = new HashSet<String>();
+
+        Compare(int col, FilterOperatorEnum op, int kind) {
+            this.col = col;
+            this.op = op;
+            this.kind = kind;
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        int evaluate(String cell) {
+            // empty is null except for strings, like Tuple.convertOptiqCellValue()
+            if (cell == null || cell.equals("\\N") || (kind != KIND_STRING && cell.isEmpty()))
+                return UNKNOWN;
+            Object v = parse(cell, kind);
+            if (v == null)
+                return UNKNOWN;
+
+            if (op == FilterOperatorEnum.IN) {
+                for (Object c : constants) {
+                    if (((Comparable) v).compareTo(c) == 0)
+                        return PASS;
+                }
+                return FAIL;
+            }
+
+            int comp = ((Comparable) v).compareTo(constants.get(0));
+            boolean result;
+            switch (op) {
+            case EQ:
+                result = comp == 0;
+                break;
+            case NEQ:
+                result = comp != 0;
+                break;
+            case LT:
+                result = comp < 0;
+                break;
+            case LTE:
+                result = comp <= 0;
+                break;
+            case GT:
+                result = comp > 0;
+                break;
+            case GTE:
+                result = comp >= 0;
+                break;
+            default:
+                return UNKNOWN;
+            }
+            return result ? PASS : FAIL;
+        }
+    }
+}
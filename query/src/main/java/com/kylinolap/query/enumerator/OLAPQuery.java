@@ -55,7 +55,7 @@ public class OLAPQuery extends AbstractEnumerable<Object[]> implements Enumerabl
         case CUBE:
             return new CubeEnumerator(olapContext, optiqContext);
         case LOOKUP_TABLE:
-            return new LookupTableEnumerator(olapContext);
+            return new LookupTableEnumerator(olapContext, optiqContext);
         case HIVE:
             return new HiveEnumerator(olapContext);
         default:
@@ -56,10 +56,12 @@ import org.eigenbase.util.Util;
 
 import com.google.common.base.Preconditions;
 import com.kylinolap.metadata.model.cube.FunctionDesc;
+import com.kylinolap.metadata.model.cube.MeasureDesc;
 import com.kylinolap.metadata.model.cube.ParameterDesc;
 import com.kylinolap.metadata.model.cube.TblColRef;
 import com.kylinolap.metadata.model.schema.ColumnDesc;
 import com.kylinolap.metadata.model.schema.TableDesc;
+import com.kylinolap.query.sqlfunc.BitmapDistinctCountAggFunc;
 import com.kylinolap.query.sqlfunc.HLLDistinctCountAggFunc;
 
 /**
@@ -75,6 +77,7 @@ public class OLAPAggregateRel extends AggregateRelBase implements OLAPRel, Enume
         AGGR_FUNC_MAP.put("COUNT", "COUNT");
         AGGR_FUNC_MAP.put("COUNT_DISTINCT", "COUNT_DISTINCT");
         AGGR_FUNC_MAP.put("HLL_COUNT", "COUNT_DISTINCT");
+        AGGR_FUNC_MAP.put("BITMAP_COUNT", "COUNT_DISTINCT");
         AGGR_FUNC_MAP.put("MAX", "MAX");
         AGGR_FUNC_MAP.put("MIN", "MIN");
     }
@@ -299,7 +302,10 @@ public class OLAPAggregateRel extends AggregateRelBase implements OLAPRel, Enume
         RelDataType fieldType = aggCall.getType();
         Aggregation newAgg = aggCall.getAggregation();
         if (func.isCountDistinct()) {
-            newAgg = createHyperLogLogAggFunction(fieldType);
+            if (isBitmapCountDistinctOnCube(func))
+                newAgg = createCustomAggFunction("BITMAP_COUNT", fieldType, BitmapDistinctCountAggFunc.class);
+            else
+                newAgg = createCustomAggFunction("HLL_COUNT", fieldType, HLLDistinctCountAggFunc.class);
         } else if (func.isCount()) {
             newAgg = new SqlSumEmptyIsZeroAggFunction(fieldType);
         }
@@ -318,10 +324,21 @@ public class OLAPAggregateRel extends AggregateRelBase implements OLAPRel, Enume
         return new AggregateCall(newAgg, false, newArgList, inferReturnType, newAgg.getName());
     }
 
-    private Aggregation createHyperLogLogAggFunction(RelDataType returnType) {
+    // the query side function carries no return type, look for the cube measure it hits
+    private boolean isBitmapCountDistinctOnCube(FunctionDesc func) {
+        if (this.context.cubeDesc == null)
+            return false;
+        for (MeasureDesc measure : this.context.cubeDesc.getMeasures()) {
+            if (measure.getFunction().equals(func))
+                return measure.getFunction().isBitmapCountDistinct();
+        }
+        return false;
+    }
+
+    private Aggregation createCustomAggFunction(String funcName, RelDataType returnType, Class<?> customAggFuncClz) {
         RelDataTypeFactory typeFactory = getCluster().getTypeFactory();
-        SqlIdentifier sqlIdentifier = new SqlIdentifier("HLL_COUNT", new SqlParserPos(1, 1));
-        AggregateFunction aggFunction = AggregateFunctionImpl.create(HLLDistinctCountAggFunc.class);
+        SqlIdentifier sqlIdentifier = new SqlIdentifier(funcName, new SqlParserPos(1, 1));
+        AggregateFunction aggFunction = AggregateFunctionImpl.create(customAggFuncClz);
         List<RelDataType> argTypes = new ArrayList<RelDataType>();
         List<SqlTypeFamily> typeFamilies = new ArrayList<SqlTypeFamily>();
         for (FunctionParameter o : aggFunction.getParameters()) {
@@ -32,7 +32,12 @@ import com.kylinolap.metadata.model.cube.FunctionDesc;
 import com.kylinolap.metadata.model.cube.JoinDesc;
 import com.kylinolap.metadata.model.cube.TblColRef;
 import com.kylinolap.query.schema.OLAPSchema;
+import com.kylinolap.storage.MemoryBudget;
+import com.kylinolap.storage.QueryDeadline;
+import com.kylinolap.storage.QueryTrace;
 import com.kylinolap.storage.StorageContext;
+import com.kylinolap.storage.filter.CompareTupleFilter;
+import com.kylinolap.storage.filter.LogicalTupleFilter;
 import com.kylinolap.storage.filter.TupleFilter;
 
 /**
@@ -42,11 +47,19 @@ import com.kylinolap.storage.filter.TupleFilter;
 public class OLAPContext {
 
     public static final String PRM_ACCEPT_PARTIAL_RESULT = "AcceptPartialResult";
+    public static final String PRM_SAMPLING_RATIO = "SamplingRatio";
+    public static final String PRM_LATENCY_TARGET = "LatencyTarget";
 
     private static final ThreadLocal<Map<String, String>> _localPrarameters = new ThreadLocal<Map<String, String>>();
 
     private static final ThreadLocal<Map<Integer, OLAPContext>> _localContexts = new ThreadLocal<Map<Integer, OLAPContext>>();
 
+    private static final ThreadLocal<MemoryBudget> _localMemoryBudget = new ThreadLocal<MemoryBudget>();
+
+    private static final ThreadLocal<QueryDeadline> _localQueryDeadline = new ThreadLocal<QueryDeadline>();
+
+    private static final ThreadLocal<QueryTrace> _localQueryTrace = new ThreadLocal<QueryTrace>();
+
     public static void setParameters(Map<String, String> parameters) {
         _localPrarameters.set(parameters);
     }
@@ -55,6 +68,36 @@ public class OLAPContext {
         _localPrarameters.remove();
     }
 
+    // of the query about to run on this thread, shared by all its contexts
+    public static void setMemoryBudget(MemoryBudget budget) {
+        _localMemoryBudget.set(budget);
+    }
+
+    public static void clearMemoryBudget() {
+        _localMemoryBudget.remove();
+    }
+
+    public static void setQueryDeadline(QueryDeadline deadline) {
+        _localQueryDeadline.set(deadline);
+    }
+
+    public static void clearQueryDeadline() {
+        _localQueryDeadline.remove();
+    }
+
+    public static void setQueryTrace(QueryTrace trace) {
+        _localQueryTrace.set(trace);
+    }
+
+    // null if the query on this thread is not traced
+    public static QueryTrace getQueryTrace() {
+        return _localQueryTrace.get();
+    }
+
+    public static void clearQueryTrace() {
+        _localQueryTrace.remove();
+    }
+
     public static void registerContext(OLAPContext ctx) {
         if (_localContexts.get() == null) {
             Map<Integer, OLAPContext> contextMap = new HashMap<Integer, OLAPContext>();
@@ -78,13 +121,91 @@ public class OLAPContext {
     public OLAPContext(int seq) {
         this.id = seq;
         this.storageContext = new StorageContext();
+        applyParameters();
+    }
+
+    /**
+     * Context of a cached plan for one more execution. Planning results are
+     * shared, storage context and filter are new as they change at execution.
+     */
+    public OLAPContext(OLAPContext planned) {
+        this.id = planned.id;
+        this.storageContext = new StorageContext(planned.storageContext);
+        applyParameters();
+
+        this.olapSchema = planned.olapSchema;
+        this.firstTableScan = planned.firstTableScan;
+        this.olapRowType = planned.olapRowType;
+        this.afterAggregate = planned.afterAggregate;
+        this.afterJoin = planned.afterJoin;
+        this.hasJoin = planned.hasJoin;
+        this.cubeInstance = planned.cubeInstance;
+        this.cubeDesc = planned.cubeDesc;
+        this.allColumns = planned.allColumns;
+        this.metricsColumns = planned.metricsColumns;
+        this.groupByColumns = planned.groupByColumns;
+        this.aggregations = planned.aggregations;
+        this.joins = planned.joins;
+        this.filter = copyForBinding(planned.filter);
+        this.rewriteFields = planned.rewriteFields;
+        this.sql = planned.sql;
+    }
+
+    private void applyParameters() {
+        this.storageContext.setMemoryBudget(_localMemoryBudget.get());
+        this.storageContext.setQueryDeadline(_localQueryDeadline.get());
+        this.storageContext.setQueryTrace(_localQueryTrace.get());
+
         Map<String, String> parameters = _localPrarameters.get();
         if (parameters != null) {
             String acceptPartialResult = parameters.get(PRM_ACCEPT_PARTIAL_RESULT);
             if (acceptPartialResult != null) {
                 this.storageContext.setAcceptPartialResult(Boolean.parseBoolean(acceptPartialResult));
             }
+            String samplingRatio = parameters.get(PRM_SAMPLING_RATIO);
+            if (samplingRatio != null) {
+                this.storageContext.setSamplingRatio(Double.parseDouble(samplingRatio));
+            }
+            String latencyTarget = parameters.get(PRM_LATENCY_TARGET);
+            if (latencyTarget != null) {
+                this.storageContext.setLatencyTarget(Long.parseLong(latencyTarget));
+            }
+        }
+    }
+
+    /**
+     * @return true if the plan can execute again with a copy of this context,
+     *         i.e. it queries a cube, and variables are bound only on compare
+     *         filters that are copied along
+     */
+    public boolean isReusable() {
+        return cubeInstance != null && isBindingCopyable(filter, true);
+    }
+
+    // binding variables changes compare filters, see CubeEnumerator.bindVariable()
+    private static boolean isBindingCopyable(TupleFilter filter, boolean copyable) {
+        if (filter == null)
+            return true;
+        if (filter instanceof CompareTupleFilter && ((CompareTupleFilter) filter).getVariables().isEmpty() == false)
+            return copyable;
+        boolean childCopyable = copyable && filter instanceof LogicalTupleFilter;
+        for (TupleFilter child : filter.getChildren()) {
+            if (isBindingCopyable(child, childCopyable) == false)
+                return false;
+        }
+        return true;
+    }
+
+    private static TupleFilter copyForBinding(TupleFilter filter) {
+        if (filter instanceof CompareTupleFilter && ((CompareTupleFilter) filter).getVariables().isEmpty() == false)
+            return filter.copy();
+        if (filter instanceof LogicalTupleFilter) {
+            LogicalTupleFilter copy = new LogicalTupleFilter(filter.getOperator());
+            for (TupleFilter child : filter.getChildren())
+                copy.addChild(copyForBinding(child));
+            return copy;
         }
+        return filter;
     }
 
     public final int id;
@@ -58,6 +58,7 @@ import com.kylinolap.storage.filter.CompareTupleFilter;
 import com.kylinolap.storage.filter.ConstantTupleFilter;
 import com.kylinolap.storage.filter.DynamicTupleFilter;
 import com.kylinolap.storage.filter.ExtractTupleFilter;
+import com.kylinolap.storage.filter.FunctionTupleFilter;
 import com.kylinolap.storage.filter.LogicalTupleFilter;
 import com.kylinolap.storage.filter.TupleFilter;
 import com.kylinolap.storage.filter.TupleFilter.FilterOperatorEnum;
@@ -126,12 +127,19 @@ public class OLAPFilterRel extends FilterRelBase implements OLAPRel, EnumerableR
             case OTHER:
                 if (op.getName().equalsIgnoreCase("extract_date")) {
                     filter = new ExtractTupleFilter(FilterOperatorEnum.EXTRACT);
+                } else if (FunctionTupleFilter.isSupported(op.getName())) {
+                    filter = new FunctionTupleFilter(op.getName());
                 } else {
                     throw new UnsupportedOperationException(op.getName());
                 }
                 break;
             default:
-                throw new UnsupportedOperationException(op.getName());
+                // LIKE, UPPER, SUBSTRING etc.
+                if (FunctionTupleFilter.isSupported(op.getName())) {
+                    filter = new FunctionTupleFilter(op.getName());
+                } else {
+                    throw new UnsupportedOperationException(op.getName());
+                }
             }
 
             for (RexNode operand : call.operands) {
@@ -260,6 +268,8 @@ public class OLAPFilterRel extends FilterRelBase implements OLAPRel, EnumerableR
         // only translate where clause and don't translate having clause
         if (!context.afterAggregate) {
             translateFilter(context);
+        } else {
+            context.storageContext.markPostAggregationFilter();
         }
     }
 
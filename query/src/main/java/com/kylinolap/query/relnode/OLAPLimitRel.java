@@ -77,8 +77,17 @@ public class OLAPLimitRel extends SingleRel implements OLAPRel, EnumerableRel {
         this.columnRowType = buildColumnRowType();
 
         this.context = implementor.getContext();
+        // a dynamic fetch or offset is unknown at planning, leave the limit unset
+        if (localFetch instanceof RexLiteral == false || (localOffset != null && localOffset instanceof RexLiteral == false))
+            return;
+
         Number limitValue = (Number) (((RexLiteral) localFetch).getValue());
         int limit = limitValue.intValue();
+        // rows skipped by offset must be fetched as well
+        if (localOffset != null) {
+            Number offsetValue = (Number) (((RexLiteral) localOffset).getValue());
+            limit += offsetValue.intValue();
+        }
         this.context.storageContext.setLimit(limit);
     }
 
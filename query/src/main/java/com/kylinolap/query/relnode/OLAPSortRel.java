@@ -86,9 +86,7 @@ public class OLAPSortRel extends SortRel implements EnumerableRel, OLAPRel {
             OLAPRel olapChild = (OLAPRel) this.getChild();
             TblColRef orderCol = olapChild.getColumnRowType().getAllColumns().get(index);
             MeasureDesc measure = findMeasure(orderCol);
-            if (measure != null) {
-                this.context.storageContext.addSort(measure, order);
-            }
+            this.context.storageContext.addSort(orderCol, measure, order);
             this.context.storageContext.markSort();
         }
 
@@ -41,6 +41,7 @@ import com.kylinolap.query.relnode.OLAPRel.RewriteImplementor;
 import com.kylinolap.query.routing.CubeNotFoundException;
 import com.kylinolap.query.routing.QueryRouter;
 import com.kylinolap.query.schema.OLAPTable;
+import com.kylinolap.storage.QueryTrace;
 
 /**
  * @author xjiang
@@ -63,6 +64,10 @@ public class OLAPToEnumerableConverter extends ConverterRelImpl implements Enume
 
     @Override
     public Result implement(EnumerableRelImplementor enumImplementor, Prefer pref) {
+        QueryTrace trace = OLAPContext.getQueryTrace();
+        if (trace != null)
+            trace.phase(QueryTrace.PHASE_ROUTE);
+
         // post-order travel children
         OLAPImplementor olapImplementor = new OLAPRel.OLAPImplementor();
         olapImplementor.visitChild(getChild(), this);
@@ -70,9 +75,12 @@ public class OLAPToEnumerableConverter extends ConverterRelImpl implements Enume
         // find cube from olap context
         try {
             for (OLAPContext context : OLAPContext.getThreadLocalContexts()) {
+                QueryTrace.Span span = trace == null ? null : trace.startSpan("route").put("context", context.id);
                 CubeInstance cube = QueryRouter.findCube(context);
                 context.cubeInstance = cube;
                 context.cubeDesc = cube.getDescriptor();
+                if (span != null)
+                    span.put("cube", cube.getName()).end();
             }
         } catch (CubeNotFoundException e) {
             OLAPContext ctx0 = (OLAPContext) OLAPContext.getThreadLocalContexts().toArray()[0];
@@ -84,6 +92,9 @@ public class OLAPToEnumerableConverter extends ConverterRelImpl implements Enume
             }
         }
 
+        if (trace != null)
+            trace.phase(QueryTrace.PHASE_CODEGEN);
+
         // rewrite query if necessary
         RewriteImplementor rewriteImplementor = new RewriteImplementor();
         rewriteImplementor.visitChild(this, getChild());
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.query.routing;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.kylinolap.cube.CubeInstance;
+import com.kylinolap.cube.project.ProjectInstance;
+import com.kylinolap.cube.project.ProjectManager;
+import com.kylinolap.metadata.model.cube.CubeDesc;
+import com.kylinolap.metadata.model.cube.DimensionDesc;
+import com.kylinolap.metadata.model.cube.FunctionDesc;
+import com.kylinolap.metadata.model.cube.ParameterDesc;
+import com.kylinolap.metadata.model.cube.TblColRef;
+
+/**
+ * Cubes of a project indexed for routing. Dimension columns (including
+ * derived) and measure functions of each cube are bitsets over the columns
+ * and functions of the whole project, so matching a query is bitset
+ * containment instead of list scans.
+ *
+ * An index is rebuilt once the project is reloaded, which happens on cube
+ * and project changes. A cube whose descriptor changed in between is marked
+ * by the router via markStale() and triggers a rebuild as well.
+ *
+ * @author yangli9
+ */
+public class CubeRoutingIndex {
+
+    private static final ConcurrentHashMap<String, CubeRoutingIndex> INDEXES = new ConcurrentHashMap<String, CubeRoutingIndex>();
+
+    public static CubeRoutingIndex getIndex(ProjectManager projectManager, String project) {
+        project = ProjectInstance.getNormalizedProjectName(project);
+        ProjectInstance projectInstance = projectManager.getProject(project);
+
+        CubeRoutingIndex index = INDEXES.get(project);
+        if (index == null || index.isFor(projectManager, projectInstance) == false) {
+            index = new CubeRoutingIndex(projectManager, projectInstance);
+            for (CubeInstance cube : projectManager.listAllCubes(project)) {
+                index.add(cube);
+            }
+            INDEXES.put(project, index);
+        }
+        return index;
+    }
+
+    public static void clearCache() {
+        INDEXES.clear();
+    }
+
+    // ============================================================================
+
+    private final ProjectManager projectManager;
+    private final ProjectInstance projectInstance;
+    private final Map<TblColRef, Integer> columnBits = new HashMap<TblColRef, Integer>();
+    private final Map<String, Integer> functionBits = new HashMap<String, Integer>();
+    private final Map<String, List<CubeEntry>> entriesByTable = new HashMap<String, List<CubeEntry>>();
+    private volatile boolean stale = false;
+
+    CubeRoutingIndex(ProjectManager projectManager, ProjectInstance projectInstance) {
+        this.projectManager = projectManager;
+        this.projectInstance = projectInstance;
+    }
+
+    private boolean isFor(ProjectManager projectManager, ProjectInstance projectInstance) {
+        return stale == false && this.projectManager == projectManager && this.projectInstance == projectInstance;
+    }
+
+    public void markStale() {
+        stale = true;
+    }
+
+    private void add(CubeInstance cube) {
+        CubeDesc cubeDesc = cube.getDescriptor();
+        if (cubeDesc == null)
+            return;
+
+        // same tables as ProjectManager.getCubesByTable(), the fact table and lookup tables
+        List<String> tables = new ArrayList<String>();
+        tables.add(cubeDesc.getFactTable());
+        for (DimensionDesc dim : cubeDesc.getDimensions()) {
+            tables.add(dim.getTable());
+        }
+        // columns of the lookup tables not on the cube are answered by hash join on FK
+        List<TblColRef> dimensions = new ArrayList<TblColRef>(cubeDesc.listDimensionColumnsIncludingDerived());
+        dimensions.addAll(cubeDesc.listLookupJoinedColumns());
+        add(cube.getName(), cubeDesc, tables, dimensions, cubeDesc.listAllFunctions());
+    }
+
+    void add(String cubeName, CubeDesc cubeDesc, Collection<String> tables, Collection<TblColRef> dimensions, Collection<FunctionDesc> functions) {
+        BitSet dimBits = new BitSet();
+        for (TblColRef col : dimensions) {
+            dimBits.set(bitOf(columnBits, col));
+        }
+        BitSet funcBits = new BitSet();
+        for (FunctionDesc func : functions) {
+            funcBits.set(bitOf(functionBits, functionKey(func)));
+        }
+
+        CubeEntry entry = new CubeEntry(cubeName, cubeDesc, dimBits, funcBits, dimensions.size());
+        for (String table : tables) {
+            table = table.toUpperCase();
+            List<CubeEntry> entries = entriesByTable.get(table);
+            if (entries == null) {
+                entries = new ArrayList<CubeEntry>();
+                entriesByTable.put(table, entries);
+            }
+            if (entries.isEmpty() || entries.get(entries.size() - 1) != entry) {
+                entries.add(entry);
+            }
+        }
+    }
+
+    private static <T> int bitOf(Map<T, Integer> bits, T key) {
+        Integer bit = bits.get(key);
+        if (bit == null) {
+            bit = bits.size();
+            bits.put(key, bit);
+        }
+        return bit;
+    }
+
+    // equal as FunctionDesc.equals(), which ignores parameter of count
+    private static String functionKey(FunctionDesc func) {
+        if (func.isCount())
+            return FunctionDesc.FUNC_COUNT;
+
+        ParameterDesc param = func.getParameter();
+        return func.getExpression() + "(" + (param == null ? "" : param.getType() + ":" + param.getValue()) + ")";
+    }
+
+    /**
+     * @return cubes on the table, as fact table or lookup table
+     */
+    public List<CubeEntry> getEntriesByTable(String table) {
+        List<CubeEntry> entries = entriesByTable.get(table.toUpperCase());
+        return entries == null ? Collections.<CubeEntry> emptyList() : entries;
+    }
+
+    /**
+     * @return null if some column is on no cube of the project
+     */
+    public BitSet toColumnBits(Collection<TblColRef> columns) {
+        BitSet result = new BitSet();
+        for (TblColRef col : columns) {
+            Integer bit = columnBits.get(col);
+            if (bit == null)
+                return null;
+            result.set(bit);
+        }
+        return result;
+    }
+
+    /**
+     * @return null if some function is on no cube of the project
+     */
+    public BitSet toFunctionBits(Collection<FunctionDesc> functions) {
+        BitSet result = new BitSet();
+        for (FunctionDesc func : functions) {
+            Integer bit = functionBits.get(functionKey(func));
+            if (bit == null)
+                return null;
+            result.set(bit);
+        }
+        return result;
+    }
+
+    public static class CubeEntry {
+        private final String cubeName;
+        private final CubeDesc cubeDesc;
+        private final BitSet dimensions;
+        private final BitSet functions;
+        private final int dimensionCount;
+
+        CubeEntry(String cubeName, CubeDesc cubeDesc, BitSet dimensions, BitSet functions, int dimensionCount) {
+            this.cubeName = cubeName;
+            this.cubeDesc = cubeDesc;
+            this.dimensions = dimensions;
+            this.functions = functions;
+            this.dimensionCount = dimensionCount;
+        }
+
+        public String getCubeName() {
+            return cubeName;
+        }
+
+        /**
+         * @return the descriptor indexed, the entry is out of date if the
+         *         cube has another now
+         */
+        public CubeDesc getCubeDesc() {
+            return cubeDesc;
+        }
+
+        public int getDimensionCount() {
+            return dimensionCount;
+        }
+
+        public boolean containsDimensions(BitSet columnBits) {
+            return columnBits != null && containsAll(dimensions, columnBits);
+        }
+
+        public boolean containsFunctions(BitSet functionBits) {
+            return functionBits != null && containsAll(functions, functionBits);
+        }
+
+        private static boolean containsAll(BitSet set, BitSet subset) {
+            for (int i = subset.nextSetBit(0); i >= 0; i = subset.nextSetBit(i + 1)) {
+                if (set.get(i) == false)
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return cubeName;
+        }
+    }
+}
@@ -16,29 +16,40 @@
 package com.kylinolap.query.routing;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import org.apache.commons.lang3.StringUtils;
 import org.eigenbase.reltype.RelDataType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.kylinolap.cube.CubeInstance;
 import com.kylinolap.cube.CubeManager;
+import com.kylinolap.cube.CubeSegment;
+import com.kylinolap.cube.CubeSegmentStatusEnum;
+import com.kylinolap.cube.cuboid.Cuboid;
 import com.kylinolap.cube.project.ProjectManager;
+import com.kylinolap.dict.DateStrDictionary;
 import com.kylinolap.metadata.model.cube.CubeDesc;
+import com.kylinolap.metadata.model.cube.CubeDesc.DeriveInfo;
 import com.kylinolap.metadata.model.cube.DimensionDesc;
 import com.kylinolap.metadata.model.cube.FunctionDesc;
 import com.kylinolap.metadata.model.cube.JoinDesc;
 import com.kylinolap.metadata.model.cube.ParameterDesc;
+import com.kylinolap.metadata.model.cube.RowKeyDesc;
 import com.kylinolap.metadata.model.cube.TblColRef;
 import com.kylinolap.query.relnode.OLAPContext;
+import com.kylinolap.storage.filter.CompareTupleFilter;
+import com.kylinolap.storage.filter.TupleFilter;
+import com.kylinolap.storage.filter.TupleFilter.FilterOperatorEnum;
 
 /**
  * @author xjiang
@@ -47,6 +58,11 @@ public class QueryRouter {
 
     private static final Logger logger = LoggerFactory.getLogger(QueryRouter.class);
 
+    // without cardinality, assume each column of a cuboid multiplies its rows by this
+    private static final double ROWS_PER_CUBOID_COLUMN = 10;
+    // each segment is a separate HTable to scan
+    private static final double ROWS_PER_SEGMENT_OVERHEAD = 1000;
+
     public static CubeInstance findCube(OLAPContext olapContext) throws CubeNotFoundException {
 
         CubeInstance bestCube = null;
@@ -76,30 +92,57 @@ public class QueryRouter {
     }
 
     private static CubeInstance findCubeWithMostDimensions(ProjectManager projectManager, OLAPContext olapContext) {
-        List<CubeInstance> candidates = projectManager.getOnlineCubesByFactTable(olapContext.olapSchema.getProjectName(), olapContext.firstTableScan.getCubeTable());
-        if (candidates.isEmpty()) {
-            return null;
-        }
+        String factTableName = olapContext.firstTableScan.getCubeTable();
+        CubeRoutingIndex index = CubeRoutingIndex.getIndex(projectManager, olapContext.olapSchema.getProjectName());
+        CubeManager cubeMgr = olapContext.olapSchema.getCubeManager();
+
+        CubeInstance cubeWithMostColumns = null;
+        int maxDimCount = -1;
+        for (CubeRoutingIndex.CubeEntry entry : index.getEntriesByTable(factTableName)) {
+            CubeInstance instance = resolve(cubeMgr, index, entry);
+            if (instance == null || instance.isReady() == false || instance.getDescriptor().isFactTable(factTableName) == false)
+                continue;
 
-        CubeInstance cubeWithMostColumns = candidates.get(0);
-        for (CubeInstance instance : candidates) {
             int currentDimCount = instance.getDescriptor().listDimensionColumnsIncludingDerived().size();
-            int maxDimCount = cubeWithMostColumns.getDescriptor().listDimensionColumnsIncludingDerived().size();
-
-            if ((currentDimCount > maxDimCount) || ((currentDimCount == maxDimCount) && (instance.getCost() < cubeWithMostColumns.getCost())))
+            if ((currentDimCount > maxDimCount) || ((currentDimCount == maxDimCount) && (instance.getCost() < cubeWithMostColumns.getCost()))) {
                 cubeWithMostColumns = instance;
+                maxDimCount = currentDimCount;
+            }
         }
         return cubeWithMostColumns;
     }
 
-    private static void sortByCost(List<CubeInstance> matchCubes) {
-        // sort cube candidates, 0) the cost indicator, 1) the lesser header
-        // columns the better, 2) the lesser body columns the better
+    // the cube of the entry as of now, or null if gone
+    private static CubeInstance resolve(CubeManager cubeMgr, CubeRoutingIndex index, CubeRoutingIndex.CubeEntry entry) {
+        CubeInstance cube = cubeMgr.getCube(entry.getCubeName());
+        if (cube == null || cube.getDescriptor() != entry.getCubeDesc()) {
+            index.markStale();
+        }
+        return cube == null || cube.getDescriptor() == null ? null : cube;
+    }
+
+    /**
+     * Ranks cubes by estimated rows to scan: rows of the cuboid answering the
+     * query dimensions in each segment hit by the date range, plus an overhead
+     * per segment (a separate HTable scan). The cube cost set by admin scales
+     * the estimate. Ties go to 1) the lesser header columns, 2) the lesser
+     * body columns.
+     */
+    private static void sortByCost(List<CubeInstance> matchCubes, Collection<TblColRef> dimensionColumns, TupleFilter filter) {
+        final Map<CubeInstance, Double> costs = new HashMap<CubeInstance, Double>();
+        for (CubeInstance cube : matchCubes) {
+            // matched cubes share the fact table, but may partition differently
+            long[] dateRange = findDateRange(filter, cube.getDescriptor().getCubePartitionDesc().getPartitionDateColumnRef());
+            costs.put(cube, estimateScanRows(cube, dimensionColumns, dateRange) * cube.getCost());
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Estimated cost of matched cubes " + costs);
+        }
+
         Collections.sort(matchCubes, new Comparator<CubeInstance>() {
             @Override
             public int compare(CubeInstance c1, CubeInstance c2) {
-                int comp = 0;
-                comp = c1.getCost() - c2.getCost();
+                int comp = Double.compare(costs.get(c1), costs.get(c2));
                 if (comp != 0) {
                     return comp;
                 }
@@ -112,11 +155,101 @@ public class QueryRouter {
                     return comp;
 
                 comp = schema1.getMeasures().size() - schema2.getMeasures().size();
-                return comp;
+                if (comp != 0)
+                    return comp;
+
+                return c1.getName().compareTo(c2.getName());
             }
         });
     }
 
+    static double estimateScanRows(CubeInstance cube, Collection<TblColRef> dimensionColumns, long[] dateRange) {
+        CubeDesc cubeDesc = cube.getDescriptor();
+        int cuboidWidth = Long.bitCount(findCuboidId(cubeDesc, dimensionColumns));
+        double cuboidRowsBound = Math.pow(ROWS_PER_CUBOID_COLUMN, cuboidWidth);
+
+        double rows = 0;
+        for (CubeSegment seg : cube.getSegments(CubeSegmentStatusEnum.READY)) {
+            if (seg.getDateRangeEnd() > 0 && (seg.getDateRangeStart() > dateRange[1] || seg.getDateRangeEnd() < dateRange[0]))
+                continue; // out of the date range
+            long sourceRows = seg.getSourceRecords();
+            rows += (sourceRows > 0 ? Math.min(sourceRows, cuboidRowsBound) : cuboidRowsBound) + ROWS_PER_SEGMENT_OVERHEAD;
+        }
+        return rows;
+    }
+
+    // the cuboid storage would scan for the dimensions, derived and lookup joined ones go by their host columns
+    private static long findCuboidId(CubeDesc cubeDesc, Collection<TblColRef> dimensionColumns) {
+        RowKeyDesc rowkey = cubeDesc.getRowkey();
+        Set<TblColRef> rowkeyColumns = new HashSet<TblColRef>(cubeDesc.listDimensionColumnsExcludingDerived());
+        long cuboidId = 0;
+        for (TblColRef col : dimensionColumns) {
+            DeriveInfo hostInfo = cubeDesc.isDerived(col) ? cubeDesc.getHostInfo(col) : cubeDesc.getLookupJoinInfo(col);
+            if (hostInfo != null) {
+                for (TblColRef host : hostInfo.columns) {
+                    if (rowkeyColumns.contains(host))
+                        cuboidId |= 1L << rowkey.getColumnBitIndex(host);
+                }
+            } else if (rowkeyColumns.contains(col)) {
+                cuboidId |= 1L << rowkey.getColumnBitIndex(col);
+            }
+        }
+        try {
+            return Cuboid.findById(cubeDesc, cuboidId).getId();
+        } catch (RuntimeException e) {
+            return Cuboid.getBaseCuboidId(cubeDesc);
+        }
+    }
+
+    /**
+     * @return [start, end] millis of the partition date column by filters
+     *         ANDed at top, or unbounded
+     */
+    static long[] findDateRange(TupleFilter filter, TblColRef partitionColumn) {
+        long[] range = new long[] { Long.MIN_VALUE, Long.MAX_VALUE };
+        if (filter != null && partitionColumn != null) {
+            narrowDateRange(filter, partitionColumn, range);
+        }
+        return range;
+    }
+
+    private static void narrowDateRange(TupleFilter filter, TblColRef partitionColumn, long[] range) {
+        if (filter.getOperator() == FilterOperatorEnum.AND) {
+            for (TupleFilter child : filter.getChildren()) {
+                narrowDateRange(child, partitionColumn, range);
+            }
+            return;
+        }
+        if (filter instanceof CompareTupleFilter == false)
+            return;
+
+        CompareTupleFilter comp = (CompareTupleFilter) filter;
+        if (partitionColumn.equals(comp.getColumn()) == false || comp.getValues().size() != 1 || comp.getVariables().isEmpty() == false)
+            return;
+
+        long value;
+        try {
+            value = DateStrDictionary.stringToMillis(comp.getValues().iterator().next());
+        } catch (RuntimeException e) {
+            return; // not a date string
+        }
+        switch (comp.getOperator()) {
+        case EQ:
+            range[0] = Math.max(range[0], value);
+            range[1] = Math.min(range[1], value);
+            break;
+        case GT:
+        case GTE:
+            range[0] = Math.max(range[0], value);
+            break;
+        case LT:
+        case LTE:
+            range[1] = Math.min(range[1], value);
+            break;
+        default:
+        }
+    }
+
     private static Collection<TblColRef> getDimensionColumns(OLAPContext olapContext) {
         Collection<TblColRef> dimensionColumns = new HashSet<TblColRef>();
         dimensionColumns.addAll(olapContext.allColumns);
@@ -141,45 +274,52 @@ public class QueryRouter {
         Collection<JoinDesc> joins = olapContext.joins;
         Map<String, RelDataType> rewriteFields = olapContext.rewriteFields;
 
-        // find cubes by table
-        List<CubeInstance> candidates = projectManager.getCubesByTable(projectName, factTableName);
-        logger.info("Find candidates by table " + factTableName + " and project=" + projectName + " : " + StringUtils.join(candidates, ","));
+        // find cubes by table, and match dimensions & aggregations & joins
+        CubeRoutingIndex index = CubeRoutingIndex.getIndex(projectManager, projectName);
+        CubeManager cubeMgr = olapContext.olapSchema.getCubeManager();
+        BitSet dimensionBits = index.toColumnBits(dimensionColumns);
+        BitSet functionBits = index.toFunctionBits(functions);
 
-        // match dimensions & aggregations & joins
-        Iterator<CubeInstance> it = candidates.iterator();
+        List<CubeInstance> candidates = new ArrayList<CubeInstance>();
         List<CubeInstance> backups = new ArrayList<CubeInstance>();
+        int tableCubeCount = 0;
 
-        while (it.hasNext()) {
-            CubeInstance cube = it.next();
-            boolean isOnline = cube.isReady();
+        for (CubeRoutingIndex.CubeEntry entry : index.getEntriesByTable(factTableName)) {
+            CubeInstance cube = resolve(cubeMgr, index, entry);
+            if (cube == null)
+                continue;
+            tableCubeCount++;
+            if (cube.isReady() == false)
+                continue;
 
-            boolean matchDimensions = isMatchedWithDimensions(dimensionColumns, cube);
-            boolean matchAggregation = isMatchedWithAggregations(functions, cube);
+            boolean upToDate = cube.getDescriptor() == entry.getCubeDesc();
+            boolean matchDimensions = upToDate ? entry.containsDimensions(dimensionBits) : isMatchedWithDimensions(dimensionColumns, cube);
+            if (matchDimensions == false)
+                continue;
+            boolean matchAggregation = upToDate ? entry.containsFunctions(functionBits) : isMatchedWithAggregations(functions, cube);
             boolean matchJoin = isMatchedWithJoins(joins, cube);
+            if (matchJoin == false)
+                continue;
 
-            // Some cubes are not "perfectly" match, but still save them in case of usage
-            if (isOnline && matchDimensions && !matchAggregation && matchJoin) {
-                // sometimes metrics are indeed dimensions
-                // e.g. select min(cal_dt) from ..., where cal_dt is actually a dimension
-                if (isWeaklyMatchedWithAggregations(functions, metricsColumns, cube)) {
-                    logger.info("Weak matched cube " + cube);
-                    backups.add(cube);
-                }
+            if (matchAggregation) {
+                candidates.add(cube);
             }
-
-            if (!isOnline || !matchDimensions || !matchAggregation || !matchJoin) {
-                logger.info("Remove cube " + cube.getName() + " because " + " isOnlne=" + isOnline + ",matchDimensions=" + matchDimensions + ",matchAggregation=" + matchAggregation + ",matchJoin=" + matchJoin);
-                it.remove();
+            // Some cubes are not "perfectly" match, but still save them in case of usage
+            // sometimes metrics are indeed dimensions
+            // e.g. select min(cal_dt) from ..., where cal_dt is actually a dimension
+            else if (isWeaklyMatchedWithAggregations(functions, metricsColumns, cube)) {
+                backups.add(cube);
             }
         }
+        logger.info("Find cubes by table " + factTableName + " and project=" + projectName + " : " + tableCubeCount + " on table, matched " + candidates + ", weak matched " + backups);
 
         // normal case:
         if (!candidates.isEmpty()) {
-            return getCheapestCube(candidates);
+            return getCheapestCube(candidates, dimensionColumns, olapContext.filter);
         }
         // consider backup
         else if (!backups.isEmpty()) {
-            CubeInstance cube = getCheapestCube(backups);
+            CubeInstance cube = getCheapestCube(backups, dimensionColumns, olapContext.filter);
             // Using backup cubes indicates that previous judgment on dimensions/metrics is incorrect
             adjustOLAPContext(dimensionColumns, functions, metricsColumns, cube, rewriteFields, olapContext);
             logger.info("Use weak matched cube " + cube.getName());
@@ -188,8 +328,8 @@ public class QueryRouter {
         return null;
     }
 
-    private static CubeInstance getCheapestCube(List<CubeInstance> candidates) {
-        sortByCost(candidates);
+    private static CubeInstance getCheapestCube(List<CubeInstance> candidates, Collection<TblColRef> dimensionColumns, TupleFilter filter) {
+        sortByCost(candidates, dimensionColumns, filter);
         CubeInstance bestCube = null;
         if (!candidates.isEmpty()) {
             bestCube = candidates.iterator().next();
@@ -230,14 +370,14 @@ public class QueryRouter {
             // Using first column's table name to check.
             String fTable = j.getForeignKeyColumns()[0].getTable();
             if (!factTable.equals(fTable)) {
-                logger.info("Fact Table" + factTable + " not matched in join: " + j + " on cube " + cube.getName());
+                logger.debug("Fact Table" + factTable + " not matched in join: " + j + " on cube " + cube.getName());
                 return false;
             }
 
             // The hashcode() function of JoinDesc has been overwritten,
             // which takes into consideration: pk,fk,jointype
             if (!cubeJoins.contains(j)) {
-                logger.info("Query joins don't macth on cube " + cube.getName());
+                logger.debug("Query joins don't macth on cube " + cube.getName());
                 return false;
             }
         }
@@ -44,6 +44,9 @@ public class OLAPSchema extends AbstractSchema {
     private String starSchemaUser;
     private String starSchemaPassword;
 
+    private List<TableDesc> tableMapSource;
+    private Map<String, Table> tableMap;
+
     private void init() {
         this.config = KylinConfig.getInstanceFromEnv();
         this.storageUrl = config.getStorageUrl();
@@ -59,13 +62,29 @@ public class OLAPSchema extends AbstractSchema {
     }
 
     @Override
-    protected Map<String, Table> getTableMap() {
-        return buildTableMap();
+    protected synchronized Map<String, Table> getTableMap() {
+        // schema lives as long as its connection, tables (and their row types)
+        // are rebuilt only when the project exposes different tables
+        List<TableDesc> projectTables = getProjectManager().listExposedTables(projectName);
+        if (tableMap == null || isSameTables(projectTables, tableMapSource) == false) {
+            tableMap = buildTableMap(projectTables);
+            tableMapSource = projectTables;
+        }
+        return tableMap;
     }
 
-    private Map<String, Table> buildTableMap() {
+    private static boolean isSameTables(List<TableDesc> a, List<TableDesc> b) {
+        if (a.size() != b.size())
+            return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i) != b.get(i))
+                return false;
+        }
+        return true;
+    }
+
+    private Map<String, Table> buildTableMap(List<TableDesc> projectTables) {
         Map<String, Table> olapTables = new HashMap<String, Table>();
-        List<TableDesc> projectTables = getProjectManager().listExposedTables(projectName);
 
         for (TableDesc tableDesc : projectTables) {
             final String tableName = tableDesc.getName();
@@ -15,16 +15,18 @@
  */
 package com.kylinolap.query.schema;
 
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 
 import net.hydromatic.optiq.Schema;
 import net.hydromatic.optiq.SchemaFactory;
 import net.hydromatic.optiq.SchemaPlus;
+import net.hydromatic.optiq.impl.ScalarFunctionImpl;
+import net.hydromatic.optiq.jdbc.Driver;
+import net.hydromatic.optiq.jdbc.OptiqConnection;
 
 import org.eigenbase.util14.ConversionUtil;
 
@@ -33,6 +35,7 @@ import com.kylinolap.cube.project.ProjectInstance;
 import com.kylinolap.cube.project.ProjectManager;
 import com.kylinolap.metadata.model.schema.DatabaseDesc;
 import com.kylinolap.metadata.model.schema.TableDesc;
+import com.kylinolap.query.sqlfunc.QuarterFunc;
 
 /**
  * @author xjiang
@@ -58,6 +61,9 @@ public class OLAPSchemaFactory implements SchemaFactory {
 
     private final static String SCHEMA_PROJECT = "project";
 
+    private final static String CONNECT_URL = "jdbc:calcite:";
+    private final static Driver DRIVER = new Driver();
+
     @Override
     public Schema create(SchemaPlus parentSchema, String schemaName, Map<String, Object> operand) {
         String project = (String) operand.get(SCHEMA_PROJECT);
@@ -65,7 +71,12 @@ public class OLAPSchemaFactory implements SchemaFactory {
         return newSchema;
     }
 
-    public static File createTempOLAPJson(String project, KylinConfig config) {
+    /**
+     * Connects to cubes of the project with the model built in memory, one
+     * OLAPSchema per database of the exposed tables and the majority database
+     * being the default schema.
+     */
+    public static OptiqConnection createConnection(String project, KylinConfig config, Properties props) throws SQLException {
         project = ProjectInstance.getNormalizedProjectName(project);
 
         List<TableDesc> tables = ProjectManager.getInstance(config).listExposedTables(project);
@@ -81,47 +92,16 @@ public class OLAPSchemaFactory implements SchemaFactory {
             }
         }
 
-        try {
-            File tmp = File.createTempFile("olap_model_", ".json");
-
-            FileWriter out = new FileWriter(tmp);
-            out.write("{\n");
-            out.write("    \"version\": \"1.0\",\n");
-            out.write("    \"defaultSchema\": \"" + majoritySchemaName + "\",\n");
-            out.write("    \"schemas\": [\n");
-
-            int counter = 0;
-            for (String schemaName : schemaCounts.keySet()) {
-                out.write("        {\n");
-                out.write("            \"type\": \"custom\",\n");
-                out.write("            \"name\": \"" + schemaName + "\",\n");
-                out.write("            \"factory\": \"com.kylinolap.query.schema.OLAPSchemaFactory\",\n");
-                out.write("            \"operand\": {\n");
-                out.write("                \"" + SCHEMA_PROJECT + "\": \"" + project + "\"\n");
-                out.write("            },\n");
-                out.write("           \"functions\": [\n");
-                out.write("                 {\n");
-                out.write("                     \"name\": \"QUARTER\",\n");
-                out.write("                     \"className\": \"com.kylinolap.query.sqlfunc.QuarterFunc\"\n");
-                out.write("                 }\n");
-                out.write("            ]\n");
-                out.write("        }\n");
-
-                if (++counter != schemaCounts.size()) {
-                    out.write(",\n");
-                }
-            }
-
-            out.write("    ]\n");
-            out.write("}\n");
-            out.close();
-
-            tmp.deleteOnExit();
-            return tmp;
-
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        OptiqConnection conn = DRIVER.connect(CONNECT_URL, props).unwrap(OptiqConnection.class);
+        SchemaPlus rootSchema = conn.getRootSchema();
+        for (String schemaName : schemaCounts.keySet()) {
+            SchemaPlus schema = rootSchema.add(schemaName, new OLAPSchema(project, schemaName));
+            schema.add("QUARTER", ScalarFunctionImpl.create(QuarterFunc.class, "eval"));
+        }
+        if (majoritySchemaName.isEmpty() == false) {
+            conn.setSchema(majoritySchemaName);
         }
+        return conn;
     }
 
 }
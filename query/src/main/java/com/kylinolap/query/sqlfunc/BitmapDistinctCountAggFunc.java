@@ -0,0 +1,55 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.query.sqlfunc;
+
+import com.kylinolap.cube.measure.BitmapCounter;
+
+/**
+ * Precise count distinct by OR-ing bitmaps of global dictionary IDs.
+ * 
+ * @author yangli9
+ */
+public class BitmapDistinctCountAggFunc {
+
+    public static BitmapCounter init() {
+        return null;
+    }
+
+    public static BitmapCounter initAdd(Object v) {
+        BitmapCounter c = (BitmapCounter) v;
+        return new BitmapCounter(c);
+    }
+
+    public static BitmapCounter add(BitmapCounter counter, Object v) {
+        BitmapCounter c = (BitmapCounter) v;
+        if (counter == null) {
+            return new BitmapCounter(c);
+        } else {
+            counter.merge(c);
+            return counter;
+        }
+    }
+
+    public static BitmapCounter merge(BitmapCounter counter0, Object counter1) {
+        return add(counter0, counter1);
+    }
+
+    public static long result(BitmapCounter counter) {
+        return counter == null ? 0L : counter.getCount();
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.query.enumerator;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.metadata.model.schema.ColumnDesc;
+import com.kylinolap.metadata.model.schema.TableDesc;
+import com.kylinolap.storage.filter.ColumnTupleFilter;
+import com.kylinolap.storage.filter.CompareTupleFilter;
+import com.kylinolap.storage.filter.ConstantTupleFilter;
+import com.kylinolap.storage.filter.LogicalTupleFilter;
+import com.kylinolap.storage.filter.TupleFilter;
+import com.kylinolap.storage.filter.TupleFilter.FilterOperatorEnum;
+
+/**
+ * @author yangli9
+ *
+ */
+public class LookupTableFilterTest {
+
+    static final String LOOKUP = "LOOKUP";
+
+    // columns: NAME varchar, PRICE decimal, DT date
+    static final String[][] ROWS = { //
+    { "a", "9", "2014-01-01" }, //
+            { "b", "10", "2014-02-01" }, //
+            { "c", "100", "\\N" }, //
+            { "b", "", "2014-03-01" }, //
+            { "d", "2.5", "2013-12-31" } };
+
+    TblColRef name = newCol(1, "NAME", "varchar(256)");
+    TblColRef price = newCol(2, "PRICE", "decimal(19,4)");
+    TblColRef dt = newCol(3, "DT", "date");
+
+    @Test
+    public void testTypedCompare() {
+        // numeric, "10" > "9" as numbers but not as strings
+        LookupTableFilter filter = new LookupTableFilter(compare(price, FilterOperatorEnum.GT, "9"), LOOKUP);
+        assertTrue(filter.isComplete());
+        assertResults(filter, LookupTableFilter.FAIL, LookupTableFilter.PASS, LookupTableFilter.PASS, LookupTableFilter.UNKNOWN, LookupTableFilter.FAIL);
+
+        filter = new LookupTableFilter(compare(dt, FilterOperatorEnum.LT, "2014-02-01"), LOOKUP);
+        assertResults(filter, LookupTableFilter.PASS, LookupTableFilter.FAIL, LookupTableFilter.UNKNOWN, LookupTableFilter.FAIL, LookupTableFilter.PASS);
+
+        filter = new LookupTableFilter(compare(name, FilterOperatorEnum.IN, "b", "d"), LOOKUP);
+        assertResults(filter, LookupTableFilter.FAIL, LookupTableFilter.PASS, LookupTableFilter.FAIL, LookupTableFilter.PASS, LookupTableFilter.PASS);
+    }
+
+    @Test
+    public void testPartialAndCandidates() {
+        TupleFilter or = new LogicalTupleFilter(FilterOperatorEnum.OR);
+        or.addChild(compare(price, FilterOperatorEnum.EQ, "9"));
+        or.addChild(compare(price, FilterOperatorEnum.EQ, "10"));
+        TupleFilter and = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        and.addChild(compare(name, FilterOperatorEnum.EQ, "b"));
+        and.addChild(compare(dt, FilterOperatorEnum.GTE, "2014-01-01"));
+        and.addChild(or);
+
+        // OR is left to Optiq
+        LookupTableFilter filter = new LookupTableFilter(and, LOOKUP);
+        assertFalse(filter.isComplete());
+        assertResults(filter, LookupTableFilter.FAIL, LookupTableFilter.PASS, LookupTableFilter.FAIL, LookupTableFilter.PASS, LookupTableFilter.FAIL);
+
+        int[] candidates = filter.findCandidates(new LookupTableFilter.ValueIndexProvider() {
+            @Override
+            public Map<String, int[]> getValueIndex(int col) {
+                Map<String, int[]> index = new HashMap<String, int[]>();
+                index.put("b", new int[] { 1, 3 });
+                return index;
+            }
+        });
+        assertArrayEquals(new int[] { 1, 3 }, candidates);
+
+        // no equality on strings, scan all
+        filter = new LookupTableFilter(compare(price, FilterOperatorEnum.EQ, "9"), LOOKUP);
+        assertNull(filter.findCandidates(null));
+    }
+
+    private void assertResults(LookupTableFilter filter, int... expected) {
+        for (int row = 0; row < expected.length; row++) {
+            assertEquals("row " + row, expected[row], filter.evaluate(ROWS[row]));
+        }
+    }
+
+    private static CompareTupleFilter compare(TblColRef col, FilterOperatorEnum op, String... values) {
+        CompareTupleFilter filter = new CompareTupleFilter(op);
+        filter.addChild(new ColumnTupleFilter(col));
+        filter.addChild(new ConstantTupleFilter(Arrays.asList(values)));
+        return filter;
+    }
+
+    private static TblColRef newCol(int id, String name, String datatype) {
+        TableDesc table = new TableDesc();
+        table.setName(LOOKUP);
+        ColumnDesc col = new ColumnDesc();
+        col.setId(String.valueOf(id));
+        col.setName(name);
+        col.setDatatype(datatype);
+        col.init(table);
+        return new TblColRef(col);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.query.routing;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.kylinolap.metadata.model.cube.FunctionDesc;
+import com.kylinolap.metadata.model.cube.ParameterDesc;
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.metadata.model.schema.ColumnDesc;
+import com.kylinolap.metadata.model.schema.TableDesc;
+
+/**
+ * @author yangli9
+ *
+ */
+public class CubeRoutingIndexTest {
+
+    static final String FACT = "FACT";
+    static final int N_CUBES = 500;
+    static final int N_COLUMNS = 120;
+    static final int N_FUNCTIONS = 30;
+
+    @Test
+    public void testMatch() {
+        TblColRef a = newCol("A"), b = newCol("B"), c = newCol("C");
+        CubeRoutingIndex index = new CubeRoutingIndex(null, null);
+        index.add("cube1", null, Arrays.asList(FACT, "LOOKUP"), Arrays.asList(a, b), Arrays.asList(newFunc("COUNT", "1"), newFunc("SUM", "PRICE")));
+        index.add("cube2", null, Arrays.asList(FACT), Arrays.asList(a, b, c), Arrays.asList(newFunc("COUNT", "1")));
+
+        assertEquals(2, index.getEntriesByTable("fact").size());
+        assertEquals(1, index.getEntriesByTable("LOOKUP").size());
+        assertEquals(0, index.getEntriesByTable("OTHER").size());
+
+        BitSet dims = index.toColumnBits(Arrays.asList(a, c));
+        assertFalse(index.getEntriesByTable(FACT).get(0).containsDimensions(dims));
+        assertTrue(index.getEntriesByTable(FACT).get(1).containsDimensions(dims));
+
+        // parameter of count doesn't matter, like FunctionDesc.equals()
+        BitSet funcs = index.toFunctionBits(Arrays.asList(newFunc("COUNT", "*"), newFunc("SUM", "PRICE")));
+        assertTrue(index.getEntriesByTable(FACT).get(0).containsFunctions(funcs));
+        assertFalse(index.getEntriesByTable(FACT).get(1).containsFunctions(funcs));
+
+        // unknown to the project
+        assertNull(index.toColumnBits(Arrays.asList(a, newCol("X"))));
+        assertNull(index.toFunctionBits(Arrays.asList(newFunc("SUM", "X"))));
+        assertFalse(index.getEntriesByTable(FACT).get(1).containsDimensions(null));
+    }
+
+    @Test
+    public void testBenchmark() {
+        Random rand = new Random(1);
+        List<TblColRef> columns = new ArrayList<TblColRef>();
+        for (int i = 0; i < N_COLUMNS; i++)
+            columns.add(newCol("C" + i));
+        List<FunctionDesc> functions = new ArrayList<FunctionDesc>();
+        functions.add(newFunc("COUNT", "1"));
+        for (int i = 1; i < N_FUNCTIONS; i++)
+            functions.add(newFunc("SUM", "M" + i));
+
+        // a synthetic project of 500 cubes on the same fact table
+        CubeRoutingIndex index = new CubeRoutingIndex(null, null);
+        List<Set<TblColRef>> cubeDims = new ArrayList<Set<TblColRef>>();
+        List<List<FunctionDesc>> cubeFuncs = new ArrayList<List<FunctionDesc>>();
+        for (int i = 0; i < N_CUBES; i++) {
+            Set<TblColRef> dims = new HashSet<TblColRef>(pick(rand, columns, 20 + rand.nextInt(20)));
+            List<FunctionDesc> funcs = new ArrayList<FunctionDesc>(pick(rand, functions, 5 + rand.nextInt(10)));
+            funcs.add(functions.get(0));
+            cubeDims.add(dims);
+            cubeFuncs.add(funcs);
+            index.add("cube" + i, null, Arrays.asList(FACT), dims, funcs);
+        }
+
+        List<List<TblColRef>> queryDims = new ArrayList<List<TblColRef>>();
+        List<List<FunctionDesc>> queryFuncs = new ArrayList<List<FunctionDesc>>();
+        for (int q = 0; q < 1000; q++) {
+            queryDims.add(pick(rand, columns, 1 + rand.nextInt(3)));
+            queryFuncs.add(pick(rand, functions, 1 + rand.nextInt(2)));
+        }
+
+        int rounds = 20;
+        int scanMatches = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int q = 0; q < queryDims.size(); q++) {
+                // the way of list scans, each cube lists its functions again
+                for (int i = 0; i < N_CUBES; i++) {
+                    if (cubeDims.get(i).containsAll(queryDims.get(q)) && new ArrayList<FunctionDesc>(cubeFuncs.get(i)).containsAll(queryFuncs.get(q)))
+                        scanMatches++;
+                }
+            }
+        }
+        long scanTime = System.nanoTime() - start;
+
+        int indexMatches = 0;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int q = 0; q < queryDims.size(); q++) {
+                BitSet dims = index.toColumnBits(queryDims.get(q));
+                BitSet funcs = index.toFunctionBits(queryFuncs.get(q));
+                for (CubeRoutingIndex.CubeEntry entry : index.getEntriesByTable(FACT)) {
+                    if (entry.containsDimensions(dims) && entry.containsFunctions(funcs))
+                        indexMatches++;
+                }
+            }
+        }
+        long indexTime = System.nanoTime() - start;
+
+        int nQueries = rounds * queryDims.size();
+        System.out.println("Routing over " + N_CUBES + " cubes, list scans: " + scanTime / nQueries / 1000 + " us/query");
+        System.out.println("Routing over " + N_CUBES + " cubes, bitset index: " + indexTime / nQueries / 1000 + " us/query");
+        assertTrue(scanMatches > 0);
+        assertEquals(scanMatches, indexMatches);
+    }
+
+    private static <T> List<T> pick(Random rand, List<T> from, int n) {
+        List<T> copy = new ArrayList<T>(from);
+        Collections.shuffle(copy, rand);
+        return copy.subList(0, n);
+    }
+
+    private static TblColRef newCol(String name) {
+        TableDesc table = new TableDesc();
+        table.setName(FACT);
+        ColumnDesc col = new ColumnDesc();
+        col.setName(name);
+        col.setTable(table);
+        return new TblColRef(col);
+    }
+
+    private static FunctionDesc newFunc(String expression, String column) {
+        ParameterDesc param = new ParameterDesc();
+        param.setType(FunctionDesc.PARAMETER_TYPE_COLUMN);
+        param.setValue(column);
+        FunctionDesc func = new FunctionDesc();
+        func.setExpression(expression);
+        func.setParameter(param);
+        return func;
+    }
+}
@@ -66,10 +66,9 @@ public class KylinQueryTest extends KylinTestBase {
 
     private static void setUpCubeConn() throws SQLException {
         // Cube Connection
-        File olapTmp = OLAPSchemaFactory.createTempOLAPJson(ProjectInstance.DEFAULT_PROJECT_NAME, config);
         Properties props = new Properties();
         props.setProperty(OLAPQuery.PROP_SCAN_THRESHOLD, "10000");
-        cubeConnection = DriverManager.getConnection("jdbc:calcite:model=" + olapTmp.getAbsolutePath(), props);
+        cubeConnection = OLAPSchemaFactory.createConnection(ProjectInstance.DEFAULT_PROJECT_NAME, config, props);
     }
 
     private static void setUpH2Conn() throws SQLException {
@@ -22,13 +22,16 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.ResponseBody;
 
 import com.kylinolap.common.restclient.Broadcaster;
+import com.kylinolap.common.restclient.Broadcaster.BroadcastEvent;
 import com.kylinolap.common.restclient.Broadcaster.EVENT;
 import com.kylinolap.metadata.MetadataConstances;
+import com.kylinolap.rest.service.AclService;
 import com.kylinolap.rest.service.CubeService;
 import com.kylinolap.rest.service.ProjectService;
 
@@ -49,6 +52,9 @@ public class CacheController extends BasicController {
     @Autowired
     private ProjectService projectService;
 
+    @Autowired
+    private AclService aclService;
+
     /**
      * Wipe system cache
      * 
@@ -60,6 +66,21 @@ public class CacheController extends BasicController {
      * @return if the action success
      * @throws IOException
      */
+    /**
+     * Wipe system cache of a batch of events, in order
+     * 
+     * @param events
+     *            as sent by {@link Broadcaster}
+     * @throws IOException
+     */
+    @RequestMapping(value = "/batch", method = { RequestMethod.PUT })
+    @ResponseBody
+    public void wipeCache(@RequestBody BroadcastEvent[] events) throws IOException {
+        for (BroadcastEvent event : events) {
+            wipeCache(event.getType(), event.getAction(), event.getName());
+        }
+    }
+
     @RequestMapping(value = "/{type}/{name}/{event}", method = { RequestMethod.PUT })
     @ResponseBody
     public void wipeCache(@PathVariable String type, @PathVariable String event, @PathVariable String name) throws IOException {
@@ -108,6 +129,10 @@ public class CacheController extends BasicController {
                 break;
             }
             break;
+        case ACL:
+            logger.debug("Reload ACL " + name + ", event type " + event);
+            aclService.removeAclCache(name);
+            break;
         }
     }
 }
@@ -20,8 +20,8 @@
 package com.kylinolap.rest.controller;
 
 import java.io.IOException;
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -31,7 +31,6 @@ import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
 
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -40,12 +39,11 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
-import org.supercsv.io.CsvListWriter;
-import org.supercsv.io.ICsvListWriter;
-import org.supercsv.prefs.CsvPreference;
 
 import com.codahale.metrics.annotation.Timed;
 import com.kylinolap.common.KylinConfig;
@@ -53,8 +51,10 @@ import com.kylinolap.cube.CubeInstance;
 import com.kylinolap.rest.constant.Constant;
 import com.kylinolap.rest.exception.ForbiddenException;
 import com.kylinolap.rest.exception.InternalErrorException;
+import com.kylinolap.rest.exception.ServiceUnavailableException;
 import com.kylinolap.rest.model.Query;
 import com.kylinolap.rest.model.SelectedColumnMeta;
+import com.kylinolap.rest.model.SlowQuery;
 import com.kylinolap.rest.model.TableMeta;
 import com.kylinolap.rest.request.MetaRequest;
 import com.kylinolap.rest.request.PrepareSqlRequest;
@@ -63,6 +63,7 @@ import com.kylinolap.rest.request.SaveSqlRequest;
 import com.kylinolap.rest.response.SQLResponse;
 import com.kylinolap.rest.service.QueryService;
 import com.kylinolap.rest.util.QueryUtil;
+import com.kylinolap.rest.util.StreamingResultWriter;
 
 /**
  * Handle query requests.
@@ -116,6 +117,25 @@ public class QueryController extends BasicController {
         return response;
     }
 
+    @RequestMapping(value = "/query/{queryId}", method = RequestMethod.DELETE)
+    @ResponseBody
+    @Timed(name = "cancelQuery")
+    public void cancelQuery(@PathVariable String queryId) {
+        queryService.cancelQuery(queryId);
+    }
+
+    @RequestMapping(value = "/query/slow", method = RequestMethod.GET)
+    @ResponseBody
+    public List<SlowQuery> getSlowQueries() {
+        return queryService.getSlowQueries();
+    }
+
+    @RequestMapping(value = "/query/slow/{queryId}", method = RequestMethod.GET)
+    @ResponseBody
+    public SlowQuery getSlowQuery(@PathVariable String queryId) {
+        return queryService.getSlowQuery(queryId);
+    }
+
     @RequestMapping(value = "/saved_queries", method = RequestMethod.POST)
     @ResponseBody
     @Timed(name = "saveQuery")
@@ -137,40 +157,48 @@ public class QueryController extends BasicController {
     @RequestMapping(value = "/saved_queries", method = RequestMethod.GET)
     @ResponseBody
     @Timed(name = "getQueries")
-    public List<Query> getQueries() throws IOException {
+    public List<Query> getQueries(@RequestParam(value = "offset", required = false) Integer offset, @RequestParam(value = "limit", required = false) Integer limit) throws IOException {
         String creator = SecurityContextHolder.getContext().getAuthentication().getName();
-        return queryService.getQueries(creator);
+        return queryService.getQueries(creator, (null == offset) ? 0 : offset, (null == limit) ? Integer.MAX_VALUE : limit);
     }
 
     @RequestMapping(value = "/query/format/{format}", method = RequestMethod.GET)
     @ResponseBody
     @Timed(name = "downloadResult")
-    public void downloadQueryResult(@PathVariable String format, SQLRequest sqlRequest, HttpServletResponse response) {
-        SQLResponse result = doQuery(sqlRequest);
+    public void downloadQueryResult(@PathVariable String format, SQLRequest sqlRequest, HttpServletResponse response) throws IOException {
         response.setContentType("text/" + format + ";charset=utf-8");
         response.setHeader("Content-Disposition", "attachment; filename=\"result." + format + "\"");
-        ICsvListWriter csvWriter = null;
-
-        try {
-            csvWriter = new CsvListWriter(response.getWriter(), CsvPreference.STANDARD_PREFERENCE);
-
-            List<String> headerList = new ArrayList<String>();
 
-            for (SelectedColumnMeta column : result.getColumnMetas()) {
-                headerList.add(column.getName());
-            }
+        doStreamQuery(sqlRequest, StreamingResultWriter.create("csv", null, response.getWriter()));
+    }
 
-            String[] headers = new String[headerList.size()];
-            csvWriter.writeHeader(headerList.toArray(headers));
+    /**
+     * Like query(), but results are written while they are pulled from
+     * storage, not buffered. For big results, which are not cached either.
+     * Takes prepared statement parameters optionally, as the JDBC driver does.
+     * A client accepting application/x-kylin-result gets the binary format
+     * instead of JSON, LZF compressed if it also accepts "compress=lzf".
+     */
+    @RequestMapping(value = "/query/stream/{format}", method = RequestMethod.POST)
+    @ResponseBody
+    @Timed(name = "streamQuery")
+    public void streamQuery(@PathVariable String format, @RequestBody PrepareSqlRequest sqlRequest, @RequestHeader(value = "Accept", required = false) String accept, HttpServletResponse response) throws IOException {
+        if ("json".equalsIgnoreCase(format) && accept != null && accept.contains(StreamingResultWriter.BINARY_CONTENT_TYPE)) {
+            format = accept.contains("compress=lzf") ? "binary-lzf" : "binary";
+        }
 
-            for (List<String> row : result.getResults()) {
-                csvWriter.write(row);
-            }
-        } catch (IOException e) {
-            logger.error("", e);
-        } finally {
-            IOUtils.closeQuietly(csvWriter);
+        StreamingResultWriter writer;
+        if ("csv".equalsIgnoreCase(format)) {
+            response.setContentType("text/csv;charset=utf-8");
+            writer = StreamingResultWriter.create(format, null, response.getWriter());
+        } else if (format.toLowerCase().startsWith("binary")) {
+            response.setContentType(StreamingResultWriter.BINARY_CONTENT_TYPE);
+            writer = StreamingResultWriter.create(format, response.getOutputStream(), null);
+        } else {
+            response.setContentType("application/json;charset=utf-8");
+            writer = StreamingResultWriter.create(format, response.getOutputStream(), null);
         }
+        doStreamQuery(sqlRequest, writer);
     }
 
     @RequestMapping(value = "/tables_and_columns", method = RequestMethod.GET)
@@ -184,7 +212,68 @@ public class QueryController extends BasicController {
         }
     }
 
-    private SQLResponse doQuery(SQLRequest sqlRequest) {
+    private void doStreamQuery(SQLRequest sqlRequest, final StreamingResultWriter writer) throws IOException {
+        long startTimestamp = System.currentTimeMillis();
+        checkQueryAllowed(sqlRequest);
+
+        SQLResponse summary = sqlRequest.isTrace() ? null : searchQueryInCache(sqlRequest);
+        try {
+            if (summary != null && summary.getIsException()) {
+                throw new InternalErrorException(QueryUtil.makeErrorMsgUserFriendly(summary.getExceptionMessage()));
+            }
+            if (summary == null) {
+                summary = queryService.query(sqlRequest, new QueryService.TypedResultHandler() {
+                    @Override
+                    public void start(List<SelectedColumnMeta> columnMetas, String cube) throws Exception {
+                        checkQueryAuth(cube); // before any row goes out
+                        writer.start(columnMetas, cube);
+                    }
+
+                    @Override
+                    public void row(List<String> row) throws Exception {
+                        writer.row(row);
+                    }
+
+                    @Override
+                    public void row(ResultSet resultSet, int columnCount) throws Exception {
+                        writer.row(resultSet, columnCount);
+                    }
+                });
+            }
+            // results from cache or fake responses
+            if (summary.getResults() != null) {
+                checkQueryAuth(summary.getCube());
+                writer.start(summary.getColumnMetas(), summary.getCube());
+                for (List<String> row : summary.getResults()) {
+                    writer.row(row);
+                }
+            }
+            summary.setDuration(System.currentTimeMillis() - startTimestamp);
+            writer.end(summary);
+        } catch (InternalErrorException e) {
+            throw e;
+        } catch (ServiceUnavailableException e) {
+            throw e;
+        } catch (AccessDeniedException ade) {
+            logger.error("Exception when execute sql", ade);
+            throw new ForbiddenException(ade.getLocalizedMessage());
+        } catch (Exception e) {
+            logger.error("Exception when execute sql", e);
+            String errorMsg = QueryUtil.makeErrorMsgUserFriendly(e.getLocalizedMessage());
+            if (writer.isStarted() == false)
+                throw new InternalErrorException(errorMsg);
+            try {
+                writer.fail(errorMsg);
+            } catch (IOException ioe) {
+                logger.debug("Failed to tell the client", ioe); // likely the client is gone
+            }
+            return;
+        }
+
+        queryService.logQuery(sqlRequest, summary, new Date(startTimestamp), new Date(System.currentTimeMillis()));
+    }
+
+    private void checkQueryAllowed(SQLRequest sqlRequest) {
         String sql = sqlRequest.getSql();
         String project = sqlRequest.getProject();
         logger.info("Using project: " + project);
@@ -195,38 +284,52 @@ public class QueryController extends BasicController {
             throw new InternalErrorException("Query is not allowed in " + serverMode + " mode.");
         }
 
-        if (sql.toLowerCase().contains("select")) {
-            SQLResponse sqlResponse = searchQueryInCache(sqlRequest);
-            try {
-                if (null == sqlResponse) {
-                    sqlResponse = queryService.query(sqlRequest);
-
-                    long durationThreshold = KylinConfig.getInstanceFromEnv().getQueryDurationCacheThreshold();
-                    long scancountThreshold = KylinConfig.getInstanceFromEnv().getQueryScanCountCacheThreshold();
-                    if (!sqlResponse.getIsException() && (sqlResponse.getDuration() > durationThreshold || sqlResponse.getTotalScanCount() > scancountThreshold)) {
-                        cacheManager.getCache(SUCCESS_QUERY_CACHE).put(new Element(sqlRequest, sqlResponse));
-                    }
-                }
+        if (!sql.toLowerCase().contains("select")) {
+            logger.debug("Directly return expection as not supported");
+            throw new InternalErrorException(QueryUtil.makeErrorMsgUserFriendly("Not Supported SQL."));
+        }
+    }
 
-                checkQueryAuth(sqlResponse);
+    private SQLResponse doQuery(SQLRequest sqlRequest) {
+        checkQueryAllowed(sqlRequest);
 
-                return sqlResponse;
-            } catch (AccessDeniedException ade) {
-                // Access exception is bind with each user, it will not be
-                // cached.
-                logger.error("Exception when execute sql", ade);
-                throw new ForbiddenException(ade.getLocalizedMessage());
-            } catch (Exception e) {
-                SQLResponse exceptionRes = new SQLResponse(null, null, 0, true, e.getMessage());
-                Cache exceptionCache = cacheManager.getCache(EXCEPTION_QUERY_CACHE);
-                exceptionCache.put(new Element(sqlRequest, exceptionRes));
+        SQLResponse sqlResponse = sqlRequest.isTrace() ? null : searchQueryInCache(sqlRequest);
+        try {
+            if (null == sqlResponse) {
+                sqlResponse = queryService.query(sqlRequest);
+
+                long durationThreshold = KylinConfig.getInstanceFromEnv().getQueryDurationCacheThreshold();
+                long scancountThreshold = KylinConfig.getInstanceFromEnv().getQueryScanCountCacheThreshold();
+                // a sampled result is one of many, and the next run may take a bigger sample
+                if (!sqlResponse.getIsException() && !sqlResponse.isApproximate() && (sqlResponse.getDuration() > durationThreshold || sqlResponse.getTotalScanCount() > scancountThreshold)) {
+                    cacheManager.getCache(SUCCESS_QUERY_CACHE).put(new Element(sqlRequest, sqlResponse));
+                }
+            }
 
-                logger.error("Exception when execute sql", e);
+            checkQueryAuth(sqlResponse);
+
+            return sqlResponse;
+        } catch (ServiceUnavailableException sue) {
+            // the server is busy, not the query is bad; don't cache
+            throw sue;
+        } catch (AccessDeniedException ade) {
+            // Access exception is bind with each user, it will not be
+            // cached.
+            logger.error("Exception when execute sql", ade);
+            throw new ForbiddenException(ade.getLocalizedMessage());
+        } catch (Exception e) {
+            if (QueryService.isCancelled(e)) {
+                // a rerun with more time may succeed; don't cache
+                logger.error("Query cancelled", e);
                 throw new InternalErrorException(QueryUtil.makeErrorMsgUserFriendly(e.getLocalizedMessage()));
             }
-        } else {
-            logger.debug("Directly return expection as not supported");
-            throw new InternalErrorException(QueryUtil.makeErrorMsgUserFriendly("Not Supported SQL."));
+
+            SQLResponse exceptionRes = new SQLResponse(null, null, 0, true, e.getMessage());
+            Cache exceptionCache = cacheManager.getCache(EXCEPTION_QUERY_CACHE);
+            exceptionCache.put(new Element(sqlRequest, exceptionRes));
+
+            logger.error("Exception when execute sql", e);
+            throw new InternalErrorException(QueryUtil.makeErrorMsgUserFriendly(e.getLocalizedMessage()));
         }
     }
 
@@ -249,8 +352,14 @@ public class QueryController extends BasicController {
     }
 
     private void checkQueryAuth(SQLResponse sqlResponse) throws AccessDeniedException {
-        if (!sqlResponse.getIsException() && KylinConfig.getInstanceFromEnv().isQuerySecureEnabled()) {
-            CubeInstance cubeInstance = this.queryService.getCubeManager().getCube(sqlResponse.getCube());
+        if (!sqlResponse.getIsException()) {
+            checkQueryAuth(sqlResponse.getCube());
+        }
+    }
+
+    private void checkQueryAuth(String cube) throws AccessDeniedException {
+        if (KylinConfig.getInstanceFromEnv().isQuerySecureEnabled()) {
+            CubeInstance cubeInstance = this.queryService.getCubeManager().getCube(cube);
             queryService.checkAuthorization(cubeInstance);
         }
     }
@@ -31,11 +31,20 @@ public class QueryMetrics implements MetricSet {
 
     private Map<String, Float> metrics = new HashMap<String, Float>();
 
+    // current values, not reset when read
+    private Map<String, Float> levels = new HashMap<String, Float>();
+
     private QueryMetrics() {
         // register query metrics
         this.increase("duration", (float) 0);
         this.increase("totalScanCount", (float) 0);
         this.increase("count", (float) 0);
+
+        // admission control, see QueryAdmission
+        this.increase("rejectedCount", (float) 0);
+        this.increase("queueTimeoutCount", (float) 0);
+        this.setLevel("runningCount", (float) 0);
+        this.setLevel("queueDepth", (float) 0);
     }
 
     static class QueryMetricsHolder {
@@ -54,6 +63,14 @@ public class QueryMetrics implements MetricSet {
         }
     }
 
+    public synchronized void setLevel(String key, Float value) {
+        levels.put(key, value);
+    }
+
+    public synchronized Float getLevel(String key) {
+        return levels.get(key);
+    }
+
     public synchronized Float getAndReset(String key) {
         float value = metrics.get(key);
         metrics.put(key, (float) 0);
@@ -74,6 +91,14 @@ public class QueryMetrics implements MetricSet {
                 }
             });
         }
+        for (final String key : levels.keySet()) {
+            metricSet.put(key, new Gauge<Float>() {
+                @Override
+                public Float getValue() {
+                    return getLevel(key);
+                }
+            });
+        }
 
         return metricSet;
     }
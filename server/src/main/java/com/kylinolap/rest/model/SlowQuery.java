@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.rest.model;
+
+import java.io.Serializable;
+
+import com.kylinolap.storage.QueryTrace;
+
+/**
+ * A query that took longer than the slow query threshold, with its trace.
+ *
+ * @author yangli9
+ */
+public class SlowQuery implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private String queryId;
+    private String project;
+    private String user;
+    private String sql;
+    private long startTime;
+    private long duration;
+    private String exceptionMessage; // null if succeeded
+    private QueryTrace trace;
+
+    public SlowQuery() {
+    }
+
+    public SlowQuery(String queryId, String project, String user, String sql, long duration, String exceptionMessage, QueryTrace trace) {
+        this.queryId = queryId;
+        this.project = project;
+        this.user = user;
+        this.sql = sql;
+        this.startTime = trace.getStartTime();
+        this.duration = duration;
+        this.exceptionMessage = exceptionMessage;
+        this.trace = trace;
+    }
+
+    public String getQueryId() {
+        return queryId;
+    }
+
+    public String getProject() {
+        return project;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    public String getExceptionMessage() {
+        return exceptionMessage;
+    }
+
+    public QueryTrace getTrace() {
+        return trace;
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.kylinolap.rest.request;
 
+import java.util.Arrays;
+
 /**
  * @author xduo
  * 
@@ -36,6 +38,20 @@ public class PrepareSqlRequest extends SQLRequest {
         this.params = params;
     }
 
+    // results are cached by request, different parameters are different queries
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + Arrays.hashCode(params);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!super.equals(obj))
+            return false;
+        PrepareSqlRequest other = (PrepareSqlRequest) obj;
+        return Arrays.equals(params, other.params);
+    }
+
     public static class StateParam {
         private String className;
         private String value;
@@ -58,5 +74,28 @@ public class PrepareSqlRequest extends SQLRequest {
         public void setValue(String value) {
             this.value = value;
         }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + ((className == null) ? 0 : className.hashCode());
+            result = prime * result + ((value == null) ? 0 : value.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null || getClass() != obj.getClass())
+                return false;
+            StateParam other = (StateParam) obj;
+            if (className == null ? other.className != null : !className.equals(other.className))
+                return false;
+            if (value == null ? other.value != null : !value.equals(other.value))
+                return false;
+            return true;
+        }
     }
 }
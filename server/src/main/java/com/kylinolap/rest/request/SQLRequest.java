@@ -22,6 +22,13 @@ public class SQLRequest {
     private Integer offset = 0;
     private Integer limit = 0;
     private boolean acceptPartial = true;
+    private double samplingRatio = 1.0; // less than 1 for approximate result
+    private long latencyTarget = 0; // in milliseconds, sample until reached
+
+    // not part of the query identity, so not in equals/hashCode
+    private String queryId; // to cancel the query by, generated if not given
+    private long timeout = 0; // in milliseconds, 0 to take the server default
+    private boolean trace = false; // to return where the time goes, never from cache
 
     public SQLRequest() {
     }
@@ -66,11 +73,54 @@ public class SQLRequest {
         this.acceptPartial = acceptPartial;
     }
 
+    public double getSamplingRatio() {
+        return samplingRatio;
+    }
+
+    public void setSamplingRatio(double samplingRatio) {
+        this.samplingRatio = samplingRatio;
+    }
+
+    public long getLatencyTarget() {
+        return latencyTarget;
+    }
+
+    public void setLatencyTarget(long latencyTarget) {
+        this.latencyTarget = latencyTarget;
+    }
+
+    public String getQueryId() {
+        return queryId;
+    }
+
+    public void setQueryId(String queryId) {
+        this.queryId = queryId;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public boolean isTrace() {
+        return trace;
+    }
+
+    public void setTrace(boolean trace) {
+        this.trace = trace;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
         int result = 1;
         result = prime * result + (acceptPartial ? 1231 : 1237);
+        long temp = Double.doubleToLongBits(samplingRatio);
+        result = prime * result + (int) (temp ^ (temp >>> 32));
+        result = prime * result + (int) (latencyTarget ^ (latencyTarget >>> 32));
         result = prime * result + ((offset == null) ? 0 : offset.hashCode());
         result = prime * result + ((limit == null) ? 0 : limit.hashCode());
         result = prime * result + ((project == null) ? 0 : project.hashCode());
@@ -89,6 +139,10 @@ public class SQLRequest {
         SQLRequest other = (SQLRequest) obj;
         if (acceptPartial != other.acceptPartial)
             return false;
+        if (Double.doubleToLongBits(samplingRatio) != Double.doubleToLongBits(other.samplingRatio))
+            return false;
+        if (latencyTarget != other.latencyTarget)
+            return false;
         if (offset == null) {
             if (other.offset != null)
                 return false;
@@ -19,6 +19,7 @@ import java.io.Serializable;
 import java.util.List;
 
 import com.kylinolap.rest.model.SelectedColumnMeta;
+import com.kylinolap.storage.QueryTrace;
 
 public class SQLResponse implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -51,6 +52,20 @@ public class SQLResponse implements Serializable {
 
     private boolean hitCache = false;
 
+    // approximate mode, results are from a sample of the cube
+    private boolean isApproximate = false;
+
+    private double sampledRatio = 1.0;
+
+    // relative error at 95% confidence, null if unknown
+    private Double approximateError;
+
+    // to cancel the query by while it runs
+    private String queryId;
+
+    // where the time goes, if requested
+    private QueryTrace trace;
+
     public SQLResponse() {
     }
 
@@ -138,4 +153,38 @@ public class SQLResponse implements Serializable {
         this.hitCache = hitCache;
     }
 
+    public boolean isApproximate() {
+        return isApproximate;
+    }
+
+    public double getSampledRatio() {
+        return sampledRatio;
+    }
+
+    public Double getApproximateError() {
+        return approximateError;
+    }
+
+    public void setApproximate(double sampledRatio, Double approximateError) {
+        this.isApproximate = true;
+        this.sampledRatio = sampledRatio;
+        this.approximateError = approximateError;
+    }
+
+    public String getQueryId() {
+        return queryId;
+    }
+
+    public void setQueryId(String queryId) {
+        this.queryId = queryId;
+    }
+
+    public QueryTrace getTrace() {
+        return trace;
+    }
+
+    public void setTrace(QueryTrace trace) {
+        this.trace = trace;
+    }
+
 }
@@ -251,6 +251,18 @@ public class AccessService {
         return acl;
     }
 
+    /**
+     * Reads ACLs of the entities in batches ahead of permission checks on
+     * each of them, e.g. post filtering a list.
+     */
+    public void prefetch(List<? extends AclEntity> aes) {
+        List<ObjectIdentity> objectIdentities = new ArrayList<ObjectIdentity>(aes.size());
+        for (AclEntity ae : aes) {
+            objectIdentities.add(new ObjectIdentityImpl(ae.getClass(), ae.getId()));
+        }
+        aclService.prefetch(objectIdentities);
+    }
+
     public Sid getSid(String sid, boolean isPrincepal) {
         if (isPrincepal) {
             return new PrincipalSid(sid);
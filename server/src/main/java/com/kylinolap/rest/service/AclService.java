@@ -21,10 +21,18 @@ import java.io.Serializable;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.hbase.client.Delete;
@@ -68,11 +76,26 @@ import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.kylinolap.common.KylinConfig;
 import com.kylinolap.common.persistence.HBaseConnection;
+import com.kylinolap.common.restclient.Broadcaster;
+import com.kylinolap.common.restclient.SingleValueCache;
 import com.kylinolap.rest.util.Serializer;
 
 /**
+ * ACLs in HBase, with rows of the ACL table cached on every node. A change
+ * drops the rows it touched from the cache here, and from other nodes by
+ * broadcast. Misses of a batch of objects are read in one multi-get.
+ *
+ * Rows are cached no longer than a TTL, so a lost broadcast leaves a node
+ * stale for a while only.
+ *
+ * Children of an object are indexed in a row of their own, so finding them
+ * is a get instead of a full table scan. The index of a parent is built by
+ * the scan once, at its first look up. Changes to the index in the meantime
+ * drop a token the build put first, and the build is written only if its
+ * token is still there, so a scan older than a change is never marked done.
+ *
  * @author xduo
- * 
+ *
  */
 @Component("aclService")
 public class AclService implements MutableAclService {
@@ -87,6 +110,10 @@ public class AclService implements MutableAclService {
     private static final String ACL_INFO_FAMILY_OWNER_COLUMN = "o";
     private static final String ACL_INFO_FAMILY_PARENT_COLUMN = "p";
     private static final String ACL_INFO_FAMILY_ENTRY_INHERIT_COLUMN = "i";
+    // the row of children of an object, a column per child of id -> type
+    private static final String ACL_CHILDREN_ROW_PREFIX = "_children_";
+    private static final String ACL_CHILDREN_INDEXED_COLUMN = "_";
+    private static final String ACL_CHILDREN_BUILDING_COLUMN = "_building";
 
     private Serializer<SidInfo> sidSerializer = new Serializer<SidInfo>(SidInfo.class);
     private Serializer<DomainObjectInfo> domainObjSerializer = new Serializer<DomainObjectInfo>(DomainObjectInfo.class);
@@ -95,6 +122,12 @@ public class AclService implements MutableAclService {
     private String hbaseUrl = null;
     private String tableNameBase = null;
     private String aclTableName = null;
+    private long aclCacheTtl;
+
+    // rows by row key, ACLs are built from them on every read as callers modify the ACLs
+    private final SingleValueCache<String, AclRecord> aclCache = new SingleValueCache<String, AclRecord>(Broadcaster.TYPE.ACL);
+    // rows read across an eviction may be stale and are not cached
+    private final AtomicLong evictions = new AtomicLong();
 
     private final Field fieldAces = FieldUtils.getField(AclImpl.class, "aces");
     private final Field fieldAcl = FieldUtils.getField(AccessControlEntryImpl.class, "acl");
@@ -118,6 +151,7 @@ public class AclService implements MutableAclService {
         tableNameBase = cut < 0 ? DEFAULT_TABLE_PREFIX : metadataUrl.substring(0, cut);
         hbaseUrl = cut < 0 ? metadataUrl : metadataUrl.substring(cut + 1);
         aclTableName = tableNameBase + ACL_TABLE_NAME;
+        aclCacheTtl = KylinConfig.getInstanceFromEnv().getAclCacheTtl();
 
         fieldAces.setAccessible(true);
         fieldAcl.setAccessible(true);
@@ -127,6 +161,23 @@ public class AclService implements MutableAclService {
 
     @Override
     public List<ObjectIdentity> findChildren(ObjectIdentity parentIdentity) {
+        String indexKey = childrenRowKey(parentIdentity);
+        AclRecord index = getRecords(Arrays.asList(indexKey)).get(indexKey);
+        if (null == index || null == index.getInfo(ACL_CHILDREN_INDEXED_COLUMN)) {
+            return indexChildren(parentIdentity);
+        }
+
+        List<ObjectIdentity> oids = new ArrayList<ObjectIdentity>();
+        for (Map.Entry<byte[], byte[]> child : index.info.entrySet()) {
+            String id = Bytes.toString(child.getKey());
+            if (!ACL_CHILDREN_INDEXED_COLUMN.equals(id) && !ACL_CHILDREN_BUILDING_COLUMN.equals(id)) {
+                oids.add(new ObjectIdentityImpl(Bytes.toString(child.getValue()), id));
+            }
+        }
+        return oids;
+    }
+
+    private List<ObjectIdentity> scanChildren(ObjectIdentity parentIdentity) {
         List<ObjectIdentity> oids = new ArrayList<ObjectIdentity>();
         HTableInterface htable = null;
         try {
@@ -153,6 +204,43 @@ public class AclService implements MutableAclService {
         return oids;
     }
 
+    // writes the index of children found by scan, for rows written before the index
+    private List<ObjectIdentity> indexChildren(ObjectIdentity parentIdentity) {
+        String indexKey = childrenRowKey(parentIdentity);
+        byte[] token = Bytes.toBytes(UUID.randomUUID().toString());
+        List<ObjectIdentity> children;
+        HTableInterface htable = null;
+        try {
+            htable = HBaseConnection.get(hbaseUrl).getTable(aclTableName);
+            Put start = new Put(Bytes.toBytes(indexKey));
+            start.add(Bytes.toBytes(ACL_INFO_FAMILY), Bytes.toBytes(ACL_CHILDREN_BUILDING_COLUMN), token);
+            htable.put(start);
+            htable.flushCommits();
+
+            children = scanChildren(parentIdentity);
+
+            Put put = new Put(Bytes.toBytes(indexKey));
+            for (ObjectIdentity child : children) {
+                put.add(Bytes.toBytes(ACL_INFO_FAMILY), Bytes.toBytes(String.valueOf(child.getIdentifier())), Bytes.toBytes(child.getType()));
+            }
+            put.add(Bytes.toBytes(ACL_INFO_FAMILY), Bytes.toBytes(ACL_CHILDREN_INDEXED_COLUMN), Bytes.toBytes(true));
+
+            // a change to the children since the token was put has dropped it
+            if (htable.checkAndPut(Bytes.toBytes(indexKey), Bytes.toBytes(ACL_INFO_FAMILY), Bytes.toBytes(ACL_CHILDREN_BUILDING_COLUMN), token, put)) {
+                logger.debug("Children of " + parentIdentity + " indexed, " + children.size() + " found.");
+            } else {
+                logger.debug("Children of " + parentIdentity + " changed while indexed, index left to the next look up.");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(htable);
+        }
+
+        evict(indexKey);
+        return children;
+    }
+
     @Override
     public Acl readAclById(ObjectIdentity object) throws NotFoundException {
         Map<ObjectIdentity, Acl> aclsMap = readAclsById(Arrays.asList(object), null);
@@ -177,28 +265,32 @@ public class AclService implements MutableAclService {
     @Override
     public Map<ObjectIdentity, Acl> readAclsById(List<ObjectIdentity> oids, List<Sid> sids) throws NotFoundException {
         Map<ObjectIdentity, Acl> aclMaps = new HashMap<ObjectIdentity, Acl>();
-        HTableInterface htable = null;
-        Result result = null;
+        Map<String, AclRecord> records = getRecords(idsOf(oids));
+
         try {
-            htable = HBaseConnection.get(hbaseUrl).getTable(aclTableName);
+            // parents of the whole batch at once, and so on up the hierarchy
+            List<ObjectIdentity> parentOids = new ArrayList<ObjectIdentity>();
+            for (AclRecord record : records.values()) {
+                ObjectIdentity parentObj = getParent(record);
+                if (null != parentObj && !parentOids.contains(parentObj)) {
+                    parentOids.add(parentObj);
+                }
+            }
+            Map<ObjectIdentity, Acl> parentAcls = parentOids.isEmpty() ? Collections.<ObjectIdentity, Acl> emptyMap() : readAclsById(parentOids, null);
 
             for (ObjectIdentity oid : oids) {
-                result = htable.get(new Get(Bytes.toBytes(String.valueOf(oid.getIdentifier()))));
+                AclRecord record = records.get(String.valueOf(oid.getIdentifier()));
 
-                if (null != result && !result.isEmpty()) {
-                    SidInfo owner = sidSerializer.deserialize(result.getValue(Bytes.toBytes(ACL_INFO_FAMILY), Bytes.toBytes(ACL_INFO_FAMILY_OWNER_COLUMN)));
+                if (null != record) {
+                    SidInfo owner = sidSerializer.deserialize(record.getInfo(ACL_INFO_FAMILY_OWNER_COLUMN));
                     Sid ownerSid = (null == owner) ? null : (owner.isPrincipal() ? new PrincipalSid(owner.getSid()) : new GrantedAuthoritySid(owner.getSid()));
-                    boolean entriesInheriting = Bytes.toBoolean(result.getValue(Bytes.toBytes(ACL_INFO_FAMILY), Bytes.toBytes(ACL_INFO_FAMILY_ENTRY_INHERIT_COLUMN)));
+                    boolean entriesInheriting = Bytes.toBoolean(record.getInfo(ACL_INFO_FAMILY_ENTRY_INHERIT_COLUMN));
 
-                    Acl parentAcl = null;
-                    DomainObjectInfo parentInfo = domainObjSerializer.deserialize(result.getValue(Bytes.toBytes(ACL_INFO_FAMILY), Bytes.toBytes(ACL_INFO_FAMILY_PARENT_COLUMN)));
-                    if (null != parentInfo) {
-                        ObjectIdentity parentObj = new ObjectIdentityImpl(parentInfo.getType(), parentInfo.getId());
-                        parentAcl = readAclById(parentObj, null);
-                    }
+                    ObjectIdentity parentObj = getParent(record);
+                    Acl parentAcl = (null == parentObj) ? null : parentAcls.get(parentObj);
 
                     AclImpl acl = new AclImpl(oid, oid.getIdentifier(), aclAuthorizationStrategy, permissionGrantingStrategy, parentAcl, null, entriesInheriting, ownerSid);
-                    genAces(sids, result, acl);
+                    genAces(sids, record, acl);
 
                     aclMaps.put(oid, acl);
                 } else {
@@ -207,13 +299,32 @@ public class AclService implements MutableAclService {
             }
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
-        } finally {
-            IOUtils.closeQuietly(htable);
         }
 
         return aclMaps;
     }
 
+    /**
+     * Loads ACLs of the objects and their parents into cache in batches,
+     * ahead of permission checks on each of them, e.g. filtering a list.
+     * Objects without ACL are skipped.
+     */
+    public void prefetch(List<ObjectIdentity> oids) {
+        Set<String> visited = new HashSet<String>();
+        Collection<String> ids = idsOf(oids);
+        while (!ids.isEmpty()) {
+            visited.addAll(ids);
+            Set<String> parentIds = new LinkedHashSet<String>();
+            for (AclRecord record : getRecords(ids).values()) {
+                ObjectIdentity parentObj = getParent(record);
+                if (null != parentObj && !visited.contains(String.valueOf(parentObj.getIdentifier()))) {
+                    parentIds.add(String.valueOf(parentObj.getIdentifier()));
+                }
+            }
+            ids = parentIds;
+        }
+    }
+
     @Override
     public MutableAcl createAcl(ObjectIdentity objectIdentity) throws AlreadyExistsException {
         Acl acl = null;
@@ -247,26 +358,33 @@ public class AclService implements MutableAclService {
             IOUtils.closeQuietly(htable);
         }
 
+        evict(String.valueOf(objectIdentity.getIdentifier()));
         return (MutableAcl) readAclById(objectIdentity);
     }
 
     @Override
     public void deleteAcl(ObjectIdentity objectIdentity, boolean deleteChildren) throws ChildrenExistException {
+        String id = String.valueOf(objectIdentity.getIdentifier());
+
+        List<ObjectIdentity> children = findChildren(objectIdentity);
+        if (!deleteChildren && children.size() > 0) {
+            throw new ChildrenExistException("Children exists for " + objectIdentity);
+        }
+
+        for (ObjectIdentity oid : children) {
+            deleteAcl(oid, deleteChildren);
+        }
+
+        ObjectIdentity parentObj = getParent(getRecords(Arrays.asList(id)).get(id));
+
         HTableInterface htable = null;
         try {
             htable = HBaseConnection.get(hbaseUrl).getTable(aclTableName);
-            Delete delete = new Delete(Bytes.toBytes(String.valueOf(objectIdentity.getIdentifier())));
-
-            List<ObjectIdentity> children = findChildren(objectIdentity);
-            if (!deleteChildren && children.size() > 0) {
-                throw new ChildrenExistException("Children exists for " + objectIdentity);
+            htable.delete(new Delete(Bytes.toBytes(id)));
+            htable.delete(new Delete(Bytes.toBytes(childrenRowKey(objectIdentity))));
+            if (null != parentObj) {
+                unindexChild(htable, parentObj, id);
             }
-
-            for (ObjectIdentity oid : children) {
-                deleteAcl(oid, deleteChildren);
-            }
-
-            htable.delete(delete);
             htable.flushCommits();
 
             logger.debug("ACL of " + objectIdentity + " deleted successfully.");
@@ -275,27 +393,43 @@ public class AclService implements MutableAclService {
         } finally {
             IOUtils.closeQuietly(htable);
         }
+
+        evict(id, childrenRowKey(objectIdentity));
+        if (null != parentObj) {
+            evict(childrenRowKey(parentObj));
+        }
     }
 
     @Override
     public MutableAcl updateAcl(MutableAcl acl) throws NotFoundException {
+        Acl oldAcl = null;
         try {
-            readAclById(acl.getObjectIdentity());
+            oldAcl = readAclById(acl.getObjectIdentity());
         } catch (NotFoundException e) {
             throw e;
         }
 
+        String id = String.valueOf(acl.getObjectIdentity().getIdentifier());
+        List<String> evicted = new ArrayList<String>();
+        evicted.add(id);
+
         HTableInterface htable = null;
         try {
             htable = HBaseConnection.get(hbaseUrl).getTable(aclTableName);
-            Delete delete = new Delete(Bytes.toBytes(String.valueOf(acl.getObjectIdentity().getIdentifier())));
+            Delete delete = new Delete(Bytes.toBytes(id));
             delete.deleteFamily(Bytes.toBytes(ACL_ACES_FAMILY));
             htable.delete(delete);
 
-            Put put = new Put(Bytes.toBytes(String.valueOf(acl.getObjectIdentity().getIdentifier())));
+            Put put = new Put(Bytes.toBytes(id));
 
-            if (null != acl.getParentAcl()) {
-                put.add(Bytes.toBytes(ACL_INFO_FAMILY), Bytes.toBytes(ACL_INFO_FAMILY_PARENT_COLUMN), domainObjSerializer.serialize(new DomainObjectInfo(acl.getParentAcl().getObjectIdentity())));
+            ObjectIdentity parentObj = (null == acl.getParentAcl()) ? null : acl.getParentAcl().getObjectIdentity();
+            ObjectIdentity oldParentObj = (null == oldAcl.getParentAcl()) ? null : oldAcl.getParentAcl().getObjectIdentity();
+            if (null != parentObj) {
+                put.add(Bytes.toBytes(ACL_INFO_FAMILY), Bytes.toBytes(ACL_INFO_FAMILY_PARENT_COLUMN), domainObjSerializer.serialize(new DomainObjectInfo(parentObj)));
+            } else if (null != oldParentObj) {
+                Delete unparent = new Delete(Bytes.toBytes(id));
+                unparent.deleteColumns(Bytes.toBytes(ACL_INFO_FAMILY), Bytes.toBytes(ACL_INFO_FAMILY_PARENT_COLUMN));
+                htable.delete(unparent);
             }
 
             for (AccessControlEntry ace : acl.getEntries()) {
@@ -305,20 +439,138 @@ public class AclService implements MutableAclService {
 
             if (!put.isEmpty()) {
                 htable.put(put);
-                htable.flushCommits();
+            }
+            // the row goes first, a scan indexing the children after this sees it
+            htable.flushCommits();
 
-                logger.debug("ACL of " + acl.getObjectIdentity() + " updated successfully.");
+            // moves the object to the children index of its new parent, if any
+            if (null != parentObj) {
+                Put index = new Put(Bytes.toBytes(childrenRowKey(parentObj)));
+                index.add(Bytes.toBytes(ACL_INFO_FAMILY), Bytes.toBytes(id), Bytes.toBytes(acl.getObjectIdentity().getType()));
+                htable.put(index);
+                Delete unbuild = new Delete(Bytes.toBytes(childrenRowKey(parentObj)));
+                unbuild.deleteColumns(Bytes.toBytes(ACL_INFO_FAMILY), Bytes.toBytes(ACL_CHILDREN_BUILDING_COLUMN));
+                htable.delete(unbuild);
+                evicted.add(childrenRowKey(parentObj));
             }
+            if (null != oldParentObj && !oldParentObj.equals(parentObj)) {
+                unindexChild(htable, oldParentObj, id);
+                evicted.add(childrenRowKey(oldParentObj));
+            }
+            htable.flushCommits();
+
+            logger.debug("ACL of " + acl.getObjectIdentity() + " updated successfully.");
         } catch (IOException e) {
             throw new RuntimeException(e.getMessage(), e);
         } finally {
             IOUtils.closeQuietly(htable);
         }
 
+        evict(evicted.toArray(new String[evicted.size()]));
         return (MutableAcl) readAclById(acl.getObjectIdentity());
     }
 
-    private void genAces(List<Sid> sids, Result result, AclImpl acl) throws JsonParseException, JsonMappingException, IOException {
+    // drops a child from the index of its parent, and any index build running on it
+    private void unindexChild(HTableInterface htable, ObjectIdentity parentObj, String id) throws IOException {
+        Delete unindex = new Delete(Bytes.toBytes(childrenRowKey(parentObj)));
+        unindex.deleteColumns(Bytes.toBytes(ACL_INFO_FAMILY), Bytes.toBytes(id));
+        unindex.deleteColumns(Bytes.toBytes(ACL_INFO_FAMILY), Bytes.toBytes(ACL_CHILDREN_BUILDING_COLUMN));
+        htable.delete(unindex);
+    }
+
+    /**
+     * Drops rows from cache on an ACL change broadcast by another node, all
+     * rows if the key is "ALL".
+     */
+    public void removeAclCache(String key) {
+        evictions.incrementAndGet();
+        if ("ALL".equalsIgnoreCase(key)) {
+            aclCache.clear();
+        } else {
+            aclCache.removeLocal(key);
+        }
+    }
+
+    // drops rows from cache of this node, and of others by broadcast
+    private void evict(String... keys) {
+        evictions.incrementAndGet();
+        for (String key : keys) {
+            aclCache.removeLocal(key);
+            Broadcaster.queue(Broadcaster.TYPE.ACL.getType(), Broadcaster.EVENT.UPDATE.getType(), key);
+        }
+    }
+
+    /**
+     * @return rows by row key, from cache or else read in one multi-get,
+     *         absent if not found
+     */
+    private Map<String, AclRecord> getRecords(Collection<String> keys) {
+        Map<String, AclRecord> records = new HashMap<String, AclRecord>();
+        List<Get> gets = new ArrayList<Get>();
+        for (String key : new LinkedHashSet<String>(keys)) {
+            AclRecord record = aclCache.get(key);
+            if (null != record && System.currentTimeMillis() - record.loadTime < aclCacheTtl) {
+                records.put(key, record);
+            } else {
+                gets.add(new Get(Bytes.toBytes(key)));
+            }
+        }
+        if (gets.isEmpty()) {
+            return records;
+        }
+
+        long evictionsBefore = evictions.get();
+        HTableInterface htable = null;
+        try {
+            htable = HBaseConnection.get(hbaseUrl).getTable(aclTableName);
+
+            for (Result result : htable.get(gets)) {
+                if (null != result && !result.isEmpty()) {
+                    records.put(Bytes.toString(result.getRow()), new AclRecord(result));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(htable);
+        }
+
+        if (evictions.get() == evictionsBefore) {
+            for (Get get : gets) {
+                String key = Bytes.toString(get.getRow());
+                if (records.containsKey(key)) {
+                    aclCache.putLocal(key, records.get(key));
+                }
+            }
+        }
+        return records;
+    }
+
+    private ObjectIdentity getParent(AclRecord record) {
+        if (null == record) {
+            return null;
+        }
+        try {
+            DomainObjectInfo parentInfo = domainObjSerializer.deserialize(record.getInfo(ACL_INFO_FAMILY_PARENT_COLUMN));
+            return (null == parentInfo) ? null : new ObjectIdentityImpl(parentInfo.getType(), parentInfo.getId());
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private static List<String> idsOf(List<ObjectIdentity> oids) {
+        List<String> ids = new ArrayList<String>(oids.size());
+        for (ObjectIdentity oid : oids) {
+            ids.add(String.valueOf(oid.getIdentifier()));
+        }
+        return ids;
+    }
+
+    private static String childrenRowKey(ObjectIdentity oid) {
+        return ACL_CHILDREN_ROW_PREFIX + oid.getIdentifier();
+    }
+
+    private void genAces(List<Sid> sids, AclRecord record, AclImpl acl) throws JsonParseException, JsonMappingException, IOException {
         List<AceInfo> aceInfos = new ArrayList<AceInfo>();
         if (null != sids) {
             // Just return aces in sids
@@ -330,13 +582,13 @@ public class AclService implements MutableAclService {
                     sidName = ((GrantedAuthoritySid) sid).getGrantedAuthority();
                 }
 
-                AceInfo aceInfo = aceSerializer.deserialize(result.getValue(Bytes.toBytes(ACL_ACES_FAMILY), Bytes.toBytes(sidName)));
+                AceInfo aceInfo = aceSerializer.deserialize(record.aces.get(Bytes.toBytes(sidName)));
                 if (null != aceInfo) {
                     aceInfos.add(aceInfo);
                 }
             }
         } else {
-            NavigableMap<byte[], byte[]> familyMap = result.getFamilyMap(Bytes.toBytes(ACL_ACES_FAMILY));
+            NavigableMap<byte[], byte[]> familyMap = record.aces;
             for (byte[] qualifier : familyMap.keySet()) {
                 AceInfo aceInfo = aceSerializer.deserialize(familyMap.get(qualifier));
 
@@ -368,6 +620,28 @@ public class AclService implements MutableAclService {
         }
     }
 
+    // cells of a row of the ACL table, copied out of the Result as it's shared between threads
+    private static class AclRecord {
+        private final long loadTime = System.currentTimeMillis();
+        private final NavigableMap<byte[], byte[]> info = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+        private final NavigableMap<byte[], byte[]> aces = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+
+        AclRecord(Result result) {
+            NavigableMap<byte[], byte[]> infoMap = result.getFamilyMap(Bytes.toBytes(ACL_INFO_FAMILY));
+            if (null != infoMap) {
+                info.putAll(infoMap);
+            }
+            NavigableMap<byte[], byte[]> acesMap = result.getFamilyMap(Bytes.toBytes(ACL_ACES_FAMILY));
+            if (null != acesMap) {
+                aces.putAll(acesMap);
+            }
+        }
+
+        byte[] getInfo(String column) {
+            return info.get(Bytes.toBytes(column));
+        }
+    }
+
     protected static class DomainObjectInfo {
         private String id;
         private String type;
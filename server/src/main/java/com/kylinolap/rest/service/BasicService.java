@@ -15,16 +15,12 @@
  */
 package com.kylinolap.rest.service;
 
-import java.io.File;
-import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.nio.charset.Charset;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -36,9 +32,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.Caching;
-import org.springframework.jdbc.datasource.DriverManagerDataSource;
 
-import com.google.common.io.Files;
 import com.kylinolap.common.KylinConfig;
 import com.kylinolap.cube.CubeManager;
 import com.kylinolap.cube.project.ProjectInstance;
@@ -49,14 +43,17 @@ import com.kylinolap.job.exception.JobException;
 import com.kylinolap.metadata.MetadataManager;
 import com.kylinolap.query.enumerator.OLAPQuery;
 import com.kylinolap.query.relnode.OLAPContext;
-import com.kylinolap.query.schema.OLAPSchemaFactory;
+import com.kylinolap.query.routing.CubeRoutingIndex;
 import com.kylinolap.rest.controller.QueryController;
+import com.kylinolap.storage.hbase.LookupHashTable;
 
 public abstract class BasicService {
 
     private static final Logger logger = LoggerFactory.getLogger(BasicService.class);
 
-    private static ConcurrentMap<String, DataSource> olapDataSources = new ConcurrentHashMap<String, DataSource>();
+    private static ConcurrentMap<String, PooledOLAPDataSource> olapDataSources = new ConcurrentHashMap<String, PooledOLAPDataSource>();
+
+    private static QueryPlanCache queryPlanCache = null;
 
 //    @Autowired
 //    protected JdbcTemplate jdbcTemplate;
@@ -70,45 +67,55 @@ public abstract class BasicService {
             throw new IllegalArgumentException("removeOLAPDataSource: project name not given");
 
         project = ProjectInstance.getNormalizedProjectName(project);
-        olapDataSources.remove(project);
+        PooledOLAPDataSource ds = olapDataSources.remove(project);
+        if (ds != null)
+            ds.close();
+        getQueryPlanCache().clear(project);
+        TableMetaCache.clearCache(project);
     }
 
     public static void resetOLAPDataSources() {
         // brutal, yet simplest way
         logger.info("resetOLAPDataSources is called.");
-        olapDataSources = new ConcurrentHashMap<String, DataSource>();
+        ConcurrentMap<String, PooledOLAPDataSource> old = olapDataSources;
+        olapDataSources = new ConcurrentHashMap<String, PooledOLAPDataSource>();
+        for (PooledOLAPDataSource ds : old.values())
+            ds.close();
+        getQueryPlanCache().clear();
+        CubeRoutingIndex.clearCache();
+        LookupHashTable.clearCache();
+        TableMetaCache.clearCache();
+    }
+
+    // plans are built on the OLAP data sources, and go with them
+    public static synchronized QueryPlanCache getQueryPlanCache() {
+        if (queryPlanCache == null) {
+            queryPlanCache = new QueryPlanCache(KylinConfig.getInstanceFromEnv().getQueryPlanCacheSize(), KylinConfig.getInstanceFromEnv().getQueryPlanCacheMaxPinned());
+        }
+        return queryPlanCache;
     }
 
     public DataSource getOLAPDataSource(String project) {
 
         project = ProjectInstance.getNormalizedProjectName(project);
 
-        DataSource ret = olapDataSources.get(project);
+        PooledOLAPDataSource ret = olapDataSources.get(project);
         if (ret == null) {
             logger.debug("Creating a new data source");
             logger.debug("OLAP data source pointing to " + getConfig());
 
-            File modelJson = OLAPSchemaFactory.createTempOLAPJson(project, getConfig());
-
-            try {
-                List<String> text = Files.readLines(modelJson, Charset.defaultCharset());
-                logger.debug("The new temp olap json is :");
-                for (String line : text)
-                    logger.debug(line);
-            } catch (IOException e) {
-                e.printStackTrace(); // logging failure is not critical
-            }
-
-            DriverManagerDataSource ds = new DriverManagerDataSource();
             Properties props = new Properties();
             props.setProperty(OLAPQuery.PROP_SCAN_THRESHOLD, String.valueOf(KylinConfig.getInstanceFromEnv().getScanThreshold()));
-            ds.setConnectionProperties(props);
-            ds.setDriverClassName("net.hydromatic.optiq.jdbc.Driver");
-            ds.setUrl("jdbc:calcite:model=" + modelJson.getAbsolutePath());
+            PooledOLAPDataSource ds = new PooledOLAPDataSource(project, getConfig(), props);
 
             ret = olapDataSources.putIfAbsent(project, ds);
             if (ret == null) {
                 ret = ds;
+                try {
+                    ds.warmUp(getConfig().getQueryConnectionPoolWarmUp());
+                } catch (SQLException e) {
+                    logger.warn("Failed to warm up connections of project " + project, e); // queries will tell
+                }
             }
         }
         return ret;
@@ -115,6 +115,8 @@ public class CubeService extends BasicService {
             }
         }
 
+        // one batch of ACL reads instead of one per cube in the post filter
+        accessService.prefetch(filterCubes);
         return filterCubes;
     }
 
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.rest.service;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.slf4j.LoggerFactory;
+
+import com.kylinolap.common.KylinConfig;
+import com.kylinolap.cube.project.ProjectInstance;
+import com.kylinolap.cube.project.ProjectManager;
+import com.kylinolap.query.schema.OLAPSchemaFactory;
+
+/**
+ * Optiq connections of a project, kept open and reused across queries. The
+ * in-memory OLAPSchema of a connection refreshes its tables by itself; the
+ * idle connections are dropped once the project is reloaded (e.g. on a cube
+ * or project event from Broadcaster), since its databases may have changed.
+ *
+ * Connections handed out are proxies whose close() closes the statements
+ * still open and returns the underlying connection to the pool. Connections
+ * in use are capped at maxActive, beyond that getConnection() waits for one to
+ * be given back.
+ *
+ * @author yangli9
+ */
+public class PooledOLAPDataSource implements DataSource {
+
+    private static final org.slf4j.Logger logger = LoggerFactory.getLogger(PooledOLAPDataSource.class);
+
+    private final String project;
+    private final KylinConfig config;
+    private final Properties props;
+    private final int maxIdle;
+    private final int maxActive;
+    private final long maxWait; // ms
+
+    private final LinkedList<Connection> idle = new LinkedList<Connection>();
+    private int active; // handed out and not given back
+    private ProjectInstance projectInstance; // what the idle connections are built on
+    private long generation;
+    private boolean closed;
+
+    public PooledOLAPDataSource(String project, KylinConfig config, Properties props) {
+        this.project = ProjectInstance.getNormalizedProjectName(project);
+        this.config = config;
+        this.props = props;
+        this.maxIdle = config.getQueryConnectionPoolMaxIdle();
+        this.maxActive = config.getQueryConnectionPoolMaxActive();
+        this.maxWait = config.getQueryConnectionPoolMaxWait();
+    }
+
+    /**
+     * Opens connections ahead of queries, touching the tables of each.
+     */
+    public void warmUp(int count) throws SQLException {
+        LinkedList<Connection> conns = new LinkedList<Connection>();
+        try {
+            for (int i = 0; i < count; i++) {
+                Connection conn = getConnection();
+                conns.add(conn);
+                ResultSet tables = conn.getMetaData().getTables(null, null, null, null);
+                tables.close();
+            }
+        } finally {
+            for (Connection conn : conns)
+                conn.close();
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        Connection physical;
+        long gen;
+        synchronized (this) {
+            if (closed)
+                throw new SQLException("Data source of project " + project + " is closed");
+            awaitActiveSlot();
+
+            ProjectInstance current = ProjectManager.getInstance(config).getProject(project);
+            if (current != projectInstance) {
+                closeIdle();
+                projectInstance = current;
+                generation++;
+            }
+            physical = idle.pollFirst();
+            gen = generation;
+            active++;
+        }
+
+        if (physical == null) {
+            logger.debug("Creating a new connection of project " + project);
+            try {
+                physical = OLAPSchemaFactory.createConnection(project, config, props);
+            } catch (SQLException e) {
+                releaseActiveSlot();
+                throw e;
+            } catch (RuntimeException e) {
+                releaseActiveSlot();
+                throw e;
+            }
+        }
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, new PooledConnection(physical, gen));
+    }
+
+    private void awaitActiveSlot() throws SQLException {
+        long deadline = System.currentTimeMillis() + maxWait;
+        while (active >= maxActive) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0)
+                throw new SQLException("All " + active + " connections of project " + project + " are in use, waited " + maxWait + " ms");
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for a connection of project " + project, e);
+            }
+            if (closed)
+                throw new SQLException("Data source of project " + project + " is closed");
+        }
+    }
+
+    private synchronized void releaseActiveSlot() {
+        active--;
+        notifyAll();
+    }
+
+    private void giveBack(Connection physical, long gen) {
+        synchronized (this) {
+            active--;
+            notifyAll();
+            if (closed == false && gen == generation && idle.size() < maxIdle) {
+                idle.addFirst(physical);
+                return;
+            }
+        }
+        closeQuietly(physical);
+    }
+
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    public synchronized int getActiveCount() {
+        return active;
+    }
+
+    /**
+     * Closes the idle connections, those in use are closed once given back.
+     */
+    public synchronized void close() {
+        closed = true;
+        closeIdle();
+        notifyAll();
+    }
+
+    private void closeIdle() {
+        for (Connection conn : idle)
+            closeQuietly(conn);
+        idle.clear();
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            logger.error("failed to close", e);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return getConnection();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this))
+            return iface.cast(this);
+        throw new SQLException("Not a wrapper of " + iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    private class PooledConnection implements InvocationHandler {
+        private final Connection physical;
+        private final long generation;
+        private final ArrayList<Statement> statements = new ArrayList<Statement>();
+        private boolean closed;
+
+        PooledConnection(Connection physical, long generation) {
+            this.physical = physical;
+            this.generation = generation;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("close")) {
+                if (closed == false) {
+                    closed = true;
+                    // a statement left open would go on with the next user
+                    closeStatements();
+                    giveBack(physical, generation);
+                }
+                return null;
+            } else if (name.equals("isClosed")) {
+                return closed || physical.isClosed();
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString")) {
+                return "Pooled " + physical;
+            }
+
+            if (closed)
+                throw new SQLException("Connection is closed");
+            Object result;
+            try {
+                result = method.invoke(physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (result instanceof Statement)
+                statements.add((Statement) result);
+            return result;
+        }
+
+        private void closeStatements() {
+            for (Statement stmt : statements) {
+                try {
+                    if (stmt.isClosed() == false)
+                        stmt.close();
+                } catch (SQLException e) {
+                    logger.error("failed to close", e);
+                }
+            }
+            statements.clear();
+        }
+    }
+}
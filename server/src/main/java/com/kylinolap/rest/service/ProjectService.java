@@ -121,6 +121,7 @@ public class ProjectService extends BasicService {
     public void removeProjectCache(String name) {
         ProjectInstance project = this.getProjectManager().getProject(name);
         this.getProjectManager().removeProjectCache(project);
+        removeOLAPDataSource(name);
     }
 
 }
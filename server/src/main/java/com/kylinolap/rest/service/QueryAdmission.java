@@ -0,0 +1,245 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.rest.service;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.kylinolap.common.KylinConfig;
+import com.kylinolap.rest.exception.ServiceUnavailableException;
+import com.kylinolap.rest.metrics.QueryMetrics;
+import com.kylinolap.storage.MemoryBudget;
+
+/**
+ * Admission control of queries. A query runs in concurrency slots of the
+ * server, within the slots its project and its user may take at once, so that
+ * one heavy dashboard can't crowd out the others. Otherwise it waits in a
+ * bounded queue, and is rejected when the queue is full or the wait times out.
+ *
+ * A query takes as many slots as its weight, e.g. a count distinct query takes
+ * more than a plain one. Queries waiting are admitted in arrival order, none
+ * goes ahead of an earlier one waiting for server slots, so a heavy query is
+ * not starved by light ones. One held back by the limit of its project or
+ * user holds back only later queries of the same project or user.
+ *
+ * An admitted query gets a memory budget drawing from the memory pool of all
+ * queries, rows it holds beyond that fail the query instead of the server.
+ *
+ * @author yangli9
+ */
+public class QueryAdmission {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryAdmission.class);
+
+    public static QueryAdmission create(final KylinConfig config) {
+        MemoryBudget memoryPool = new MemoryBudget("all queries", config.getQueryMemoryBudgetTotal());
+        return new QueryAdmission(config.getQueryConcurrencyMax(), config.getQueryConcurrencyMax(), config.getQueryConcurrencyMaxOfUser(), config.getQueryQueueSize(), config.getQueryQueueTimeout(), config.getQueryMemoryBudget(), memoryPool) {
+            @Override
+            protected int getMaxOfProject(String project) {
+                return config.getQueryConcurrencyMaxOfProject(project);
+            }
+        };
+    }
+
+    private final int maxConcurrency;
+    private final int maxOfProject;
+    private final int maxOfUser;
+    private final int queueSize;
+    private final long queueTimeout;
+    private final long memoryBudget;
+    private final MemoryBudget memoryPool;
+
+    // guarded by this, slots counted by weight
+    private int running;
+    private final LinkedList<Ticket> queue = new LinkedList<Ticket>();
+    private final Map<String, Integer> runningOfProject = new HashMap<String, Integer>();
+    private final Map<String, Integer> runningOfUser = new HashMap<String, Integer>();
+
+    public QueryAdmission(int maxConcurrency, int maxOfProject, int maxOfUser, int queueSize, long queueTimeout, long memoryBudget, MemoryBudget memoryPool) {
+        this.maxConcurrency = maxConcurrency;
+        this.maxOfProject = maxOfProject;
+        this.maxOfUser = maxOfUser;
+        this.queueSize = queueSize;
+        this.queueTimeout = queueTimeout;
+        this.memoryBudget = memoryBudget;
+        this.memoryPool = memoryPool;
+    }
+
+    protected int getMaxOfProject(String project) {
+        return maxOfProject;
+    }
+
+    public Ticket admit(String project, String user) throws InterruptedException {
+        return admit(project, user, 1);
+    }
+
+    /**
+     * Waits for slots of the project and user, as many as the weight.
+     *
+     * @return the ticket to close when the query ends, not only on success
+     * @throws ServiceUnavailableException
+     *             if the queue is full or the wait timed out
+     */
+    public Ticket admit(String project, String user, int weight) throws InterruptedException {
+        // a weight beyond a limit would never run
+        weight = Math.max(1, Math.min(weight, Math.min(maxConcurrency, Math.min(getMaxOfProject(project), maxOfUser))));
+        Ticket ticket = new Ticket(project, user, weight);
+
+        synchronized (this) {
+            queue.add(ticket);
+            dispatch();
+            if (ticket.admitted == false) {
+                if (queue.size() > queueSize) {
+                    queue.remove(ticket);
+                    updateLevels();
+                    QueryMetrics.getInstance().increase("rejectedCount", (float) 1);
+                    throw new ServiceUnavailableException("Too many queries are running and queued (" + running + " slots running, " + queue.size() + " queued), please try again later.");
+                }
+
+                updateLevels();
+                long deadline = System.currentTimeMillis() + queueTimeout;
+                try {
+                    while (ticket.admitted == false) {
+                        long wait = deadline - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            QueryMetrics.getInstance().increase("queueTimeoutCount", (float) 1);
+                            throw new ServiceUnavailableException("Query waited " + queueTimeout + " ms in queue without a free slot of project " + project + " and user " + user + ", please try again later.");
+                        }
+                        wait(wait);
+                    }
+                } finally {
+                    if (ticket.admitted == false) {
+                        queue.remove(ticket);
+                        // those behind may go now
+                        dispatch();
+                        updateLevels();
+                    }
+                }
+            }
+        }
+
+        logger.debug("Query of project " + project + " and user " + user + " admitted, weight " + weight);
+        ticket.memoryBudget = new MemoryBudget("the query", memoryBudget, memoryPool);
+        return ticket;
+    }
+
+    // admits the waiting in arrival order, see class comment
+    private void dispatch() {
+        boolean admittedAny = false;
+        Set<String> heldProjects = null;
+        Set<String> heldUsers = null;
+        for (Iterator<Ticket> it = queue.iterator(); it.hasNext();) {
+            Ticket t = it.next();
+            if (running + t.weight > maxConcurrency)
+                break;
+            boolean held = (heldProjects != null && heldProjects.contains(t.project)) || (heldUsers != null && heldUsers.contains(t.user));
+            if (held || get(runningOfProject, t.project) + t.weight > getMaxOfProject(t.project) || get(runningOfUser, t.user) + t.weight > maxOfUser) {
+                // later ones of the same project or user wait behind it
+                if (heldProjects == null) {
+                    heldProjects = new HashSet<String>();
+                    heldUsers = new HashSet<String>();
+                }
+                heldProjects.add(t.project);
+                heldUsers.add(t.user);
+                continue;
+            }
+
+            it.remove();
+            t.admitted = true;
+            running += t.weight;
+            increase(runningOfProject, t.project, t.weight);
+            increase(runningOfUser, t.user, t.weight);
+            admittedAny = true;
+        }
+        if (admittedAny) {
+            updateLevels();
+            notifyAll();
+        }
+    }
+
+    private synchronized void leave(Ticket ticket) {
+        running -= ticket.weight;
+        increase(runningOfProject, ticket.project, -ticket.weight);
+        increase(runningOfUser, ticket.user, -ticket.weight);
+        updateLevels();
+        dispatch();
+    }
+
+    private void updateLevels() {
+        QueryMetrics.getInstance().setLevel("runningCount", (float) running);
+        QueryMetrics.getInstance().setLevel("queueDepth", (float) queue.size());
+    }
+
+    /**
+     * @return slots taken by running queries
+     */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getWaiting() {
+        return queue.size();
+    }
+
+    private static int get(Map<String, Integer> counts, String key) {
+        Integer n = counts.get(key);
+        return n == null ? 0 : n;
+    }
+
+    private static void increase(Map<String, Integer> counts, String key, int delta) {
+        int n = get(counts, key) + delta;
+        if (n == 0)
+            counts.remove(key);
+        else
+            counts.put(key, n);
+    }
+
+    public class Ticket {
+        private final String project;
+        private final String user;
+        private final int weight;
+        private MemoryBudget memoryBudget;
+        private boolean admitted; // guarded by the admission
+        private boolean closed;
+
+        private Ticket(String project, String user, int weight) {
+            this.project = project;
+            this.user = user;
+            this.weight = weight;
+        }
+
+        public MemoryBudget getMemoryBudget() {
+            return memoryBudget;
+        }
+
+        // frees the slots and gives the memory back
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            memoryBudget.close();
+            leave(this);
+        }
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.rest.service;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.kylinolap.common.KylinConfig;
+import com.kylinolap.cube.CubeInstance;
+import com.kylinolap.cube.CubeManager;
+import com.kylinolap.cube.project.ProjectInstance;
+import com.kylinolap.cube.project.ProjectManager;
+import com.kylinolap.query.relnode.OLAPContext;
+
+/**
+ * Caches Optiq prepared statements, i.e. parsed, optimized and compiled plans,
+ * by project and SQL with literals taken out (see ParameterizedSql). A cached
+ * plan executes again with new literals bound as dynamic parameters, which
+ * reach storage through DynamicTupleFilter and CubeEnumerator.bindVariable().
+ *
+ * A plan serves one query at a time. It is dropped once the project or a cube
+ * it was planned on is reloaded, and all plans are dropped when the OLAP data
+ * sources are reset on metadata change.
+ *
+ * Each plan pins a connection of the pooled data source, idle or not. The
+ * plans alive, across all SQLs, are capped at maxPinned: beyond that the
+ * least recently used idle plan is dropped, or the query goes without a cached
+ * plan if all are in use.
+ *
+ * @author yangli9
+ */
+public class QueryPlanCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueryPlanCache.class);
+
+    private static final int MAX_IDLE_PER_SQL = 4;
+
+    private final LinkedHashMap<String, LinkedList<CachedPlan>> idlePlans;
+    private final Set<String> uncacheable;
+    private final int maxPinned;
+    private int pinned; // plans alive, idle or checked out
+    private long generation;
+
+    public QueryPlanCache(final int capacity, int maxPinned) {
+        this.maxPinned = maxPinned;
+        this.idlePlans = new LinkedHashMap<String, LinkedList<CachedPlan>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LinkedList<CachedPlan>> eldest) {
+                if (size() <= capacity)
+                    return false;
+                disposeAll(eldest.getValue());
+                return true;
+            }
+        };
+        this.uncacheable = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+
+    /**
+     * @return a plan of the (parameterized) SQL, owned by the caller until
+     *         release() or discard(); or null if the SQL can't be cached
+     */
+    public CachedPlan checkOut(String project, String sql, DataSource dataSource) {
+        project = ProjectInstance.getNormalizedProjectName(project);
+        String key = project + "/" + sql;
+
+        long gen;
+        synchronized (this) {
+            if (uncacheable.contains(key))
+                return null;
+
+            LinkedList<CachedPlan> idle = idlePlans.get(key);
+            while (idle != null && idle.isEmpty() == false) {
+                CachedPlan plan = idle.removeFirst();
+                if (plan.isValid())
+                    return plan;
+                dispose(plan);
+            }
+
+            if (pinned >= maxPinned && evictIdle() == false) {
+                logger.debug("All " + pinned + " cached plans are in use, not to cache: " + sql);
+                return null;
+            }
+            pinned++; // taken by the plan to prepare
+            gen = generation;
+        }
+
+        return prepare(key, project, sql, dataSource, gen);
+    }
+
+    private CachedPlan prepare(String key, String project, String sql, DataSource dataSource, long gen) {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        try {
+            conn = dataSource.getConnection();
+            stmt = conn.prepareStatement(sql);
+
+            // contexts of this thread are from the planning just done
+            List<OLAPContext> contexts = new ArrayList<OLAPContext>(OLAPContext.getThreadLocalContexts());
+            for (OLAPContext ctx : contexts) {
+                if (ctx.isReusable() == false) {
+                    logger.debug("Plan is not reusable, not to cache: " + sql);
+                    closeQuietly(stmt, conn);
+                    markUncacheable(key);
+                    return null;
+                }
+            }
+            return new CachedPlan(key, gen, conn, stmt, ProjectManager.getInstance(KylinConfig.getInstanceFromEnv()).getProject(project), contexts);
+        } catch (Exception e) {
+            // e.g. cube not ready yet; tried again once the project or cube reloads
+            logger.debug("Failed to prepare, not to cache: " + sql, e);
+            closeQuietly(stmt, conn);
+            markUncacheable(key);
+            return null;
+        }
+    }
+
+    private synchronized void markUncacheable(String key) {
+        pinned--;
+        uncacheable.add(key);
+    }
+
+    // drops the least recently used idle plan
+    private boolean evictIdle() {
+        for (Iterator<LinkedList<CachedPlan>> it = idlePlans.values().iterator(); it.hasNext();) {
+            LinkedList<CachedPlan> idle = it.next();
+            if (idle.isEmpty()) {
+                it.remove();
+                continue;
+            }
+            dispose(idle.removeFirst());
+            if (idle.isEmpty())
+                it.remove();
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized void release(CachedPlan plan) {
+        if (plan.generation != generation || plan.isValid() == false) {
+            dispose(plan);
+            return;
+        }
+
+        LinkedList<CachedPlan> idle = idlePlans.get(plan.key);
+        if (idle == null) {
+            idle = new LinkedList<CachedPlan>();
+            idlePlans.put(plan.key, idle);
+        }
+        if (idle.size() < MAX_IDLE_PER_SQL)
+            idle.add(plan);
+        else
+            dispose(plan);
+    }
+
+    public synchronized void discard(CachedPlan plan) {
+        dispose(plan);
+    }
+
+    public synchronized void clear() {
+        generation++;
+        for (LinkedList<CachedPlan> idle : idlePlans.values())
+            disposeAll(idle);
+        idlePlans.clear();
+        uncacheable.clear();
+    }
+
+    public synchronized void clear(String project) {
+        generation++;
+        String prefix = ProjectInstance.getNormalizedProjectName(project) + "/";
+        for (Iterator<Map.Entry<String, LinkedList<CachedPlan>>> it = idlePlans.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, LinkedList<CachedPlan>> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                disposeAll(entry.getValue());
+                it.remove();
+            }
+        }
+        for (Iterator<String> it = uncacheable.iterator(); it.hasNext();) {
+            if (it.next().startsWith(prefix))
+                it.remove();
+        }
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (LinkedList<CachedPlan> idle : idlePlans.values())
+            size += idle.size();
+        return size;
+    }
+
+    public synchronized int getPinnedCount() {
+        return pinned;
+    }
+
+    private void dispose(CachedPlan plan) {
+        pinned--;
+        plan.close();
+    }
+
+    private void disposeAll(List<CachedPlan> plans) {
+        for (CachedPlan plan : plans)
+            dispose(plan);
+        plans.clear();
+    }
+
+    // unlike BasicService.close(), leaves parameters of the running query alone
+    private static void closeQuietly(PreparedStatement stmt, Connection conn) {
+        if (stmt != null)
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                logger.error("failed to close", e);
+            }
+        if (conn != null)
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                logger.error("failed to close", e);
+            }
+    }
+
+    /**
+     * A prepared statement with the OLAP contexts from its planning.
+     */
+    public static class CachedPlan {
+        private final String key;
+        private final long generation;
+        private final Connection conn;
+        private final PreparedStatement stmt;
+        private final ProjectInstance project;
+        private final List<OLAPContext> contexts;
+
+        CachedPlan(String key, long generation, Connection conn, PreparedStatement stmt, ProjectInstance project, List<OLAPContext> contexts) {
+            this.key = key;
+            this.generation = generation;
+            this.conn = conn;
+            this.stmt = stmt;
+            this.project = project;
+            this.contexts = contexts;
+        }
+
+        public PreparedStatement getStatement() {
+            return stmt;
+        }
+
+        /**
+         * Binds literals of ParameterizedSql.
+         *
+         * @return false if a literal doesn't match its parameter type exactly,
+         *         storage would see it differently from the literal
+         */
+        public boolean bind(List<Object> literals) throws SQLException {
+            ParameterMetaData meta = stmt.getParameterMetaData();
+            for (int i = 0; i < literals.size(); i++) {
+                Object literal = literals.get(i);
+                int type = meta.getParameterType(i + 1);
+                if (literal instanceof String) {
+                    if (type != Types.VARCHAR && type != Types.CHAR)
+                        return false;
+                    stmt.setString(i + 1, (String) literal);
+                } else {
+                    BigDecimal number = (BigDecimal) literal;
+                    switch (type) {
+                    case Types.TINYINT:
+                    case Types.SMALLINT:
+                    case Types.INTEGER:
+                    case Types.BIGINT:
+                        if (number.scale() != 0 || number.unscaledValue().bitLength() >= 64)
+                            return false;
+                        stmt.setLong(i + 1, number.longValue());
+                        break;
+                    case Types.DECIMAL:
+                    case Types.NUMERIC:
+                        stmt.setBigDecimal(i + 1, number);
+                        break;
+                    default:
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        public ResultSet executeQuery() throws SQLException {
+            // the generated code finds contexts by ID in this thread
+            OLAPContext.clearThreadLocalContexts();
+            for (OLAPContext ctx : contexts)
+                OLAPContext.registerContext(new OLAPContext(ctx));
+            return stmt.executeQuery();
+        }
+
+        boolean isValid() {
+            KylinConfig config = KylinConfig.getInstanceFromEnv();
+            if (project == null || ProjectManager.getInstance(config).getProject(project.getName()) != project)
+                return false;
+            for (OLAPContext ctx : contexts) {
+                CubeInstance cube = ctx.cubeInstance;
+                if (CubeManager.getInstance(config).getCube(cube.getName()) != cube || cube.isReady() == false)
+                    return false;
+            }
+            return true;
+        }
+
+        void close() {
+            closeQuietly(stmt, conn);
+        }
+    }
+}
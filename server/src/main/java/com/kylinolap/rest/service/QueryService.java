@@ -27,29 +27,40 @@ import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
 
 import javax.sql.DataSource;
 
 import net.hydromatic.avatica.ColumnMetaData.Rep;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.filter.ColumnPaginationFilter;
+import org.apache.hadoop.hbase.filter.ColumnPrefixFilter;
+import org.apache.hadoop.hbase.filter.FilterList;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 
@@ -58,19 +69,26 @@ import com.kylinolap.common.persistence.HBaseConnection;
 import com.kylinolap.cube.CubeInstance;
 import com.kylinolap.cube.CubeManager;
 import com.kylinolap.cube.cuboid.Cuboid;
+import com.kylinolap.cube.project.ProjectInstance;
 import com.kylinolap.query.relnode.OLAPContext;
 import com.kylinolap.rest.constant.Constant;
+import com.kylinolap.rest.exception.NotFoundException;
 import com.kylinolap.rest.metrics.QueryMetrics;
 import com.kylinolap.rest.model.ColumnMeta;
 import com.kylinolap.rest.model.Query;
 import com.kylinolap.rest.model.SelectedColumnMeta;
+import com.kylinolap.rest.model.SlowQuery;
 import com.kylinolap.rest.model.TableMeta;
 import com.kylinolap.rest.request.PrepareSqlRequest;
 import com.kylinolap.rest.request.PrepareSqlRequest.StateParam;
 import com.kylinolap.rest.request.SQLRequest;
 import com.kylinolap.rest.response.SQLResponse;
+import com.kylinolap.rest.util.ParameterizedSql;
 import com.kylinolap.rest.util.QueryUtil;
 import com.kylinolap.rest.util.Serializer;
+import com.kylinolap.storage.QueryCancelledException;
+import com.kylinolap.storage.QueryDeadline;
+import com.kylinolap.storage.QueryTrace;
 
 /**
  * @author xduo
@@ -82,13 +100,27 @@ public class QueryService extends BasicService {
 
     public static final String USER_QUERY_FAMILY = "q";
     private Serializer<Query[]> querySerializer = new Serializer<Query[]>(Query[].class);
+    private Serializer<Query> savedQuerySerializer = new Serializer<Query>(Query.class);
     private static final String DEFAULT_TABLE_PREFIX = "kylin_metadata";
     private static final String USER_TABLE_NAME = "_user";
+    // the old layout, all saved queries of a user in one cell
     private static final String USER_QUERY_COLUMN = "c";
+    // a saved query per column, the query id after the prefix
+    private static final String USER_QUERY_COLUMN_PREFIX = "q_";
     private String hbaseUrl = null;
     private String tableNameBase = null;
     private String userTableName = null;
 
+    private static QueryAdmission queryAdmission = null;
+    private static final Pattern COUNT_DISTINCT_PATTERN = Pattern.compile("count\\s*\\(\\s*distinct\\b", Pattern.CASE_INSENSITIVE);
+    private static SlowQueryStore slowQueryStore = null;
+
+    // users whose saved queries are in the layout of a column each
+    private static final Set<String> migratedUsers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // running queries of this server by query id, to cancel
+    private static final ConcurrentMap<String, RunningQuery> runningQueries = new ConcurrentHashMap<String, RunningQuery>();
+
     public QueryService() {
         String metadataUrl = KylinConfig.getInstanceFromEnv().getMetadataUrl();
         // split TABLE@HBASE_URL
@@ -98,11 +130,64 @@ public class QueryService extends BasicService {
         userTableName = tableNameBase + USER_TABLE_NAME;
     }
 
+    /**
+     * Tables and columns exposed by the project, listed once per version of
+     * its metadata and then served from TableMetaCache.
+     */
     public List<TableMeta> getMetadata(String project) throws SQLException {
-        return getMetadata(getCubeManager(), project, true);
+        TableMetaCache.Version version = TableMetaCache.getVersion(getProjectManager(), project);
+        List<TableMeta> tableMetas = TableMetaCache.get(version);
+        if (tableMetas == null) {
+            tableMetas = TableMetaCache.put(version, getMetadata(getCubeManager(), project, true));
+        }
+        return tableMetas;
+    }
+
+    /**
+     * Receives the result of a query row by row, while rows are pulled from
+     * storage. An exception thrown, e.g. client disconnected, stops the query
+     * and closes the storage scanners.
+     */
+    public interface ResultHandler {
+        // before the first row, cube is known once the query is planned
+        void start(List<SelectedColumnMeta> columnMetas, String cube) throws Exception;
+
+        void row(List<String> row) throws Exception;
+    }
+
+    /**
+     * Takes typed values off the result set directly, e.g. for binary result
+     * format, instead of every value as string.
+     */
+    public interface TypedResultHandler extends ResultHandler {
+        void row(ResultSet resultSet, int columnCount) throws Exception;
     }
 
     public SQLResponse query(SQLRequest sqlRequest) throws Exception {
+        final List<List<String>> results = new ArrayList<List<String>>();
+        SQLResponse response = query(sqlRequest, new ResultHandler() {
+            @Override
+            public void start(List<SelectedColumnMeta> columnMetas, String cube) {
+            }
+
+            @Override
+            public void row(List<String> row) {
+                results.add(row);
+            }
+        });
+        if (response.getResults() == null) {
+            response.setResults(results);
+        }
+        return response;
+    }
+
+    /**
+     * Streams rows to the handler instead of buffering them.
+     * 
+     * @return the response without results, or with results if they are not
+     *         from a query (the fake responses to tool test queries)
+     */
+    public SQLResponse query(SQLRequest sqlRequest, ResultHandler handler) throws Exception {
         SQLResponse fakeResponse = QueryUtil.tableauIntercept(sqlRequest.getSql());
         if (null != fakeResponse) {
             logger.debug("Return fake response, is exception? " + fakeResponse.getIsException());
@@ -114,55 +199,187 @@ public class QueryService extends BasicService {
         if (correctedSql.equals(sqlRequest.getSql()) == false)
             logger.debug("The corrected query: " + correctedSql);
 
-        return executeQuery(correctedSql, sqlRequest);
+        String queryId = sqlRequest.getQueryId();
+        if (queryId == null) {
+            queryId = UUID.randomUUID().toString();
+            sqlRequest.setQueryId(queryId);
+        }
+        QueryDeadline deadline = new QueryDeadline(getTimeout(sqlRequest));
+        RunningQuery running = new RunningQuery(getUserName(), deadline);
+        if (runningQueries.putIfAbsent(queryId, running) != null) {
+            throw new IllegalArgumentException("Query " + queryId + " is already running");
+        }
+
+        // traced if asked, or to keep if it turns out slow
+        QueryTrace trace = sqlRequest.isTrace() || getSlowQueryStore().isEnabled() ? new QueryTrace() : null;
+        String exceptionMessage = null;
+        try {
+            // the wait in queue counts against the timeout as well
+            String project = sqlRequest.getProject() == null ? null : ProjectInstance.getNormalizedProjectName(sqlRequest.getProject());
+            QueryTrace.Span admissionSpan = trace == null ? null : trace.startSpan("admission");
+            QueryAdmission.Ticket ticket = getQueryAdmission().admit(project, getUserName(), getAdmissionWeight(correctedSql));
+            if (admissionSpan != null)
+                admissionSpan.end();
+            try {
+                deadline.check();
+                OLAPContext.setMemoryBudget(ticket.getMemoryBudget());
+                OLAPContext.setQueryDeadline(deadline);
+                OLAPContext.setQueryTrace(trace);
+                SQLResponse response = executeQuery(correctedSql, sqlRequest, handler);
+                response.setQueryId(queryId);
+                if (sqlRequest.isTrace())
+                    response.setTrace(trace);
+                return response;
+            } finally {
+                OLAPContext.clearMemoryBudget();
+                OLAPContext.clearQueryDeadline();
+                OLAPContext.clearQueryTrace();
+                ticket.close();
+            }
+        } catch (Exception e) {
+            exceptionMessage = e.getMessage();
+            throw e;
+        } finally {
+            runningQueries.remove(queryId, running);
+            if (trace != null) {
+                trace.phase(null);
+                long duration = System.currentTimeMillis() - trace.getStartTime();
+                if (getSlowQueryStore().offer(new SlowQuery(queryId, sqlRequest.getProject(), getUserName(), sqlRequest.getSql(), duration, exceptionMessage, trace)))
+                    logger.info("Slow query " + queryId + " took " + duration + " ms, trace kept");
+            }
+        }
     }
 
-    public void saveQuery(final String creator, final Query query) throws IOException {
-        List<Query> queries = getQueries(creator);
-        queries.add(query);
-        Query[] queryArray = new Query[queries.size()];
+    public static synchronized SlowQueryStore getSlowQueryStore() {
+        if (slowQueryStore == null) {
+            KylinConfig config = KylinConfig.getInstanceFromEnv();
+            slowQueryStore = new SlowQueryStore(config.getQuerySlowThreshold(), config.getQuerySlowStoreSize());
+        }
+        return slowQueryStore;
+    }
 
-        byte[] bytes = querySerializer.serialize(queries.toArray(queryArray));
-        HTableInterface htable = null;
-        try {
-            htable = HBaseConnection.get(hbaseUrl).getTable(userTableName);
-            Put put = new Put(Bytes.toBytes(creator));
-            put.add(Bytes.toBytes(USER_QUERY_FAMILY), Bytes.toBytes(USER_QUERY_COLUMN), bytes);
+    @PreAuthorize(Constant.ACCESS_HAS_ROLE_ADMIN)
+    public List<SlowQuery> getSlowQueries() {
+        return getSlowQueryStore().list();
+    }
 
-            htable.put(put);
-            htable.flushCommits();
-        } finally {
-            IOUtils.closeQuietly(htable);
+    /**
+     * @throws NotFoundException
+     *             if not kept, or evicted by later slow queries
+     */
+    @PreAuthorize(Constant.ACCESS_HAS_ROLE_ADMIN)
+    public SlowQuery getSlowQuery(String queryId) {
+        SlowQuery query = getSlowQueryStore().get(queryId);
+        if (query == null)
+            throw new NotFoundException("Slow query " + queryId + " is not found");
+        return query;
+    }
+
+    // count distinct holds HLL counters of every group and often can't use coprocessor, it takes more slots
+    private int getAdmissionWeight(String sql) {
+        return COUNT_DISTINCT_PATTERN.matcher(sql).find() ? getConfig().getQueryCountDistinctWeight() : 1;
+    }
+
+    // the shorter of request and server timeout, 0 if neither has one
+    private long getTimeout(SQLRequest sqlRequest) {
+        long serverTimeout = getConfig().getQueryTimeout();
+        long timeout = sqlRequest.getTimeout();
+        if (timeout <= 0)
+            return serverTimeout;
+        return serverTimeout > 0 ? Math.min(timeout, serverTimeout) : timeout;
+    }
+
+    /**
+     * Cancels a running query, it stops at the next check of its deadline in
+     * storage. Coprocessor scans already sent still run to their timeout.
+     * 
+     * @throws NotFoundException
+     *             if no such query is running on this server, or it is of
+     *             another user and the current user is not admin
+     */
+    public void cancelQuery(String queryId) {
+        RunningQuery running = runningQueries.get(queryId);
+        String user = getUserName();
+        if (running == null || (user != null && user.equals(running.user) == false && isAdmin() == false)) {
+            throw new NotFoundException("Query " + queryId + " is not running on this server");
         }
+        running.deadline.cancel("by " + user);
+        logger.info("Query " + queryId + " of " + running.user + " cancelled by " + user);
     }
 
-    public void removeQuery(final String creator, final String id) throws IOException {
-        List<Query> queries = getQueries(creator);
-        Iterator<Query> queryIter = queries.iterator();
-
-        boolean changed = false;
-        while (queryIter.hasNext()) {
-            Query temp = queryIter.next();
-            if (temp.getId().equals(id)) {
-                queryIter.remove();
-                changed = true;
-                break;
-            }
+    public static boolean isCancelled(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof QueryCancelledException)
+                return true;
         }
+        return false;
+    }
 
-        if (!changed) {
-            return;
+    private boolean isAdmin() {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth == null)
+            return false;
+        for (GrantedAuthority authority : auth.getAuthorities()) {
+            if (Constant.ROLE_ADMIN.equals(authority.getAuthority()))
+                return true;
+        }
+        return false;
+    }
+
+    private static class RunningQuery {
+        final String user;
+        final QueryDeadline deadline;
+
+        RunningQuery(String user, QueryDeadline deadline) {
+            this.user = user;
+            this.deadline = deadline;
+        }
+    }
+
+    public static synchronized QueryAdmission getQueryAdmission() {
+        if (queryAdmission == null) {
+            queryAdmission = QueryAdmission.create(KylinConfig.getInstanceFromEnv());
+        }
+        return queryAdmission;
+    }
+
+    private String getUserName() {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        return auth == null ? null : auth.getName();
+    }
+
+    /**
+     * Saves a query of the user in a column of its own, in the row of the
+     * user. A query saved twice is kept once.
+     */
+    public void saveQuery(final String creator, final Query query) throws IOException {
+        byte[] row = Bytes.toBytes(creator);
+        byte[] column = queryColumn(query.getId());
+        HTableInterface htable = null;
+        try {
+            htable = getUserTable();
+            migrateSavedQueries(htable, creator);
+
+            Put put = new Put(row);
+            put.add(Bytes.toBytes(USER_QUERY_FAMILY), column, savedQuerySerializer.serialize(query));
+            // put if absent, saves of other queries go to other columns and don't conflict
+            if (!htable.checkAndPut(row, Bytes.toBytes(USER_QUERY_FAMILY), column, null, put)) {
+                logger.debug("Query " + query.getId() + " of " + creator + " is saved already");
+            }
+        } finally {
+            IOUtils.closeQuietly(htable);
         }
+    }
 
-        Query[] queryArray = new Query[queries.size()];
-        byte[] bytes = querySerializer.serialize(queries.toArray(queryArray));
+    public void removeQuery(final String creator, final String id) throws IOException {
         HTableInterface htable = null;
         try {
-            htable = HBaseConnection.get(hbaseUrl).getTable(userTableName);
-            Put put = new Put(Bytes.toBytes(creator));
-            put.add(Bytes.toBytes(USER_QUERY_FAMILY), Bytes.toBytes(USER_QUERY_COLUMN), bytes);
+            htable = getUserTable();
+            migrateSavedQueries(htable, creator);
 
-            htable.put(put);
+            Delete delete = new Delete(Bytes.toBytes(creator));
+            delete.deleteColumns(Bytes.toBytes(USER_QUERY_FAMILY), queryColumn(id));
+            htable.delete(delete);
             htable.flushCommits();
         } finally {
             IOUtils.closeQuietly(htable);
@@ -170,6 +387,15 @@ public class QueryService extends BasicService {
     }
 
     public List<Query> getQueries(final String creator) throws IOException {
+        return getQueries(creator, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * A page of saved queries of the user, in order of query id, not of
+     * saving. Only the columns of the page are read, other columns of the
+     * family (like the old list) are skipped on the region server.
+     */
+    public List<Query> getQueries(final String creator, int offset, int limit) throws IOException {
         if (null == creator) {
             return null;
         }
@@ -177,14 +403,23 @@ public class QueryService extends BasicService {
         List<Query> queries = new ArrayList<Query>();
         HTableInterface htable = null;
         try {
-            htable = HBaseConnection.get(hbaseUrl).getTable(userTableName);
+            htable = getUserTable();
+            migrateSavedQueries(htable, creator);
+
             Get get = new Get(Bytes.toBytes(creator));
             get.addFamily(Bytes.toBytes(USER_QUERY_FAMILY));
+            // prefix first, the page counts saved queries only
+            get.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ALL, new ColumnPrefixFilter(Bytes.toBytes(USER_QUERY_COLUMN_PREFIX)), new ColumnPaginationFilter(limit, offset)));
             Result result = htable.get(get);
-            Query[] query = querySerializer.deserialize(result.getValue(Bytes.toBytes(USER_QUERY_FAMILY), Bytes.toBytes(USER_QUERY_COLUMN)));
 
-            if (null != query) {
-                queries.addAll(Arrays.asList(query));
+            NavigableMap<byte[], byte[]> columns = result.getFamilyMap(Bytes.toBytes(USER_QUERY_FAMILY));
+            if (null != columns) {
+                for (byte[] value : columns.values()) {
+                    Query query = savedQuerySerializer.deserialize(value);
+                    if (null != query) {
+                        queries.add(query);
+                    }
+                }
             }
         } finally {
             IOUtils.closeQuietly(htable);
@@ -193,6 +428,51 @@ public class QueryService extends BasicService {
         return queries;
     }
 
+    /*
+     * Saved queries used to be a list in one cell of the user row, moves them
+     * to a column each. The list is dropped only if it has not changed
+     * meanwhile, otherwise it's moved again next time.
+     */
+    private void migrateSavedQueries(HTableInterface htable, String creator) throws IOException {
+        if (migratedUsers.contains(creator)) {
+            return;
+        }
+
+        byte[] row = Bytes.toBytes(creator);
+        Get get = new Get(row);
+        get.addColumn(Bytes.toBytes(USER_QUERY_FAMILY), Bytes.toBytes(USER_QUERY_COLUMN));
+        byte[] bytes = htable.get(get).getValue(Bytes.toBytes(USER_QUERY_FAMILY), Bytes.toBytes(USER_QUERY_COLUMN));
+
+        if (null != bytes) {
+            Query[] queries = querySerializer.deserialize(bytes);
+            Put put = new Put(row);
+            for (Query query : queries) {
+                put.add(Bytes.toBytes(USER_QUERY_FAMILY), queryColumn(query.getId()), savedQuerySerializer.serialize(query));
+            }
+            if (!put.isEmpty()) {
+                htable.put(put);
+                htable.flushCommits();
+            }
+
+            Delete delete = new Delete(row);
+            delete.deleteColumns(Bytes.toBytes(USER_QUERY_FAMILY), Bytes.toBytes(USER_QUERY_COLUMN));
+            if (!htable.checkAndDelete(row, Bytes.toBytes(USER_QUERY_FAMILY), Bytes.toBytes(USER_QUERY_COLUMN), bytes, delete)) {
+                return;
+            }
+            logger.info("Moved " + queries.length + " saved queries of " + creator + " to a column each");
+        }
+        migratedUsers.add(creator);
+    }
+
+    private static byte[] queryColumn(String id) {
+        return Bytes.toBytes(USER_QUERY_COLUMN_PREFIX + id);
+    }
+
+    // on the shared connection of the server
+    private HTableInterface getUserTable() throws IOException {
+        return HBaseConnection.get(hbaseUrl).getTable(userTableName);
+    }
+
     public void logQuery(final SQLRequest request, final SQLResponse response, final Date startTime, final Date endTime) {
         final String user = SecurityContextHolder.getContext().getAuthentication().getName();
         final Set<String> cubeNames = new HashSet<String>();
@@ -255,7 +535,7 @@ public class QueryService extends BasicService {
     public void checkAuthorization(CubeInstance cube) throws AccessDeniedException {
     }
 
-    protected SQLResponse executeQuery(String sql, SQLRequest sqlRequest) throws Exception {
+    protected SQLResponse executeQuery(String sql, SQLRequest sqlRequest, ResultHandler handler) throws Exception {
         sql = sql.trim().replace(";", "");
 
         int limit = sqlRequest.getLimit();
@@ -271,9 +551,13 @@ public class QueryService extends BasicService {
         // add extra parameters into olap context, like acceptPartial
         Map<String, String> parameters = new HashMap<String, String>();
         parameters.put(OLAPContext.PRM_ACCEPT_PARTIAL_RESULT, String.valueOf(sqlRequest.isAcceptPartial()));
+        if (sqlRequest.getSamplingRatio() < 1.0 || sqlRequest.getLatencyTarget() > 0) {
+            parameters.put(OLAPContext.PRM_SAMPLING_RATIO, String.valueOf(sqlRequest.getSamplingRatio()));
+            parameters.put(OLAPContext.PRM_LATENCY_TARGET, String.valueOf(sqlRequest.getLatencyTarget()));
+        }
         OLAPContext.setParameters(parameters);
 
-        return execute(sql, sqlRequest);
+        return execute(sql, sqlRequest, handler);
     }
 
     protected List<TableMeta> getMetadata(CubeManager cubeMgr, String project, boolean cubedOnly) throws SQLException {
@@ -317,8 +601,10 @@ public class QueryService extends BasicService {
                 // kylin(optiq) is not strictly following JDBC specification
                 ColumnMeta colmnMeta = new ColumnMeta(catalogName == null ? Constant.FakeCatalogName : catalogName, schemaName == null ? Constant.FakeSchemaName : schemaName, columnMeta.getString(3), columnMeta.getString(4), columnMeta.getInt(5), columnMeta.getString(6), columnMeta.getInt(7), getInt(columnMeta.getString(8)), columnMeta.getInt(9), columnMeta.getInt(10), columnMeta.getInt(11), columnMeta.getString(12), columnMeta.getString(13), getInt(columnMeta.getString(14)), getInt(columnMeta.getString(15)), columnMeta.getInt(16), columnMeta.getInt(17), columnMeta.getString(18), columnMeta.getString(19), columnMeta.getString(20), columnMeta.getString(21), getShort(columnMeta.getString(22)), columnMeta.getString(23));
 
-                if (!cubedOnly || getProjectManager().isExposedColumn(project, colmnMeta.getTABLE_NAME(), colmnMeta.getCOLUMN_NAME())) {
-                    tableMap.get(colmnMeta.getTABLE_SCHEM() + "#" + colmnMeta.getTABLE_NAME()).addColumn(colmnMeta);
+                // columns of tables not listed, e.g. the metadata schema, are skipped without a look up
+                TableMeta tblMeta = tableMap.get(colmnMeta.getTABLE_SCHEM() + "#" + colmnMeta.getTABLE_NAME());
+                if (tblMeta != null && (!cubedOnly || getProjectManager().isExposedColumn(project, colmnMeta.getTABLE_NAME(), colmnMeta.getCOLUMN_NAME()))) {
+                    tblMeta.addColumn(colmnMeta);
                 }
             }
             logger.debug("done column metas");
@@ -335,18 +621,29 @@ public class QueryService extends BasicService {
      * @return
      * @throws Exception
      */
-    private SQLResponse execute(String sql, SQLRequest sqlRequest) throws Exception {
+    private SQLResponse execute(String sql, SQLRequest sqlRequest, ResultHandler handler) throws Exception {
         Connection conn = null;
         Statement stat = null;
         ResultSet resultSet = null;
-        List<List<String>> results = new LinkedList<List<String>>();
+        QueryPlanCache.CachedPlan plan = null;
+        boolean planSucceeded = false;
         List<SelectedColumnMeta> columnMetas = new LinkedList<SelectedColumnMeta>();
 
-        try {
-            conn = getOLAPDataSource(sqlRequest.getProject()).getConnection();
+        QueryTrace trace = OLAPContext.getQueryTrace();
+        long serializeNanos = 0;
 
-            if (sqlRequest instanceof PrepareSqlRequest) {
+        try {
+            if (trace != null)
+                trace.phase(QueryTrace.PHASE_BIND_PLAN);
+            plan = checkOutPlan(sql, sqlRequest);
+            if (plan != null) {
+                resultSet = plan.executeQuery();
+            } else if (isPrepared(sqlRequest)) {
+                if (trace != null)
+                    trace.phase(QueryTrace.PHASE_PARSE_AND_PLAN);
+                conn = getOLAPDataSource(sqlRequest.getProject()).getConnection();
                 PreparedStatement preparedState = conn.prepareStatement(sql);
+                stat = preparedState;
 
                 for (int i = 0; i < ((PrepareSqlRequest) sqlRequest).getParams().length; i++) {
                     setParam(preparedState, i + 1, ((PrepareSqlRequest) sqlRequest).getParams()[i]);
@@ -354,9 +651,14 @@ public class QueryService extends BasicService {
 
                 resultSet = preparedState.executeQuery();
             } else {
+                if (trace != null)
+                    trace.phase(QueryTrace.PHASE_PARSE_AND_PLAN);
+                conn = getOLAPDataSource(sqlRequest.getProject()).getConnection();
                 stat = conn.createStatement();
                 resultSet = stat.executeQuery(sql);
             }
+            if (trace != null)
+                trace.phase(QueryTrace.PHASE_EXECUTE);
 
             ResultSetMetaData metaData = resultSet.getMetaData();
             int columnCount = metaData.getColumnCount();
@@ -366,36 +668,124 @@ public class QueryService extends BasicService {
                 columnMetas.add(new SelectedColumnMeta(metaData.isAutoIncrement(i), metaData.isCaseSensitive(i), metaData.isSearchable(i), metaData.isCurrency(i), metaData.isNullable(i), metaData.isSigned(i), metaData.getColumnDisplaySize(i), metaData.getColumnLabel(i), metaData.getColumnName(i), metaData.getSchemaName(i), metaData.getCatalogName(i), metaData.getTableName(i), metaData.getPrecision(i), metaData.getScale(i), metaData.getColumnType(i), metaData.getColumnTypeName(i), metaData.isReadOnly(i), metaData.isWritable(i), metaData.isDefinitelyWritable(i)));
             }
 
-            List<String> oneRow = new LinkedList<String>();
+            handler.start(columnMetas, getCubeName());
 
-            // fill in results
+            // pass on results, rows are pulled from storage as they go
+            TypedResultHandler typedHandler = handler instanceof TypedResultHandler ? (TypedResultHandler) handler : null;
             while (resultSet.next()) {
-                for (int i = 0; i < columnCount; i++) {
-                    oneRow.add((resultSet.getString(i + 1)));
+                long start = trace == null ? 0 : System.nanoTime();
+                if (typedHandler != null) {
+                    typedHandler.row(resultSet, columnCount);
+                } else {
+                    String[] oneRow = new String[columnCount];
+                    for (int i = 0; i < columnCount; i++) {
+                        oneRow[i] = resultSet.getString(i + 1);
+                    }
+                    handler.row(Arrays.asList(oneRow));
                 }
-
-                results.add(new LinkedList<String>(oneRow));
-                oneRow.clear();
+                if (trace != null)
+                    serializeNanos += System.nanoTime() - start;
             }
+            planSucceeded = true;
         } finally {
+            // also closes the storage scanners if the handler quit early
             close(resultSet, stat, conn);
+            if (plan != null) {
+                if (planSucceeded)
+                    getQueryPlanCache().release(plan);
+                else
+                    getQueryPlanCache().discard(plan);
+            }
+        }
+
+        if (trace != null) {
+            // storage counters are in once the result set is closed, the rest is Optiq
+            trace.phase(null);
+            trace.count(QueryTrace.COUNTER_SERIALIZE_MS, serializeNanos / 1000000);
+            long postAggregation = trace.getPhaseDuration(QueryTrace.PHASE_EXECUTE) - trace.getCounter(QueryTrace.COUNTER_STORAGE_MS) - trace.getCounter(QueryTrace.COUNTER_SERIALIZE_MS);
+            trace.count(QueryTrace.COUNTER_POST_AGGREGATION_MS, Math.max(0, postAggregation));
         }
 
         boolean isPartialResult = false;
+        boolean isApproximate = false;
+        double sampledRatio = 1.0;
+        double approximateError = 0;
         String cube = "";
         long totalScanCount = 0;
         for (OLAPContext ctx : OLAPContext.getThreadLocalContexts()) {
             isPartialResult |= ctx.storageContext.isPartialResultReturned();
             cube = ctx.cubeInstance.getName();
             totalScanCount += ctx.storageContext.getTotalScanCount();
+            if (ctx.storageContext.isApproximateResultReturned()) {
+                // the least accurate context bounds the result, NaN (unknown) wins in max()
+                isApproximate = true;
+                sampledRatio = Math.min(sampledRatio, ctx.storageContext.getSampledRatio());
+                approximateError = Math.max(approximateError, ctx.storageContext.getApproximateError());
+            }
         }
 
-        SQLResponse response = new SQLResponse(columnMetas, results, cube, 0, false, null, isPartialResult);
+        SQLResponse response = new SQLResponse(columnMetas, null, cube, 0, false, null, isPartialResult);
         response.setTotalScanCount(totalScanCount);
+        if (isApproximate) {
+            response.setApproximate(sampledRatio, Double.isNaN(approximateError) ? null : approximateError);
+        }
 
         return response;
     }
 
+    // the streaming endpoint takes both plain and prepared statements
+    private boolean isPrepared(SQLRequest sqlRequest) {
+        return sqlRequest instanceof PrepareSqlRequest && ((PrepareSqlRequest) sqlRequest).getParams() != null;
+    }
+
+    private String getCubeName() {
+        String cube = "";
+        for (OLAPContext ctx : OLAPContext.getThreadLocalContexts()) {
+            if (ctx.cubeInstance != null)
+                cube = ctx.cubeInstance.getName();
+        }
+        return cube;
+    }
+
+    /**
+     * @return a cached plan with literals or parameters bound, or null to
+     *         plan the query as usual
+     */
+    private QueryPlanCache.CachedPlan checkOutPlan(String sql, SQLRequest sqlRequest) {
+        if (getConfig().isQueryPlanCacheEnabled() == false)
+            return null;
+
+        ParameterizedSql parameterized = ParameterizedSql.parse(sql);
+        QueryPlanCache cache = getQueryPlanCache();
+        QueryPlanCache.CachedPlan plan = cache.checkOut(sqlRequest.getProject(), parameterized.getSql(), getOLAPDataSource(sqlRequest.getProject()));
+        if (plan == null)
+            return null;
+
+        try {
+            boolean bound;
+            if (isPrepared(sqlRequest)) {
+                StateParam[] params = ((PrepareSqlRequest) sqlRequest).getParams();
+                for (int i = 0; i < params.length; i++) {
+                    setParam(plan.getStatement(), i + 1, params[i]);
+                }
+                bound = true;
+            } else {
+                bound = plan.bind(parameterized.getLiterals());
+            }
+
+            if (bound == false) {
+                cache.release(plan);
+                return null;
+            }
+            logger.debug("Use cached plan of " + parameterized);
+            return plan;
+        } catch (Exception e) {
+            logger.debug("Failed to bind cached plan of " + parameterized, e);
+            cache.discard(plan);
+            return null;
+        }
+    }
+
     /**
      * @param preparedState
      * @param param
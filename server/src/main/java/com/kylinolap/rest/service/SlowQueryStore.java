@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.rest.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.kylinolap.rest.model.SlowQuery;
+
+/**
+ * The latest slow queries of this server, in memory and bounded in count, so
+ * that their traces can be looked at after the fact.
+ *
+ * @author yangli9
+ */
+public class SlowQueryStore {
+
+    private final long threshold;
+    private final int capacity;
+
+    // guarded by this, the latest first
+    private final LinkedList<SlowQuery> queries = new LinkedList<SlowQuery>();
+
+    /**
+     * @param threshold
+     *            in ms, queries taking less are not kept, 0 to keep none
+     */
+    public SlowQueryStore(long threshold, int capacity) {
+        this.threshold = threshold;
+        this.capacity = capacity;
+    }
+
+    public boolean isEnabled() {
+        return threshold > 0 && capacity > 0;
+    }
+
+    /**
+     * @return true if the query is slow and kept
+     */
+    public boolean offer(SlowQuery query) {
+        if (isEnabled() == false || query.getDuration() < threshold)
+            return false;
+
+        synchronized (this) {
+            queries.addFirst(query);
+            while (queries.size() > capacity) {
+                queries.removeLast();
+            }
+        }
+        return true;
+    }
+
+    public synchronized List<SlowQuery> list() {
+        return Collections.unmodifiableList(new ArrayList<SlowQuery>(queries));
+    }
+
+    // null if not kept or already evicted
+    public synchronized SlowQuery get(String queryId) {
+        for (SlowQuery query : queries) {
+            if (query.getQueryId().equals(queryId))
+                return query;
+        }
+        return null;
+    }
+}
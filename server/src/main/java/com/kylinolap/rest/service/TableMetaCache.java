@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.rest.service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.kylinolap.cube.project.ProjectInstance;
+import com.kylinolap.cube.project.ProjectManager;
+import com.kylinolap.metadata.model.schema.TableDesc;
+import com.kylinolap.rest.model.TableMeta;
+
+/**
+ * Tables and columns of a project as listed to clients, built once per
+ * project instead of on every call.
+ *
+ * A listing is valid for the version of metadata it was built from, that is
+ * the project as loaded and the exposed tables as loaded. Any reload makes a
+ * new version. Metadata change events clear the cache as well, and a listing
+ * built across a clear is not kept.
+ *
+ * @author yangli9
+ */
+public class TableMetaCache {
+
+    private static final ConcurrentHashMap<String, Entry> ENTRIES = new ConcurrentHashMap<String, Entry>();
+    private static final AtomicLong generation = new AtomicLong();
+
+    /**
+     * The current version of metadata of the project, take it before
+     * building a listing.
+     */
+    public static Version getVersion(ProjectManager projectManager, String project) {
+        project = ProjectInstance.getNormalizedProjectName(project);
+        return new Version(project, generation.get(), projectManager, projectManager.getProject(project), projectManager.listExposedTables(project));
+    }
+
+    /**
+     * @return the listing of the version, or null if not cached
+     */
+    public static List<TableMeta> get(Version version) {
+        Entry entry = ENTRIES.get(version.project);
+        if (entry == null || entry.version.isSame(version) == false)
+            return null;
+        return entry.tables;
+    }
+
+    /**
+     * @return the listing as cached, unmodifiable
+     */
+    public static List<TableMeta> put(Version version, List<TableMeta> tables) {
+        tables = Collections.unmodifiableList(tables);
+        if (version.generation == generation.get()) {
+            ENTRIES.put(version.project, new Entry(version, tables));
+        }
+        return tables;
+    }
+
+    public static void clearCache() {
+        generation.incrementAndGet();
+        ENTRIES.clear();
+    }
+
+    public static void clearCache(String project) {
+        generation.incrementAndGet();
+        ENTRIES.remove(ProjectInstance.getNormalizedProjectName(project));
+    }
+
+    // ============================================================================
+
+    public static class Version {
+        private final String project;
+        private final long generation;
+        private final ProjectManager projectManager;
+        private final ProjectInstance projectInstance;
+        private final List<TableDesc> tables;
+
+        Version(String project, long generation, ProjectManager projectManager, ProjectInstance projectInstance, List<TableDesc> tables) {
+            this.project = project;
+            this.generation = generation;
+            this.projectManager = projectManager;
+            this.projectInstance = projectInstance;
+            this.tables = tables;
+        }
+
+        // same loaded objects, tables and columns can't differ
+        private boolean isSame(Version other) {
+            if (generation != other.generation || projectManager != other.projectManager || projectInstance != other.projectInstance)
+                return false;
+            if (tables.size() != other.tables.size())
+                return false;
+            for (int i = 0; i < tables.size(); i++) {
+                if (tables.get(i) != other.tables.get(i))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private static class Entry {
+        private final Version version;
+        private final List<TableMeta> tables;
+
+        Entry(Version version, List<TableMeta> tables) {
+            this.version = version;
+            this.tables = tables;
+        }
+    }
+}
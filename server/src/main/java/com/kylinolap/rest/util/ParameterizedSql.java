@@ -0,0 +1,236 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.rest.util;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SQL with literals of comparisons (e.g. col = 'x', col > 10) taken out as
+ * dynamic parameters, so that queries differing only in these literals share
+ * one plan. Comments and extra white spaces are dropped as well.
+ *
+ * Literals elsewhere (LIKE, BETWEEN, IN list, LIMIT, DATE '...', etc.) stay,
+ * they often decide the plan. SQL already having parameters is only
+ * normalized.
+ *
+ * @author yangli9
+ */
+public class ParameterizedSql {
+
+    private static final String[] COMPARISONS = { "<>", "!=", "<=", ">=", "=", "<", ">" };
+
+    /**
+     * @return SQL normalized, literals are either String or BigDecimal
+     */
+    public static ParameterizedSql parse(String sql) {
+        boolean hasParams = hasParameter(sql);
+        StringBuilder buf = new StringBuilder(sql.length());
+        List<Object> literals = new ArrayList<Object>();
+
+        int i = 0;
+        int n = sql.length();
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (c == '-' && i + 1 < n && sql.charAt(i + 1) == '-') {
+                // line comment
+                while (i < n && sql.charAt(i) != '\n')
+                    i++;
+                appendSpace(buf);
+            } else if (c == '/' && i + 1 < n && sql.charAt(i + 1) == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? n : end + 2;
+                appendSpace(buf);
+            } else if (Character.isWhitespace(c)) {
+                i++;
+                appendSpace(buf);
+            } else if (c == '"') {
+                int end = endOfQuoted(sql, i, '"');
+                buf.append(sql, i, end);
+                i = end;
+            } else if (c == '\'') {
+                int end = endOfQuoted(sql, i, '\'');
+                if (hasParams == false && isAfterComparison(buf) && isStandalone(sql, i)) {
+                    literals.add(sql.substring(i + 1, end - 1).replace("''", "'"));
+                    buf.append('?');
+                } else {
+                    buf.append(sql, i, end);
+                }
+                i = end;
+            } else if (Character.isDigit(c) || (c == '.' && i + 1 < n && Character.isDigit(sql.charAt(i + 1)))) {
+                int end = endOfNumber(sql, i);
+                String number = sql.substring(i, end);
+                boolean inWord = end < n && Character.isJavaIdentifierPart(sql.charAt(end));
+                if (hasParams == false && inWord == false && isAfterComparison(buf) && isStandalone(sql, i)) {
+                    literals.add(new BigDecimal(number));
+                    buf.append('?');
+                } else {
+                    buf.append(number);
+                }
+                i = end;
+            } else if (Character.isJavaIdentifierPart(c)) {
+                // identifiers and keywords, digits inside are not numbers
+                int end = i;
+                while (end < n && Character.isJavaIdentifierPart(sql.charAt(end)))
+                    end++;
+                buf.append(sql, i, end);
+                i = end;
+            } else {
+                buf.append(c);
+                i++;
+            }
+        }
+
+        int len = buf.length();
+        while (len > 0 && buf.charAt(len - 1) == ' ')
+            len--;
+        buf.setLength(len);
+        return new ParameterizedSql(buf.toString(), literals);
+    }
+
+    private static boolean hasParameter(String sql) {
+        int i = 0;
+        int n = sql.length();
+        while (i < n) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"')
+                i = endOfQuoted(sql, i, c);
+            else if (c == '?')
+                return true;
+            else
+                i++;
+        }
+        return false;
+    }
+
+    private static void appendSpace(StringBuilder buf) {
+        if (buf.length() > 0 && buf.charAt(buf.length() - 1) != ' ')
+            buf.append(' ');
+    }
+
+    // index after the closing quote, a doubled quote is an escaped one
+    private static int endOfQuoted(String sql, int start, char quote) {
+        int i = start + 1;
+        while (i < sql.length()) {
+            if (sql.charAt(i) == quote) {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return sql.length();
+    }
+
+    private static int endOfNumber(String sql, int start) {
+        int i = start;
+        int n = sql.length();
+        while (i < n && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.'))
+            i++;
+        if (i < n && (sql.charAt(i) == 'e' || sql.charAt(i) == 'E')) {
+            int j = i + 1;
+            if (j < n && (sql.charAt(j) == '+' || sql.charAt(j) == '-'))
+                j++;
+            if (j < n && Character.isDigit(sql.charAt(j))) {
+                i = j;
+                while (i < n && Character.isDigit(sql.charAt(i)))
+                    i++;
+            }
+        }
+        return i;
+    }
+
+    // skips white spaces and comments
+    private static int skipBlank(String sql, int start) {
+        int i = start;
+        int n = sql.length();
+        while (i < n) {
+            if (Character.isWhitespace(sql.charAt(i))) {
+                i++;
+            } else if (sql.startsWith("--", i)) {
+                int end = sql.indexOf('\n', i);
+                i = end < 0 ? n : end + 1;
+            } else if (sql.startsWith("/*", i)) {
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? n : end + 2;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static boolean isAfterComparison(StringBuilder buf) {
+        int end = buf.length();
+        while (end > 0 && buf.charAt(end - 1) == ' ')
+            end--;
+        String before = buf.substring(0, end);
+        for (String op : COMPARISONS) {
+            if (before.endsWith(op))
+                return true;
+        }
+        return false;
+    }
+
+    // the literal is an operand by itself, e.g. not 'a' || 'b' or 1 + x
+    private static boolean isStandalone(String sql, int start) {
+        int end = sql.charAt(start) == '\'' ? endOfQuoted(sql, start, '\'') : endOfNumber(sql, start);
+        int i = skipBlank(sql, end);
+        if (i == sql.length())
+            return true;
+        char c = sql.charAt(i);
+        if (c == ')' || c == ',' || c == ';')
+            return true;
+        if (Character.isJavaIdentifierStart(c)) {
+            int j = i;
+            while (j < sql.length() && Character.isJavaIdentifierPart(sql.charAt(j)))
+                j++;
+            String word = sql.substring(i, j).toUpperCase();
+            // clause or logical keywords after an operand
+            return word.equals("AND") || word.equals("OR") || word.equals("GROUP") || word.equals("ORDER") || word.equals("HAVING") //
+                    || word.equals("LIMIT") || word.equals("OFFSET") || word.equals("UNION") || word.equals("THEN") //
+                    || word.equals("WHEN") || word.equals("ELSE") || word.equals("END") || word.equals("FETCH");
+        }
+        return false;
+    }
+
+    // ============================================================================
+
+    private final String sql;
+    private final List<Object> literals;
+
+    private ParameterizedSql(String sql, List<Object> literals) {
+        this.sql = sql;
+        this.literals = Collections.unmodifiableList(literals);
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public List<Object> getLiterals() {
+        return literals;
+    }
+
+    @Override
+    public String toString() {
+        return sql + " " + literals;
+    }
+}
@@ -0,0 +1,475 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.rest.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.supercsv.io.CsvListWriter;
+import org.supercsv.io.ICsvListWriter;
+import org.supercsv.prefs.CsvPreference;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ning.compress.lzf.LZFEncoder;
+import com.kylinolap.rest.model.SelectedColumnMeta;
+import com.kylinolap.rest.response.SQLResponse;
+import com.kylinolap.rest.service.QueryService;
+
+/**
+ * Writes query results to the response body as rows come from storage, so
+ * that a big result is never held in memory. A slow client blocks the writes
+ * and in turn the storage scan; a gone client fails the writes and the query
+ * is closed down to the HBase scanners.
+ *
+ * JSON is in the same shape as SQLResponse, with "results" streamed in the
+ * middle and the rest of the response (duration, scan count etc.) at the end.
+ * The binary format is for the JDBC driver, see BinaryResultWriter.
+ *
+ * @author yangli9
+ */
+public abstract class StreamingResultWriter implements QueryService.TypedResultHandler {
+
+    public static final String BINARY_CONTENT_TYPE = "application/x-kylin-result";
+
+    public static StreamingResultWriter create(String format, OutputStream out, Writer writer) {
+        if ("json".equalsIgnoreCase(format))
+            return new JsonResultWriter(out);
+        if ("csv".equalsIgnoreCase(format))
+            return new CsvResultWriter(writer);
+        if ("binary".equalsIgnoreCase(format))
+            return new BinaryResultWriter(out, false);
+        if ("binary-lzf".equalsIgnoreCase(format))
+            return new BinaryResultWriter(out, true);
+        throw new IllegalArgumentException("Unsupported format " + format + ", json, csv, binary or binary-lzf");
+    }
+
+    private boolean started = false;
+
+    @Override
+    public void start(List<SelectedColumnMeta> columnMetas, String cube) throws IOException {
+        started = true;
+        writeStart(columnMetas, cube);
+    }
+
+    // once started, response status is sent and errors can only go in the body
+    public boolean isStarted() {
+        return started;
+    }
+
+    // as strings by default, like the buffered response
+    @Override
+    public void row(ResultSet resultSet, int columnCount) throws Exception {
+        String[] row = new String[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            row[i] = resultSet.getString(i + 1);
+        }
+        row(Arrays.asList(row));
+    }
+
+    protected abstract void writeStart(List<SelectedColumnMeta> columnMetas, String cube) throws IOException;
+
+    public abstract void end(SQLResponse summary) throws IOException;
+
+    public abstract void fail(String message) throws IOException;
+
+    // ============================================================================
+
+    static class JsonResultWriter extends StreamingResultWriter {
+        private final JsonGenerator json;
+
+        JsonResultWriter(OutputStream out) {
+            try {
+                this.json = new ObjectMapper().getFactory().createGenerator(out, JsonEncoding.UTF8);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        protected void writeStart(List<SelectedColumnMeta> columnMetas, String cube) throws IOException {
+            json.writeStartObject();
+            json.writeObjectField("columnMetas", columnMetas);
+            json.writeStringField("cube", cube);
+            json.writeArrayFieldStart("results");
+        }
+
+        @Override
+        public void row(List<String> row) throws IOException {
+            json.writeStartArray();
+            for (String v : row) {
+                if (v == null)
+                    json.writeNull();
+                else
+                    json.writeString(v);
+            }
+            json.writeEndArray();
+        }
+
+        @Override
+        public void end(SQLResponse summary) throws IOException {
+            json.writeEndArray();
+            json.writeNumberField("affectedRowCount", 0);
+            json.writeBooleanField("isException", false);
+            json.writeNullField("exceptionMessage");
+            json.writeNumberField("duration", summary.getDuration());
+            json.writeBooleanField("partial", summary.isPartial());
+            json.writeNumberField("totalScanCount", summary.getTotalScanCount());
+            json.writeBooleanField("hitCache", summary.isHitCache());
+            json.writeBooleanField("approximate", summary.isApproximate());
+            json.writeNumberField("sampledRatio", summary.getSampledRatio());
+            json.writeObjectField("approximateError", summary.getApproximateError());
+            json.writeStringField("queryId", summary.getQueryId());
+            if (summary.getTrace() != null)
+                json.writeObjectField("trace", summary.getTrace());
+            json.writeEndObject();
+            json.close();
+        }
+
+        @Override
+        public void fail(String message) throws IOException {
+            json.writeEndArray();
+            json.writeBooleanField("isException", true);
+            json.writeStringField("exceptionMessage", message);
+            json.writeEndObject();
+            json.close();
+        }
+    }
+
+    static class CsvResultWriter extends StreamingResultWriter {
+        private final ICsvListWriter csv;
+
+        CsvResultWriter(Writer writer) {
+            this.csv = new CsvListWriter(writer, CsvPreference.STANDARD_PREFERENCE);
+        }
+
+        @Override
+        protected void writeStart(List<SelectedColumnMeta> columnMetas, String cube) throws IOException {
+            String[] headers = new String[columnMetas.size()];
+            for (int i = 0; i < headers.length; i++) {
+                headers[i] = columnMetas.get(i).getName();
+            }
+            csv.writeHeader(headers);
+        }
+
+        @Override
+        public void row(List<String> row) throws IOException {
+            csv.write(row);
+        }
+
+        @Override
+        public void end(SQLResponse summary) throws IOException {
+            csv.close();
+        }
+
+        // CSV has no place for an error, leave a last line to tell the result is cut
+        @Override
+        public void fail(String message) throws IOException {
+            csv.write(Collections.singletonList("ERROR: " + message));
+            csv.close();
+        }
+    }
+
+    /**
+     * Columnar blocks of typed values, the JDBC driver reads it with
+     * BinaryResultEnumerator. Numbers are sent as varints and doubles instead
+     * of strings, and strings are dictionary encoded per block so repeated
+     * dimension values go once. Blocks are optionally LZF compressed.
+     * 
+     * <pre>
+     * "KYRB" version(1) flags(1, bit0 = LZF)
+     * int len, JSON {columnMetas, cube}
+     * block*: int rawLen (0 = end, -1 = error), [int compressedLen], bytes
+     *   varint rows, then per column: null bitmap, non-null values by kind
+     *     LONG, BOOLEAN: zigzag varlong; DOUBLE: 8 bytes;
+     *     DECIMAL: varint scale, varint len, unscaled bytes;
+     *     STRING: varint dict size, dict (varint len, UTF-8), varint id each
+     * end: int len, JSON of the rest of SQLResponse; error: int len, UTF-8 message
+     * </pre>
+     */
+    static class BinaryResultWriter extends StreamingResultWriter {
+        static final byte[] MAGIC = { 'K', 'Y', 'R', 'B' };
+        static final byte VERSION = 1;
+        static final byte FLAG_LZF = 1;
+        static final int BLOCK_ROWS = 1024;
+
+        static final int KIND_STRING = 0;
+        static final int KIND_LONG = 1;
+        static final int KIND_BOOLEAN = 2;
+        static final int KIND_DOUBLE = 3;
+        static final int KIND_DECIMAL = 4;
+
+        static int kindOf(int sqlType) {
+            switch (sqlType) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+                return KIND_LONG;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return KIND_BOOLEAN;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return KIND_DOUBLE;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                return KIND_DECIMAL;
+            default:
+                return KIND_STRING;
+            }
+        }
+
+        private final DataOutputStream out;
+        private final boolean compress;
+        private final ObjectMapper mapper = new ObjectMapper();
+        private int[] kinds;
+        private Object[][] block; // [column][row]
+        private int rows;
+
+        BinaryResultWriter(OutputStream out, boolean compress) {
+            this.out = new DataOutputStream(out);
+            this.compress = compress;
+        }
+
+        @Override
+        protected void writeStart(List<SelectedColumnMeta> columnMetas, String cube) throws IOException {
+            kinds = new int[columnMetas.size()];
+            for (int i = 0; i < kinds.length; i++) {
+                kinds[i] = kindOf(columnMetas.get(i).getColumnType());
+            }
+            block = new Object[kinds.length][BLOCK_ROWS];
+
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(compress ? FLAG_LZF : 0);
+            Map<String, Object> header = new LinkedHashMap<String, Object>();
+            header.put("columnMetas", columnMetas);
+            header.put("cube", cube);
+            writeBytes(mapper.writeValueAsBytes(header));
+        }
+
+        @Override
+        public void row(ResultSet resultSet, int columnCount) throws Exception {
+            for (int i = 0; i < columnCount; i++) {
+                Object v;
+                switch (kinds[i]) {
+                case KIND_LONG:
+                    v = resultSet.getLong(i + 1);
+                    break;
+                case KIND_BOOLEAN:
+                    v = resultSet.getBoolean(i + 1);
+                    break;
+                case KIND_DOUBLE:
+                    v = resultSet.getDouble(i + 1);
+                    break;
+                case KIND_DECIMAL:
+                    v = resultSet.getBigDecimal(i + 1);
+                    break;
+                default:
+                    v = resultSet.getString(i + 1);
+                }
+                block[i][rows] = resultSet.wasNull() ? null : v;
+            }
+            addRow();
+        }
+
+        // from cached responses
+        @Override
+        public void row(List<String> row) throws IOException {
+            for (int i = 0; i < kinds.length; i++) {
+                String s = row.get(i);
+                Object v = s;
+                if (s != null) {
+                    switch (kinds[i]) {
+                    case KIND_LONG:
+                        v = Long.parseLong(s);
+                        break;
+                    case KIND_BOOLEAN:
+                        v = Boolean.parseBoolean(s);
+                        break;
+                    case KIND_DOUBLE:
+                        v = Double.parseDouble(s);
+                        break;
+                    case KIND_DECIMAL:
+                        v = new BigDecimal(s);
+                        break;
+                    default:
+                    }
+                }
+                block[i][rows] = v;
+            }
+            addRow();
+        }
+
+        private void addRow() throws IOException {
+            rows++;
+            if (rows == BLOCK_ROWS)
+                flushBlock();
+        }
+
+        private void flushBlock() throws IOException {
+            if (rows == 0)
+                return;
+
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(rows * kinds.length * 4);
+            DataOutputStream dout = new DataOutputStream(buf);
+            writeVarLong(dout, rows);
+            for (int c = 0; c < kinds.length; c++) {
+                Object[] values = block[c];
+                byte[] nulls = new byte[(rows + 7) / 8];
+                for (int r = 0; r < rows; r++) {
+                    if (values[r] == null)
+                        nulls[r >> 3] |= 1 << (r & 7);
+                }
+                dout.write(nulls);
+
+                if (kinds[c] == KIND_STRING) {
+                    writeDictionaryColumn(dout, values);
+                    continue;
+                }
+                for (int r = 0; r < rows; r++) {
+                    Object v = values[r];
+                    if (v == null)
+                        continue;
+                    switch (kinds[c]) {
+                    case KIND_LONG:
+                        writeVarLong(dout, zigzag((Long) v));
+                        break;
+                    case KIND_BOOLEAN:
+                        writeVarLong(dout, ((Boolean) v) ? 1 : 0);
+                        break;
+                    case KIND_DOUBLE:
+                        dout.writeDouble((Double) v);
+                        break;
+                    case KIND_DECIMAL:
+                        BigDecimal d = (BigDecimal) v;
+                        byte[] unscaled = d.unscaledValue().toByteArray();
+                        writeVarLong(dout, zigzag(d.scale()));
+                        writeVarLong(dout, unscaled.length);
+                        dout.write(unscaled);
+                        break;
+                    default:
+                        throw new IllegalStateException();
+                    }
+                }
+            }
+            dout.flush();
+
+            byte[] raw = buf.toByteArray();
+            out.writeInt(raw.length);
+            if (compress) {
+                writeBytes(LZFEncoder.encode(raw));
+            } else {
+                out.write(raw);
+            }
+
+            for (Object[] values : block) {
+                Arrays.fill(values, 0, rows, null);
+            }
+            rows = 0;
+        }
+
+        private void writeDictionaryColumn(DataOutputStream dout, Object[] values) throws IOException {
+            Map<String, Integer> ids = new HashMap<String, Integer>();
+            List<String> dict = new ArrayList<String>();
+            int[] idOfRow = new int[rows];
+            for (int r = 0; r < rows; r++) {
+                String v = (String) values[r];
+                if (v == null)
+                    continue;
+                Integer id = ids.get(v);
+                if (id == null) {
+                    id = dict.size();
+                    ids.put(v, id);
+                    dict.add(v);
+                }
+                idOfRow[r] = id;
+            }
+            writeVarLong(dout, dict.size());
+            for (String v : dict) {
+                byte[] bytes = v.getBytes("UTF-8");
+                writeVarLong(dout, bytes.length);
+                dout.write(bytes);
+            }
+            for (int r = 0; r < rows; r++) {
+                if (values[r] != null)
+                    writeVarLong(dout, idOfRow[r]);
+            }
+        }
+
+        @Override
+        public void end(SQLResponse summary) throws IOException {
+            flushBlock();
+            out.writeInt(0);
+            Map<String, Object> trailer = new LinkedHashMap<String, Object>();
+            trailer.put("isException", false);
+            trailer.put("duration", summary.getDuration());
+            trailer.put("partial", summary.isPartial());
+            trailer.put("totalScanCount", summary.getTotalScanCount());
+            trailer.put("hitCache", summary.isHitCache());
+            trailer.put("approximate", summary.isApproximate());
+            trailer.put("sampledRatio", summary.getSampledRatio());
+            trailer.put("approximateError", summary.getApproximateError());
+            trailer.put("queryId", summary.getQueryId());
+            if (summary.getTrace() != null)
+                trailer.put("trace", summary.getTrace());
+            writeBytes(mapper.writeValueAsBytes(trailer));
+            out.close();
+        }
+
+        @Override
+        public void fail(String message) throws IOException {
+            // rows of the unfinished block are dropped, the result is failed anyway
+            out.writeInt(-1);
+            writeBytes(message == null ? new byte[0] : message.getBytes("UTF-8"));
+            out.close();
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        static long zigzag(long v) {
+            return (v << 1) ^ (v >> 63);
+        }
+
+        static void writeVarLong(DataOutputStream out, long v) throws IOException {
+            while ((v & ~0x7FL) != 0) {
+                out.writeByte((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.writeByte((int) v);
+        }
+    }
+}
@@ -16,12 +16,18 @@
 
 package com.kylinolap.rest.service;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
 import org.junit.Assert;
 import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.acls.domain.ObjectIdentityImpl;
 import org.springframework.security.acls.domain.PrincipalSid;
 import org.springframework.security.acls.model.AccessControlEntry;
 import org.springframework.security.acls.model.Acl;
+import org.springframework.security.acls.model.ObjectIdentity;
 import org.springframework.security.acls.model.Sid;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
@@ -39,6 +45,9 @@ public class AccessServiceTest extends TestBase {
     @Autowired
     AccessService accessService;
 
+    @Autowired
+    AclService aclService;
+
     @Test
     public void testBasics() throws JsonProcessingException {
         Sid adminSid = accessService.getSid("ADMIN", true);
@@ -118,6 +127,37 @@ public class AccessServiceTest extends TestBase {
         Assert.assertNull(attachedEntityAcl);
     }
 
+    @Test
+    public void testChildrenAndBatchRead() {
+        AclEntity parent = new MockAclEntity("test-parent-object");
+        AclEntity child = new MockAclEntity("test-child-object");
+        accessService.clean(parent, true);
+        accessService.clean(child, true);
+
+        accessService.init(parent, AclPermission.ADMINISTRATION);
+        accessService.init(child, AclPermission.ADMINISTRATION);
+        accessService.inherit(child, parent);
+
+        ObjectIdentity parentOid = new ObjectIdentityImpl(parent.getClass(), parent.getId());
+        ObjectIdentity childOid = new ObjectIdentityImpl(child.getClass(), child.getId());
+        List<ObjectIdentity> children = aclService.findChildren(parentOid);
+        Assert.assertEquals(1, children.size());
+        Assert.assertEquals(childOid, children.get(0));
+
+        accessService.prefetch(Arrays.asList(parent, child));
+        Map<ObjectIdentity, Acl> acls = aclService.readAclsById(Arrays.asList(parentOid, childOid));
+        Assert.assertEquals(2, acls.size());
+        Assert.assertEquals(parentOid, acls.get(childOid).getParentAcl().getObjectIdentity());
+
+        // deleting the child takes it out of the index of the parent
+        accessService.clean(child, true);
+        Assert.assertTrue(aclService.findChildren(parentOid).isEmpty());
+        Assert.assertNull(accessService.getAcl(child));
+
+        accessService.clean(parent, true);
+        Assert.assertNull(accessService.getAcl(parent));
+    }
+
     public class MockAclEntity implements AclEntity {
 
         private String id;
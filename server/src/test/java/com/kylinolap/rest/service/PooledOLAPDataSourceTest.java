@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.rest.service;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import net.hydromatic.optiq.jdbc.OptiqConnection;
+
+import org.junit.Test;
+
+import com.kylinolap.cube.project.ProjectInstance;
+import com.kylinolap.cube.project.ProjectManager;
+import com.kylinolap.query.schema.OLAPSchemaFactory;
+
+/**
+ * @author yangli9
+ *
+ */
+public class PooledOLAPDataSourceTest extends TestBase {
+
+    static final String PROJECT = ProjectInstance.DEFAULT_PROJECT_NAME;
+
+    @Test
+    public void testReuse() throws Exception {
+        PooledOLAPDataSource ds = new PooledOLAPDataSource(PROJECT, getTestConfig(), new Properties());
+        ds.warmUp(2);
+        assertEquals(2, ds.getIdleCount());
+
+        Connection conn = ds.getConnection();
+        OptiqConnection physical = conn.unwrap(OptiqConnection.class);
+        assertTrue(countTables(conn) > 0);
+        conn.close();
+        assertTrue(conn.isClosed());
+
+        conn = ds.getConnection();
+        assertSame(physical, conn.unwrap(OptiqConnection.class));
+        conn.close();
+
+        ds.close();
+        assertEquals(0, ds.getIdleCount());
+        assertTrue(physical.isClosed());
+    }
+
+    @Test
+    public void testProjectReload() throws Exception {
+        PooledOLAPDataSource ds = new PooledOLAPDataSource(PROJECT, getTestConfig(), new Properties());
+        Connection conn = ds.getConnection();
+        OptiqConnection physical = conn.unwrap(OptiqConnection.class);
+        conn.close();
+
+        ProjectManager projectMgr = ProjectManager.getInstance(getTestConfig());
+        projectMgr.loadProjectCache(projectMgr.getProject(PROJECT), false);
+
+        conn = ds.getConnection();
+        assertNotSame(physical, conn.unwrap(OptiqConnection.class));
+        assertTrue(physical.isClosed());
+        assertTrue(countTables(conn) > 0);
+        conn.close();
+        ds.close();
+    }
+
+    @Test
+    public void testStatementsAndMaxActive() throws Exception {
+        getTestConfig().setProperty("kylin.query.connection.pool.max.active", "1");
+        getTestConfig().setProperty("kylin.query.connection.pool.max.wait", "100");
+        try {
+            PooledOLAPDataSource ds = new PooledOLAPDataSource(PROJECT, getTestConfig(), new Properties());
+            Connection conn = ds.getConnection();
+            Statement stmt = conn.createStatement();
+            assertEquals(1, ds.getActiveCount());
+            try {
+                ds.getConnection();
+                fail();
+            } catch (SQLException e) {
+                // all in use
+            }
+
+            // the statement left open is closed with the connection
+            conn.close();
+            assertTrue(stmt.isClosed());
+            assertEquals(0, ds.getActiveCount());
+            ds.getConnection().close();
+            ds.close();
+        } finally {
+            getTestConfig().setProperty("kylin.query.connection.pool.max.active", "128");
+            getTestConfig().setProperty("kylin.query.connection.pool.max.wait", "30000");
+        }
+    }
+
+    @Test
+    public void testBenchmark() throws Exception {
+        int rounds = 200;
+        PooledOLAPDataSource ds = new PooledOLAPDataSource(PROJECT, getTestConfig(), new Properties());
+        ds.warmUp(1);
+
+        // warm up JIT of both paths
+        for (int i = 0; i < 20; i++) {
+            smallQuery(OLAPSchemaFactory.createConnection(PROJECT, getTestConfig(), new Properties()));
+            smallQuery(ds.getConnection());
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            smallQuery(OLAPSchemaFactory.createConnection(PROJECT, getTestConfig(), new Properties()));
+        }
+        long newConnTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            smallQuery(ds.getConnection());
+        }
+        long pooledTime = System.nanoTime() - start;
+        ds.close();
+
+        System.out.println("New connection per query: " + newConnTime / rounds / 1000 + " us/query");
+        System.out.println("Pooled connection:        " + pooledTime / rounds / 1000 + " us/query");
+    }
+
+    // e.g. table listing of the web UI
+    private void smallQuery(Connection conn) throws SQLException {
+        try {
+            countTables(conn);
+        } finally {
+            conn.close();
+        }
+    }
+
+    private int countTables(Connection conn) throws SQLException {
+        ResultSet rs = conn.getMetaData().getTables(null, null, null, null);
+        int count = 0;
+        while (rs.next())
+            count++;
+        rs.close();
+        return count;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.rest.service;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.kylinolap.rest.exception.ServiceUnavailableException;
+import com.kylinolap.storage.MemoryBudget;
+
+/**
+ * @author yangli9
+ *
+ */
+public class QueryAdmissionTest {
+
+    @Test
+    public void testUserSlots() throws Exception {
+        final QueryAdmission admission = newAdmission(10, 1, 5, 1000);
+
+        QueryAdmission.Ticket first = admission.admit("P", "alice");
+        QueryAdmission.Ticket other = admission.admit("P", "bob"); // another user is not held back
+
+        // second query of the user waits until the first ends
+        final QueryAdmission.Ticket[] second = new QueryAdmission.Ticket[1];
+        Thread t = new Thread() {
+            public void run() {
+                try {
+                    second[0] = admission.admit("P", "alice");
+                } catch (InterruptedException e) {
+                    // ends the test thread
+                }
+            }
+        };
+        t.start();
+        waitFor(admission, 1);
+        assertNull(second[0]);
+
+        first.close();
+        t.join(5000);
+        assertNotNull(second[0]);
+        assertEquals(0, admission.getWaiting());
+        assertEquals(2, admission.getRunning());
+
+        second[0].close();
+        other.close();
+        assertEquals(0, admission.getRunning());
+    }
+
+    @Test
+    public void testWeightAndArrivalOrder() throws Exception {
+        final QueryAdmission admission = newAdmission(4, 10, 10, 5000);
+        QueryAdmission.Ticket a = admission.admit("P", "alice", 2);
+        QueryAdmission.Ticket b = admission.admit("P", "bob", 2);
+        assertEquals(4, admission.getRunning());
+
+        AdmitThread heavy = new AdmitThread(admission, "carol", 3);
+        heavy.start();
+        waitFor(admission, 1);
+        AdmitThread light = new AdmitThread(admission, "dave", 1);
+        light.start();
+        waitFor(admission, 2);
+
+        // a slot is free for the light one, but it came after the heavy one
+        b.close();
+        Thread.sleep(100);
+        assertEquals(2, admission.getWaiting());
+        assertEquals(2, admission.getRunning());
+
+        a.close();
+        heavy.join(5000);
+        light.join(5000);
+        assertNotNull(heavy.ticket);
+        assertNotNull(light.ticket);
+        assertEquals(4, admission.getRunning());
+        heavy.ticket.close();
+        light.ticket.close();
+        assertEquals(0, admission.getRunning());
+    }
+
+    @Test
+    public void testQueueFull() throws Exception {
+        QueryAdmission admission = newAdmission(1, 1, 0, 1000);
+        QueryAdmission.Ticket ticket = admission.admit("P", "alice");
+        try {
+            admission.admit("P", "bob");
+            fail("Queue of 0 is full");
+        } catch (ServiceUnavailableException e) {
+            assertTrue(e.getMessage().startsWith("Too many queries"));
+        }
+        ticket.close();
+        admission.admit("P", "bob").close();
+    }
+
+    @Test
+    public void testQueueTimeout() throws Exception {
+        QueryAdmission admission = newAdmission(1, 1, 5, 100);
+        QueryAdmission.Ticket ticket = admission.admit("P", "alice");
+        long start = System.currentTimeMillis();
+        try {
+            admission.admit("P", "bob");
+            fail("No slot within timeout");
+        } catch (ServiceUnavailableException e) {
+            assertTrue(System.currentTimeMillis() - start >= 100);
+        }
+        assertEquals(0, admission.getWaiting());
+        ticket.close();
+    }
+
+    @Test
+    public void testMemoryBackToPool() throws Exception {
+        MemoryBudget pool = new MemoryBudget("pool", 10 * 1024 * 1024);
+        QueryAdmission admission = new QueryAdmission(10, 10, 10, 10, 1000, 8 * 1024 * 1024, pool);
+
+        QueryAdmission.Ticket ticket = admission.admit("P", "alice");
+        ticket.getMemoryBudget().consume(5 * 1024 * 1024);
+        assertTrue(pool.getUsed() >= 5 * 1024 * 1024);
+        ticket.close();
+        assertEquals(0, pool.getUsed());
+    }
+
+    private static class AdmitThread extends Thread {
+        final QueryAdmission admission;
+        final String user;
+        final int weight;
+        volatile QueryAdmission.Ticket ticket;
+
+        AdmitThread(QueryAdmission admission, String user, int weight) {
+            this.admission = admission;
+            this.user = user;
+            this.weight = weight;
+        }
+
+        public void run() {
+            try {
+                ticket = admission.admit("P", user, weight);
+            } catch (InterruptedException e) {
+                // ends the test thread
+            }
+        }
+    }
+
+    private static QueryAdmission newAdmission(int maxConcurrency, int maxOfUser, int queueSize, long queueTimeout) {
+        return new QueryAdmission(maxConcurrency, maxConcurrency, maxOfUser, queueSize, queueTimeout, 1024 * 1024, new MemoryBudget("pool", 1024 * 1024 * 1024));
+    }
+
+    private static void waitFor(QueryAdmission admission, int waiting) throws InterruptedException {
+        for (int i = 0; i < 500 && admission.getWaiting() < waiting; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(waiting, admission.getWaiting());
+    }
+}
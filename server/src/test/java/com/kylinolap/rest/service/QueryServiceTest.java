@@ -19,6 +19,7 @@ package com.kylinolap.rest.service;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.Date;
+import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -26,6 +27,8 @@ import org.springframework.beans.factory.annotation.Autowired;
 
 import com.kylinolap.cube.project.ProjectInstance;
 import com.kylinolap.job.exception.JobException;
+import com.kylinolap.rest.model.Query;
+import com.kylinolap.rest.model.TableMeta;
 import com.kylinolap.rest.request.SQLRequest;
 import com.kylinolap.rest.response.SQLResponse;
 
@@ -61,4 +64,47 @@ public class QueryServiceTest extends TestBase {
         response.setHitCache(true);
         queryService.logQuery(request, response, new Date(), new Date());
     }
+
+    @Test
+    public void testMetadataCache() throws SQLException {
+        List<TableMeta> tables = queryService.getMetadata(ProjectInstance.DEFAULT_PROJECT_NAME);
+        Assert.assertFalse(tables.isEmpty());
+        Assert.assertSame(tables, queryService.getMetadata(ProjectInstance.DEFAULT_PROJECT_NAME));
+
+        // metadata change events clear the cache
+        BasicService.resetOLAPDataSources();
+        List<TableMeta> reloaded = queryService.getMetadata(ProjectInstance.DEFAULT_PROJECT_NAME);
+        Assert.assertNotSame(tables, reloaded);
+        Assert.assertEquals(tables.size(), reloaded.size());
+    }
+
+    @Test
+    public void testSavedQueries() throws IOException {
+        String creator = "SAVED_QUERY_TEST";
+        for (Query query : queryService.getQueries(creator)) {
+            queryService.removeQuery(creator, query.getId());
+        }
+
+        Query q1 = new Query("q1", ProjectInstance.DEFAULT_PROJECT_NAME, "select count(*) from test_kylin_fact", "");
+        Query q2 = new Query("q2", ProjectInstance.DEFAULT_PROJECT_NAME, "select sum(price) from test_kylin_fact", "");
+        Query q3 = new Query("q3", ProjectInstance.DEFAULT_PROJECT_NAME, "select max(price) from test_kylin_fact", "");
+        queryService.saveQuery(creator, q1);
+        queryService.saveQuery(creator, q2);
+        queryService.saveQuery(creator, q3);
+        queryService.saveQuery(creator, q3);
+        Assert.assertEquals(3, queryService.getQueries(creator).size());
+
+        List<Query> page = queryService.getQueries(creator, 1, 1);
+        Assert.assertEquals(1, page.size());
+        Assert.assertEquals(queryService.getQueries(creator).get(1), page.get(0));
+
+        queryService.removeQuery(creator, q2.getId());
+        List<Query> queries = queryService.getQueries(creator);
+        Assert.assertEquals(2, queries.size());
+        Assert.assertFalse(queries.contains(q2));
+
+        queryService.removeQuery(creator, q1.getId());
+        queryService.removeQuery(creator, q3.getId());
+        Assert.assertTrue(queryService.getQueries(creator).isEmpty());
+    }
 }
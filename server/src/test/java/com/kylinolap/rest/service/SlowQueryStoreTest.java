@@ -0,0 +1,62 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.rest.service;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.kylinolap.rest.model.SlowQuery;
+import com.kylinolap.storage.QueryTrace;
+
+/**
+ * @author yangli9
+ *
+ */
+public class SlowQueryStoreTest {
+
+    @Test
+    public void testBounded() {
+        SlowQueryStore store = new SlowQueryStore(1000, 2);
+        assertTrue(store.isEnabled());
+
+        assertFalse(store.offer(newQuery("fast", 999)));
+        assertTrue(store.offer(newQuery("q1", 1000)));
+        assertTrue(store.offer(newQuery("q2", 5000)));
+        assertTrue(store.offer(newQuery("q3", 2000)));
+
+        // the latest first, the oldest evicted
+        assertEquals(2, store.list().size());
+        assertEquals("q3", store.list().get(0).getQueryId());
+        assertEquals("q2", store.list().get(1).getQueryId());
+        assertNull(store.get("q1"));
+        assertNull(store.get("fast"));
+        assertNotNull(store.get("q2").getTrace());
+    }
+
+    @Test
+    public void testDisabled() {
+        SlowQueryStore store = new SlowQueryStore(0, 100);
+        assertFalse(store.isEnabled());
+        assertFalse(store.offer(newQuery("q1", 60000)));
+        assertTrue(store.list().isEmpty());
+    }
+
+    private SlowQuery newQuery(String queryId, long duration) {
+        return new SlowQuery(queryId, "default", "ADMIN", "select count(*) from test_kylin_fact", duration, null, new QueryTrace());
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.rest.util;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * @author yangli9
+ *
+ */
+public class ParameterizedSqlTest {
+
+    @Test
+    public void testComparisons() {
+        ParameterizedSql p = ParameterizedSql.parse("select lstg_format_name, sum(price) from test_kylin_fact\n" //
+                + "where lstg_format_name = 'FP-GTC' and  seller_id >= 10000001 and price<>1.5 -- comment\n" //
+                + "group by lstg_format_name");
+        assertEquals("select lstg_format_name, sum(price) from test_kylin_fact where lstg_format_name = ? and seller_id >= ? and price<>? group by lstg_format_name", p.getSql());
+        assertEquals(Arrays.<Object> asList("FP-GTC", new BigDecimal("10000001"), new BigDecimal("1.5")), p.getLiterals());
+
+        // same plan for different literals
+        ParameterizedSql q = ParameterizedSql.parse("select lstg_format_name, sum(price) from test_kylin_fact " //
+                + "where lstg_format_name = 'ABIN' and seller_id >= 10000002 and price <> 2 /* comment */ group by lstg_format_name");
+        assertEquals(p.getSql().replace("price<>?", "price <> ?"), q.getSql());
+    }
+
+    @Test
+    public void testLiteralsStay() {
+        String[] sqls = { "select * from t where c like 'FP%'", //
+                "select * from t where c between 1 and 10", //
+                "select * from t where c in ('a', 'b')", //
+                "select * from t where d = date '2013-01-01'", //
+                "select * from t where c = 'a' || 'b'", //
+                "select * from t where c = -1", //
+                "select * from t where c2 = c1 limit 10", //
+                "select count(*) from t having count(*) > 10 + 1" };
+        for (String sql : sqls) {
+            ParameterizedSql p = ParameterizedSql.parse(sql);
+            assertEquals(sql, p.getSql());
+            assertEquals(Collections.emptyList(), p.getLiterals());
+        }
+    }
+
+    @Test
+    public void testQuotes() {
+        ParameterizedSql p = ParameterizedSql.parse("select \"a = 'x'\" from t where c = 'it''s' and \"d\"='x y'");
+        assertEquals("select \"a = 'x'\" from t where c = ? and \"d\"=?", p.getSql());
+        assertEquals(Arrays.<Object> asList("it's", "x y"), p.getLiterals());
+    }
+
+    @Test
+    public void testHasParameter() {
+        ParameterizedSql p = ParameterizedSql.parse("select * from t where c = ? and  d = 'x'");
+        assertEquals("select * from t where c = ? and d = 'x'", p.getSql());
+        assertEquals(Collections.emptyList(), p.getLiterals());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.rest.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.StringWriter;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.kylinolap.rest.model.SelectedColumnMeta;
+import com.kylinolap.rest.response.SQLResponse;
+import com.ning.compress.lzf.LZFDecoder;
+
+/**
+ * @author yangli9
+ *
+ */
+public class StreamingResultWriterTest {
+
+    List<SelectedColumnMeta> columnMetas = Arrays.asList( //
+            newColumnMeta("LSTG_FORMAT_NAME", Types.VARCHAR, "VARCHAR"), //
+            newColumnMeta("GMV", Types.DECIMAL, "DECIMAL"));
+
+    @Test
+    public void testJson() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingResultWriter writer = StreamingResultWriter.create("json", out, null);
+        assertFalse(writer.isStarted());
+
+        writer.start(columnMetas, "test_kylin_cube");
+        assertTrue(writer.isStarted());
+        writer.row(Arrays.asList("FP-GTC", "100.5"));
+        writer.row(Arrays.asList("ABIN", null));
+        SQLResponse summary = new SQLResponse(columnMetas, null, "test_kylin_cube", 0, false, null, false);
+        summary.setTotalScanCount(42);
+        writer.end(summary);
+
+        // same shape as SQLResponse
+        Map<?, ?> json = new ObjectMapper().readValue(out.toByteArray(), Map.class);
+        assertEquals(2, ((List<?>) json.get("columnMetas")).size());
+        assertEquals(Arrays.asList(Arrays.asList("FP-GTC", "100.5"), Arrays.asList("ABIN", null)), json.get("results"));
+        assertEquals("test_kylin_cube", json.get("cube"));
+        assertEquals(Boolean.FALSE, json.get("isException"));
+        assertEquals(42, ((Number) json.get("totalScanCount")).intValue());
+    }
+
+    @Test
+    public void testJsonFail() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingResultWriter writer = StreamingResultWriter.create("json", out, null);
+        writer.start(columnMetas, "test_kylin_cube");
+        writer.row(Arrays.asList("FP-GTC", "100.5"));
+        writer.fail("Scan row count exceeded threshold");
+
+        // still valid JSON, the error is told at the end
+        Map<?, ?> json = new ObjectMapper().readValue(out.toByteArray(), Map.class);
+        assertEquals(1, ((List<?>) json.get("results")).size());
+        assertEquals(Boolean.TRUE, json.get("isException"));
+        assertEquals("Scan row count exceeded threshold", json.get("exceptionMessage"));
+    }
+
+    @Test
+    public void testCsv() throws Exception {
+        StringWriter out = new StringWriter();
+        StreamingResultWriter writer = StreamingResultWriter.create("csv", null, out);
+        writer.start(columnMetas, "test_kylin_cube");
+        writer.row(Arrays.asList("FP-GTC", "100.5"));
+        writer.row(Arrays.asList("A,B", "1"));
+        writer.end(new SQLResponse());
+
+        assertEquals("LSTG_FORMAT_NAME,GMV\r\nFP-GTC,100.5\r\n\"A,B\",1\r\n", out.toString());
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        int nRows = 3000;
+        List<List<String>> rows = new ArrayList<List<String>>();
+        for (int i = 0; i < nRows; i++) {
+            rows.add(Arrays.asList(i % 3 == 0 ? "FP-GTC" : "ABIN", i % 10 == 0 ? null : (i + ".25")));
+        }
+
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        writeAll(StreamingResultWriter.create("json", json, null), rows);
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        writeAll(StreamingResultWriter.create("binary", binary, null), rows);
+        ByteArrayOutputStream lzf = new ByteArrayOutputStream();
+        writeAll(StreamingResultWriter.create("binary-lzf", lzf, null), rows);
+
+        System.out.println("JSON " + json.size() + " bytes, binary " + binary.size() + " bytes, binary LZF " + lzf.size() + " bytes");
+        assertTrue(binary.size() < json.size() / 2);
+        assertTrue(lzf.size() < binary.size());
+
+        // blocks of 1024 rows, then the trailer
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(lzf.toByteArray()));
+        byte[] magic = new byte[4];
+        in.readFully(magic);
+        assertEquals("KYRB", new String(magic, "UTF-8"));
+        assertEquals(1, in.readByte());
+        assertEquals(StreamingResultWriter.BinaryResultWriter.FLAG_LZF, in.readByte());
+        in.readFully(new byte[in.readInt()]);
+        int total = 0;
+        int rawLength;
+        while ((rawLength = in.readInt()) > 0) {
+            byte[] compressed = new byte[in.readInt()];
+            in.readFully(compressed);
+            byte[] raw = LZFDecoder.decode(compressed);
+            assertEquals(rawLength, raw.length);
+            total += raw[0] & 0x7F | (raw[1] & 0x7F) << 7; // varint row count of 2 bytes
+        }
+        assertEquals(0, rawLength);
+        assertEquals(nRows, total);
+        byte[] trailer = new byte[in.readInt()];
+        in.readFully(trailer);
+        assertEquals(Boolean.FALSE, new ObjectMapper().readValue(trailer, Map.class).get("isException"));
+    }
+
+    private void writeAll(StreamingResultWriter writer, List<List<String>> rows) throws Exception {
+        writer.start(columnMetas, "test_kylin_cube");
+        for (List<String> row : rows) {
+            writer.row(row);
+        }
+        writer.end(new SQLResponse(columnMetas, null, "test_kylin_cube", 0, false, null, false));
+    }
+
+    private static SelectedColumnMeta newColumnMeta(String name, int type, String typeName) {
+        return new SelectedColumnMeta(false, false, true, false, 1, true, 256, name, name, null, null, null, 0, 0, type, typeName, true, false, false);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.kylinolap.common.hll.HyperLogLogPlusCounter;
+import com.kylinolap.cube.measure.BitmapCounter;
+import com.kylinolap.cube.measure.TopNCounter;
+import com.kylinolap.storage.hbase.ScanOutOfLimitException;
+
+/**
+ * Accounts the bytes of rows a query holds in memory, i.e. tuple buffers of
+ * storage and rows aggregated or sorted in Optiq. Sizes are estimates of the
+ * heap taken, not exact.
+ *
+ * A query budget draws from a pool shared by all queries of the server, in
+ * chunks so that the pool is not touched on every row. Memory is given back
+ * to the pool when the query ends, see close().
+ *
+ * @author yangli9
+ */
+public class MemoryBudget {
+
+    private static final long CHUNK = 1024 * 1024; // 1M
+
+    private final String name;
+    private final long limit;
+    private final MemoryBudget pool; // null if this is the pool
+    private final AtomicLong used = new AtomicLong();
+    private volatile long reserved; // from the pool, changed under lock
+    private volatile boolean closed;
+
+    public MemoryBudget(String name, long limit) {
+        this(name, limit, null);
+    }
+
+    public MemoryBudget(String name, long limit, MemoryBudget pool) {
+        this.name = name;
+        this.limit = limit;
+        this.pool = pool;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * @throws ScanOutOfLimitException
+     *             if the query or the server has no memory left for it
+     */
+    public void consume(long bytes) {
+        long now = used.addAndGet(bytes);
+        if (now > limit) {
+            used.addAndGet(-bytes);
+            throw new ScanOutOfLimitException("Query memory budget exceeded: " + now + " bytes over " + limit + " bytes of " + name + ", please add filter condition or more group by columns to narrow down the result.");
+        }
+        if (pool != null && now > reserved)
+            reserve(now, bytes);
+    }
+
+    private synchronized void reserve(long now, long bytes) {
+        if (closed || now <= reserved)
+            return;
+        long more = Math.max(CHUNK, now - reserved);
+        try {
+            pool.consume(more);
+        } catch (ScanOutOfLimitException e) {
+            used.addAndGet(-bytes);
+            throw new ScanOutOfLimitException("Server is out of query memory, " + pool.getUsed() + " of " + pool.getLimit() + " bytes are taken by running queries, please try again later.");
+        }
+        reserved += more;
+    }
+
+    public void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    // gives memory back to the pool, further consume() counts no more against it
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        if (pool != null)
+            pool.release(reserved);
+        reserved = 0;
+    }
+
+    /**
+     * Rough heap size of a row of values, as objects referred by an array.
+     */
+    public static long estimateRowBytes(Object[] values) {
+        long bytes = 16 + 8L * values.length;
+        for (Object v : values) {
+            bytes += estimateBytes(v);
+        }
+        return bytes;
+    }
+
+    private static long estimateBytes(Object v) {
+        if (v == null)
+            return 0;
+        if (v instanceof String)
+            return 40 + 2L * ((String) v).length();
+        if (v instanceof BigDecimal)
+            return 64;
+        if (v instanceof Number || v instanceof Boolean)
+            return 16;
+        if (v instanceof byte[])
+            return 16 + ((byte[]) v).length;
+        if (v instanceof HyperLogLogPlusCounter)
+            return 32 + ((HyperLogLogPlusCounter) v).getMemBytes();
+        if (v instanceof BitmapCounter)
+            return 32 + ((BitmapCounter) v).getMemBytes();
+        if (v instanceof TopNCounter)
+            return 32 + ((TopNCounter) v).getMemBytes();
+        return 64;
+    }
+}
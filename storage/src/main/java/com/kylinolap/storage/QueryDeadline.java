@@ -0,0 +1,69 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage;
+
+/**
+ * When a query must stop, either its time is up or it is cancelled from
+ * another thread. Shared by all storage contexts of the query and checked as
+ * tuples are scanned; the remaining time also goes to the coprocessor so that
+ * region servers give up on their part.
+ *
+ * @author yangli9
+ */
+public class QueryDeadline {
+
+    private final long timeout;
+    private final long deadline;
+    private volatile String cancelReason;
+
+    /**
+     * @param timeout
+     *            in ms from now, 0 for no time limit
+     */
+    public QueryDeadline(long timeout) {
+        this.timeout = timeout;
+        this.deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+    }
+
+    public void cancel(String reason) {
+        this.cancelReason = reason;
+    }
+
+    public boolean isCancelled() {
+        return cancelReason != null;
+    }
+
+    public boolean hasTimeLimit() {
+        return deadline != Long.MAX_VALUE;
+    }
+
+    // in ms, Long.MAX_VALUE if no time limit
+    public long getRemaining() {
+        return hasTimeLimit() ? deadline - System.currentTimeMillis() : Long.MAX_VALUE;
+    }
+
+    /**
+     * @throws QueryCancelledException
+     *             if the query is cancelled or out of time
+     */
+    public void check() {
+        if (cancelReason != null)
+            throw new QueryCancelledException("Query is cancelled: " + cancelReason);
+        if (System.currentTimeMillis() > deadline)
+            throw new QueryCancelledException("Query timed out after " + timeout + " ms, please add filter condition to narrow down backend scan range, like where clause.");
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the time of a query goes. Phases run one after another, from parse
+ * and plan to fetching results. Spans are the storage work within, like key
+ * range planning, HBase scans and the coprocessor of each region. Counters
+ * add up things done row by row, e.g. time in storage and serialization.
+ *
+ * Times are in ms from the start of the query. Spans are capped so that a
+ * query scanning many ranges keeps a bounded trace.
+ *
+ * @author yangli9
+ */
+public class QueryTrace implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String PHASE_PARSE_AND_PLAN = "parse and plan";
+    public static final String PHASE_ROUTE = "route";
+    public static final String PHASE_CODEGEN = "rewrite and codegen";
+    public static final String PHASE_BIND_PLAN = "plan cache";
+    public static final String PHASE_EXECUTE = "execute";
+
+    public static final String COUNTER_STORAGE_MS = "storage.ms";
+    public static final String COUNTER_STORAGE_ROWS = "storage.rows";
+    public static final String COUNTER_HBASE_ROWS = "hbase.rows";
+    public static final String COUNTER_HBASE_BYTES = "hbase.bytes";
+    public static final String COUNTER_SERIALIZE_MS = "serialize.ms";
+    public static final String COUNTER_POST_AGGREGATION_MS = "post.aggregation.ms"; // rest of execute phase, estimated
+
+    static final int MAX_SPANS = 1000;
+
+    private final long startTime;
+    private final List<Span> phases = new ArrayList<Span>();
+    private final List<Span> spans = new ArrayList<Span>();
+    private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+    private int droppedSpans;
+    private Span currentPhase;
+
+    public QueryTrace() {
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Ends the current phase and starts the next, null to just end.
+     */
+    public synchronized void phase(String name) {
+        if (currentPhase != null)
+            currentPhase.end();
+        currentPhase = name == null ? null : new Span(name, this);
+        if (currentPhase != null)
+            phases.add(currentPhase);
+    }
+
+    /**
+     * @return the span to put info and end, kept in trace if under the cap
+     */
+    public synchronized Span startSpan(String name) {
+        Span span = new Span(name, this);
+        if (spans.size() < MAX_SPANS)
+            spans.add(span);
+        else
+            droppedSpans++;
+        return span;
+    }
+
+    public synchronized void count(String counter, long delta) {
+        Long n = counters.get(counter);
+        counters.put(counter, n == null ? delta : n + delta);
+    }
+
+    public synchronized long getCounter(String counter) {
+        Long n = counters.get(counter);
+        return n == null ? 0 : n;
+    }
+
+    // of the phase by name, -1 if not there or not ended
+    public synchronized long getPhaseDuration(String name) {
+        for (Span phase : phases) {
+            if (phase.name.equals(name))
+                return phase.getDuration();
+        }
+        return -1;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public synchronized List<Span> getPhases() {
+        return Collections.unmodifiableList(new ArrayList<Span>(phases));
+    }
+
+    public synchronized List<Span> getSpans() {
+        return Collections.unmodifiableList(new ArrayList<Span>(spans));
+    }
+
+    public synchronized Map<String, Long> getCounters() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(counters));
+    }
+
+    public synchronized int getDroppedSpans() {
+        return droppedSpans;
+    }
+
+    private long now() {
+        return System.currentTimeMillis() - startTime;
+    }
+
+    public static class Span implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final long start;
+        private long duration = -1; // not ended
+        private final Map<String, Object> info = new LinkedHashMap<String, Object>();
+        private final transient QueryTrace trace; // for the clock only
+
+        Span(String name, QueryTrace trace) {
+            this.name = name;
+            this.trace = trace;
+            this.start = trace.now();
+        }
+
+        public Span put(String key, Object value) {
+            synchronized (info) {
+                info.put(key, value);
+            }
+            return this;
+        }
+
+        public synchronized void end() {
+            if (duration < 0)
+                duration = trace.now() - start;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public synchronized long getDuration() {
+            return duration;
+        }
+
+        public Map<String, Object> getInfo() {
+            synchronized (info) {
+                return new LinkedHashMap<String, Object>(info);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + "@" + start + "+" + duration + "ms " + info;
+        }
+    }
+}
@@ -41,41 +41,86 @@ public class StorageContext {
     private String connUrl;
     private int threshold;
     private int limit;
+    private boolean hasLimit;
     private boolean hasSort;
+    private List<TblColRef> sortColumns;
     private List<MeasureDesc> sortMeasures;
     private List<OrderEnum> sortOrders;
     private boolean acceptPartialResult;
+    private double samplingRatio;
+    private long latencyTarget;
     private BiMap<TblColRef, String> aliasMap;
 
     // To hint records shall be returned at most granular level, avoid aggregation (coprocessor) wherever possible.
     private boolean avoidAggregation;
     private boolean exactAggregation;
     private Set<TblColRef> otherMandatoryColumns;
+    private Set<TblColRef> lookupJoinedColumns;
     private boolean enableLimit;
+    private boolean enableRangeLimit;
+    private boolean enableTopNPushDown;
     private boolean enableCoprocessor;
+    private boolean hasPostAggregationFilter;
 
     private long totalScanCount;
     private Cuboid cuboid;
     private boolean partialResultReturned;
+    private boolean approximateResultReturned;
+    private double sampledRatio;
+    private double approximateError;
+    private MemoryBudget memoryBudget; // null if not accounted
+    private QueryDeadline queryDeadline; // null if never stops
+    private QueryTrace queryTrace; // null if not traced
 
     public StorageContext() {
         this.threshold = DEFAULT_THRESHOLD;
         this.limit = DEFAULT_THRESHOLD;
+        this.hasLimit = false;
         this.totalScanCount = 0;
         this.cuboid = null;
         this.aliasMap = HashBiMap.create();
         this.hasSort = false;
+        this.sortColumns = new ArrayList<TblColRef>();
         this.sortOrders = new ArrayList<OrderEnum>();
         this.sortMeasures = new ArrayList<MeasureDesc>();
 
         this.avoidAggregation = false;
         this.exactAggregation = false;
         this.otherMandatoryColumns = new HashSet<TblColRef>();
+        this.lookupJoinedColumns = new HashSet<TblColRef>();
         this.enableLimit = false;
+        this.enableRangeLimit = false;
+        this.enableTopNPushDown = false;
         this.enableCoprocessor = false;
+        this.hasPostAggregationFilter = false;
 
         this.acceptPartialResult = false;
         this.partialResultReturned = false;
+
+        this.samplingRatio = 1.0;
+        this.latencyTarget = 0;
+        this.approximateResultReturned = false;
+        this.sampledRatio = 1.0;
+        this.approximateError = 0;
+    }
+
+    /**
+     * Copies what is decided at query planning, to execute a cached plan
+     * again. Whatever storage decides or counts at execution starts over.
+     */
+    public StorageContext(StorageContext planned) {
+        this();
+        this.connUrl = planned.connUrl;
+        this.limit = planned.limit;
+        this.hasLimit = planned.hasLimit;
+        this.aliasMap.putAll(planned.aliasMap);
+        this.hasSort = planned.hasSort;
+        this.sortColumns.addAll(planned.sortColumns);
+        this.sortMeasures.addAll(planned.sortMeasures);
+        this.sortOrders.addAll(planned.sortOrders);
+        this.otherMandatoryColumns.addAll(planned.otherMandatoryColumns);
+        this.hasPostAggregationFilter = planned.hasPostAggregationFilter;
+        this.acceptPartialResult = planned.acceptPartialResult;
     }
 
     public String getConnUrl() {
@@ -112,6 +157,12 @@ public class StorageContext {
 
     public void setLimit(int l) {
         this.limit = l;
+        this.hasLimit = true;
+    }
+
+    // the query has a LIMIT, otherwise limit is just the default threshold
+    public boolean hasLimit() {
+        return this.hasLimit;
     }
 
     public void enableLimit() {
@@ -122,6 +173,28 @@ public class StorageContext {
         return this.enableLimit;
     }
 
+    // limit applies to each key range instead of the whole result, rows of a range come in sort order
+    public void enableRangeLimit() {
+        this.enableRangeLimit = true;
+    }
+
+    public boolean isRangeLimitEnabled() {
+        return this.enableRangeLimit;
+    }
+
+    // coprocessor returns only the top N groups of the sort measure per region
+    public void enableTopNPushDown() {
+        this.enableTopNPushDown = true;
+    }
+
+    public void disableTopNPushDown() {
+        this.enableTopNPushDown = false;
+    }
+
+    public boolean isTopNPushDownEnabled() {
+        return this.enableTopNPushDown;
+    }
+
     public void addAlias(TblColRef column, String alias) {
         this.aliasMap.put(column, alias);
     }
@@ -130,11 +203,23 @@ public class StorageContext {
         return aliasMap;
     }
 
-    public void addSort(MeasureDesc measure, OrderEnum order) {
-        if (measure != null) {
-            sortMeasures.add(measure);
-            sortOrders.add(order);
-        }
+    // measure is null if sort is on a dimension
+    public void addSort(TblColRef column, MeasureDesc measure, OrderEnum order) {
+        sortColumns.add(column);
+        sortMeasures.add(measure);
+        sortOrders.add(order);
+    }
+
+    public List<TblColRef> getSortColumns() {
+        return sortColumns;
+    }
+
+    public List<MeasureDesc> getSortMeasures() {
+        return sortMeasures;
+    }
+
+    public List<OrderEnum> getSortOrders() {
+        return sortOrders;
     }
 
     public void markSort() {
@@ -177,6 +262,85 @@ public class StorageContext {
         this.partialResultReturned = partialResultReturned;
     }
 
+    // approximate mode, scan only a sample of segments and scale SUM/COUNT up
+    public boolean isApproximate() {
+        return samplingRatio < 1.0 || latencyTarget > 0;
+    }
+
+    public double getSamplingRatio() {
+        return samplingRatio;
+    }
+
+    public void setSamplingRatio(double samplingRatio) {
+        if (samplingRatio <= 0 || samplingRatio > 1)
+            throw new IllegalArgumentException("Sampling ratio must be in (0, 1], but is " + samplingRatio);
+        this.samplingRatio = samplingRatio;
+    }
+
+    // milliseconds, sampling grows until the target is reached; 0 means no target
+    public long getLatencyTarget() {
+        return latencyTarget;
+    }
+
+    public void setLatencyTarget(long latencyTarget) {
+        this.latencyTarget = latencyTarget;
+    }
+
+    public boolean isApproximateResultReturned() {
+        return approximateResultReturned;
+    }
+
+    public double getSampledRatio() {
+        return sampledRatio;
+    }
+
+    // relative error at 95% confidence, NaN if it can't be estimated
+    public double getApproximateError() {
+        return approximateError;
+    }
+
+    public void setApproximateResult(double sampledRatio, double approximateError) {
+        this.approximateResultReturned = sampledRatio < 1.0;
+        this.sampledRatio = sampledRatio;
+        this.approximateError = approximateError;
+    }
+
+    // shared by all contexts of the query, rows buffered in memory are counted against it
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public void setMemoryBudget(MemoryBudget memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    // shared by all contexts of the query, like memory budget
+    public QueryDeadline getQueryDeadline() {
+        return queryDeadline;
+    }
+
+    public void setQueryDeadline(QueryDeadline queryDeadline) {
+        this.queryDeadline = queryDeadline;
+    }
+
+    // shared by all contexts of the query as well
+    public QueryTrace getQueryTrace() {
+        return queryTrace;
+    }
+
+    public void setQueryTrace(QueryTrace queryTrace) {
+        this.queryTrace = queryTrace;
+    }
+
+    /**
+     * @throws QueryCancelledException
+     *             if the query is cancelled or out of time
+     */
+    public void checkDeadline() {
+        if (queryDeadline != null)
+            queryDeadline.check();
+    }
+
     public boolean isAvoidAggregation() {
         return avoidAggregation;
     }
@@ -201,12 +365,34 @@ public class StorageContext {
         return this.otherMandatoryColumns;
     }
     
+    // columns of lookup tables not on the cube, filled by hash join with the snapshot
+    public void setLookupJoinedColumns(Set<TblColRef> cols) {
+        this.lookupJoinedColumns = cols;
+    }
+
+    public Set<TblColRef> getLookupJoinedColumns() {
+        return this.lookupJoinedColumns;
+    }
+
     public void enableCoprocessor() {
         this.enableCoprocessor = true;
     }
     
+    public void disableCoprocessor() {
+        this.enableCoprocessor = false;
+    }
+
     public boolean isCoprocessorEnabled() {
         return this.enableCoprocessor;
     }
 
+    // e.g. having clause, filters groups after aggregation
+    public void markPostAggregationFilter() {
+        this.hasPostAggregationFilter = true;
+    }
+
+    public boolean hasPostAggregationFilter() {
+        return this.hasPostAggregationFilter;
+    }
+
 }
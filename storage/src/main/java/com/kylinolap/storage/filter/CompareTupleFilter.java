@@ -15,6 +15,7 @@
  */
 package com.kylinolap.storage.filter;
 
+import java.math.BigDecimal;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -134,10 +135,12 @@ public class CompareTupleFilter extends TupleFilter {
     public boolean evaluate(ITuple tuple) {
         // extract tuple value
         String tupleValue = null;
+        boolean numeric = false;
         for (TupleFilter filter : this.children) {
             if (isConstant(filter) == false) {
                 filter.evaluate(tuple);
                 tupleValue = filter.getValues().iterator().next();
+                numeric = filter instanceof FunctionTupleFilter && ((FunctionTupleFilter) filter).isNumeric();
             }
         }
 
@@ -158,7 +161,8 @@ public class CompareTupleFilter extends TupleFilter {
 
         // tricky here -- order is ensured by string compare (even for number columns)
         // because it's row key ID (not real value) being compared
-        int comp = tupleValue.compareTo(firstCondValue);
+        // but a function like CHAR_LENGTH gives a real number, "10" < "5" as string
+        int comp = numeric ? compareNumber(tupleValue, firstCondValue) : tupleValue.compareTo(firstCondValue);
 
         boolean result;
         switch (operator) {
@@ -189,6 +193,14 @@ public class CompareTupleFilter extends TupleFilter {
         return result;
     }
 
+    private int compareNumber(String value, String condValue) {
+        try {
+            return new BigDecimal(value).compareTo(new BigDecimal(condValue.trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number '" + condValue + "' to compare in " + this, e);
+        }
+    }
+
     private boolean isConstant(TupleFilter filter) {
         return (filter instanceof ConstantTupleFilter) || (filter instanceof DynamicTupleFilter);
     }
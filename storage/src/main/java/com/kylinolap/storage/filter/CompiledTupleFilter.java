@@ -0,0 +1,165 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage.filter;
+
+import static com.kylinolap.storage.filter.FilterProgram.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.storage.tuple.ITuple;
+
+/**
+ * A TupleFilter tree flattened into arrays in pre-order, evaluated per row
+ * without walking filter objects. Compare filters hold their column and
+ * constants directly, constants are folded and AND/OR short-circuit by
+ * jumping over the rest of a subtree. Filters it doesn't understand (like
+ * CASE or EXTRACT) are delegated back to TupleFilter.evaluate(). See
+ * FilterProgram for the compile.
+ *
+ * Same result as TupleFilter.evaluate() on the original tree.
+ *
+ * @author yangli9
+ */
+public class CompiledTupleFilter {
+
+    public static CompiledTupleFilter compile(TupleFilter filter) {
+        return new CompiledTupleFilter(FilterProgram.compile(filter));
+    }
+
+    // ============================================================================
+
+    // per node, in pre-order; a subtree spans [i, ends[i])
+    private final byte[] ops;
+    private final int[] ends;
+    private final TblColRef[] columns;
+    private final String[] constants;
+    private final Set<String>[] inSets;
+    private final String[] nullStrings;
+    private final TupleFilter[] delegates;
+
+    @SuppressWarnings("unchecked")
+    private CompiledTupleFilter(FilterProgram program) {
+        int n = program.size();
+        ops = new byte[n];
+        ends = new int[n];
+        columns = new TblColRef[n];
+        constants = new String[n];
+        inSets = new Set[n];
+        nullStrings = new String[n];
+        delegates = new TupleFilter[n];
+        for (int i = 0; i < n; i++) {
+            ops[i] = program.getOp(i);
+            ends[i] = program.getEnd(i);
+            columns[i] = program.getColumn(i);
+            nullStrings[i] = program.getNullString(i);
+            delegates[i] = program.getDelegate(i);
+            String[] values = program.getValues(i);
+            if (ops[i] == OP_IN)
+                inSets[i] = new HashSet<String>(Arrays.asList(values));
+            else if (values != null && values.length > 0)
+                constants[i] = values[0];
+        }
+    }
+
+    public boolean evaluate(ITuple tuple) {
+        return eval(0, tuple);
+    }
+
+    public boolean isAlwaysTrue() {
+        return ops[0] == OP_TRUE;
+    }
+
+    public boolean isAlwaysFalse() {
+        return ops[0] == OP_FALSE;
+    }
+
+    private boolean eval(int i, ITuple tuple) {
+        int op = ops[i];
+        switch (op) {
+        case OP_TRUE:
+            return true;
+        case OP_FALSE:
+            return false;
+        case OP_AND:
+            for (int c = i + 1, end = ends[i]; c < end; c = ends[c]) {
+                if (eval(c, tuple) == false)
+                    return false;
+            }
+            return true;
+        case OP_OR:
+            for (int c = i + 1, end = ends[i]; c < end; c = ends[c]) {
+                if (eval(c, tuple))
+                    return true;
+            }
+            return false;
+        case OP_NOT:
+            return !eval(i + 1, tuple);
+        case OP_DELEGATE:
+            return delegates[i].evaluate(tuple);
+        default:
+            return compare(i, op, tuple);
+        }
+    }
+
+    private boolean compare(int i, int op, ITuple tuple) {
+        String value = (String) tuple.getValue(columns[i]);
+        if (value != null && value.equals(nullStrings[i]))
+            value = null;
+
+        if (value == null)
+            return op == OP_ISNULL;
+
+        switch (op) {
+        case OP_ISNULL:
+            return false;
+        case OP_ISNOTNULL:
+            return true;
+        case OP_EQ:
+            return value.equals(constants[i]);
+        case OP_NEQ:
+            return value.equals(constants[i]) == false;
+        case OP_LT:
+            return value.compareTo(constants[i]) < 0;
+        case OP_LTE:
+            return value.compareTo(constants[i]) <= 0;
+        case OP_GT:
+            return value.compareTo(constants[i]) > 0;
+        case OP_GTE:
+            return value.compareTo(constants[i]) >= 0;
+        case OP_IN:
+            return inSets[i].contains(value);
+        default:
+            throw new IllegalStateException("Unknown op " + op);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder("CompiledTupleFilter [");
+        for (int i = 0; i < ops.length; i++) {
+            if (i > 0)
+                buf.append(", ");
+            buf.append(i).append(":op").append(ops[i]).append("->").append(ends[i]);
+            if (columns[i] != null)
+                buf.append(" ").append(columns[i].getName());
+        }
+        return buf.append("]").toString();
+    }
+}
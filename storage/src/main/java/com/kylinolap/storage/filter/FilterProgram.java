@@ -0,0 +1,304 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage.filter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.storage.filter.TupleFilter.FilterOperatorEnum;
+
+/**
+ * A TupleFilter tree compiled into a flat program in pre-order, shared by the
+ * evaluators on string values (CompiledTupleFilter) and on row key IDs
+ * (SRowIdFilter).
+ *
+ * Constants are folded and AND/OR subtrees span [i, ends[i]) so evaluators
+ * can jump over the rest. A compare on one column against constants keeps
+ * its column and constants, null constants removed. Anything else (like CASE
+ * or EXTRACT) is a delegate to TupleFilter.evaluate().
+ *
+ * @author yangli9
+ */
+public class FilterProgram {
+
+    public static final byte OP_TRUE = 0;
+    public static final byte OP_FALSE = 1;
+    public static final byte OP_AND = 2;
+    public static final byte OP_OR = 3;
+    public static final byte OP_NOT = 4;
+    public static final byte OP_EQ = 5;
+    public static final byte OP_NEQ = 6;
+    public static final byte OP_LT = 7;
+    public static final byte OP_LTE = 8;
+    public static final byte OP_GT = 9;
+    public static final byte OP_GTE = 10;
+    public static final byte OP_IN = 11;
+    public static final byte OP_ISNULL = 12;
+    public static final byte OP_ISNOTNULL = 13;
+    public static final byte OP_DELEGATE = 14;
+
+    public static boolean isCompare(byte op) {
+        return op >= OP_EQ && op <= OP_ISNOTNULL;
+    }
+
+    public static FilterProgram compile(TupleFilter filter) {
+        FilterProgram result = new FilterProgram();
+        if (filter == null)
+            result.emitConst(true);
+        else
+            result.compileNode(filter);
+        return result;
+    }
+
+    // ============================================================================
+
+    private final ArrayList<Node> nodes = new ArrayList<Node>();
+
+    private FilterProgram() {
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public byte getOp(int i) {
+        return nodes.get(i).op;
+    }
+
+    /**
+     * @return the end (exclusive) of the subtree starting at i
+     */
+    public int getEnd(int i) {
+        return nodes.get(i).end;
+    }
+
+    /**
+     * @return column of a compare, null otherwise
+     */
+    public TblColRef getColumn(int i) {
+        return nodes.get(i).column;
+    }
+
+    /**
+     * @return constants of a compare, one for EQ/LT etc., none for ISNULL and
+     *         ISNOTNULL; never the null string
+     */
+    public String[] getValues(int i) {
+        return nodes.get(i).values;
+    }
+
+    /**
+     * @return the string of null of a compare's column
+     */
+    public String getNullString(int i) {
+        return nodes.get(i).nullString;
+    }
+
+    public TupleFilter getDelegate(int i) {
+        return nodes.get(i).delegate;
+    }
+
+    /**
+     * @return the folded constant (OP_TRUE/OP_FALSE) if the subtree is
+     *         constant, otherwise -1
+     */
+    private int compileNode(TupleFilter filter) {
+        if (filter instanceof ConstantTupleFilter) {
+            return emitConst(filter.evaluate(null));
+        } else if (filter instanceof LogicalTupleFilter) {
+            return compileLogical(filter);
+        } else if (filter instanceof CompareTupleFilter) {
+            return compileCompare((CompareTupleFilter) filter);
+        } else {
+            emitDelegate(filter);
+            return -1;
+        }
+    }
+
+    private int compileLogical(TupleFilter filter) {
+        switch (filter.getOperator()) {
+        case NOT: {
+            int start = emit(new Node(OP_NOT));
+            int childConst = compileNode(filter.getChildren().get(0));
+            if (childConst >= 0) {
+                rollback(start);
+                return emitConst(childConst == OP_FALSE);
+            }
+            end(start);
+            return -1;
+        }
+        case AND:
+        case OR: {
+            boolean isAnd = filter.getOperator() == FilterOperatorEnum.AND;
+            int start = emit(new Node(isAnd ? OP_AND : OP_OR));
+            int nonConstChildren = 0;
+            for (TupleFilter child : filter.getChildren()) {
+                int childStart = nodes.size();
+                int childConst = compileNode(child);
+                if (childConst < 0) {
+                    nonConstChildren++;
+                    continue;
+                }
+                rollback(childStart);
+                // AND FALSE / OR TRUE decides the whole
+                if (isAnd == (childConst == OP_FALSE)) {
+                    rollback(start);
+                    return emitConst(!isAnd);
+                }
+            }
+            if (nonConstChildren == 0) {
+                rollback(start);
+                return emitConst(isAnd);
+            }
+            end(start);
+            return -1;
+        }
+        default:
+            throw new IllegalStateException("Unknown logical op " + filter.getOperator());
+        }
+    }
+
+    private int compileCompare(CompareTupleFilter compf) {
+        TblColRef col = null;
+        boolean onColumnOnly = true;
+        for (TupleFilter child : compf.getChildren()) {
+            if (child instanceof ColumnTupleFilter)
+                col = ((ColumnTupleFilter) child).getColumn();
+            else if ((child instanceof ConstantTupleFilter || child instanceof DynamicTupleFilter) == false)
+                onColumnOnly = false;
+        }
+        if (col == null || onColumnOnly == false) {
+            emitDelegate(compf);
+            return -1;
+        }
+
+        byte op;
+        switch (compf.getOperator()) {
+        case ISNULL:
+            op = OP_ISNULL;
+            break;
+        case ISNOTNULL:
+            op = OP_ISNOTNULL;
+            break;
+        case EQ:
+            op = OP_EQ;
+            break;
+        case NEQ:
+            op = OP_NEQ;
+            break;
+        case LT:
+            op = OP_LT;
+            break;
+        case LTE:
+            op = OP_LTE;
+            break;
+        case GT:
+            op = OP_GT;
+            break;
+        case GTE:
+            op = OP_GTE;
+            break;
+        case IN:
+            op = OP_IN;
+            break;
+        default:
+            emitDelegate(compf);
+            return -1;
+        }
+
+        String nullString = compf.getNullString();
+        if (op == OP_ISNULL || op == OP_ISNOTNULL) {
+            emit(new Node(op, col, new String[0], nullString));
+            return -1;
+        }
+
+        Collection<String> values = compf.getValues();
+        if (values.isEmpty()) {
+            // nothing to compare with, let the tree decide
+            emitDelegate(compf);
+            return -1;
+        }
+
+        // compare to null is always false
+        String[] consts;
+        if (op == OP_IN) {
+            ArrayList<String> list = new ArrayList<String>(values.size());
+            for (String v : values) {
+                if (v.equals(nullString) == false)
+                    list.add(v);
+            }
+            consts = list.toArray(new String[list.size()]);
+        } else {
+            String first = values.iterator().next();
+            consts = first.equals(nullString) ? new String[0] : new String[] { first };
+        }
+        if (consts.length == 0)
+            return emitConst(false);
+
+        emit(new Node(op, col, consts, nullString));
+        return -1;
+    }
+
+    private int emitConst(boolean b) {
+        byte op = b ? OP_TRUE : OP_FALSE;
+        emit(new Node(op));
+        return op;
+    }
+
+    private void emitDelegate(TupleFilter filter) {
+        Node node = new Node(OP_DELEGATE);
+        node.delegate = filter;
+        emit(node);
+    }
+
+    private int emit(Node node) {
+        int i = nodes.size();
+        node.end = i + 1;
+        nodes.add(node);
+        return i;
+    }
+
+    private void end(int start) {
+        nodes.get(start).end = nodes.size();
+    }
+
+    private void rollback(int start) {
+        while (nodes.size() > start)
+            nodes.remove(nodes.size() - 1);
+    }
+
+    private static class Node {
+        final byte op;
+        int end;
+        TblColRef column;
+        String[] values;
+        String nullString;
+        TupleFilter delegate;
+
+        Node(byte op) {
+            this.op = op;
+        }
+
+        Node(byte op, TblColRef column, String[] values, String nullString) {
+            this.op = op;
+            this.column = column;
+            this.values = values;
+            this.nullString = nullString;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage.filter;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.kylinolap.common.util.BytesUtil;
+import com.kylinolap.storage.tuple.ITuple;
+
+/**
+ * A deterministic function on a column, like LIKE, UPPER or SUBSTRING. The
+ * first child is the operand (a column or another function), the rest are
+ * constant arguments.
+ *
+ * LIKE/NOT LIKE evaluate to a boolean. Others evaluate to a value that is
+ * read by the parent via getValues(), e.g. UPPER(col) = 'ABC' is a
+ * CompareTupleFilter on top of a FunctionTupleFilter.
+ *
+ * Not evaluable on storage side as is, but since it depends on a single
+ * column, it can be turned into an IN filter by enumerating the column
+ * dictionary, see FunctionFilterTranslator.
+ *
+ * A null argument makes a predicate false and a value null, as in SQL. An
+ * unbound variable can't be decided and fails the evaluation.
+ *
+ * @author yangli9
+ */
+public class FunctionTupleFilter extends TupleFilter {
+
+    public static final String LIKE = "LIKE";
+    public static final String NOT_LIKE = "NOT LIKE";
+
+    private static final Set<String> SUPPORTED = new HashSet<String>(Arrays.asList(LIKE, NOT_LIKE, "UPPER", "LOWER", "SUBSTRING", "CHAR_LENGTH", "CHARACTER_LENGTH"));
+
+    public static boolean isSupported(String name) {
+        return name != null && SUPPORTED.contains(name.toUpperCase());
+    }
+
+    private String name;
+    private int arity = -1; // number of children, checked once deserialized
+    private List<String> values;
+
+    // compiled LIKE pattern and the argument it is compiled from
+    private String patternArg;
+    private Pattern pattern;
+
+    public FunctionTupleFilter(String name) {
+        super(new ArrayList<TupleFilter>(3), FilterOperatorEnum.FUNCTION);
+        this.name = name == null ? null : name.toUpperCase();
+        this.values = new ArrayList<String>(1);
+        this.values.add(null);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isPredicate() {
+        return LIKE.equals(name) || NOT_LIKE.equals(name);
+    }
+
+    /**
+     * @return true if the value is a number, to be compared as such
+     */
+    public boolean isNumeric() {
+        return "CHAR_LENGTH".equals(name) || "CHARACTER_LENGTH".equals(name);
+    }
+
+    @Override
+    public TupleFilter copy() {
+        FunctionTupleFilter copy = new FunctionTupleFilter(name);
+        copy.addChildren(children);
+        return copy;
+    }
+
+    @Override
+    public TupleFilter reverse() {
+        if (isPredicate() == false)
+            throw new UnsupportedOperationException("Cannot reverse " + this);
+
+        FunctionTupleFilter reverse = new FunctionTupleFilter(LIKE.equals(name) ? NOT_LIKE : LIKE);
+        reverse.addChildren(children);
+        return reverse;
+    }
+
+    @Override
+    public String toString() {
+        return "FunctionFilter [" + name + ", children=" + children + "]";
+    }
+
+    @Override
+    public boolean isEvaluable() {
+        return false;
+    }
+
+    @Override
+    public boolean evaluate(ITuple tuple) {
+        if (arity >= 0 && children.size() != arity)
+            throw new IllegalStateException(name + " expects " + arity + " children, but got " + children);
+
+        String value = null;
+        String[] args = new String[children.size() - 1];
+        for (int i = 0; i < children.size(); i++) {
+            TupleFilter child = children.get(i);
+            child.evaluate(tuple);
+            Collection<String> childValues = child.getValues();
+            if (childValues.isEmpty() && child instanceof DynamicTupleFilter)
+                throw new IllegalStateException("Unbound variable " + child + " in " + this);
+            String v = childValues.isEmpty() ? null : childValues.iterator().next();
+            if (i == 0)
+                value = v;
+            else
+                args[i - 1] = v;
+        }
+
+        if (isPredicate()) {
+            if (args.length == 0)
+                throw new IllegalStateException("No pattern in " + this);
+            // LIKE on null is unknown, never true
+            if (value == null || args[0] == null)
+                return false;
+            boolean match = likePattern(args[0], args.length > 1 ? args[1] : null).matcher(value).matches();
+            return LIKE.equals(name) ? match : !match;
+        }
+
+        values.set(0, value == null ? null : invoke(value, args));
+        return true;
+    }
+
+    private String invoke(String value, String[] args) {
+        if ("UPPER".equals(name)) {
+            return value.toUpperCase();
+        } else if ("LOWER".equals(name)) {
+            return value.toLowerCase();
+        } else if ("CHAR_LENGTH".equals(name) || "CHARACTER_LENGTH".equals(name)) {
+            return String.valueOf(value.length());
+        } else if ("SUBSTRING".equals(name)) {
+            if (args.length == 0 || args[0] == null || (args.length > 1 && args[1] == null))
+                return null;
+            // SQL position is 1 based, may be before the start; the length counts from there
+            long begin = intArg(args[0]) - 1L;
+            long end = value.length();
+            if (args.length > 1) {
+                long len = intArg(args[1]);
+                if (len < 0)
+                    throw new IllegalArgumentException("Negative substring length " + len + " in " + this);
+                end = Math.min(begin + len, end);
+            }
+            begin = Math.max(begin, 0);
+            if (begin >= end)
+                return "";
+            return value.substring((int) begin, (int) end);
+        } else {
+            throw new UnsupportedOperationException("Function " + name);
+        }
+    }
+
+    private int intArg(String arg) {
+        try {
+            return new BigDecimal(arg.trim()).intValueExact();
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not an integer argument '" + arg + "' in " + this, e);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Not an integer argument '" + arg + "' in " + this, e);
+        }
+    }
+
+    private Pattern likePattern(String like, String escape) {
+        if (like.equals(patternArg) == false) {
+            pattern = Pattern.compile(likeToRegex(like, escape), Pattern.DOTALL);
+            patternArg = like;
+        }
+        return pattern;
+    }
+
+    static String likeToRegex(String like, String escape) {
+        char esc = (escape == null || escape.isEmpty()) ? 0 : escape.charAt(0);
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < like.length(); i++) {
+            char c = like.charAt(i);
+            if (esc != 0 && c == esc && i + 1 < like.length()) {
+                buf.append(Pattern.quote(String.valueOf(like.charAt(++i))));
+            } else if (c == '%') {
+                buf.append(".*");
+            } else if (c == '_') {
+                buf.append('.');
+            } else {
+                buf.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return buf.toString();
+    }
+
+    @Override
+    public Collection<String> getValues() {
+        return values;
+    }
+
+    @Override
+    public byte[] serialize() {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        BytesUtil.writeUTFString(name, buffer);
+        // arguments are children, serialized after this; a decorator dropping one would go unnoticed otherwise
+        BytesUtil.writeVInt(children.size(), buffer);
+        byte[] result = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, result, 0, buffer.position());
+        return result;
+    }
+
+    @Override
+    public void deserialize(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        this.name = BytesUtil.readUTFString(buffer);
+        this.arity = BytesUtil.readVInt(buffer);
+    }
+
+}
@@ -162,6 +162,9 @@ public class TupleFilterSerializer {
         case CASE:
             filter = new CaseTupleFilter();
             break;
+        case FUNCTION:
+            filter = new FunctionTupleFilter(null);
+            break;
         case COLUMN:
             filter = new ColumnTupleFilter(null);
             break;
@@ -63,6 +63,7 @@ import com.kylinolap.cube.kv.RowKeyDecoder;
 import com.kylinolap.cube.kv.RowValueDecoder;
 import com.kylinolap.metadata.model.cube.CubeDesc;
 import com.kylinolap.metadata.model.cube.CubeDesc.DeriveInfo;
+import com.kylinolap.metadata.model.cube.DimensionDesc;
 import com.kylinolap.metadata.model.cube.HBaseColumnDesc;
 import com.kylinolap.metadata.model.cube.MeasureDesc;
 import com.kylinolap.metadata.model.cube.TblColRef;
@@ -382,6 +383,15 @@ public class ConcurrentHBaseTupleIterator implements ITupleIterator {
                 }
             }
 
+            // lookup joined columns and filler, by hash join on FK
+            Map<DimensionDesc, List<TblColRef>> lookupJoined = LookupJoinFiller.groupByDimension(cubeSeg.getCubeDesc(), context.getLookupJoinedColumns());
+            for (Entry<DimensionDesc, List<TblColRef>> entry : lookupJoined.entrySet()) {
+                for (TblColRef col : entry.getValue()) {
+                    info.setField(getFieldName(col, aliasMap), col, col.getDatatype(), index++);
+                }
+                info.addDerivedColumnFiller(new LookupJoinFiller(rowKeyDecoder.getRowKeySplitter(), rowColumns, entry.getKey(), entry.getValue(), info, cubeSeg));
+            }
+
             for (RowValueDecoder rowValueDecoder : rowValueDecoders) {
                 List<String> names = rowValueDecoder.getNames();
                 MeasureDesc[] measures = rowValueDecoder.getMeasures();
@@ -25,6 +25,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.apache.hadoop.hbase.client.HConnection;
 import org.apache.hadoop.hbase.client.HTableInterface;
@@ -41,6 +42,7 @@ import org.apache.hadoop.hbase.util.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Sets;
 import com.kylinolap.common.persistence.StorageException;
 import com.kylinolap.common.util.Array;
 import com.kylinolap.cube.CubeInstance;
@@ -50,12 +52,20 @@ import com.kylinolap.cube.cuboid.Cuboid;
 import com.kylinolap.cube.kv.RowKeyDecoder;
 import com.kylinolap.cube.kv.RowValueDecoder;
 import com.kylinolap.metadata.model.cube.CubeDesc.DeriveInfo;
+import com.kylinolap.metadata.model.cube.DimensionDesc;
 import com.kylinolap.metadata.model.cube.HBaseColumnDesc;
 import com.kylinolap.metadata.model.cube.MeasureDesc;
 import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.storage.QueryTrace;
 import com.kylinolap.storage.StorageContext;
+import com.kylinolap.storage.filter.ColumnTupleFilter;
 import com.kylinolap.storage.filter.TupleFilter;
+import com.kylinolap.storage.hbase.coprocessor.AggregationScanner;
 import com.kylinolap.storage.hbase.coprocessor.CoprocessorEnabler;
+import com.kylinolap.storage.hbase.coprocessor.SRowFilter;
+import com.kylinolap.storage.hbase.coprocessor.SRowTopN;
+import com.kylinolap.storage.hbase.coprocessor.SRowTuple;
+import com.kylinolap.storage.hbase.coprocessor.SRowType;
 import com.kylinolap.storage.tuple.ITupleIterator;
 import com.kylinolap.storage.tuple.Tuple;
 import com.kylinolap.storage.tuple.Tuple.IDerivedColumnFiller;
@@ -106,7 +116,27 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
     private Tuple tuple;
     private int scanCount;
 
+    // filter rows on row key before decoding, when coprocessor is not there to do it
+    private SRowFilter rowFilter;
+    private SRowTuple rowTuple;
+    private Result nextResult;
+
+    // rows returned from current key range, and the cap when range limit is on
+    private int rangeCount;
+    private int rangeLimit;
+
+    // collects stats rows of coprocessor top-N, null if not pushed down
+    private final List<SRowTopN.Stats> topNStats;
+
+    // of the current key range, null if the query is not traced
+    private QueryTrace.Span scanSpan;
+    private int scanCountOfRange;
+
     public CubeSegmentTupleIterator(CubeSegment cubeSeg, Collection<HBaseKeyRange> keyRanges, HConnection conn, Collection<TblColRef> dimensions, TupleFilter filter, Collection<TblColRef> groupBy, Collection<RowValueDecoder> rowValueDecoders, StorageContext context) {
+        this(cubeSeg, keyRanges, conn, dimensions, filter, groupBy, rowValueDecoders, context, null);
+    }
+
+    public CubeSegmentTupleIterator(CubeSegment cubeSeg, Collection<HBaseKeyRange> keyRanges, HConnection conn, Collection<TblColRef> dimensions, TupleFilter filter, Collection<TblColRef> groupBy, Collection<RowValueDecoder> rowValueDecoders, StorageContext context, List<SRowTopN.Stats> topNStats) {
         this.cube = cubeSeg.getCubeInstance();
         this.cubeSeg = cubeSeg;
         this.dimensions = dimensions;
@@ -117,6 +147,7 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
         this.tableName = cubeSeg.getStorageLocationIdentifier();
         this.rowKeyDecoder = new RowKeyDecoder(this.cubeSeg);
         this.scanCount = 0;
+        this.topNStats = topNStats;
 
         try {
             this.table = conn.getTable(tableName);
@@ -134,14 +165,6 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
     }
 
     private void closeScanner() {
-        if (logger.isDebugEnabled() && scan != null) {
-            logger.debug("Scan " + scan.toString());
-            byte[] metricsBytes = scan.getAttribute(Scan.SCAN_ATTRIBUTES_METRICS_DATA);
-            if (metricsBytes != null) {
-                ScanMetrics scanMetrics = ProtobufUtil.toScanMetrics(metricsBytes);
-                logger.debug("HBase Metrics: " + "count={}, ms={}, bytes={}, remote_bytes={}, regions={}, not_serving_region={}, rpc={}, rpc_retries={}, remote_rpc={}, remote_rpc_retries={}", new Object[] { scanCount, scanMetrics.sumOfMillisSecBetweenNexts, scanMetrics.countOfBytesInResults, scanMetrics.countOfBytesInRemoteResults, scanMetrics.countOfRegions, scanMetrics.countOfNSRE, scanMetrics.countOfRPCcalls, scanMetrics.countOfRPCRetries, scanMetrics.countOfRemoteRPCcalls, scanMetrics.countOfRemoteRPCRetries });
-            }
-        }
         try {
             if (scanner != null) {
                 scanner.close();
@@ -149,6 +172,33 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
             }
         } catch (Throwable t) {
             throw new StorageException("Error when close scanner for table " + tableName, t);
+        } finally {
+            // scan metrics are written to the scan as the scanner closes
+            if (scan != null && (logger.isDebugEnabled() || scanSpan != null)) {
+                traceScan();
+            }
+            scanSpan = null;
+        }
+    }
+
+    private void traceScan() {
+        byte[] metricsBytes = scan.getAttribute(Scan.SCAN_ATTRIBUTES_METRICS_DATA);
+        ScanMetrics scanMetrics = metricsBytes == null ? null : ProtobufUtil.toScanMetrics(metricsBytes);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Scan " + scan.toString());
+            if (scanMetrics != null) {
+                logger.debug("HBase Metrics: " + "count={}, ms={}, bytes={}, remote_bytes={}, regions={}, not_serving_region={}, rpc={}, rpc_retries={}, remote_rpc={}, remote_rpc_retries={}", new Object[] { scanCount, scanMetrics.sumOfMillisSecBetweenNexts, scanMetrics.countOfBytesInResults, scanMetrics.countOfBytesInRemoteResults, scanMetrics.countOfRegions, scanMetrics.countOfNSRE, scanMetrics.countOfRPCcalls, scanMetrics.countOfRPCRetries, scanMetrics.countOfRemoteRPCcalls, scanMetrics.countOfRemoteRPCRetries });
+            }
+        }
+        if (scanSpan != null) {
+            QueryTrace trace = context.getQueryTrace();
+            scanSpan.put("rows", scanCountOfRange).put("returned", rangeCount);
+            trace.count(QueryTrace.COUNTER_HBASE_ROWS, scanCountOfRange);
+            if (scanMetrics != null) {
+                scanSpan.put("bytes", scanMetrics.countOfBytesInResults.get()).put("regions", scanMetrics.countOfRegions.get()).put("rpc", scanMetrics.countOfRPCcalls.get());
+                trace.count(QueryTrace.COUNTER_HBASE_BYTES, scanMetrics.countOfBytesInResults.get());
+            }
+            scanSpan.end();
         }
     }
 
@@ -164,22 +214,18 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
 
     @Override
     public boolean hasNext() {
-        return rangeIterator.hasNext() || resultIterator.hasNext();
+        if (nextResult == null)
+            nextResult = fetchNextResult();
+        return nextResult != null;
     }
 
     @Override
     public Tuple next() {
         // get next result from hbase
-        Result result = null;
-        while (hasNext()) {
-            if (resultIterator.hasNext()) {
-                result = this.resultIterator.next();
-                scanCount++;
-                break;
-            } else {
-                scanNextRange();
-            }
-        }
+        Result result = nextResult;
+        nextResult = null;
+        if (result == null)
+            result = fetchNextResult();
         if (result == null) {
             return null;
         }
@@ -192,12 +238,58 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
         return this.tuple;
     }
 
+    private Result fetchNextResult() {
+        while (rangeIterator.hasNext() || resultIterator.hasNext()) {
+            if (resultIterator.hasNext() && rangeCount < rangeLimit) {
+                Result result = this.resultIterator.next();
+                scanCount++;
+                scanCountOfRange++;
+                if (SRowTopN.isStatsRow(result.getRow())) {
+                    readStatsRow(result);
+                    continue;
+                }
+                if (rowTuple != null) {
+                    rowTuple.setUnderlying(result.getRow(), 0, result.getRow().length);
+                    if (rowFilter.evaluate(rowTuple) == false)
+                        continue;
+                }
+                rangeCount++;
+                return result;
+            } else if (rangeIterator.hasNext()) {
+                scanNextRange();
+            } else {
+                break;
+            }
+        }
+        return null;
+    }
+
+    private void readStatsRow(Result result) {
+        if (topNStats != null) {
+            SRowTopN.Stats stats = SRowTopN.readStats(result);
+            if (stats != null)
+                topNStats.add(stats);
+        }
+        QueryTrace trace = context.getQueryTrace();
+        if (trace != null) {
+            AggregationScanner.Stats stats = AggregationScanner.Stats.readStats(result);
+            if (stats != null) {
+                trace.startSpan("coprocessor").put("table", tableName).put("region", stats.region).put("rows", stats.inputRows).put("bytes", stats.inputBytes).put("returned", stats.outputRows).put("ms", stats.aggregationMillis).put("memoryBytes", stats.memoryBytes).end();
+            }
+        }
+    }
+
     private void scanNextRange() {
         if (this.rangeIterator.hasNext()) {
             closeScanner();
             HBaseKeyRange keyRange = this.rangeIterator.next();
             this.tupleInfo = buildTupleInfo(keyRange.getCuboid());
             this.tuple = new Tuple(this.tupleInfo);
+            this.rowTuple = buildRowTuple(keyRange.getCuboid());
+
+            // rows must be filtered here for the range limit to count right
+            this.rangeCount = 0;
+            this.rangeLimit = context.isRangeLimitEnabled() && (filter == null || rowTuple != null) ? context.getLimit() : Integer.MAX_VALUE;
 
             this.resultIterator = doScan(keyRange);
         } else {
@@ -205,9 +297,37 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
         }
     }
 
+    private SRowTuple buildRowTuple(Cuboid cuboid) {
+        if (filter == null || context.isCoprocessorEnabled())
+            return null;
+
+        Set<TblColRef> filterColumns = Sets.newHashSet();
+        collectColumnsRecursively(filter, filterColumns);
+        if (cuboid.getColumns().containsAll(filterColumns) == false)
+            return null;
+
+        if (rowFilter == null)
+            rowFilter = SRowFilter.fromFilter(cubeSeg, filter);
+        return new SRowTuple(SRowType.fromCuboid(cubeSeg, cuboid));
+    }
+
+    private void collectColumnsRecursively(TupleFilter filter, Set<TblColRef> collector) {
+        if (filter instanceof ColumnTupleFilter) {
+            collector.add(((ColumnTupleFilter) filter).getColumn());
+        }
+        for (TupleFilter child : filter.getChildren()) {
+            collectColumnsRecursively(child, collector);
+        }
+    }
+
     private final Iterator<Result> doScan(HBaseKeyRange keyRange) {
 
         Iterator<Result> iter = null;
+        context.checkDeadline();
+        this.scanCountOfRange = 0;
+        if (context.getQueryTrace() != null) {
+            this.scanSpan = context.getQueryTrace().startSpan("hbase scan").put("table", tableName).put("segment", cubeSeg.getName()).put("cuboid", keyRange.getCuboid().getId()).put("start", keyRange.getStartKeyAsString()).put("stop", keyRange.getStopKeyAsString());
+        }
         try {
             scan = buildScan(keyRange);
             applyFuzzyFilter(scan, keyRange);
@@ -217,6 +337,7 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
 
             iter = scanner.iterator();
         } catch (Throwable t) {
+            context.checkDeadline(); // likely the coprocessor gave up, tell it plainly
             String msg = MessageFormat.format("Error when scan from lower key {1} to upper key {2} on table {0}.", tableName, Bytes.toString(keyRange.getStartKey()), Bytes.toString(keyRange.getStopKey()));
             throw new StorageException(msg, t);
         }
@@ -313,6 +434,15 @@ public class CubeSegmentTupleIterator implements ITupleIterator {
             }
         }
 
+        // lookup joined columns and filler, by hash join on FK
+        Map<DimensionDesc, List<TblColRef>> lookupJoined = LookupJoinFiller.groupByDimension(cubeSeg.getCubeDesc(), context.getLookupJoinedColumns());
+        for (Entry<DimensionDesc, List<TblColRef>> entry : lookupJoined.entrySet()) {
+            for (TblColRef col : entry.getValue()) {
+                info.setField(getFieldName(col, context.getAliasMap()), col, col.getDatatype(), index++);
+            }
+            info.addDerivedColumnFiller(new LookupJoinFiller(rowKeyDecoder.getRowKeySplitter(), rowColumns, entry.getKey(), entry.getValue(), info, cubeSeg));
+        }
+
         for (RowValueDecoder rowValueDecoder : this.rowValueDecoders) {
             List<String> names = rowValueDecoder.getNames();
             MeasureDesc[] measures = rowValueDecoder.getMeasures();
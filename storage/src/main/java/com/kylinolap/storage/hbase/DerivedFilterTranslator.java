@@ -170,7 +170,7 @@ public class DerivedFilterTranslator {
         }
     }
 
-    private static class SingleColumnTuple implements ITuple {
+    static class SingleColumnTuple implements ITuple {
 
         private TblColRef col;
         private String value;
@@ -179,6 +179,10 @@ public class DerivedFilterTranslator {
             this.col = col;
         }
 
+        void setValue(String value) {
+            this.value = value;
+        }
+
         @Override
         public List<String> getAllFields() {
             throw new UnsupportedOperationException();
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage.hbase;
+
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.kylinolap.cube.CubeInstance;
+import com.kylinolap.cube.CubeManager;
+import com.kylinolap.cube.CubeSegment;
+import com.kylinolap.cube.CubeSegmentStatusEnum;
+import com.kylinolap.dict.Dictionary;
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.storage.filter.ColumnTupleFilter;
+import com.kylinolap.storage.filter.CompareTupleFilter;
+import com.kylinolap.storage.filter.ConstantTupleFilter;
+import com.kylinolap.storage.filter.DynamicTupleFilter;
+import com.kylinolap.storage.filter.FunctionTupleFilter;
+import com.kylinolap.storage.filter.LogicalTupleFilter;
+import com.kylinolap.storage.filter.TupleFilter;
+import com.kylinolap.storage.filter.TupleFilter.FilterOperatorEnum;
+import com.kylinolap.storage.hbase.DerivedFilterTranslator.SingleColumnTuple;
+
+/**
+ * Translates a predicate on a single dictionary column that involves functions
+ * (LIKE, UPPER etc.) into an IN filter, by evaluating the predicate once per
+ * dictionary entry. The IN filter then drives key range planning and the
+ * coprocessor filter like any other.
+ *
+ * Enumeration results are cached by dictionary and predicate. A global
+ * dictionary is appended at the same path, so a cached result is only reused
+ * for the very dictionary instance it was enumerated on.
+ *
+ * @author yangli9
+ */
+public class FunctionFilterTranslator {
+
+    private static final Logger logger = LoggerFactory.getLogger(FunctionFilterTranslator.class);
+
+    // don't enumerate dictionaries bigger than this
+    private static final int MAX_ENUMERATE = 1000000;
+    // beyond this many matches, leave the predicate for Optiq
+    private static final int IN_THRESHOLD = 10000;
+    private static final int CACHE_SIZE = 1000;
+
+    private static final Set<String> NOT_TRANSLATABLE = Collections.unmodifiableSet(new HashSet<String>());
+
+    @SuppressWarnings("serial")
+    private static final Map<String, Matches> cache = Collections.synchronizedMap(new LinkedHashMap<String, Matches>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Matches> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    });
+
+    public static TupleFilter translate(TupleFilter filter, CubeInstance cube) {
+        if (filter == null)
+            return filter;
+
+        TblColRef col = findSingleFunctionColumn(filter);
+        if (col != null) {
+            TupleFilter translated = translateOnDictionary(filter, col, cube);
+            if (translated != null)
+                return translated;
+        }
+
+        if ((filter instanceof LogicalTupleFilter) == false)
+            return filter;
+
+        @SuppressWarnings("unchecked")
+        List<TupleFilter> children = (List<TupleFilter>) filter.getChildren();
+        List<TupleFilter> newChildren = Lists.newArrayListWithCapacity(children.size());
+        boolean modified = false;
+        for (TupleFilter child : children) {
+            TupleFilter translated = translate(child, cube);
+            newChildren.add(translated);
+            if (child != translated)
+                modified = true;
+        }
+        if (modified) {
+            LogicalTupleFilter r = new LogicalTupleFilter(filter.getOperator());
+            r.addChildren(newChildren);
+            filter = r;
+        }
+        return filter;
+    }
+
+    private static TupleFilter translateOnDictionary(TupleFilter filter, TblColRef col, CubeInstance cube) {
+        CubeManager cubeMgr = CubeManager.getInstance(cube.getConfig());
+        Map<String, Dictionary<?>> dicts = Maps.newHashMap();
+        for (CubeSegment seg : cube.getSegments(CubeSegmentStatusEnum.READY)) {
+            String path = seg.getDictResPath(col);
+            if (path == null)
+                return null; // not a dictionary column
+            if (dicts.containsKey(path) == false)
+                dicts.put(path, cubeMgr.getDictionary(seg, col));
+        }
+        if (dicts.isEmpty())
+            return null;
+
+        Set<String> values = Sets.newHashSet();
+        for (Map.Entry<String, Dictionary<?>> entry : dicts.entrySet()) {
+            Set<String> matches = getMatches(filter, col, entry.getKey(), entry.getValue());
+            if (matches == NOT_TRANSLATABLE)
+                return null;
+            values.addAll(matches);
+            if (values.size() > IN_THRESHOLD)
+                return null;
+        }
+
+        if (values.isEmpty())
+            return ConstantTupleFilter.FALSE;
+
+        CompareTupleFilter in = new CompareTupleFilter(FilterOperatorEnum.IN);
+        in.addChild(new ColumnTupleFilter(col));
+        in.addChild(new ConstantTupleFilter(values));
+        return in;
+    }
+
+    static Set<String> getMatches(TupleFilter filter, TblColRef col, String dictResPath, Dictionary<?> dict) {
+        String key = dictResPath + "\t" + filter;
+        Matches cached = cache.get(key);
+        if (cached == null || cached.dict.get() != dict) { // a reloaded or appended dictionary is a new instance
+            cached = new Matches(dict, enumerate(filter, col, dict));
+            cache.put(key, cached);
+        }
+        return cached.values;
+    }
+
+    static void clearCache() {
+        cache.clear();
+    }
+
+    private static class Matches {
+        // weak, not to hold on to a replaced dictionary
+        final WeakReference<Dictionary<?>> dict;
+        final Set<String> values;
+
+        Matches(Dictionary<?> dict, Set<String> values) {
+            this.dict = new WeakReference<Dictionary<?>>(dict);
+            this.values = values;
+        }
+    }
+
+    private static Set<String> enumerate(TupleFilter filter, TblColRef col, Dictionary<?> dict) {
+        if (dict == null || dict.getMaxId() - dict.getMinId() + 1 > MAX_ENUMERATE)
+            return NOT_TRANSLATABLE;
+
+        long start = System.currentTimeMillis();
+        Set<String> result = Sets.newHashSet();
+        SingleColumnTuple tuple = new SingleColumnTuple(col);
+        try {
+            // null is not in the dictionary but may be in the column, an IN can't take it
+            tuple.setValue(null);
+            if (filter.evaluate(tuple))
+                return NOT_TRANSLATABLE;
+
+            for (int id = dict.getMinId(), max = dict.getMaxId(); id <= max; id++) {
+                Object v = dict.getValueFromId(id);
+                if (v == null)
+                    continue;
+                String value = v.toString();
+                tuple.setValue(value);
+                if (filter.evaluate(tuple)) {
+                    result.add(value);
+                    if (result.size() > IN_THRESHOLD)
+                        return NOT_TRANSLATABLE;
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Failed to evaluate " + filter + " on dictionary of " + col, e);
+            return NOT_TRANSLATABLE;
+        }
+
+        logger.info("Enumerated dictionary of " + col + " for " + filter + ", " + result.size() + " matches, took " + (System.currentTimeMillis() - start) + " ms");
+        return result;
+    }
+
+    /**
+     * @return the column if filter is on a single column and involves a
+     *         function, otherwise null
+     */
+    private static TblColRef findSingleFunctionColumn(TupleFilter filter) {
+        Set<TblColRef> columns = Sets.newHashSet();
+        boolean[] hasFunction = new boolean[1];
+        if (collect(filter, columns, hasFunction) == false)
+            return null;
+        if (hasFunction[0] == false || columns.size() != 1)
+            return null;
+        return columns.iterator().next();
+    }
+
+    private static boolean collect(TupleFilter filter, Collection<TblColRef> columns, boolean[] hasFunction) {
+        if (filter instanceof DynamicTupleFilter)
+            return false; // unbound variable
+        if (filter instanceof FunctionTupleFilter)
+            hasFunction[0] = true;
+        if (filter instanceof ColumnTupleFilter)
+            columns.add(((ColumnTupleFilter) filter).getColumn());
+        for (TupleFilter child : filter.getChildren()) {
+            if (collect(child, columns, hasFunction) == false)
+                return false;
+        }
+        return true;
+    }
+}
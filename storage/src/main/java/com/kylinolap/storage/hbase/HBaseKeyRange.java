@@ -110,9 +110,12 @@ public class HBaseKeyRange implements Comparable<HBaseKeyRange> {
         Map<TblColRef, Set<String>> fuzzyValues = Maps.newHashMapWithExpectedSize(size);
         for (ColumnValueRange dimRange : andDimensionRanges) {
             TblColRef column = dimRange.getColumn();
-            startValues.put(column, dimRange.getBeginValue());
-            stopValues.put(column, dimRange.getEndValue());
             fuzzyValues.put(column, dimRange.getEqualValues());
+            // IDs of global dictionary are not in value order, leave the key range open
+            if (cubeSeg.getCubeDesc().getRowkey().isUseGlobalDictionary(column) == false) {
+                startValues.put(column, dimRange.getBeginValue());
+                stopValues.put(column, dimRange.getEndValue());
+            }
 
             TblColRef partitionDateColumnRef = cubeSeg.getCubeDesc().getCubePartitionDesc().getPartitionDateColumnRef();
             if (column.equals(partitionDateColumnRef)) {
@@ -19,6 +19,7 @@ import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -42,22 +43,27 @@ import com.kylinolap.cube.CubeSegment;
 import com.kylinolap.cube.CubeSegmentStatusEnum;
 import com.kylinolap.cube.cuboid.Cuboid;
 import com.kylinolap.cube.kv.RowValueDecoder;
+import com.kylinolap.dict.DateStrDictionary;
 import com.kylinolap.dict.lookup.LookupStringTable;
 import com.kylinolap.metadata.model.cube.CubeDesc;
 import com.kylinolap.metadata.model.cube.CubeDesc.DeriveInfo;
+import com.kylinolap.metadata.model.cube.CubePartitionDesc;
 import com.kylinolap.metadata.model.cube.FunctionDesc;
 import com.kylinolap.metadata.model.cube.HBaseColumnDesc;
 import com.kylinolap.metadata.model.cube.HBaseMappingDesc;
 import com.kylinolap.metadata.model.cube.MeasureDesc;
 import com.kylinolap.metadata.model.cube.TblColRef;
 import com.kylinolap.storage.IStorageEngine;
+import com.kylinolap.storage.QueryTrace;
 import com.kylinolap.storage.StorageContext;
 import com.kylinolap.storage.filter.ColumnTupleFilter;
 import com.kylinolap.storage.filter.CompareTupleFilter;
+import com.kylinolap.storage.filter.ConstantTupleFilter;
 import com.kylinolap.storage.filter.LogicalTupleFilter;
 import com.kylinolap.storage.filter.TupleFilter;
 import com.kylinolap.storage.filter.TupleFilter.FilterOperatorEnum;
 import com.kylinolap.storage.hbase.coprocessor.CoprocessorEnabler;
+import com.kylinolap.storage.hbase.coprocessor.SRowFilter;
 import com.kylinolap.storage.tuple.ITupleIterator;
 
 /**
@@ -69,6 +75,8 @@ public class HBaseStorageEngine implements IStorageEngine {
 
     private static final int MERGE_KEYRANGE_THRESHOLD = 7;
     private static final long MEM_BUDGET_PER_QUERY = 3L * 1024 * 1024 * 1024; // 3G
+    private static final int MAX_TOPN_PUSHDOWN = 10000; // cap of N per region
+    private static final int MAX_TOPN_CANDIDATES = 10000; // beyond that, re-scan everything
 
     private final CubeInstance cubeInstance;
     private final CubeDesc cubeDesc;
@@ -81,11 +89,40 @@ public class HBaseStorageEngine implements IStorageEngine {
     @Override
     public ITupleIterator search(Collection<TblColRef> dimensions, TupleFilter filter, //
             Collection<TblColRef> groups, Collection<FunctionDesc> metrics, StorageContext context) {
+        return search(dimensions, filter, groups, metrics, context, true);
+    }
+
+    private ITupleIterator search(Collection<TblColRef> dimensions, TupleFilter filter, //
+            Collection<TblColRef> groups, Collection<FunctionDesc> metrics, StorageContext context, boolean allowTopNPushDown) {
+
+        // leaderboard query, answered by TopN measure without scanning the key column
+        MeasureDesc topN = findTopNMeasure(groups, filter, metrics, context);
+        if (topN != null) {
+            boolean coprocessorBefore = context.isCoprocessorEnabled();
+            boolean partialBefore = context.isPartialResultReturned();
+            TopNTupleIterator topNIterator = searchTopN(topN, dimensions, filter, groups, metrics, context);
+            if (topNIterator.isExact()) {
+                return topNIterator;
+            }
+            // keys dropped for space may be in the top, or sums are bounds only
+            logger.info("TopN measure " + topN.getFunction() + " is not exact on the top " + context.getLimit() + ", fall back to scan");
+            topNIterator.close();
+            if (coprocessorBefore == false)
+                context.disableCoprocessor();
+            context.setPartialResultReturned(partialBefore);
+        }
+
+        QueryTrace.Span planSpan = context.getQueryTrace() == null ? null : context.getQueryTrace().startSpan("key range planning").put("cube", cubeInstance.getName());
 
         // all dimensions = groups + others
         Set<TblColRef> others = Sets.newHashSet(dimensions);
         others.removeAll(groups);
 
+        // lookup columns not on the cube, filled by hash join on FK like derived
+        Set<TblColRef> lookupJoined = Sets.newHashSet(dimensions);
+        lookupJoined.retainAll(cubeDesc.listLookupJoinedColumns());
+        context.setLookupJoinedColumns(lookupJoined);
+
         // expand derived
         Set<TblColRef> derivedPostAggregation = Sets.newHashSet();
         Set<TblColRef> groupsD = expandDerived(groups, derivedPostAggregation);
@@ -108,10 +145,14 @@ public class HBaseStorageEngine implements IStorageEngine {
         // translate filter for scan range and compose returning groups for coprocessor, note:
         // - columns on evaluate-able filter have to return
         // - columns on loosened filter (due to derived translation) have to return
+        // - columns on filter coprocessor drops (ranges on global dictionary) have to return
         Set<TblColRef> groupsCopD = Sets.newHashSet(groupsD);
         groupsCopD.addAll(context.getOtherMandatoryColumns()); // TODO: this is tricky, to generalize
         collectNonEvaluable(filter, groupsCopD);
-        TupleFilter filterD = translateDerived(filter, groupsCopD);
+        // functions on a dictionary column (e.g. LIKE) become IN by enumerating the dictionary
+        TupleFilter filterF = FunctionFilterTranslator.translate(filter, cubeInstance);
+        TupleFilter filterD = translateDerived(filterF, groupsCopD);
+        SRowFilter.collectRelaxedColumns(cubeDesc.getRowkey(), filterD, groupsCopD);
 
         // flatten to OR-AND filter, (A AND B AND ..) OR (C AND D AND ..) OR ..
         TupleFilter flatFilter = flattenToOrAndFilter(filterD);
@@ -125,11 +166,191 @@ public class HBaseStorageEngine implements IStorageEngine {
         setThreshold(dimensionsD, valueDecoders, context); // set cautious threshold to prevent out of memory
         setCoprocessor(groupsCopD, valueDecoders, context); // enable coprocessor if beneficial
         setLimit(filter, context);
+        setRangeLimit(cuboid, filter, filterD, singleValuesD, context);
+
+        if (planSpan != null) {
+            planSpan.put("cuboid", cuboid.getId()).put("ranges", scans.size()).put("exactAggregation", isExactAggregation).put("coprocessor", context.isCoprocessorEnabled()).put("threshold", context.getThreshold()).end();
+        }
 
         HConnection conn = HBaseConnection.get(context.getConnUrl());
+        if (isSamplingApplicable(groups, filter, metrics, context)) {
+            return new SampledTupleIterator(conn, scans, cubeInstance, dimensionsD, filterD, groupsCopD, valueDecoders, context);
+        }
+        if (allowTopNPushDown && isTopNPushDownBeneficial(groups, groupsD, groupsCopD, filter, filterD, metrics, context)) {
+            return searchWithTopNPushDown(conn, scans, dimensionsD, filterD, groupsCopD, valueDecoders, dimensions, filter, groups, metrics, context);
+        }
         return new SerializedHBaseTupleIterator(conn, scans, cubeInstance, dimensionsD, filterD, groupsCopD, valueDecoders, context);
     }
 
+    /**
+     * Approximate mode samples aggregations only. A LIMIT without aggregation
+     * is cheap already, and sampled raw rows can't be scaled. Segments are time
+     * slices, so a query grouping or filtering by time is not sampled either,
+     * a group of a time would come from one segment or none.
+     */
+    private boolean isSamplingApplicable(Collection<TblColRef> groups, TupleFilter filter, Collection<FunctionDesc> metrics, StorageContext context) {
+        if (!context.isApproximate() || metrics.isEmpty() || context.isAvoidAggregation() || context.isLimitEnabled())
+            return false;
+
+        Set<TblColRef> columns = Sets.newHashSet(groups);
+        collectFilterColumns(filter, columns);
+        for (TblColRef col : columns) {
+            if (isTimeColumn(col)) {
+                logger.info("Not to sample, query is on time column " + col);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // the partition column, a date/time column, or derived from either
+    private boolean isTimeColumn(TblColRef col) {
+        CubePartitionDesc partition = cubeDesc.getCubePartitionDesc();
+        TblColRef partitionCol = partition == null ? null : partition.getPartitionDateColumnRef();
+        if (col.equals(partitionCol) || (col.getType() != null && col.getType().isDateTimeFamily()))
+            return true;
+        if (isDerived(col)) {
+            for (TblColRef h : getHostInfo(col).columns) {
+                if (h.equals(partitionCol) || (h.getType() != null && h.getType().isDateTimeFamily()))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private void collectFilterColumns(TupleFilter filter, Set<TblColRef> collector) {
+        if (filter == null)
+            return;
+        if (filter instanceof ColumnTupleFilter)
+            collector.add(((ColumnTupleFilter) filter).getColumn());
+        for (TupleFilter child : filter.getChildren())
+            collectFilterColumns(child, collector);
+    }
+
+    /**
+     * ORDER BY SUM/COUNT LIMIT n, each region returns only its top n groups.
+     * Then if any region dropped groups, the threshold algorithm in
+     * PartialTopNMerger narrows down candidate groups, which are re-scanned for
+     * exact values. If it can't narrow down, scan everything as usual.
+     */
+    private ITupleIterator searchWithTopNPushDown(HConnection conn, List<HBaseKeyRange> scans, Set<TblColRef> dimensionsD, TupleFilter filterD, Set<TblColRef> groupsCopD, List<RowValueDecoder> valueDecoders, //
+            Collection<TblColRef> dimensions, TupleFilter filter, Collection<TblColRef> groups, Collection<FunctionDesc> metrics, StorageContext context) {
+        List<TblColRef> groupList = Lists.newArrayList(groups);
+        FunctionDesc sortFunc = context.getSortMeasures().get(0).getFunction();
+        PartialTopNMerger merger = new PartialTopNMerger(groupList, sortFunc.getRewriteFieldName(), context.getSortOrders().get(0), context.getLimit());
+
+        context.enableTopNPushDown();
+        try {
+            merger.consume(new SerializedHBaseTupleIterator(conn, scans, cubeInstance, dimensionsD, filterD, groupsCopD, valueDecoders, context, merger.getStatsCollector()));
+        } finally {
+            context.disableTopNPushDown();
+        }
+
+        if (merger.isComplete()) {
+            logger.info("Top " + context.getLimit() + " pushed down, no region dropped any group");
+            return merger.getConsumedTuples();
+        }
+
+        List<List<Object>> candidates = merger.findCandidates(MAX_TOPN_CANDIDATES);
+        TupleFilter candidateFilter = candidates == null ? null : buildCandidateFilter(filter, groupList, candidates);
+        if (candidateFilter == null) {
+            logger.info("Top " + context.getLimit() + " pushed down, but candidate groups can't be narrowed down, scan all groups");
+            return search(dimensions, filter, groups, metrics, context, false);
+        }
+
+        logger.info("Top " + context.getLimit() + " pushed down, re-scan " + candidates.size() + " candidate groups");
+        return merger.retainCandidates(search(dimensions, candidateFilter, groups, metrics, context, false));
+    }
+
+    /**
+     * Filter AND (each group column IN candidate values), a superset of the
+     * candidate groups.
+     */
+    private TupleFilter buildCandidateFilter(TupleFilter filter, List<TblColRef> groupList, List<List<Object>> candidates) {
+        LogicalTupleFilter and = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        if (filter != null)
+            and.addChild(filter);
+
+        for (int i = 0; i < groupList.size(); i++) {
+            TblColRef col = groupList.get(i);
+            Set<String> values = Sets.newHashSet();
+            for (List<Object> candidate : candidates) {
+                Object v = candidate.get(i);
+                if (v == null)
+                    return null; // IN can't match null
+                if ("date".equals(col.getDatatype()))
+                    values.add(DateStrDictionary.dateToString(new Date(((Number) v).longValue() * 24 * 3600 * 1000), DateStrDictionary.DEFAULT_DATE_PATTERN));
+                else
+                    values.add(v.toString());
+            }
+            CompareTupleFilter in = new CompareTupleFilter(FilterOperatorEnum.IN);
+            in.addChild(new ColumnTupleFilter(col));
+            in.addChild(new ConstantTupleFilter(values));
+            and.addChild(in);
+        }
+        return and;
+    }
+
+    /**
+     * A TopN measure, TOP_N(x, key), answers "GROUP BY key ORDER BY SUM(x) DESC LIMIT n"
+     * if the key is in group by, SUM(x) is the only metric and the only sort, n is
+     * within the N of TopN, and the key is not filtered. A HAVING would filter
+     * the top n after the limit, not before.
+     */
+    private MeasureDesc findTopNMeasure(Collection<TblColRef> groups, TupleFilter filter, Collection<FunctionDesc> metrics, StorageContext context) {
+        if (context.hasSort() == false || context.getSortMeasures().size() != 1 || metrics.size() != 1)
+            return null;
+        if (context.hasPostAggregationFilter())
+            return null;
+
+        MeasureDesc sortMeasure = context.getSortMeasures().get(0);
+        if (sortMeasure == null || context.getSortOrders().get(0) != StorageContext.OrderEnum.DESCENDING)
+            return null;
+
+        FunctionDesc sumFunc = sortMeasure.getFunction();
+        if (sumFunc.isSum() == false || metrics.contains(sumFunc) == false)
+            return null;
+
+        Set<TblColRef> filterColumns = Sets.newHashSet();
+        if (filter != null)
+            collectColumnsRecursively(filter, filterColumns);
+
+        for (MeasureDesc measure : cubeDesc.getMeasures()) {
+            FunctionDesc func = measure.getFunction();
+            if (func.isTopN() == false)
+                continue;
+
+            List<TblColRef> params = func.getParameter().getColRefs();
+            TblColRef metricCol = params.get(0);
+            TblColRef keyCol = params.get(1);
+            if (sumFunc.getParameter().getColRefs().get(0).equals(metricCol) //
+                    && groups.contains(keyCol) //
+                    && filterColumns.contains(keyCol) == false //
+                    && context.getLimit() <= func.getReturnDataType().getPrecision()) {
+                logger.info("TopN measure " + func + " chosen for sort on " + sumFunc + " with limit " + context.getLimit());
+                return measure;
+            }
+        }
+        return null;
+    }
+
+    private TopNTupleIterator searchTopN(MeasureDesc topN, Collection<TblColRef> dimensions, TupleFilter filter, //
+            Collection<TblColRef> groups, Collection<FunctionDesc> metrics, StorageContext context) {
+        FunctionDesc topNFunc = topN.getFunction();
+        FunctionDesc sumFunc = context.getSortMeasures().get(0).getFunction();
+        TblColRef keyCol = topNFunc.getParameter().getColRefs().get(1);
+
+        Set<TblColRef> dimensionsT = Sets.newHashSet(dimensions);
+        dimensionsT.remove(keyCol);
+        Set<TblColRef> groupsT = Sets.newHashSet(groups);
+        groupsT.remove(keyCol);
+        List<FunctionDesc> metricsT = Collections.singletonList(topNFunc);
+
+        // sort remains marked, so the inner search won't push down the limit
+        ITupleIterator inner = search(dimensionsT, filter, groupsT, metricsT, context);
+        return new TopNTupleIterator(inner, topNFunc, sumFunc, context);
+    }
+
     private Cuboid identifyCuboid(Set<TblColRef> dimensions) {
         long cuboidID = 0;
         for (TblColRef column : dimensions) {
@@ -166,11 +387,22 @@ public class HBaseStorageEngine implements IStorageEngine {
         return exact;
     }
 
+    // a lookup joined column is a derived column of the FK, whose lookup is not
+    // declared on the cube
+    private boolean isDerived(TblColRef col) {
+        return cubeDesc.isDerived(col) || cubeDesc.isLookupJoined(col);
+    }
+
+    private DeriveInfo getHostInfo(TblColRef col) {
+        DeriveInfo hostInfo = cubeDesc.getHostInfo(col);
+        return hostInfo != null ? hostInfo : cubeDesc.getLookupJoinInfo(col);
+    }
+
     private Set<TblColRef> expandDerived(Collection<TblColRef> cols, Set<TblColRef> derivedPostAggregation) {
         Set<TblColRef> expanded = Sets.newHashSet();
         for (TblColRef col : cols) {
-            if (cubeDesc.isDerived(col)) {
-                DeriveInfo hostInfo = cubeDesc.getHostInfo(col);
+            if (isDerived(col)) {
+                DeriveInfo hostInfo = getHostInfo(col);
                 for (TblColRef hostCol : hostInfo.columns) {
                     expanded.add(hostCol);
                     if (hostInfo.isOneToOne == false)
@@ -208,8 +440,8 @@ public class HBaseStorageEngine implements IStorageEngine {
         // expand derived
         Set<TblColRef> resultD = Sets.newHashSet();
         for (TblColRef col : result) {
-            if (cubeDesc.isDerived(col)) {
-                DeriveInfo hostInfo = cubeDesc.getHostInfo(col);
+            if (isDerived(col)) {
+                DeriveInfo hostInfo = getHostInfo(col);
                 if (hostInfo.isOneToOne) {
                     for (TblColRef hostCol : hostInfo.columns) {
                         resultD.add(hostCol);
@@ -245,8 +477,8 @@ public class HBaseStorageEngine implements IStorageEngine {
     }
 
     private void collectColumns(TblColRef col, Set<TblColRef> collector) {
-        if (cubeDesc.isDerived(col)) {
-            DeriveInfo hostInfo = cubeDesc.getHostInfo(col);
+        if (isDerived(col)) {
+            DeriveInfo hostInfo = getHostInfo(col);
             for (TblColRef h : hostInfo.columns)
                 collector.add(h);
         } else {
@@ -292,10 +524,10 @@ public class HBaseStorageEngine implements IStorageEngine {
             return compf;
 
         TblColRef derived = compf.getColumn();
-        if (cubeDesc.isDerived(derived) == false)
+        if (isDerived(derived) == false)
             return compf;
 
-        DeriveInfo hostInfo = cubeDesc.getHostInfo(derived);
+        DeriveInfo hostInfo = getHostInfo(derived);
         CubeManager cubeMgr = CubeManager.getInstance(this.cubeInstance.getConfig());
         CubeSegment seg = cubeInstance.getLatestReadySegment();
         LookupStringTable lookup = cubeMgr.getLookupTable(seg, hostInfo.dimension);
@@ -580,7 +812,8 @@ public class HBaseStorageEngine implements IStorageEngine {
             }
         }
 
-        long rowEst = MEM_BUDGET_PER_QUERY / rowSizeEst;
+        long budget = context.getMemoryBudget() == null ? MEM_BUDGET_PER_QUERY : context.getMemoryBudget().getLimit();
+        long rowEst = budget / rowSizeEst;
         context.setThreshold((int) rowEst);
     }
 
@@ -594,6 +827,106 @@ public class HBaseStorageEngine implements IStorageEngine {
         }
     }
 
+    /**
+     * When the sort is on the leading row key columns in ascending order, rows
+     * of a key range come in sort order. Rows after the first N of a range
+     * can't be in the top N, so each range stops after N rows.
+     */
+    private void setRangeLimit(Cuboid cuboid, TupleFilter filter, TupleFilter filterD, Set<TblColRef> singleValuesD, StorageContext context) {
+        if (context.hasSort() == false || context.isLimitEnabled() || context.isCoprocessorEnabled())
+            return;
+        if ((context.isExactAggregation() || context.isAvoidAggregation()) == false || context.hasPostAggregationFilter())
+            return;
+        if (isFilterExactOnStorage(filter, filterD) == false)
+            return;
+
+        List<TblColRef> sortColumns = context.getSortColumns();
+        Iterator<TblColRef> rowkeyColumns = cuboid.getColumns().iterator();
+        for (int i = 0; i < sortColumns.size(); i++) {
+            TblColRef col = sortColumns.get(i);
+            if (col == null || context.getSortMeasures().get(i) != null || context.getSortOrders().get(i) != StorageContext.OrderEnum.ASCENDING)
+                return;
+            // leading columns of single value don't change the order
+            TblColRef rowkeyCol = null;
+            while (rowkeyColumns.hasNext()) {
+                rowkeyCol = rowkeyColumns.next();
+                if (rowkeyCol.equals(col) || singleValuesD.contains(rowkeyCol) == false)
+                    break;
+            }
+            if (col.equals(rowkeyCol) == false)
+                return;
+            // IDs of global dictionary are not in value order
+            if (cubeDesc.getRowkey().isUseGlobalDictionary(col))
+                return;
+        }
+
+        logger.info("Enable limit " + context.getLimit() + " per key range, sort " + sortColumns + " follows row key order");
+        context.enableRangeLimit();
+    }
+
+    /**
+     * Per region top-N works for ORDER BY SUM/COUNT LIMIT n, when the groups
+     * returned from storage are the query groups, and storage applies the
+     * whole filter, i.e. query engine aggregates but never filters out groups.
+     */
+    private boolean isTopNPushDownBeneficial(Collection<TblColRef> groups, Set<TblColRef> groupsD, Set<TblColRef> groupsCopD, //
+            TupleFilter filter, TupleFilter filterD, Collection<FunctionDesc> metrics, StorageContext context) {
+        if (context.isCoprocessorEnabled() == false || context.hasSort() == false || context.getSortMeasures().size() != 1)
+            return false;
+
+        MeasureDesc sortMeasure = context.getSortMeasures().get(0);
+        if (sortMeasure == null || context.getLimit() <= 0 || context.getLimit() > MAX_TOPN_PUSHDOWN)
+            return false;
+
+        FunctionDesc sortFunc = sortMeasure.getFunction();
+        if ((sortFunc.isSum() || sortFunc.isCount()) == false || metrics.contains(sortFunc) == false)
+            return false;
+
+        if (groups.isEmpty() || groupsD.equals(Sets.newHashSet(groups)) == false || groupsCopD.equals(groupsD) == false)
+            return false;
+
+        if (context.hasPostAggregationFilter() || isFilterExactOnStorage(filter, filterD) == false)
+            return false;
+
+        for (TblColRef col : groups) {
+            String type = col.getDatatype();
+            // values don't convert back to filter constants reliably
+            if ("double".equals(type) || "decimal".equals(type) || "timestamp".equals(type))
+                return false;
+        }
+
+        logger.info("Push down top " + context.getLimit() + " on " + sortFunc + " to coprocessor");
+        return true;
+    }
+
+    /**
+     * @return true if storage evaluates the filter as is, not loosened by
+     *         derived translation, functions or unordered dictionary IDs
+     */
+    private boolean isFilterExactOnStorage(TupleFilter filter, TupleFilter filterD) {
+        if (filter == null)
+            return true;
+        return filter == filterD && TupleFilter.isEvaluableRecursively(filter) && isOnOrderedRowKey(filter);
+    }
+
+    private boolean isOnOrderedRowKey(TupleFilter filter) {
+        if (filter instanceof CompareTupleFilter) {
+            TblColRef col = ((CompareTupleFilter) filter).getColumn();
+            if (col != null) {
+                if (cubeDesc.listDimensionColumnsExcludingDerived().contains(col) == false)
+                    return false;
+                if (cubeDesc.getRowkey().isUseGlobalDictionary(col) && filter.getOperator() != FilterOperatorEnum.EQ //
+                        && filter.getOperator() != FilterOperatorEnum.IN && filter.getOperator() != FilterOperatorEnum.NEQ)
+                    return false;
+            }
+        }
+        for (TupleFilter child : filter.getChildren()) {
+            if (isOnOrderedRowKey(child) == false)
+                return false;
+        }
+        return true;
+    }
+
     private void setCoprocessor(Set<TblColRef> groupsCopD, List<RowValueDecoder> valueDecoders, StorageContext context) {
         CoprocessorEnabler.enableCoprocessorIfBeneficial(cubeInstance, groupsCopD, valueDecoders, context);
     }
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.storage.hbase;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.kylinolap.dict.Dictionary;
+import com.kylinolap.dict.lookup.LookupStringTable;
+
+/**
+ * Rows of a lookup snapshot keyed by the dictionary ID of the FK on a cube
+ * segment, in open addressing int arrays. Probing with the ID read from row
+ * key saves decoding the FK and hashing strings for each fact row.
+ *
+ * Tables are cached by the resource paths of the snapshot and the FK
+ * dictionary, so segments sharing them share a table and a new segment never
+ * finds a stale one. The cache keeps the most recently used tables, softly
+ * referenced so that the GC can take them back under memory pressure. A table
+ * is rebuilt once the snapshot or the dictionary is reloaded.
+ *
+ * @author yangli9
+ */
+public class LookupHashTable {
+
+    private static final int CACHE_SIZE = 100;
+
+    @SuppressWarnings("serial")
+    private static final Map<String, SoftReference<LookupHashTable>> CACHE = Collections.synchronizedMap(new LinkedHashMap<String, SoftReference<LookupHashTable>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SoftReference<LookupHashTable>> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    });
+
+    public static LookupHashTable get(String snapshotPath, LookupStringTable lookup, int pkIndex, String fkDictPath, Dictionary<String> fkDict) {
+        String cacheKey = snapshotPath + "#" + pkIndex + "#" + fkDictPath;
+        SoftReference<LookupHashTable> ref = CACHE.get(cacheKey);
+        LookupHashTable table = ref == null ? null : ref.get();
+        if (table == null || table.lookup != lookup || table.fkDict != fkDict) {
+            table = new LookupHashTable(lookup, pkIndex, fkDict);
+            CACHE.put(cacheKey, new SoftReference<LookupHashTable>(table));
+        }
+        return table;
+    }
+
+    static int getCacheSize() {
+        return CACHE.size();
+    }
+
+    public static void clearCache() {
+        CACHE.clear();
+    }
+
+    // ============================================================================
+
+    private static final int EMPTY = -1;
+
+    private final LookupStringTable lookup;
+    private final Dictionary<String> fkDict;
+    private final int[] keys;
+    private final int[] rows;
+    private final int mask;
+    private int size;
+
+    LookupHashTable(LookupStringTable lookup, int pkIndex, Dictionary<String> fkDict) {
+        this.lookup = lookup;
+        this.fkDict = fkDict;
+
+        String[][] lookupRows = lookup.getRowArray();
+        int capacity = Integer.highestOneBit(Math.max(lookupRows.length, 1) * 2 - 1) << 1;
+        this.keys = new int[capacity];
+        this.rows = new int[capacity];
+        this.mask = capacity - 1;
+        Arrays.fill(keys, EMPTY);
+
+        for (int r = 0; r < lookupRows.length; r++) {
+            String pk = lookupRows[r][pkIndex];
+            if (pk == null)
+                continue;
+            int id;
+            try {
+                id = fkDict.getIdFromValue(pk);
+            } catch (IllegalArgumentException e) {
+                continue; // no fact row refers to it
+            }
+            put(id, r);
+        }
+    }
+
+    private void put(int id, int row) {
+        int i = hash(id);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == id)
+                return; // PK is unique in LookupTable
+            i = (i + 1) & mask;
+        }
+        keys[i] = id;
+        rows[i] = row;
+        size++;
+    }
+
+    private int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * @return row number in the row array of the snapshot, or -1
+     */
+    public int getRow(int fkId) {
+        int i = hash(fkId);
+        while (keys[i] != EMPTY) {
+            if (keys[i] == fkId)
+                return rows[i];
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    public String[][] getRowArray() {
+        return lookup.getRowArray();
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.storage.hbase;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.kylinolap.common.util.Array;
+import com.kylinolap.common.util.BytesUtil;
+import com.kylinolap.cube.CubeManager;
+import com.kylinolap.cube.CubeSegment;
+import com.kylinolap.cube.common.RowKeySplitter;
+import com.kylinolap.cube.common.SplittedBytes;
+import com.kylinolap.cube.kv.RowKeyColumnIO;
+import com.kylinolap.dict.Dictionary;
+import com.kylinolap.dict.lookup.LookupStringTable;
+import com.kylinolap.metadata.model.cube.CubeDesc;
+import com.kylinolap.metadata.model.cube.CubeDesc.DeriveInfo;
+import com.kylinolap.metadata.model.cube.DimensionDesc;
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.storage.tuple.Tuple;
+import com.kylinolap.storage.tuple.Tuple.IDerivedColumnFiller;
+import com.kylinolap.storage.tuple.TupleInfo;
+
+/**
+ * Fills lookup joined columns (see CubeDesc.isLookupJoined()) of a tuple, by
+ * hash join with the lookup snapshot on FK. A single column FK encoded by
+ * dictionary is probed with its ID in row key, before decoding; otherwise
+ * the decoded FK values are the key, like derived columns.
+ *
+ * @author yangli9
+ */
+public class LookupJoinFiller implements IDerivedColumnFiller {
+
+    /**
+     * @return lookup joined columns by the dimension of their lookup table,
+     *         in the order of columns given
+     */
+    public static Map<DimensionDesc, List<TblColRef>> groupByDimension(CubeDesc cubeDesc, Collection<TblColRef> lookupJoinedColumns) {
+        Map<DimensionDesc, List<TblColRef>> result = new LinkedHashMap<DimensionDesc, List<TblColRef>>();
+        for (TblColRef col : lookupJoinedColumns) {
+            DimensionDesc dim = cubeDesc.getLookupJoinInfo(col).dimension;
+            List<TblColRef> cols = result.get(dim);
+            if (cols == null) {
+                cols = new ArrayList<TblColRef>();
+                result.put(dim, cols);
+            }
+            cols.add(col);
+        }
+        return result;
+    }
+
+    private final SplittedBytes[] splits;
+    private final int[] hostIndex;
+    private final LookupStringTable lookupTable;
+    private final LookupHashTable hashTable; // null if not probe by ID
+    private final Array<String> lookupKey;
+    private final int[] lookupIndex;
+    private final String[] fieldNames;
+
+    public LookupJoinFiller(RowKeySplitter splitter, List<TblColRef> rowColumns, DimensionDesc dim, List<TblColRef> columns, TupleInfo tupleInfo, CubeSegment cubeSeg) {
+        CubeDesc cubeDesc = cubeSeg.getCubeDesc();
+        DeriveInfo hostInfo = cubeDesc.getLookupJoinInfo(columns.get(0));
+        TblColRef[] hostCols = hostInfo.columns;
+
+        this.splits = splitter.getSplitBuffers();
+        this.hostIndex = new int[hostCols.length];
+        for (int i = 0; i < hostCols.length; i++) {
+            hostIndex[i] = rowColumns.indexOf(hostCols[i]);
+            if (hostIndex[i] < 0)
+                throw new IllegalStateException("FK " + hostCols[i] + " is not on row key " + rowColumns);
+        }
+        this.lookupTable = CubeManager.getInstance(cubeSeg.getCubeInstance().getConfig()).getLookupTable(cubeSeg, dim);
+        this.lookupKey = new Array<String>(new String[hostCols.length]);
+        this.lookupIndex = new int[columns.size()];
+        this.fieldNames = new String[columns.size()];
+        for (int i = 0; i < columns.size(); i++) {
+            lookupIndex[i] = columns.get(i).getColumn().getZeroBasedIndex();
+            fieldNames[i] = tupleInfo.getFieldName(columns.get(i));
+        }
+
+        LookupHashTable hashTable = null;
+        RowKeyColumnIO colIO = new RowKeyColumnIO(cubeSeg);
+        if (hostCols.length == 1 && colIO.getEncoding(hostCols[0]) == null) {
+            Dictionary<String> fkDict = colIO.getDictionary(hostCols[0]);
+            if (fkDict != null) {
+                TblColRef pkCol = dim.getJoin().getPrimaryKeyColumns()[0];
+                String snapshotPath = cubeSeg.getSnapshotResPath(dim.getTable());
+                hashTable = LookupHashTable.get(snapshotPath, lookupTable, pkCol.getColumn().getZeroBasedIndex(), cubeSeg.getDictResPath(hostCols[0]), fkDict);
+            }
+        }
+        this.hashTable = hashTable;
+    }
+
+    @Override
+    public void fillDerivedColumns(List<String> rowValues, Tuple tuple) {
+        if (hashTable != null) {
+            // +1 to skip cuboid id part, see RowKeyDecoder
+            SplittedBytes split = splits[hostIndex[0] + 1];
+            int row = hashTable.getRow(BytesUtil.readUnsigned(split.value, 0, split.length));
+            String[] lookupRow = row < 0 ? null : hashTable.getRowArray()[row];
+            for (int i = 0; i < lookupIndex.length; i++) {
+                tuple.setDimensionValue(fieldNames[i], lookupRow == null ? null : lookupRow[lookupIndex[i]]);
+            }
+        } else {
+            for (int i = 0; i < hostIndex.length; i++) {
+                lookupKey.data[i] = rowValues.get(hostIndex[i]);
+            }
+            String[] lookupRow = lookupTable.getRow(lookupKey);
+            for (int i = 0; i < lookupIndex.length; i++) {
+                tuple.setDimensionValue(fieldNames[i], lookupRow == null ? null : lookupRow[lookupIndex[i]]);
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage.hbase;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.storage.StorageContext.OrderEnum;
+import com.kylinolap.storage.hbase.coprocessor.SRowTopN;
+import com.kylinolap.storage.tuple.ITuple;
+import com.kylinolap.storage.tuple.ITupleIterator;
+
+/**
+ * Client side of the coprocessor top-N (see SRowTopN), a threshold algorithm.
+ *
+ * Each region returns its top N groups of the sort measure, followed by stats
+ * of the groups it dropped. A group missing from a truncated region may still
+ * have a partial value there, within [min(0, min dropped), max(0, max
+ * dropped)]. Summing up gives a lower and upper bound of every group, seen or
+ * not. Groups whose upper bound is below the N-th best lower bound can't make
+ * the top N, the rest are candidates that need their exact value.
+ *
+ * Bounds are kept as scores, i.e. value negated for ascending order, so that a
+ * higher score is always better.
+ *
+ * @author yangli9
+ */
+public class PartialTopNMerger {
+
+    private final List<TblColRef> groups;
+    private final String measureField;
+    private final boolean negate;
+    private final int limit;
+
+    // appended by the scan as stats rows go by, each ends the partition of a region
+    private final List<SRowTopN.Stats> stats = Lists.newArrayList();
+    private int statsConsumed;
+
+    private final Map<List<Object>, BigDecimal> seen = Maps.newHashMap(); // sum of seen scores
+    private final List<Partition> truncated = Lists.newArrayList();
+    private Set<List<Object>> current = Sets.newHashSet();
+    private long currentCount;
+    private boolean consistent = true;
+    private final List<ITuple> tuples = Lists.newArrayList();
+
+    private Set<List<Object>> candidates;
+
+    public PartialTopNMerger(List<TblColRef> groups, String measureField, OrderEnum order, int limit) {
+        this.groups = groups;
+        this.measureField = measureField;
+        this.negate = order == OrderEnum.ASCENDING;
+        this.limit = limit;
+    }
+
+    public List<SRowTopN.Stats> getStatsCollector() {
+        return stats;
+    }
+
+    public void consume(ITupleIterator iterator) {
+        try {
+            while (iterator.hasNext()) {
+                ITuple t = iterator.next();
+                if (t == null)
+                    break;
+                // stats collected so far all come before this tuple
+                closePartitions();
+                add(t);
+            }
+            closePartitions();
+        } finally {
+            iterator.close();
+        }
+        // tuples after the last stats row came without top-N (e.g. coprocessor failed over), they are complete
+    }
+
+    private void add(ITuple t) {
+        List<Object> key = groupKey(t);
+        BigDecimal score = score(t.getValue(measureField));
+        BigDecimal sum = seen.get(key);
+        seen.put(key, sum == null ? score : sum.add(score));
+        current.add(key);
+        currentCount++;
+        tuples.add(new TupleCopy(t));
+    }
+
+    private void closePartitions() {
+        while (statsConsumed < stats.size()) {
+            SRowTopN.Stats s = stats.get(statsConsumed++);
+            // rows of a region not matching its stats, something came without top-N in between
+            if (s.kept != currentCount)
+                consistent = false;
+            if (s.isTruncated())
+                truncated.add(new Partition(current, s));
+            current = Sets.newHashSet();
+            currentCount = 0;
+        }
+    }
+
+    private List<Object> groupKey(ITuple t) {
+        Object[] key = new Object[groups.size()];
+        for (int i = 0; i < key.length; i++)
+            key[i] = t.getValue(groups.get(i));
+        return Arrays.asList(key);
+    }
+
+    private BigDecimal score(Object value) {
+        BigDecimal v;
+        if (value == null)
+            v = BigDecimal.ZERO;
+        else if (value instanceof BigDecimal)
+            v = (BigDecimal) value;
+        else if (value instanceof Double || value instanceof Float)
+            v = BigDecimal.valueOf(((Number) value).doubleValue());
+        else
+            v = new BigDecimal(value.toString());
+        return negate ? v.negate() : v;
+    }
+
+    /**
+     * @return true if no region dropped any group, consumed tuples are the
+     *         complete result
+     */
+    public boolean isComplete() {
+        return consistent && truncated.isEmpty();
+    }
+
+    public ITupleIterator getConsumedTuples() {
+        final Iterator<ITuple> iterator = tuples.iterator();
+        return new ITupleIterator() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public ITuple next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * @return groups that may be in the top N, or null if an unseen group may
+     *         be, or if there are more than maxCandidates
+     */
+    public List<List<Object>> findCandidates(int maxCandidates) {
+        if (consistent == false || seen.size() < limit)
+            return null;
+
+        BigDecimal unseenUpper = BigDecimal.ZERO;
+        for (Partition p : truncated)
+            unseenUpper = unseenUpper.add(p.upper);
+
+        Map<List<Object>, BigDecimal> uppers = Maps.newHashMap();
+        List<BigDecimal> lowers = Lists.newArrayListWithCapacity(seen.size());
+        for (Entry<List<Object>, BigDecimal> entry : seen.entrySet()) {
+            BigDecimal lower = entry.getValue();
+            BigDecimal upper = entry.getValue();
+            for (Partition p : truncated) {
+                if (p.groups.contains(entry.getKey()) == false) {
+                    lower = lower.add(p.lower);
+                    upper = upper.add(p.upper);
+                }
+            }
+            lowers.add(lower);
+            uppers.put(entry.getKey(), upper);
+        }
+
+        // the N-th best lower bound, the N-th best exact value can't be lower
+        Collections.sort(lowers, Collections.reverseOrder());
+        BigDecimal threshold = lowers.get(limit - 1);
+
+        // an unseen group at most ties with the N-th, ties can go either way
+        if (unseenUpper.compareTo(threshold) > 0)
+            return null;
+
+        List<List<Object>> result = Lists.newArrayList();
+        for (Entry<List<Object>, BigDecimal> entry : uppers.entrySet()) {
+            if (entry.getValue().compareTo(threshold) >= 0)
+                result.add(entry.getKey());
+        }
+        if (result.size() > maxCandidates)
+            return null;
+
+        candidates = Sets.newHashSet(result);
+        return result;
+    }
+
+    /**
+     * Drops tuples not of the candidate groups, in case storage returns more
+     * than asked for.
+     */
+    public ITupleIterator retainCandidates(final ITupleIterator iterator) {
+        return new ITupleIterator() {
+            private ITuple next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && iterator.hasNext()) {
+                    ITuple t = iterator.next();
+                    if (t != null && candidates.contains(groupKey(t)))
+                        next = t;
+                }
+                return next != null;
+            }
+
+            @Override
+            public ITuple next() {
+                if (hasNext() == false)
+                    return null;
+                ITuple t = next;
+                next = null;
+                return t;
+            }
+
+            @Override
+            public void close() {
+                iterator.close();
+            }
+        };
+    }
+
+    private class Partition {
+        final Set<List<Object>> groups;
+        final BigDecimal lower; // score of a missing group is within [lower, upper]
+        final BigDecimal upper;
+
+        Partition(Set<List<Object>> groups, SRowTopN.Stats stats) {
+            this.groups = groups;
+            BigDecimal lo = negate ? stats.maxDropped.negate() : stats.minDropped;
+            BigDecimal hi = negate ? stats.minDropped.negate() : stats.maxDropped;
+            this.lower = lo.min(BigDecimal.ZERO);
+            this.upper = hi.max(BigDecimal.ZERO);
+        }
+    }
+}
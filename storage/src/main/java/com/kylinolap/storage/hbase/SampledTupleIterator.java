@@ -0,0 +1,248 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.storage.hbase;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.client.HConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.kylinolap.cube.CubeInstance;
+import com.kylinolap.cube.CubeSegment;
+import com.kylinolap.cube.kv.RowValueDecoder;
+import com.kylinolap.metadata.model.cube.FunctionDesc;
+import com.kylinolap.metadata.model.cube.MeasureDesc;
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.storage.MemoryBudget;
+import com.kylinolap.storage.StorageContext;
+import com.kylinolap.storage.filter.TupleFilter;
+import com.kylinolap.storage.tuple.ITuple;
+import com.kylinolap.storage.tuple.ITupleIterator;
+
+/**
+ * Approximate mode, scans a random sample of the cube segments and scales
+ * SUM/COUNT up by the sampled share of source records. Other measures, like
+ * HLL count distinct and min/max, merge as they are.
+ *
+ * Segments are scanned one by one in random order, until the sampling ratio
+ * is reached or the latency target passes. A segment cut by the deadline is
+ * dropped, so that every sample is a whole segment. Segment (time slice) is
+ * the sampling unit because regions and key ranges are in row key order, a
+ * sample of them would miss whole groups.
+ *
+ * The error is estimated by the ratio estimator over sampled segments, taking
+ * COUNT as the total and source records of segment as the auxiliary variable.
+ *
+ * @author yangli9
+ */
+public class SampledTupleIterator implements ITupleIterator {
+
+    private static final Logger logger = LoggerFactory.getLogger(SampledTupleIterator.class);
+
+    private static final int DEADLINE_CHECK_INTERVAL = 1000;
+    private static final double Z_95 = 1.96;
+
+    private final StorageContext context;
+    private final Iterator<TupleCopy> iterator;
+    private final long scanCount;
+    private long bufferedBytes;
+
+    public SampledTupleIterator(HConnection conn, List<HBaseKeyRange> segmentKeyRanges, CubeInstance cube, Collection<TblColRef> dimensions, TupleFilter filter, Collection<TblColRef> groupBy, Collection<RowValueDecoder> rowValueDecoders, StorageContext context) {
+        this.context = context;
+        MemoryBudget memoryBudget = context.getMemoryBudget();
+        long deadline = context.getLatencyTarget() > 0 ? System.currentTimeMillis() + context.getLatencyTarget() : Long.MAX_VALUE;
+
+        Map<CubeSegment, List<HBaseKeyRange>> rangesMap = new LinkedHashMap<CubeSegment, List<HBaseKeyRange>>();
+        for (HBaseKeyRange range : segmentKeyRanges) {
+            List<HBaseKeyRange> list = rangesMap.get(range.getCubeSegment());
+            if (list == null) {
+                list = new ArrayList<HBaseKeyRange>();
+                rangesMap.put(range.getCubeSegment(), list);
+            }
+            list.add(range);
+        }
+        List<CubeSegment> segments = new ArrayList<CubeSegment>(rangesMap.keySet());
+        Collections.shuffle(segments);
+
+        // weigh segments by source records, or equally if any is unknown
+        boolean bySourceRecords = true;
+        for (CubeSegment seg : segments) {
+            bySourceRecords &= seg.getSourceRecords() > 0;
+        }
+        double totalX = 0;
+        for (CubeSegment seg : segments) {
+            totalX += bySourceRecords ? seg.getSourceRecords() : 1;
+        }
+
+        List<String> additiveFields = new ArrayList<String>();
+        String countField = null;
+        for (RowValueDecoder decoder : rowValueDecoders) {
+            for (MeasureDesc measure : decoder.getMeasures()) {
+                FunctionDesc func = measure.getFunction();
+                if (func.isSum() || func.isCount())
+                    additiveFields.add(func.getRewriteFieldName());
+                if (func.isCount() && countField == null)
+                    countField = func.getRewriteFieldName();
+            }
+        }
+
+        List<TupleCopy> buffer = new ArrayList<TupleCopy>();
+        double[] x = new double[segments.size()];
+        double[] y = new double[segments.size()];
+        int n = 0;
+        double sampledX = 0;
+        long totalScanCount = 0;
+        for (CubeSegment seg : segments) {
+            if (n > 0 && (sampledX / totalX >= context.getSamplingRatio() || System.currentTimeMillis() >= deadline))
+                break;
+
+            int mark = buffer.size();
+            long markBytes = bufferedBytes;
+            double yi = 0;
+            boolean cut = false;
+            SerializedHBaseTupleIterator segIter = new SerializedHBaseTupleIterator(conn, rangesMap.get(seg), cube, dimensions, filter, groupBy, rowValueDecoders, context);
+            try {
+                while (segIter.hasNext()) {
+                    ITuple t = segIter.next();
+                    TupleCopy copy = new TupleCopy(t);
+                    buffer.add(copy);
+                    if (memoryBudget != null) {
+                        long bytes = MemoryBudget.estimateRowBytes(copy.getAllValues());
+                        memoryBudget.consume(bytes);
+                        bufferedBytes += bytes;
+                    }
+                    yi += countField == null ? 1 : ((Number) t.getValue(countField)).doubleValue();
+
+                    if (buffer.size() >= context.getThreshold()) {
+                        throw new ScanOutOfLimitException("Sampled row count exceeded threshold: " + context.getThreshold() + ", please lower the sampling ratio or add filter condition.");
+                    }
+                    if (n > 0 && (buffer.size() - mark) % DEADLINE_CHECK_INTERVAL == 0 && System.currentTimeMillis() >= deadline) {
+                        cut = true;
+                        break;
+                    }
+                }
+            } finally {
+                segIter.close();
+                totalScanCount += context.getTotalScanCount();
+            }
+
+            if (cut) {
+                buffer.subList(mark, buffer.size()).clear();
+                if (memoryBudget != null) {
+                    memoryBudget.release(bufferedBytes - markBytes);
+                    bufferedBytes = markBytes;
+                }
+                break;
+            }
+            x[n] = bySourceRecords ? seg.getSourceRecords() : 1;
+            y[n] = yi;
+            sampledX += x[n];
+            n++;
+        }
+        this.scanCount = totalScanCount;
+        context.setTotalScanCount(totalScanCount);
+
+        double sampledRatio = totalX == 0 ? 1.0 : sampledX / totalX;
+        double error = estimateError(x, y, n, totalX, segments.size());
+        context.setApproximateResult(sampledRatio, error);
+        if (sampledRatio < 1.0) {
+            double factor = totalX / sampledX;
+            for (TupleCopy t : buffer) {
+                Object[] values = t.getAllValues();
+                for (String field : additiveFields) {
+                    int i = t.getAllFields().indexOf(field);
+                    if (i >= 0)
+                        values[i] = scale(values[i], factor);
+                }
+            }
+        }
+        logger.info("Sampled " + n + " of " + segments.size() + " segments, ratio " + sampledRatio + ", relative error " + error);
+
+        this.iterator = buffer.iterator();
+    }
+
+    /**
+     * Relative error at 95% confidence of the ratio estimate of total Y, i.e.
+     * totalX * sum(y) / sum(x). 0 if all units are sampled, NaN if less than 2
+     * are sampled.
+     */
+    static double estimateError(double[] x, double[] y, int n, double totalX, int totalN) {
+        if (n >= totalN)
+            return 0;
+        if (n < 2)
+            return Double.NaN;
+
+        double sumX = 0, sumY = 0;
+        for (int i = 0; i < n; i++) {
+            sumX += x[i];
+            sumY += y[i];
+        }
+        if (sumY == 0)
+            return Double.NaN;
+
+        double r = sumY / sumX;
+        double ss = 0;
+        for (int i = 0; i < n; i++) {
+            double e = y[i] - r * x[i];
+            ss += e * e;
+        }
+        double f = (double) n / totalN;
+        double variance = (double) totalN * totalN * (1 - f) / n * (ss / (n - 1));
+        return Z_95 * Math.sqrt(variance) / (r * totalX);
+    }
+
+    static Object scale(Object value, double factor) {
+        if (value instanceof Long)
+            return Math.round((Long) value * factor);
+        if (value instanceof Integer)
+            return (int) Math.round((Integer) value * factor);
+        if (value instanceof Double)
+            return (Double) value * factor;
+        if (value instanceof BigDecimal) {
+            BigDecimal d = (BigDecimal) value;
+            return d.multiply(BigDecimal.valueOf(factor)).setScale(d.scale(), RoundingMode.HALF_UP);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return iterator.hasNext();
+    }
+
+    @Override
+    public ITuple next() {
+        return iterator.next();
+    }
+
+    @Override
+    public void close() {
+        context.setTotalScanCount(scanCount);
+        if (context.getMemoryBudget() != null) {
+            context.getMemoryBudget().release(bufferedBytes);
+            bufferedBytes = 0;
+        }
+    }
+}
@@ -32,6 +32,7 @@ import com.kylinolap.cube.kv.RowValueDecoder;
 import com.kylinolap.metadata.model.cube.TblColRef;
 import com.kylinolap.storage.StorageContext;
 import com.kylinolap.storage.filter.TupleFilter;
+import com.kylinolap.storage.hbase.coprocessor.SRowTopN;
 import com.kylinolap.storage.tuple.ITuple;
 import com.kylinolap.storage.tuple.ITupleIterator;
 
@@ -41,6 +42,7 @@ import com.kylinolap.storage.tuple.ITupleIterator;
 public class SerializedHBaseTupleIterator implements ITupleIterator {
 
     private static final int PARTIAL_DEFAULT_LIMIT = 10000;
+    private static final int DEADLINE_CHECK_MASK = 0x3FF; // every 1024 rows
 
     private final StorageContext context;
     private final int partialResultLimit;
@@ -51,6 +53,10 @@ public class SerializedHBaseTupleIterator implements ITupleIterator {
     private int scanCount;
 
     public SerializedHBaseTupleIterator(HConnection conn, List<HBaseKeyRange> segmentKeyRanges, CubeInstance cube, Collection<TblColRef> dimensions, TupleFilter filter, Collection<TblColRef> groupBy, Collection<RowValueDecoder> rowValueDecoders, StorageContext context) {
+        this(conn, segmentKeyRanges, cube, dimensions, filter, groupBy, rowValueDecoders, context, null);
+    }
+
+    public SerializedHBaseTupleIterator(HConnection conn, List<HBaseKeyRange> segmentKeyRanges, CubeInstance cube, Collection<TblColRef> dimensions, TupleFilter filter, Collection<TblColRef> groupBy, Collection<RowValueDecoder> rowValueDecoders, StorageContext context, List<SRowTopN.Stats> topNStats) {
 
         this.context = context;
         int limit = context.getLimit();
@@ -59,7 +65,7 @@ public class SerializedHBaseTupleIterator implements ITupleIterator {
         this.segmentIteratorList = new ArrayList<CubeSegmentTupleIterator>(segmentKeyRanges.size());
         Map<CubeSegment, List<HBaseKeyRange>> rangesMap = makeRangesMap(segmentKeyRanges);
         for (Map.Entry<CubeSegment, List<HBaseKeyRange>> entry : rangesMap.entrySet()) {
-            CubeSegmentTupleIterator segIter = new CubeSegmentTupleIterator(entry.getKey(), entry.getValue(), conn, dimensions, filter, groupBy, rowValueDecoders, context);
+            CubeSegmentTupleIterator segIter = new CubeSegmentTupleIterator(entry.getKey(), entry.getValue(), conn, dimensions, filter, groupBy, rowValueDecoders, context, topNStats);
             this.segmentIteratorList.add(segIter);
         }
 
@@ -99,7 +105,11 @@ public class SerializedHBaseTupleIterator implements ITupleIterator {
         if (scanCount >= context.getThreshold()) {
             throw new ScanOutOfLimitException("Scan row count exceeded threshold: " + context.getThreshold() + ", please add filter condition to narrow down backend scan range, like where clause.");
         }
-        // 4. check cube segments
+        // 4. check cancel and timeout
+        if ((scanCount & DEADLINE_CHECK_MASK) == 0) {
+            context.checkDeadline();
+        }
+        // 5. check cube segments
         return segmentIteratorIterator.hasNext() || segmentIterator.hasNext();
     }
 
@@ -123,5 +133,9 @@ public class SerializedHBaseTupleIterator implements ITupleIterator {
     public void close() {
         context.setTotalScanCount(scanCount);
         segmentIterator.close();
+        // segments not reached yet have their scanners open too, e.g. the query is cancelled
+        while (segmentIteratorIterator.hasNext()) {
+            segmentIteratorIterator.next().close();
+        }
     }
 }
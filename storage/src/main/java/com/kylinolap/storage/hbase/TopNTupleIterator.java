@@ -0,0 +1,178 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.storage.hbase;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.kylinolap.cube.measure.TopNCounter;
+import com.kylinolap.cube.measure.TopNCounter.Counter;
+import com.kylinolap.metadata.model.cube.FunctionDesc;
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.storage.StorageContext;
+import com.kylinolap.storage.tuple.ITuple;
+import com.kylinolap.storage.tuple.ITupleIterator;
+import com.kylinolap.storage.tuple.Tuple;
+import com.kylinolap.storage.tuple.TupleInfo;
+
+/**
+ * Expands the TopN measure into rows of (key, sum of metric), as if the rows
+ * were scanned with the key column in group by. TopN counters of the same
+ * group (across cuboid rows and segments) are merged before expansion.
+ * 
+ * Counter values are exact sums only while no key was dropped for space, or
+ * the dropped can't reach the top; isExact() tells, and the caller scans the
+ * normal way otherwise.
+ * 
+ * @author yangli9
+ */
+public class TopNTupleIterator implements ITupleIterator {
+
+    private final ITupleIterator inner;
+    private final String topNField;
+    private final TblColRef keyCol;
+    private final String keyField;
+    private final String sumField;
+    private final String sumDataType;
+    private final int limit;
+
+    private LinkedHashMap<List<Object>, TopNCounter> groups;
+    private Iterator<Entry<List<Object>, TopNCounter>> groupIterator;
+    private List<Object> currentGroup;
+    private Iterator<Counter> counterIterator;
+    private TupleInfo tupleInfo;
+    private Tuple tuple;
+
+    public TopNTupleIterator(ITupleIterator inner, FunctionDesc topNFunc, FunctionDesc sumFunc, StorageContext context) {
+        this.inner = inner;
+        this.topNField = topNFunc.getRewriteFieldName();
+        this.keyCol = topNFunc.getParameter().getColRefs().get(1);
+        this.keyField = context.getFieldName(keyCol);
+        this.sumField = sumFunc.getRewriteFieldName();
+        this.sumDataType = sumFunc.getSQLType();
+        this.limit = context.getLimit();
+    }
+
+    /**
+     * Merges the counters of all groups, if not yet.
+     * 
+     * @return true if the top counters of every group are exact sums
+     */
+    public boolean isExact() {
+        if (groupIterator == null)
+            mergeGroups();
+        for (TopNCounter counter : groups.values()) {
+            if (counter.isTopKExact(limit) == false)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (groupIterator == null)
+            mergeGroups();
+
+        while (counterIterator == null || counterIterator.hasNext() == false) {
+            if (groupIterator.hasNext() == false)
+                return false;
+            Entry<List<Object>, TopNCounter> entry = groupIterator.next();
+            currentGroup = entry.getKey();
+            counterIterator = entry.getValue().topK(limit).iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public ITuple next() {
+        Counter counter = counterIterator.next();
+
+        Object[] values = tuple.getAllValues();
+        for (int i = 0; i < currentGroup.size(); i++) {
+            values[i] = currentGroup.get(i);
+        }
+        tuple.setDimensionValue(keyField, Bytes.toString(counter.getKey()));
+        tuple.setMeasureValue(sumField, toSumValue(counter.getValue()));
+        return tuple;
+    }
+
+    private void mergeGroups() {
+        groups = new LinkedHashMap<List<Object>, TopNCounter>();
+        int topNIndex = -1;
+        while (inner.hasNext()) {
+            ITuple t = inner.next();
+            if (tupleInfo == null) {
+                topNIndex = t.getAllFields().indexOf(topNField);
+                buildTupleInfo(t, topNIndex);
+            }
+
+            Object[] values = t.getAllValues();
+            Object[] groupValues = new Object[values.length - 1];
+            for (int i = 0, j = 0; i < values.length; i++) {
+                if (i != topNIndex)
+                    groupValues[j++] = values[i];
+            }
+            List<Object> group = Arrays.asList(groupValues);
+
+            TopNCounter value = (TopNCounter) values[topNIndex];
+            if (value == null)
+                continue;
+            TopNCounter merged = groups.get(group);
+            if (merged == null)
+                groups.put(group, new TopNCounter(value)); // copy, the value object is reused by decoder
+            else
+                merged.merge(value);
+        }
+        groupIterator = groups.entrySet().iterator();
+    }
+
+    // all inner fields except the TopN measure, plus the key and the sum
+    private void buildTupleInfo(ITuple t, int topNIndex) {
+        tupleInfo = new TupleInfo();
+        List<String> fields = t.getAllFields();
+        List<TblColRef> columns = t.getAllColumns();
+        int index = 0;
+        for (int i = 0; i < fields.size(); i++) {
+            if (i == topNIndex)
+                continue;
+            TblColRef col = columns.get(i);
+            tupleInfo.setField(fields.get(i), col, col == null ? "any" : col.getDatatype(), index++);
+        }
+        tupleInfo.setField(keyField, keyCol, keyCol.getDatatype(), index++);
+        tupleInfo.setField(sumField, null, sumDataType, index++);
+        tuple = new Tuple(tupleInfo);
+    }
+
+    private Object toSumValue(BigDecimal sum) {
+        if ("decimal".equals(sumDataType))
+            return sum;
+        else if ("double".equals(sumDataType) || "float".equals(sumDataType) || "real".equals(sumDataType))
+            return Double.valueOf(sum.doubleValue());
+        else
+            return Long.valueOf(sum.longValue());
+    }
+
+    @Override
+    public void close() {
+        inner.close();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.storage.hbase;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.storage.tuple.ITuple;
+
+/**
+ * Tuples from storage are reused, keep a copy when buffering them.
+ *
+ * @author yangli9
+ */
+class TupleCopy implements ITuple {
+    private final List<String> fields;
+    private final List<TblColRef> columns;
+    private final Object[] values;
+
+    TupleCopy(ITuple t) {
+        this.fields = t.getAllFields();
+        this.columns = t.getAllColumns();
+        this.values = Arrays.copyOf(t.getAllValues(), t.getAllValues().length);
+    }
+
+    @Override
+    public List<String> getAllFields() {
+        return fields;
+    }
+
+    @Override
+    public List<TblColRef> getAllColumns() {
+        return columns;
+    }
+
+    @Override
+    public Object[] getAllValues() {
+        return values;
+    }
+
+    @Override
+    public Object getValue(TblColRef col) {
+        return values[columns.indexOf(col)];
+    }
+
+    @Override
+    public Object getValue(String field) {
+        return values[fields.indexOf(field)];
+    }
+}
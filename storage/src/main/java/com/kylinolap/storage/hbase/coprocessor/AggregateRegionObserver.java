@@ -27,6 +27,7 @@ import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
 import org.apache.hadoop.hbase.regionserver.HRegion;
 import org.apache.hadoop.hbase.regionserver.RegionCoprocessorHost;
 import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
 
 /**
  * @author yangli9
@@ -41,6 +42,9 @@ public class AggregateRegionObserver extends BaseRegionObserver {
     static final String PROJECTOR = "_Projector";
     static final String AGGREGATORS = "_Aggregators";
     static final String FILTER = "_Filter";
+    static final String TOPN = "_TopN";
+    static final String TIMEOUT = "_Timeout"; // ms left of the query, clocks of client and server may differ
+    static final String TRACE = "_Trace"; // return scan stats in the stats row
 
     @Override
     public final RegionScanner postScannerOpen(final ObserverContext<RegionCoprocessorEnvironment> ctxt, final Scan scan, final RegionScanner innerScanner) throws IOException {
@@ -51,6 +55,8 @@ public class AggregateRegionObserver extends BaseRegionObserver {
         if (copAbortOnError) {
             try {
                 return doPostScannerObserver(ctxt, scan, innerScanner);
+            } catch (DeadlineExceededException e) {
+                throw e; // not an error of coprocessor, and falling back to the raw scan makes it worse
             } catch (Throwable e) {
                 LOG.error("Kylin Coprocessor Error", e);
                 return innerScanner;
@@ -78,13 +84,20 @@ public class AggregateRegionObserver extends BaseRegionObserver {
         byte[] filterBytes = scan.getAttribute(FILTER);
         SRowFilter filter = SRowFilter.deserialize(filterBytes);
 
+        byte[] topNBytes = scan.getAttribute(TOPN);
+        SRowTopN topN = topNBytes == null ? null : SRowTopN.deserialize(topNBytes);
+
+        byte[] timeoutBytes = scan.getAttribute(TIMEOUT);
+        long deadline = timeoutBytes == null ? Long.MAX_VALUE : System.currentTimeMillis() + Bytes.toLong(timeoutBytes);
+        boolean trace = scan.getAttribute(TRACE) != null;
+
         // start/end region operation & sync on scanner is suggested by the
         // javadoc of RegionScanner.nextRaw()
         HRegion region = ctxt.getEnvironment().getRegion();
         region.startRegionOperation();
         try {
             synchronized (innerScanner) {
-                return new AggregationScanner(type, filter, projector, aggregators, innerScanner);
+                return new AggregationScanner(type, filter, projector, aggregators, topN, deadline, trace, innerScanner);
             }
         } finally {
             region.closeRegionOperation();
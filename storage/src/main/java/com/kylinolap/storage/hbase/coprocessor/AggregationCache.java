@@ -46,11 +46,29 @@ public class AggregationCache {
     private final SortedMap<AggrKey, MeasureAggregator[]> aggBufMap;
     private final SRowAggregators aggregators;
 
-    transient int rowMemBytes;
+    private final int[] variableMemIndexes; // aggregators whose memory grows, e.g. bitmap count distinct
+
+    transient int rowMemBytes; // of fixed size aggregators
+    transient long variableMemBytes; // sum of all variable size aggregators, tracked per aggregate
+
+    private SRowTopN.Stats topNStats; // not null if only top N groups are kept
+    private AggregationScanner.Stats scanStats; // not null if the query is traced
 
     public AggregationCache(SRowAggregators aggregators, int estSize) {
         this.aggregators = aggregators;
         this.aggBufMap = Maps.newTreeMap();
+
+        MeasureAggregator[] sample = aggregators.createBuffer();
+        int n = 0;
+        for (MeasureAggregator agg : sample) {
+            if (agg.isMemoryVariable())
+                n++;
+        }
+        this.variableMemIndexes = new int[n];
+        for (int i = 0, j = 0; i < sample.length; i++) {
+            if (sample[i].isMemoryVariable())
+                variableMemIndexes[j++] = i;
+        }
     }
 
     public MeasureAggregator[] getBuffer(AggrKey aggkey) {
@@ -62,6 +80,37 @@ public class AggregationCache {
         return aggBuf;
     }
 
+    public void aggregate(MeasureAggregator[] aggBuf, List<Cell> rowCells) {
+        if (variableMemIndexes.length == 0) {
+            aggregators.aggregate(aggBuf, rowCells);
+            return;
+        }
+
+        long before = 0;
+        for (int i : variableMemIndexes)
+            before += aggBuf[i].getMemBytes();
+
+        aggregators.aggregate(aggBuf, rowCells);
+
+        long after = 0;
+        for (int i : variableMemIndexes)
+            after += aggBuf[i].getMemBytes();
+
+        variableMemBytes += after - before;
+    }
+
+    public void retainTopN(SRowTopN topN) {
+        topNStats = topN.retainTopN(aggBufMap);
+    }
+
+    public SRowTopN.Stats getTopNStats() {
+        return topNStats;
+    }
+
+    public void setScanStats(AggregationScanner.Stats scanStats) {
+        this.scanStats = scanStats;
+    }
+
     public RegionScanner getScanner(RegionScanner innerScanner) {
         return new AggregationRegionScanner(innerScanner);
     }
@@ -78,25 +127,33 @@ public class AggregationCache {
                 rowMemBytes = 0;
                 MeasureAggregator[] measureAggregators = aggBufMap.get(aggBufMap.firstKey());
                 for (MeasureAggregator agg : measureAggregators) {
-                    rowMemBytes += agg.getMemBytes();
+                    if (agg.isMemoryVariable() == false)
+                        rowMemBytes += agg.getMemBytes();
                 }
             }
         }
         int size = aggBufMap.size();
-        int memUsage = (40 + rowMemBytes) * size;
+        long memUsage = getMemoryUsage();
         if (memUsage > MEMORY_USAGE_CAP) {
-            throw new RuntimeException("Kylin coprocess memory usage goes beyond cap, (40 + " + rowMemBytes + ") * " + size + " > " + MEMORY_USAGE_CAP + ". Abord coprocessor.");
+            throw new RuntimeException("Kylin coprocess memory usage goes beyond cap, (40 + " + rowMemBytes + ") * " + size + " + " + variableMemBytes + " > " + MEMORY_USAGE_CAP + ". Abord coprocessor.");
         }
     }
 
+    // estimated, see checkMemoryUsage()
+    public long getMemoryUsage() {
+        return (40L + rowMemBytes) * aggBufMap.size() + variableMemBytes;
+    }
+
     private class AggregationRegionScanner implements RegionScanner {
 
         private final RegionScanner innerScanner;
         private final Iterator<Entry<AggrKey, MeasureAggregator[]>> iterator;
+        private boolean statsPending; // stats row comes last
 
         public AggregationRegionScanner(RegionScanner innerScanner) {
             this.innerScanner = innerScanner;
             this.iterator = aggBufMap.entrySet().iterator();
+            this.statsPending = topNStats != null || scanStats != null;
         }
 
         @Override
@@ -106,7 +163,10 @@ public class AggregationCache {
             if (iterator.hasNext()) {
                 Entry<AggrKey, MeasureAggregator[]> entry = iterator.next();
                 makeCells(entry, results);
-                hasMore = iterator.hasNext();
+                hasMore = iterator.hasNext() || statsPending;
+            } else if (statsPending) {
+                makeStatsCell(results);
+                statsPending = false;
             }
             // AggregateRegionObserver.LOG.info("Kylin Scanner next() done");
             return hasMore;
@@ -140,6 +200,22 @@ public class AggregationCache {
             }
         }
 
+        private void makeStatsCell(List<Cell> results) {
+            byte[] family = aggregators.getHColsNum() > 0 ? aggregators.getHColFamilies()[0] : new byte[0];
+            if (topNStats != null)
+                results.add(makeStatsCell(family, SRowTopN.STATS_QUALIFIER, topNStats.serialize()));
+            if (scanStats != null)
+                results.add(makeStatsCell(family, AggregationScanner.Stats.STATS_QUALIFIER, scanStats.serialize()));
+        }
+
+        private Cell makeStatsCell(byte[] family, byte[] qualifier, byte[] value) {
+            return new KeyValue(SRowTopN.STATS_ROW, 0, SRowTopN.STATS_ROW.length, //
+                    family, 0, family.length, //
+                    qualifier, 0, qualifier.length, //
+                    HConstants.LATEST_TIMESTAMP, Type.Put, //
+                    value, 0, value.length);
+        }
+
         @Override
         public boolean next(List<Cell> result, int limit) throws IOException {
             return next(result);
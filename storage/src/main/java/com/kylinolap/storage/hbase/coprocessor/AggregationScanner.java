@@ -17,13 +17,17 @@
 package com.kylinolap.storage.hbase.coprocessor;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.hadoop.hbase.Cell;
 import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
 
+import com.kylinolap.common.util.BytesUtil;
 import com.kylinolap.cube.measure.MeasureAggregator;
 import com.kylinolap.storage.hbase.coprocessor.SRowProjector.AggrKey;
 
@@ -33,17 +37,51 @@ import com.kylinolap.storage.hbase.coprocessor.SRowProjector.AggrKey;
  */
 public class AggregationScanner implements RegionScanner {
 
+    private static final int DEADLINE_CHECK_MASK = 0x3FF; // every 1024 rows
+
     private RegionScanner outerScanner;
+    private final long deadline;
 
     public AggregationScanner(SRowType type, SRowFilter filter, SRowProjector groupBy, SRowAggregators aggrs, RegionScanner innerScanner) throws IOException {
+        this(type, filter, groupBy, aggrs, null, Long.MAX_VALUE, innerScanner);
+    }
+
+    public AggregationScanner(SRowType type, SRowFilter filter, SRowProjector groupBy, SRowAggregators aggrs, SRowTopN topN, RegionScanner innerScanner) throws IOException {
+        this(type, filter, groupBy, aggrs, topN, Long.MAX_VALUE, false, innerScanner);
+    }
+
+    public AggregationScanner(SRowType type, SRowFilter filter, SRowProjector groupBy, SRowAggregators aggrs, SRowTopN topN, long deadline, RegionScanner innerScanner) throws IOException {
+        this(type, filter, groupBy, aggrs, topN, deadline, false, innerScanner);
+    }
+
+    /**
+     * @param deadline
+     *            time in ms the query gives up, region work stops after that
+     * @param trace
+     *            to return the stats of this region to the client, in the
+     *            stats row
+     */
+    public AggregationScanner(SRowType type, SRowFilter filter, SRowProjector groupBy, SRowAggregators aggrs, SRowTopN topN, long deadline, boolean trace, RegionScanner innerScanner) throws IOException {
 
         AggregateRegionObserver.LOG.info("Kylin Coprocessor start");
 
         AggregationCache aggCache;
         Stats stats = new Stats();
+        this.deadline = deadline;
 
+        long start = System.currentTimeMillis();
         aggCache = buildAggrCache(innerScanner, type, groupBy, aggrs, filter, stats);
+        if (topN != null) {
+            aggCache.retainTopN(topN);
+            AggregateRegionObserver.LOG.info("Kylin Coprocessor " + topN + ", " + aggCache.getTopNStats());
+        }
         stats.countOutputRow(aggCache.getSize());
+        stats.aggregationMillis = System.currentTimeMillis() - start;
+        stats.memoryBytes = aggCache.getMemoryUsage();
+        HRegionInfo region = innerScanner.getRegionInfo();
+        stats.region = region == null ? null : region.getEncodedName();
+        if (trace)
+            aggCache.setScanStats(stats);
         this.outerScanner = aggCache.getScanner(innerScanner);
 
         AggregateRegionObserver.LOG.info("Kylin Coprocessor aggregation done: " + stats);
@@ -56,6 +94,7 @@ public class AggregationScanner implements RegionScanner {
 
         SRowTuple tuple = new SRowTuple(type);
         boolean hasMore = true;
+        long rows = 0;
         List<Cell> results = new ArrayList<Cell>();
         while (hasMore) {
             results.clear();
@@ -65,6 +104,8 @@ public class AggregationScanner implements RegionScanner {
 
             if (stats != null)
                 stats.countInputRow(results);
+            if ((++rows & DEADLINE_CHECK_MASK) == 0 && System.currentTimeMillis() > deadline)
+                throw new DeadlineExceededException("Kylin Coprocessor stopped by query deadline after " + rows + " rows");
 
             Cell cell = results.get(0);
             tuple.setUnderlying(cell.getRowArray(), cell.getRowOffset(), cell.getRowLength());
@@ -73,7 +114,7 @@ public class AggregationScanner implements RegionScanner {
 
             AggrKey aggKey = projector.getRowKey(results);
             MeasureAggregator[] bufs = aggCache.getBuffer(aggKey);
-            aggregators.aggregate(bufs, results);
+            aggCache.aggregate(bufs, results);
 
             aggCache.checkMemoryUsage();
         }
@@ -130,10 +171,19 @@ public class AggregationScanner implements RegionScanner {
         return outerScanner.getMvccReadPoint();
     }
 
-    private static class Stats {
-        long inputRows = 0;
-        long inputBytes = 0;
-        long outputRows = 0;
+    /**
+     * Work of the coprocessor on a region, goes back to a traced query in the
+     * stats row.
+     */
+    public static class Stats {
+        static final byte[] STATS_QUALIFIER = Bytes.toBytes("_Trace");
+
+        public long inputRows = 0;
+        public long inputBytes = 0;
+        public long outputRows = 0;
+        public long aggregationMillis = 0;
+        public long memoryBytes = 0; // estimated of the aggregation cache
+        public String region; // encoded name, null if unknown
 
         // have no outputBytes because that requires actual serialize all the
         // aggregator buffers
@@ -150,9 +200,41 @@ public class AggregationScanner implements RegionScanner {
             outputRows += rowCount;
         }
 
+        public byte[] serialize() {
+            ByteBuffer buf = ByteBuffer.allocate(256);
+            BytesUtil.writeVLong(inputRows, buf);
+            BytesUtil.writeVLong(inputBytes, buf);
+            BytesUtil.writeVLong(outputRows, buf);
+            BytesUtil.writeVLong(aggregationMillis, buf);
+            BytesUtil.writeVLong(memoryBytes, buf);
+            BytesUtil.writeAsciiString(region, buf);
+            byte[] result = new byte[buf.position()];
+            System.arraycopy(buf.array(), 0, result, 0, buf.position());
+            return result;
+        }
+
+        public static Stats deserialize(ByteBuffer in) {
+            Stats stats = new Stats();
+            stats.inputRows = BytesUtil.readVLong(in);
+            stats.inputBytes = BytesUtil.readVLong(in);
+            stats.outputRows = BytesUtil.readVLong(in);
+            stats.aggregationMillis = BytesUtil.readVLong(in);
+            stats.memoryBytes = BytesUtil.readVLong(in);
+            stats.region = BytesUtil.readAsciiString(in);
+            return stats;
+        }
+
+        /**
+         * @return null if the stats row has no stats of scan
+         */
+        public static Stats readStats(Result result) {
+            Cell cell = SRowTopN.findStatsCell(result, STATS_QUALIFIER);
+            return cell == null ? null : deserialize(ByteBuffer.wrap(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength()));
+        }
+
         public String toString() {
             double percent = (double) outputRows / inputRows * 100;
-            return Math.round(percent) + "% = " + outputRows + " (out rows) / " + inputRows + " (in rows); in bytes = " + inputBytes + "; est. out bytes = " + Math.round(inputBytes * percent / 100);
+            return Math.round(percent) + "% = " + outputRows + " (out rows) / " + inputRows + " (in rows); in bytes = " + inputBytes + "; est. out bytes = " + Math.round(inputBytes * percent / 100) + "; " + aggregationMillis + " ms; mem bytes = " + memoryBytes;
         }
     }
 }
@@ -25,6 +25,7 @@ import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.regionserver.RegionScanner;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -61,10 +62,12 @@ public class CoprocessorEnabler {
         SRowFilter filter = SRowFilter.fromFilter(segment, tupleFiler);
         SRowProjector projector = SRowProjector.fromColumns(segment, cuboid, groupBy);
         SRowAggregators aggrs = SRowAggregators.fromValuDecoders(rowValueDecoders);
+        SRowTopN topN = context.isTopNPushDownEnabled() ? SRowTopN.fromContext(rowValueDecoders, aggrs, context) : null;
 
         if (DEBUG_LOCAL_COPROCESSOR) {
             RegionScanner innerScanner = new RegionScannerAdapter(table.getScanner(scan));
-            AggregationScanner aggrScanner = new AggregationScanner(type, filter, projector, aggrs, innerScanner);
+            long deadline = context.getQueryDeadline() != null && context.getQueryDeadline().hasTimeLimit() ? System.currentTimeMillis() + context.getQueryDeadline().getRemaining() : Long.MAX_VALUE;
+            AggregationScanner aggrScanner = new AggregationScanner(type, filter, projector, aggrs, topN, deadline, context.getQueryTrace() != null, innerScanner);
             return new ResultScannerAdapter(aggrScanner);
         } else {
             scan.setAttribute(AggregateRegionObserver.COPROCESSOR_ENABLE, new byte[] { 0x01 });
@@ -72,6 +75,12 @@ public class CoprocessorEnabler {
             scan.setAttribute(AggregateRegionObserver.PROJECTOR, SRowProjector.serialize(projector));
             scan.setAttribute(AggregateRegionObserver.AGGREGATORS, SRowAggregators.serialize(aggrs));
             scan.setAttribute(AggregateRegionObserver.FILTER, SRowFilter.serialize(filter));
+            if (topN != null)
+                scan.setAttribute(AggregateRegionObserver.TOPN, SRowTopN.serialize(topN));
+            if (context.getQueryDeadline() != null && context.getQueryDeadline().hasTimeLimit())
+                scan.setAttribute(AggregateRegionObserver.TIMEOUT, Bytes.toBytes(Math.max(1, context.getQueryDeadline().getRemaining())));
+            if (context.getQueryTrace() != null)
+                scan.setAttribute(AggregateRegionObserver.TRACE, new byte[] { 0x01 });
             return table.getScanner(scan);
         }
     }
@@ -99,8 +108,8 @@ public class CoprocessorEnabler {
             return cubeOverride.booleanValue();
         }
 
-        if (RowValueDecoder.hasMemHungryCountDistinct(rowValueDecoders)) {
-            logger.info("Coprocessor is disabled because there is memory hungry count distinct");
+        if (RowValueDecoder.hasHLLCCountDistinct(rowValueDecoders)) {
+            logger.info("Coprocessor is disabled because there is HLL count distinct, not accounted by coprocessor memory check");
             return false;
         }
 
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage.hbase.coprocessor;
+
+import org.apache.hadoop.hbase.DoNotRetryIOException;
+
+/**
+ * The query gave up on the region, no use of retrying the scan.
+ * 
+ * @author yangli9
+ */
+public class DeadlineExceededException extends DoNotRetryIOException {
+    private static final long serialVersionUID = 7815170376021352294L;
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
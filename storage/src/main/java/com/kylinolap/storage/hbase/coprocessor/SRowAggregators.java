@@ -194,6 +194,19 @@ public class SRowAggregators {
         return Bytes.compareTo(col.family, 0, col.family.length, cell.getFamilyArray(), cell.getFamilyOffset(), cell.getFamilyLength()) == 0 && Bytes.compareTo(col.qualifier, 0, col.qualifier.length, cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength()) == 0;
     }
 
+    /**
+     * @return index of the measure in the buffer from createBuffer(), or -1
+     */
+    public int getMeasureIndex(byte[] family, byte[] qualifier, int indexInHCol) {
+        int i = 0;
+        for (HCol col : hcols) {
+            if (Bytes.equals(col.family, family) && Bytes.equals(col.qualifier, qualifier))
+                return i + indexInHCol;
+            i += col.nMeasures;
+        }
+        return -1;
+    }
+
     public int getHColsNum() {
         return nHCols;
     }
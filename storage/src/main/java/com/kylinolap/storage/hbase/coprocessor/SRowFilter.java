@@ -24,17 +24,19 @@ import org.apache.hadoop.hbase.util.Bytes;
 import com.google.common.collect.Sets;
 import com.kylinolap.common.util.BytesUtil;
 import com.kylinolap.cube.CubeSegment;
+import com.kylinolap.cube.kv.DimensionEncoding;
 import com.kylinolap.cube.kv.RowKeyColumnIO;
 import com.kylinolap.dict.Dictionary;
+import com.kylinolap.metadata.model.cube.RowKeyDesc;
 import com.kylinolap.metadata.model.cube.TblColRef;
 import com.kylinolap.storage.filter.ColumnTupleFilter;
 import com.kylinolap.storage.filter.CompareTupleFilter;
 import com.kylinolap.storage.filter.ConstantTupleFilter;
+import com.kylinolap.storage.filter.FunctionTupleFilter;
 import com.kylinolap.storage.filter.TupleFilter;
 import com.kylinolap.storage.filter.TupleFilter.FilterOperatorEnum;
 import com.kylinolap.storage.filter.TupleFilterSerializer;
 import com.kylinolap.storage.filter.TupleFilterSerializer.Decorator;
-import com.kylinolap.storage.tuple.ITuple;
 
 /**
  * @author yangli9
@@ -52,7 +54,11 @@ public class SRowFilter {
                 if (filter == null)
                     return filter;
                 
-                if (filter.getOperator() == FilterOperatorEnum.NOT && TupleFilter.isEvaluableRecursively(filter) == false)
+                if (filter.getOperator() == FilterOperatorEnum.NOT && (TupleFilter.isEvaluableRecursively(filter) == false || hasInexactCompare(filter)))
+                    return ConstantTupleFilter.TRUE;
+
+                // functions not translated into IN, let Optiq filter
+                if (filter instanceof FunctionTupleFilter)
                     return ConstantTupleFilter.TRUE;
 
                 if ((filter instanceof CompareTupleFilter) == false)
@@ -67,6 +73,10 @@ public class SRowFilter {
                 if (col == null) {
                     return filter;
                 }
+                // IDs of global dictionary are not in value order, let Optiq filter ranges
+                if (isUnorderedRange(compf))
+                    return ConstantTupleFilter.TRUE;
+
                 String nullString = nullString(col);
                 Collection<String> constValues = compf.getValues();
                 if (constValues == null || constValues.isEmpty()) {
@@ -74,8 +84,19 @@ public class SRowFilter {
                     return filter;
                 }
 
+                // a lossy encoding (like truncation) maps many values to one, widen strict compares to inclusive
+                FilterOperatorEnum op = compf.getOperator();
+                if (isLossy(col, constValues)) {
+                    if (op == FilterOperatorEnum.NEQ)
+                        return ConstantTupleFilter.TRUE;
+                    else if (op == FilterOperatorEnum.LT)
+                        op = FilterOperatorEnum.LTE;
+                    else if (op == FilterOperatorEnum.GT)
+                        op = FilterOperatorEnum.GTE;
+                }
+
                 TupleFilter result;
-                CompareTupleFilter newComp = new CompareTupleFilter(compf.getOperator());
+                CompareTupleFilter newComp = new CompareTupleFilter(op);
                 newComp.setNullString(nullString);
                 newComp.addChild(new ColumnTupleFilter(col));
                 String v;
@@ -149,6 +170,35 @@ public class SRowFilter {
                 return result;
             }
 
+            // compares that can't be negated after translation
+            private boolean hasInexactCompare(TupleFilter filter) {
+                if (filter instanceof CompareTupleFilter) {
+                    CompareTupleFilter compf = (CompareTupleFilter) filter;
+                    if (isUnorderedRange(compf) || (compf.getColumn() != null && isLossy(compf.getColumn(), compf.getValues())))
+                        return true;
+                }
+                for (TupleFilter child : filter.getChildren()) {
+                    if (hasInexactCompare(child))
+                        return true;
+                }
+                return false;
+            }
+
+            private boolean isLossy(TblColRef col, Collection<String> values) {
+                DimensionEncoding enc = columnIO.getEncoding(col);
+                if (enc == null || values == null)
+                    return false;
+                for (String v : values) {
+                    if (enc.isExact(v) == false)
+                        return true;
+                }
+                return false;
+            }
+
+            private boolean isUnorderedRange(CompareTupleFilter compf) {
+                return SRowFilter.isUnorderedRange(seg.getCubeDesc().getRowkey(), compf);
+            }
+
             private String nullString(TblColRef column) {
                 byte[] id = new byte[columnIO.getColumnLength(column)];
                 for (int i = 0; i < id.length; i++) {
@@ -169,30 +219,92 @@ public class SRowFilter {
         return new SRowFilter(copy);
     }
 
+    private static boolean isUnorderedRange(RowKeyDesc rowkey, CompareTupleFilter compf) {
+        TblColRef col = compf.getColumn();
+        if (col == null || rowkey.isUseGlobalDictionary(col) == false)
+            return false;
+        switch (compf.getOperator()) {
+        case LT:
+        case LTE:
+        case GT:
+        case GTE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Collects columns of compares the filter drops as it can't evaluate them
+     * on IDs, i.e. ranges on global dictionary and any NOT over them. Such
+     * columns have to return from coprocessor, for Optiq to filter.
+     */
+    public static void collectRelaxedColumns(RowKeyDesc rowkey, TupleFilter filter, Set<TblColRef> collector) {
+        if (filter == null)
+            return;
+
+        if (filter.getOperator() == FilterOperatorEnum.NOT && hasUnorderedRange(rowkey, filter)) {
+            collectColumns(filter, collector);
+            return;
+        }
+        if (filter instanceof CompareTupleFilter && isUnorderedRange(rowkey, (CompareTupleFilter) filter)) {
+            collector.add(((CompareTupleFilter) filter).getColumn());
+            return;
+        }
+        for (TupleFilter child : filter.getChildren()) {
+            collectRelaxedColumns(rowkey, child, collector);
+        }
+    }
+
+    private static boolean hasUnorderedRange(RowKeyDesc rowkey, TupleFilter filter) {
+        if (filter instanceof CompareTupleFilter && isUnorderedRange(rowkey, (CompareTupleFilter) filter))
+            return true;
+        for (TupleFilter child : filter.getChildren()) {
+            if (hasUnorderedRange(rowkey, child))
+                return true;
+        }
+        return false;
+    }
+
+    private static void collectColumns(TupleFilter filter, Set<TblColRef> collector) {
+        if (filter instanceof ColumnTupleFilter)
+            collector.add(((ColumnTupleFilter) filter).getColumn());
+        for (TupleFilter child : filter.getChildren()) {
+            collectColumns(child, collector);
+        }
+    }
+
     public static byte[] serialize(SRowFilter o) {
-        return (o.filter == null) ? BytesUtil.EMPTY_BYTE_ARRAY : TupleFilterSerializer.serialize(o.filter);
+        return (o.idFilter == null) ? BytesUtil.EMPTY_BYTE_ARRAY : SRowIdFilter.serialize(o.idFilter);
     }
 
     public static SRowFilter deserialize(byte[] filterBytes) {
-        TupleFilter filter = (filterBytes == null || filterBytes.length == 0) //
+        SRowIdFilter idFilter = (filterBytes == null || filterBytes.length == 0) //
         ? null //
-                : TupleFilterSerializer.deserialize(filterBytes);
-        return new SRowFilter(filter);
+                : SRowIdFilter.deserialize(filterBytes);
+        return new SRowFilter(null, idFilter);
     }
 
     // ============================================================================
 
+    // the translated filter, only available where it is built (not after deserialize)
     protected final TupleFilter filter;
+    protected final SRowIdFilter idFilter;
 
     protected SRowFilter(TupleFilter filter) {
+        this(filter, filter == null ? null : SRowIdFilter.compile(filter));
+    }
+
+    protected SRowFilter(TupleFilter filter, SRowIdFilter idFilter) {
         this.filter = filter;
+        this.idFilter = idFilter;
     }
 
-    public boolean evaluate(ITuple tuple) {
-        if (filter == null)
+    public boolean evaluate(SRowTuple tuple) {
+        if (idFilter == null)
             return true;
         else
-            return filter.evaluate(tuple);
+            return idFilter.evaluate(tuple);
     }
 
 }
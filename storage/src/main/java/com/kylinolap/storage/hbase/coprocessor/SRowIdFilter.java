@@ -0,0 +1,412 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage.hbase.coprocessor;
+
+import static com.kylinolap.storage.filter.FilterProgram.*;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.hadoop.hbase.util.Bytes;
+
+import com.kylinolap.common.util.BytesSerializer;
+import com.kylinolap.common.util.BytesUtil;
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.metadata.model.schema.ColumnDesc;
+import com.kylinolap.metadata.model.schema.TableDesc;
+import com.kylinolap.storage.filter.CompiledTupleFilter;
+import com.kylinolap.storage.filter.FilterProgram;
+import com.kylinolap.storage.filter.TupleFilter;
+import com.kylinolap.storage.filter.TupleFilterSerializer;
+
+/**
+ * Evaluates a filter, whose constants are already dictionary IDs (see
+ * SRowFilter.fromFilter), directly on row key bytes. Column values are read
+ * from the fixed-length ID slices in place and compared as unsigned integers
+ * (or unsigned bytes when longer than 7 bytes), IN uses a bitset or a sorted
+ * array. Nothing is allocated per row.
+ *
+ * The filter is compiled once by FilterProgram, the same way as
+ * CompiledTupleFilter, into typed ID constants, and bound to a SRowType to
+ * resolve column offsets.
+ *
+ * @author yangli9
+ */
+public class SRowIdFilter {
+
+    // IDs up to 7 bytes fit in a non-negative long
+    private static final int MAX_LONG_ID_LEN = 7;
+    // IN sets whose largest ID is below this go into a bitset
+    private static final long MAX_BITSET_ID = 1 << 16;
+
+    private static final Comparator<byte[]> ID_COMPARATOR = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] o1, byte[] o2) {
+            return Bytes.compareTo(o1, o2);
+        }
+    };
+
+    /**
+     * @param filter
+     *            a filter whose constants are dictionary IDs, like the one
+     *            produced by SRowFilter.fromFilter()
+     */
+    public static SRowIdFilter compile(TupleFilter filter) {
+        FilterProgram program = FilterProgram.compile(filter);
+        ArrayList<Object[]> building = new ArrayList<Object[]>(program.size());
+        for (int i = 0; i < program.size(); i++) {
+            byte[][] ids = null;
+            String[] values = program.getValues(i);
+            if (values != null) {
+                ids = new byte[values.length][];
+                for (int j = 0; j < values.length; j++) {
+                    ids[j] = stringToDictId(values[j]);
+                }
+                Arrays.sort(ids, ID_COMPARATOR);
+            }
+            building.add(new Object[] { program.getOp(i), program.getEnd(i), program.getColumn(i), ids, program.getDelegate(i) });
+        }
+        SRowIdFilter result = new SRowIdFilter();
+        result.init(building);
+        return result;
+    }
+
+    private static byte[] stringToDictId(String str) {
+        try {
+            return str.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            // never happen
+            return null;
+        }
+    }
+
+    public static byte[] serialize(SRowIdFilter o) {
+        ByteBuffer buf = ByteBuffer.allocate(CoprocessorEnabler.SERIALIZE_BUFFER_SIZE);
+        serializer.serialize(o, buf);
+        byte[] result = new byte[buf.position()];
+        System.arraycopy(buf.array(), 0, result, 0, buf.position());
+        return result;
+    }
+
+    public static SRowIdFilter deserialize(byte[] bytes) {
+        return serializer.deserialize(ByteBuffer.wrap(bytes));
+    }
+
+    private static final Serializer serializer = new Serializer();
+
+    private static class Serializer implements BytesSerializer<SRowIdFilter> {
+
+        @Override
+        public void serialize(SRowIdFilter o, ByteBuffer out) {
+            int n = o.ops.length;
+            BytesUtil.writeVInt(n, out);
+            for (int i = 0; i < n; i++) {
+                out.put(o.ops[i]);
+                BytesUtil.writeVInt(o.ends[i], out);
+                if (o.columns[i] != null) {
+                    BytesUtil.writeUTFString(o.columns[i].getTable(), out);
+                    BytesUtil.writeUTFString(o.columns[i].getName(), out);
+                    byte[][] ids = o.ids[i];
+                    BytesUtil.writeVInt(ids.length, out);
+                    for (int j = 0; j < ids.length; j++) {
+                        BytesUtil.writeByteArray(ids[j], out);
+                    }
+                } else if (o.delegates[i] != null) {
+                    BytesUtil.writeByteArray(TupleFilterSerializer.serialize(o.delegates[i]), out);
+                }
+            }
+        }
+
+        @Override
+        public SRowIdFilter deserialize(ByteBuffer in) {
+            int n = BytesUtil.readVInt(in);
+            ArrayList<Object[]> building = new ArrayList<Object[]>(n);
+            for (int i = 0; i < n; i++) {
+                byte op = in.get();
+                int end = BytesUtil.readVInt(in);
+                TblColRef col = null;
+                byte[][] ids = null;
+                TupleFilter delegate = null;
+                if (isCompare(op)) {
+                    TableDesc table = new TableDesc();
+                    table.setName(BytesUtil.readUTFString(in));
+                    ColumnDesc column = new ColumnDesc();
+                    column.setTable(table);
+                    column.setName(BytesUtil.readUTFString(in));
+                    col = new TblColRef(column);
+                    ids = new byte[BytesUtil.readVInt(in)][];
+                    for (int j = 0; j < ids.length; j++) {
+                        ids[j] = BytesUtil.readByteArray(in);
+                    }
+                } else if (op == OP_DELEGATE) {
+                    delegate = TupleFilterSerializer.deserialize(BytesUtil.readByteArray(in));
+                }
+                building.add(new Object[] { op, end, col, ids, delegate });
+            }
+            SRowIdFilter result = new SRowIdFilter();
+            result.init(building);
+            return result;
+        }
+    }
+
+    // ============================================================================
+
+    // the program, per node in pre-order; a subtree spans [i, ends[i])
+    private byte[] ops;
+    private int[] ends;
+    private TblColRef[] columns;
+    private byte[][][] ids;
+    private TupleFilter[] delegates;
+
+    // resolved against the bound row type
+    private SRowType boundType;
+    private int[] offsets;
+    private int[] lengths;
+    private long[] nullIds;
+    private long[] longIds;
+    private long[][] longInSets;
+    private long[][] bitInSets;
+    private CompiledTupleFilter[] compiledDelegates;
+
+    private SRowIdFilter() {
+    }
+
+    private void init(ArrayList<Object[]> building) {
+        int n = building.size();
+        ops = new byte[n];
+        ends = new int[n];
+        columns = new TblColRef[n];
+        ids = new byte[n][][];
+        delegates = new TupleFilter[n];
+        for (int i = 0; i < n; i++) {
+            Object[] node = building.get(i);
+            ops[i] = (Byte) node[0];
+            ends[i] = (Integer) node[1];
+            columns[i] = (TblColRef) node[2];
+            ids[i] = (byte[][]) node[3];
+            delegates[i] = (TupleFilter) node[4];
+        }
+    }
+
+    public boolean isAlwaysTrue() {
+        return ops[0] == OP_TRUE;
+    }
+
+    public boolean isAlwaysFalse() {
+        return ops[0] == OP_FALSE;
+    }
+
+    public boolean evaluate(SRowTuple tuple) {
+        if (tuple.type != boundType)
+            bind(tuple.type);
+
+        return eval(0, tuple.rowkey.get(), tuple.rowkey.getOffset(), tuple);
+    }
+
+    private void bind(SRowType type) {
+        int n = ops.length;
+        offsets = new int[n];
+        lengths = new int[n];
+        nullIds = new long[n];
+        longIds = new long[n];
+        longInSets = new long[n][];
+        bitInSets = new long[n][];
+        compiledDelegates = new CompiledTupleFilter[n];
+
+        for (int i = 0; i < n; i++) {
+            if (delegates[i] != null)
+                compiledDelegates[i] = CompiledTupleFilter.compile(delegates[i]);
+            if (columns[i] == null)
+                continue;
+
+            Integer idx = type.columnIdxMap.get(columns[i]);
+            if (idx == null)
+                throw new IllegalStateException("Column " + columns[i] + " not found in row type " + type.columnsAsList);
+            int len = type.columnSizes[idx];
+            offsets[i] = type.columnOffsets[idx];
+            lengths[i] = len;
+            for (byte[] id : ids[i]) {
+                if (id.length != len)
+                    throw new IllegalStateException("ID length " + id.length + " does not match column " + columns[i] + " length " + len);
+            }
+            if (len > MAX_LONG_ID_LEN)
+                continue;
+
+            nullIds[i] = (1L << (len * 8)) - 1;
+            byte[][] nodeIds = ids[i];
+            if (ops[i] == OP_IN) {
+                long[] set = new long[nodeIds.length];
+                for (int j = 0; j < set.length; j++) {
+                    set[j] = BytesUtil.readUnsignedLong(nodeIds[j], 0, len);
+                }
+                // sorted already as IDs are sorted in bytes
+                if (set[set.length - 1] < MAX_BITSET_ID) {
+                    long[] bits = new long[(int) (set[set.length - 1] >>> 6) + 1];
+                    for (long v : set) {
+                        bits[(int) (v >>> 6)] |= 1L << v;
+                    }
+                    bitInSets[i] = bits;
+                } else {
+                    longInSets[i] = set;
+                }
+            } else if (nodeIds.length > 0) {
+                longIds[i] = BytesUtil.readUnsignedLong(nodeIds[0], 0, len);
+            }
+        }
+        boundType = type;
+    }
+
+    private boolean eval(int i, byte[] row, int rowOffset, SRowTuple tuple) {
+        int op = ops[i];
+        switch (op) {
+        case OP_TRUE:
+            return true;
+        case OP_FALSE:
+            return false;
+        case OP_AND:
+            for (int c = i + 1, end = ends[i]; c < end; c = ends[c]) {
+                if (eval(c, row, rowOffset, tuple) == false)
+                    return false;
+            }
+            return true;
+        case OP_OR:
+            for (int c = i + 1, end = ends[i]; c < end; c = ends[c]) {
+                if (eval(c, row, rowOffset, tuple))
+                    return true;
+            }
+            return false;
+        case OP_NOT:
+            return !eval(i + 1, row, rowOffset, tuple);
+        case OP_DELEGATE:
+            return compiledDelegates[i].evaluate(tuple);
+        default:
+            if (lengths[i] <= MAX_LONG_ID_LEN)
+                return compareLong(i, op, row, rowOffset + offsets[i]);
+            else
+                return compareBytes(i, op, row, rowOffset + offsets[i]);
+        }
+    }
+
+    private boolean compareLong(int i, int op, byte[] row, int offset) {
+        long v = BytesUtil.readUnsignedLong(row, offset, lengths[i]);
+        if (v == nullIds[i])
+            return op == OP_ISNULL;
+
+        switch (op) {
+        case OP_ISNULL:
+            return false;
+        case OP_ISNOTNULL:
+            return true;
+        case OP_EQ:
+            return v == longIds[i];
+        case OP_NEQ:
+            return v != longIds[i];
+        case OP_LT:
+            return v < longIds[i];
+        case OP_LTE:
+            return v <= longIds[i];
+        case OP_GT:
+            return v > longIds[i];
+        case OP_GTE:
+            return v >= longIds[i];
+        case OP_IN:
+            long[] bits = bitInSets[i];
+            if (bits != null) {
+                int word = (int) (v >>> 6);
+                return v < MAX_BITSET_ID && word < bits.length && (bits[word] & (1L << v)) != 0;
+            }
+            return Arrays.binarySearch(longInSets[i], v) >= 0;
+        default:
+            throw new IllegalStateException("Unknown op " + op);
+        }
+    }
+
+    private boolean compareBytes(int i, int op, byte[] row, int offset) {
+        int len = lengths[i];
+        if (isNull(row, offset, len))
+            return op == OP_ISNULL;
+
+        switch (op) {
+        case OP_ISNULL:
+            return false;
+        case OP_ISNOTNULL:
+            return true;
+        case OP_IN:
+            return binarySearch(ids[i], row, offset, len);
+        default:
+            break;
+        }
+
+        int comp = Bytes.compareTo(row, offset, len, ids[i][0], 0, len);
+        switch (op) {
+        case OP_EQ:
+            return comp == 0;
+        case OP_NEQ:
+            return comp != 0;
+        case OP_LT:
+            return comp < 0;
+        case OP_LTE:
+            return comp <= 0;
+        case OP_GT:
+            return comp > 0;
+        case OP_GTE:
+            return comp >= 0;
+        default:
+            throw new IllegalStateException("Unknown op " + op);
+        }
+    }
+
+    private static boolean isNull(byte[] row, int offset, int len) {
+        for (int i = offset, n = offset + len; i < n; i++) {
+            if (row[i] != (byte) 0xff)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean binarySearch(byte[][] sortedIds, byte[] row, int offset, int len) {
+        int low = 0;
+        int high = sortedIds.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int comp = Bytes.compareTo(sortedIds[mid], 0, len, row, offset, len);
+            if (comp < 0)
+                low = mid + 1;
+            else if (comp > 0)
+                high = mid - 1;
+            else
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder("SRowIdFilter [");
+        for (int i = 0; i < ops.length; i++) {
+            if (i > 0)
+                buf.append(", ");
+            buf.append(i).append(":op").append(ops[i]).append("->").append(ends[i]);
+            if (columns[i] != null)
+                buf.append(" ").append(columns[i].getName()).append("#").append(ids[i].length);
+        }
+        return buf.append("]").toString();
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage.hbase.coprocessor;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.LongWritable;
+
+import com.kylinolap.common.util.BytesSerializer;
+import com.kylinolap.common.util.BytesUtil;
+import com.kylinolap.cube.kv.RowConstants;
+import com.kylinolap.cube.kv.RowValueDecoder;
+import com.kylinolap.cube.measure.MeasureAggregator;
+import com.kylinolap.metadata.model.cube.FunctionDesc;
+import com.kylinolap.metadata.model.cube.HBaseColumnDesc;
+import com.kylinolap.storage.StorageContext;
+import com.kylinolap.storage.hbase.coprocessor.SRowProjector.AggrKey;
+
+/**
+ * Keeps only the top K groups by a SUM/COUNT measure in the coprocessor output
+ * of a region, and appends a stats row telling how many groups were dropped
+ * and the range of their values. The client bounds the groups it has not seen
+ * with the stats, see PartialTopNMerger.
+ *
+ * @author yangli9
+ */
+@SuppressWarnings("rawtypes")
+public class SRowTopN {
+
+    // cuboid ID of all 0xff is never a real cuboid, marks the stats row, which
+    // carries top-N stats and/or scan stats of a traced query by qualifier
+    static final byte[] STATS_ROW;
+    static final byte[] STATS_QUALIFIER = Bytes.toBytes("_TopN");
+
+    static {
+        STATS_ROW = new byte[RowConstants.ROWKEY_CUBOIDID_LEN];
+        for (int i = 0; i < STATS_ROW.length; i++)
+            STATS_ROW[i] = (byte) 0xff;
+    }
+
+    /**
+     * @return null if the sort measure is not found among the HBase columns
+     */
+    public static SRowTopN fromContext(Collection<RowValueDecoder> rowValueDecoders, SRowAggregators aggrs, StorageContext context) {
+        FunctionDesc func = context.getSortMeasures().get(0).getFunction();
+        boolean descending = context.getSortOrders().get(0) == StorageContext.OrderEnum.DESCENDING;
+
+        for (RowValueDecoder rowValueDecoder : rowValueDecoders) {
+            HBaseColumnDesc hbCol = rowValueDecoder.getHBaseColumn();
+            int indexInCol = hbCol.findMeasureIndex(func);
+            if (indexInCol < 0)
+                continue;
+            int index = aggrs.getMeasureIndex(Bytes.toBytes(hbCol.getColumnFamilyName()), Bytes.toBytes(hbCol.getQualifier()), indexInCol);
+            if (index >= 0)
+                return new SRowTopN(index, descending, context.getLimit());
+        }
+        return null;
+    }
+
+    public static byte[] serialize(SRowTopN o) {
+        ByteBuffer buf = ByteBuffer.allocate(CoprocessorEnabler.SERIALIZE_BUFFER_SIZE);
+        serializer.serialize(o, buf);
+        byte[] result = new byte[buf.position()];
+        System.arraycopy(buf.array(), 0, result, 0, buf.position());
+        return result;
+    }
+
+    public static SRowTopN deserialize(byte[] bytes) {
+        return serializer.deserialize(ByteBuffer.wrap(bytes));
+    }
+
+    private static final Serializer serializer = new Serializer();
+
+    private static class Serializer implements BytesSerializer<SRowTopN> {
+
+        @Override
+        public void serialize(SRowTopN value, ByteBuffer out) {
+            BytesUtil.writeVInt(value.measureIndex, out);
+            BytesUtil.writeVInt(value.descending ? 1 : 0, out);
+            BytesUtil.writeVInt(value.k, out);
+        }
+
+        @Override
+        public SRowTopN deserialize(ByteBuffer in) {
+            int measureIndex = BytesUtil.readVInt(in);
+            boolean descending = BytesUtil.readVInt(in) != 0;
+            int k = BytesUtil.readVInt(in);
+            return new SRowTopN(measureIndex, descending, k);
+        }
+    }
+
+    public static boolean isStatsRow(byte[] row) {
+        return Bytes.startsWith(row, STATS_ROW);
+    }
+
+    /**
+     * @return null if the stats row has no top-N stats
+     */
+    public static Stats readStats(Result result) {
+        Cell cell = findStatsCell(result, STATS_QUALIFIER);
+        return cell == null ? null : Stats.deserialize(ByteBuffer.wrap(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength()));
+    }
+
+    static Cell findStatsCell(Result result, byte[] qualifier) {
+        for (Cell cell : result.rawCells()) {
+            if (Bytes.equals(cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength(), qualifier, 0, qualifier.length))
+                return cell;
+        }
+        return null;
+    }
+
+    // ============================================================================
+
+    final int measureIndex; // in the buffer of SRowAggregators
+    final boolean descending;
+    final int k;
+
+    public SRowTopN(int measureIndex, boolean descending, int k) {
+        this.measureIndex = measureIndex;
+        this.descending = descending;
+        this.k = k;
+    }
+
+    /**
+     * Removes all but the top K groups from the map.
+     */
+    public Stats retainTopN(SortedMap<AggrKey, MeasureAggregator[]> groups) {
+        Stats stats = new Stats();
+        if (groups.size() <= k) {
+            stats.kept = groups.size();
+            return stats;
+        }
+
+        // the head is the worst of the kept
+        PriorityQueue<ScoredKey> heap = new PriorityQueue<ScoredKey>(k + 1, new Comparator<ScoredKey>() {
+            @Override
+            public int compare(ScoredKey o1, ScoredKey o2) {
+                int comp = o1.score.compareTo(o2.score);
+                return descending ? comp : -comp;
+            }
+        });
+        for (Entry<AggrKey, MeasureAggregator[]> entry : groups.entrySet()) {
+            BigDecimal score = toBigDecimal(entry.getValue()[measureIndex].getState());
+            if (score == null) { // NaN etc., keep everything
+                Stats all = new Stats();
+                all.kept = groups.size();
+                return all;
+            }
+            heap.add(new ScoredKey(entry.getKey(), score));
+            if (heap.size() > k)
+                stats.drop(heap.poll().score);
+        }
+
+        Set<AggrKey> keep = Collections.newSetFromMap(new IdentityHashMap<AggrKey, Boolean>());
+        for (ScoredKey sk : heap)
+            keep.add(sk.key);
+        for (Iterator<AggrKey> it = groups.keySet().iterator(); it.hasNext();) {
+            if (keep.contains(it.next()) == false)
+                it.remove();
+        }
+        stats.kept = groups.size();
+        return stats;
+    }
+
+    static BigDecimal toBigDecimal(Object state) {
+        if (state instanceof BigDecimal)
+            return (BigDecimal) state;
+        if (state instanceof LongWritable)
+            return BigDecimal.valueOf(((LongWritable) state).get());
+        if (state instanceof DoubleWritable) {
+            double d = ((DoubleWritable) state).get();
+            return Double.isNaN(d) || Double.isInfinite(d) ? null : BigDecimal.valueOf(d);
+        }
+        if (state instanceof Number)
+            return new BigDecimal(state.toString());
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "SRowTopN [measureIndex=" + measureIndex + ", descending=" + descending + ", k=" + k + "]";
+    }
+
+    private static class ScoredKey {
+        final AggrKey key;
+        final BigDecimal score;
+
+        ScoredKey(AggrKey key, BigDecimal score) {
+            this.key = key;
+            this.score = score;
+        }
+    }
+
+    /**
+     * What a region kept and dropped, carried by the stats row.
+     */
+    public static class Stats {
+        public long kept;
+        public long dropped;
+        public BigDecimal maxDropped; // null if nothing dropped
+        public BigDecimal minDropped;
+
+        public void drop(BigDecimal value) {
+            dropped++;
+            if (maxDropped == null || value.compareTo(maxDropped) > 0)
+                maxDropped = value;
+            if (minDropped == null || value.compareTo(minDropped) < 0)
+                minDropped = value;
+        }
+
+        public boolean isTruncated() {
+            return dropped > 0;
+        }
+
+        public byte[] serialize() {
+            ByteBuffer buf = ByteBuffer.allocate(256);
+            BytesUtil.writeVLong(kept, buf);
+            BytesUtil.writeVLong(dropped, buf);
+            BytesUtil.writeAsciiString(maxDropped == null ? null : maxDropped.toString(), buf);
+            BytesUtil.writeAsciiString(minDropped == null ? null : minDropped.toString(), buf);
+            byte[] result = new byte[buf.position()];
+            System.arraycopy(buf.array(), 0, result, 0, buf.position());
+            return result;
+        }
+
+        public static Stats deserialize(ByteBuffer in) {
+            Stats stats = new Stats();
+            stats.kept = BytesUtil.readVLong(in);
+            stats.dropped = BytesUtil.readVLong(in);
+            String max = BytesUtil.readAsciiString(in);
+            String min = BytesUtil.readAsciiString(in);
+            stats.maxDropped = max == null ? null : new BigDecimal(max);
+            stats.minDropped = min == null ? null : new BigDecimal(min);
+            return stats;
+        }
+
+        @Override
+        public String toString() {
+            return "kept=" + kept + ", dropped=" + dropped + ", dropped range=[" + minDropped + ", " + maxDropped + "]";
+        }
+    }
+}
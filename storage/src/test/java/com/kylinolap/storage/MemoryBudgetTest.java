@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+
+import org.junit.Test;
+
+import com.kylinolap.cube.measure.BitmapCounter;
+import com.kylinolap.cube.measure.TopNCounter;
+import com.kylinolap.storage.hbase.ScanOutOfLimitException;
+
+/**
+ * @author yangli9
+ *
+ */
+public class MemoryBudgetTest {
+
+    static final long MB = 1024 * 1024;
+
+    @Test
+    public void testQueryLimit() {
+        MemoryBudget pool = new MemoryBudget("pool", 100 * MB);
+        MemoryBudget query = new MemoryBudget("query", 10 * MB, pool);
+
+        query.consume(9 * MB);
+        try {
+            query.consume(2 * MB);
+            fail("Over query limit");
+        } catch (ScanOutOfLimitException e) {
+            assertTrue(e.getMessage().startsWith("Query memory budget exceeded"));
+        }
+        assertEquals(9 * MB, query.getUsed());
+
+        query.release(9 * MB);
+        query.consume(9 * MB);
+        query.close();
+        assertEquals(0, pool.getUsed());
+    }
+
+    @Test
+    public void testPoolExhausted() {
+        MemoryBudget pool = new MemoryBudget("pool", 10 * MB);
+        MemoryBudget q1 = new MemoryBudget("q1", 8 * MB, pool);
+        MemoryBudget q2 = new MemoryBudget("q2", 8 * MB, pool);
+
+        q1.consume(7 * MB);
+        q2.consume(1); // takes a chunk
+        try {
+            q2.consume(3 * MB);
+            fail("Pool exhausted");
+        } catch (ScanOutOfLimitException e) {
+            assertTrue(e.getMessage().startsWith("Server is out of query memory"));
+        }
+        assertEquals(1, q2.getUsed());
+
+        q1.close();
+        q2.consume(3 * MB);
+        q2.close();
+        assertEquals(0, pool.getUsed());
+    }
+
+    @Test
+    public void testEstimate() {
+        long small = MemoryBudget.estimateRowBytes(new Object[] { "A", 1L, null });
+        long big = MemoryBudget.estimateRowBytes(new Object[] { "A very long dimension value", new BigDecimal("1.5"), "B" });
+        assertTrue(small > 0);
+        assertTrue(big > small);
+
+        // counters are sized by their content, not as a plain object
+        BitmapCounter bitmap = new BitmapCounter();
+        TopNCounter topN = new TopNCounter(10);
+        long empty = MemoryBudget.estimateRowBytes(new Object[] { bitmap, topN });
+        for (int i = 0; i < 1000; i++) {
+            bitmap.add(i * 100);
+            topN.offer(("key" + i).getBytes(), BigDecimal.ONE);
+        }
+        assertTrue(MemoryBudget.estimateRowBytes(new Object[] { bitmap, topN }) > empty + 10000);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author yangli9
+ *
+ */
+public class QueryDeadlineTest {
+
+    @Test
+    public void testNoLimit() {
+        QueryDeadline deadline = new QueryDeadline(0);
+        assertFalse(deadline.hasTimeLimit());
+        assertEquals(Long.MAX_VALUE, deadline.getRemaining());
+        deadline.check();
+    }
+
+    @Test
+    public void testTimeout() throws InterruptedException {
+        QueryDeadline deadline = new QueryDeadline(10);
+        assertTrue(deadline.hasTimeLimit());
+        assertTrue(deadline.getRemaining() <= 10);
+
+        Thread.sleep(30);
+        try {
+            deadline.check();
+            fail("Timed out");
+        } catch (QueryCancelledException e) {
+            assertTrue(e.getMessage().startsWith("Query timed out after 10 ms"));
+        }
+    }
+
+    @Test
+    public void testCancel() {
+        StorageContext context = new StorageContext();
+        context.checkDeadline(); // no deadline
+
+        QueryDeadline deadline = new QueryDeadline(60000);
+        context.setQueryDeadline(deadline);
+        context.checkDeadline();
+
+        deadline.cancel("by ADMIN");
+        assertTrue(deadline.isCancelled());
+        try {
+            context.checkDeadline();
+            fail("Cancelled");
+        } catch (QueryCancelledException e) {
+            assertEquals("Query is cancelled: by ADMIN", e.getMessage());
+        }
+    }
+}
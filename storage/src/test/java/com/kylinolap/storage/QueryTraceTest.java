@@ -0,0 +1,60 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author yangli9
+ *
+ */
+public class QueryTraceTest {
+
+    @Test
+    public void testPhases() throws InterruptedException {
+        QueryTrace trace = new QueryTrace();
+        trace.phase(QueryTrace.PHASE_PARSE_AND_PLAN);
+        Thread.sleep(20);
+        trace.phase(QueryTrace.PHASE_EXECUTE);
+        assertEquals(-1, trace.getPhaseDuration(QueryTrace.PHASE_EXECUTE));
+        trace.phase(null);
+
+        assertEquals(2, trace.getPhases().size());
+        assertTrue(trace.getPhaseDuration(QueryTrace.PHASE_PARSE_AND_PLAN) >= 20);
+        assertTrue(trace.getPhaseDuration(QueryTrace.PHASE_EXECUTE) >= 0);
+        assertTrue(trace.getPhases().get(1).getStart() >= 20);
+        assertEquals(-1, trace.getPhaseDuration("route"));
+    }
+
+    @Test
+    public void testSpansAndCounters() {
+        QueryTrace trace = new QueryTrace();
+        for (int i = 0; i < QueryTrace.MAX_SPANS + 5; i++) {
+            trace.startSpan("hbase scan").put("rows", i).end();
+        }
+        assertEquals(QueryTrace.MAX_SPANS, trace.getSpans().size());
+        assertEquals(5, trace.getDroppedSpans());
+        assertEquals(1, trace.getSpans().get(1).getInfo().get("rows"));
+
+        trace.count(QueryTrace.COUNTER_HBASE_ROWS, 10);
+        trace.count(QueryTrace.COUNTER_HBASE_ROWS, 5);
+        assertEquals(15, trace.getCounter(QueryTrace.COUNTER_HBASE_ROWS));
+        assertEquals(0, trace.getCounter(QueryTrace.COUNTER_HBASE_BYTES));
+    }
+}
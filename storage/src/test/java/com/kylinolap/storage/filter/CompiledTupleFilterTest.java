@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage.filter;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.storage.filter.TupleFilter.FilterOperatorEnum;
+import com.kylinolap.storage.tuple.Tuple;
+
+/**
+ * @author yangli9
+ *
+ */
+public class CompiledTupleFilterTest extends FilterBaseTest {
+
+    @Test
+    public void testCompare() {
+        List<TblColRef> groups = buildGroups();
+        verify(groups, buildCompareFilter(groups, 0));
+        verify(groups, buildCompareFilter(groups, 1));
+    }
+
+    @Test
+    public void testLogical() {
+        List<TblColRef> groups = buildGroups();
+        verify(groups, buildAndFilter(groups));
+        verify(groups, buildOrFilter(groups));
+        verify(groups, not(buildOrFilter(groups)));
+    }
+
+    @Test
+    public void testRangeAndIn() {
+        List<TblColRef> groups = buildGroups();
+
+        CompareTupleFilter lt = new CompareTupleFilter(FilterOperatorEnum.LT);
+        lt.addChild(new ColumnTupleFilter(groups.get(0)));
+        lt.addChild(new ConstantTupleFilter("2013-03-10"));
+        verify(groups, lt);
+
+        CompareTupleFilter gte = new CompareTupleFilter(FilterOperatorEnum.GTE);
+        gte.addChild(new ColumnTupleFilter(groups.get(0)));
+        gte.addChild(new ConstantTupleFilter("2013-03-10"));
+        verify(groups, gte);
+
+        CompareTupleFilter in = new CompareTupleFilter(FilterOperatorEnum.IN);
+        in.addChild(new ColumnTupleFilter(groups.get(1)));
+        in.addChild(new ConstantTupleFilter(Arrays.asList("ABIN", "FP-GTC")));
+        verify(groups, in);
+    }
+
+    @Test
+    public void testCaseDelegate() {
+        List<TblColRef> groups = buildGroups();
+        verify(groups, buildCompareCaseFilter(groups, "0"));
+        verify(groups, buildCompareCaseFilter(groups, "3"));
+    }
+
+    @Test
+    public void testConstantFolding() {
+        List<TblColRef> groups = buildGroups();
+
+        LogicalTupleFilter andFalse = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        andFalse.addChild(buildCompareFilter(groups, 0));
+        andFalse.addChild(ConstantTupleFilter.FALSE);
+        assertTrue(CompiledTupleFilter.compile(andFalse).isAlwaysFalse());
+        verify(groups, andFalse);
+
+        LogicalTupleFilter orTrue = new LogicalTupleFilter(FilterOperatorEnum.OR);
+        orTrue.addChild(buildCompareFilter(groups, 0));
+        orTrue.addChild(ConstantTupleFilter.TRUE);
+        assertTrue(CompiledTupleFilter.compile(orTrue).isAlwaysTrue());
+        verify(groups, orTrue);
+
+        assertTrue(CompiledTupleFilter.compile(not(ConstantTupleFilter.FALSE)).isAlwaysTrue());
+        assertTrue(CompiledTupleFilter.compile(null).isAlwaysTrue());
+
+        LogicalTupleFilter andTrue = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        andTrue.addChild(ConstantTupleFilter.TRUE);
+        andTrue.addChild(buildOrFilter(groups));
+        CompiledTupleFilter compiled = CompiledTupleFilter.compile(andTrue);
+        assertFalse(compiled.isAlwaysTrue() || compiled.isAlwaysFalse());
+        verify(groups, andTrue);
+    }
+
+    @Test
+    public void testPerformance() {
+        List<TblColRef> groups = buildGroups();
+        LogicalTupleFilter filter = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        filter.addChild(buildOrFilter(groups));
+        filter.addChild(not(buildAndFilter(groups)));
+        CompiledTupleFilter compiled = CompiledTupleFilter.compile(filter);
+
+        int[] matchCounts = new int[] { 0, 0, 0 };
+        Collection<Tuple> tuples = generateTuple(10000, groups, matchCounts);
+        int rounds = 100;
+
+        // warm up
+        evaluateTuples(tuples, filter);
+        evaluateCompiled(tuples, compiled);
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < rounds; i++)
+            evaluateTuples(tuples, filter);
+        long interpreted = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        for (int i = 0; i < rounds; i++)
+            evaluateCompiled(tuples, compiled);
+        long compiledTime = System.currentTimeMillis() - start;
+
+        System.out.println("Evaluate " + rounds * tuples.size() + " tuples, interpreted " + interpreted + " ms, compiled " + compiledTime + " ms");
+    }
+
+    private TupleFilter not(TupleFilter child) {
+        LogicalTupleFilter not = new LogicalTupleFilter(FilterOperatorEnum.NOT);
+        not.addChild(child);
+        return not;
+    }
+
+    private void verify(List<TblColRef> groups, TupleFilter filter) {
+        int[] matchCounts = new int[] { 0, 0, 0 };
+        Collection<Tuple> tuples = generateTuple(1000, groups, matchCounts);
+        CompiledTupleFilter compiled = CompiledTupleFilter.compile(filter);
+        for (Tuple t : tuples) {
+            assertEquals(filter.toString(), filter.evaluate(t), compiled.evaluate(t));
+        }
+    }
+
+    private int evaluateCompiled(Collection<Tuple> tuples, CompiledTupleFilter compiled) {
+        int match = 0;
+        for (Tuple t : tuples) {
+            if (compiled.evaluate(t)) {
+                match++;
+            }
+        }
+        return match;
+    }
+}
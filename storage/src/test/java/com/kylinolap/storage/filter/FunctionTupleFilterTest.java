@@ -0,0 +1,214 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage.filter;
+
+import static org.junit.Assert.*;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.storage.filter.TupleFilter.FilterOperatorEnum;
+import com.kylinolap.storage.tuple.Tuple;
+import com.kylinolap.storage.tuple.TupleInfo;
+
+/**
+ * @author yangli9
+ *
+ */
+public class FunctionTupleFilterTest extends FilterBaseTest {
+
+    @Test
+    public void testLike() {
+        List<TblColRef> groups = buildGroups();
+        int[] matchCounts = new int[] { 0, 0, 0 };
+        Collection<Tuple> tuples = generateTuple(1000, groups, matchCounts);
+
+        // sample data of column 1 are "ClothinShoes & Accessories", "ABIN", "FP-GTC", "FP-NON-GTC"
+        int fp = countMatch(tuples, groups.get(1), "FP-%");
+        int gtc = countMatch(tuples, like(FunctionTupleFilter.LIKE, groups.get(1), "%GTC"));
+        int notGtc = countMatch(tuples, like(FunctionTupleFilter.NOT_LIKE, groups.get(1), "%GTC"));
+        int abin = countMatch(tuples, like(FunctionTupleFilter.LIKE, groups.get(1), "A_IN"));
+
+        assertEquals(fp, gtc);
+        assertEquals(1000, gtc + notGtc);
+        assertEquals(1000, countMatch(tuples, groups.get(1), "%"));
+        assertEquals(matchCounts[1], countMatch(tuples, groups.get(1), "Clothin%"));
+        assertTrue(abin > 0 && abin < 1000 - matchCounts[1]);
+
+        TupleFilter reversed = like(FunctionTupleFilter.LIKE, groups.get(1), "%GTC").reverse();
+        assertEquals(notGtc, countMatch(tuples, reversed));
+    }
+
+    @Test
+    public void testLikeToRegex() {
+        assertTrue("100%".matches(FunctionTupleFilter.likeToRegex("100!%", "!")));
+        assertFalse("1000".matches(FunctionTupleFilter.likeToRegex("100!%", "!")));
+        assertTrue("a.b".matches(FunctionTupleFilter.likeToRegex("a.b", null)));
+        assertFalse("axb".matches(FunctionTupleFilter.likeToRegex("a.b", null)));
+        assertTrue("a*b(c)".matches(FunctionTupleFilter.likeToRegex("a*b%", null)));
+    }
+
+    @Test
+    public void testValueFunction() {
+        List<TblColRef> groups = buildGroups();
+        int[] matchCounts = new int[] { 0, 0, 0 };
+        Collection<Tuple> tuples = generateTuple(1000, groups, matchCounts);
+
+        FunctionTupleFilter upper = new FunctionTupleFilter("upper");
+        upper.addChild(new ColumnTupleFilter(groups.get(1)));
+        CompareTupleFilter eq = new CompareTupleFilter(FilterOperatorEnum.EQ);
+        eq.addChild(upper);
+        eq.addChild(new ConstantTupleFilter("CLOTHINSHOES & ACCESSORIES"));
+        assertEquals(matchCounts[1], countMatch(tuples, eq));
+
+        FunctionTupleFilter substr = new FunctionTupleFilter("SUBSTRING");
+        substr.addChild(new ColumnTupleFilter(groups.get(0)));
+        substr.addChild(new ConstantTupleFilter("1"));
+        substr.addChild(new ConstantTupleFilter("4"));
+        CompareTupleFilter year = new CompareTupleFilter(FilterOperatorEnum.EQ);
+        year.addChild(substr);
+        year.addChild(new ConstantTupleFilter("2013"));
+        assertEquals(matchCounts[0], countMatch(tuples, year));
+    }
+
+    @Test
+    public void testCharLengthCompare() {
+        TblColRef col = buildGroups().get(1);
+        // lengths 10 and 4, compared as numbers not strings
+        assertTrue(compareLength(col, "FP-NON-GTC", FilterOperatorEnum.GT, "5"));
+        assertFalse(compareLength(col, "FP-NON-GTC", FilterOperatorEnum.LT, "5"));
+        assertTrue(compareLength(col, "ABIN", FilterOperatorEnum.LT, "10"));
+        assertTrue(compareLength(col, "FP-NON-GTC", FilterOperatorEnum.GTE, "10"));
+        assertTrue(compareLength(col, "FP-NON-GTC", FilterOperatorEnum.EQ, "10"));
+        assertFalse(compareLength(col, "FP-NON-GTC", FilterOperatorEnum.LTE, "9"));
+    }
+
+    @Test
+    public void testSerialize() {
+        List<TblColRef> groups = buildGroups();
+        LogicalTupleFilter and = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        and.addChild(like(FunctionTupleFilter.NOT_LIKE, groups.get(1), "FP%"));
+        and.addChild(buildCompareFilter(groups, 0));
+
+        byte[] bytes = TupleFilterSerializer.serialize(and);
+        TupleFilter copy = TupleFilterSerializer.deserialize(bytes);
+        compareFilter(and, copy);
+        assertFalse(TupleFilter.isEvaluableRecursively(copy));
+
+        // a decorator dropping the pattern is caught on evaluation
+        bytes = TupleFilterSerializer.serialize(and, new TupleFilterSerializer.Decorator() {
+            @Override
+            public TupleFilter onSerialize(TupleFilter filter) {
+                return filter instanceof ConstantTupleFilter && filter.getValues().contains("FP%") ? null : filter;
+            }
+        });
+        copy = TupleFilterSerializer.deserialize(bytes);
+        try {
+            countMatch(generateTuple(1, groups, new int[] { 0, 0, 0 }), copy.getChildren().get(0));
+            fail();
+        } catch (IllegalStateException e) {
+            // expects 2 children
+        }
+    }
+
+    @Test
+    public void testSubstringArguments() {
+        TblColRef col = buildGroups().get(1);
+        assertEquals("FP", substring(col, "FP-NON-GTC", "1", "2"));
+        assertEquals("F", substring(col, "FP-NON-GTC", "0", "2"));
+        assertEquals("NON-GTC", substring(col, "FP-NON-GTC", "4", null));
+        assertEquals("", substring(col, "FP-NON-GTC", "20", "2"));
+        try {
+            substring(col, "FP-NON-GTC", "x", "2");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // not an integer
+        }
+        try {
+            substring(col, "FP-NON-GTC", "1", "-1");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // negative length
+        }
+    }
+
+    @Test
+    public void testNullAndUnboundArgument() {
+        List<TblColRef> groups = buildGroups();
+        Collection<Tuple> tuples = generateTuple(10, groups, new int[] { 0, 0, 0 });
+
+        FunctionTupleFilter like = new FunctionTupleFilter(FunctionTupleFilter.LIKE);
+        like.addChild(new ColumnTupleFilter(groups.get(1)));
+        like.addChild(new ConstantTupleFilter((String) null));
+        assertEquals(0, countMatch(tuples, like));
+
+        FunctionTupleFilter unbound = new FunctionTupleFilter(FunctionTupleFilter.LIKE);
+        unbound.addChild(new ColumnTupleFilter(groups.get(1)));
+        unbound.addChild(new DynamicTupleFilter("?0"));
+        try {
+            countMatch(tuples, unbound);
+            fail();
+        } catch (IllegalStateException e) {
+            // can't decide
+        }
+    }
+
+    private String substring(TblColRef col, String value, String start, String length) {
+        FunctionTupleFilter substr = new FunctionTupleFilter("SUBSTRING");
+        substr.addChild(new ColumnTupleFilter(col));
+        substr.addChild(new ConstantTupleFilter(start));
+        if (length != null)
+            substr.addChild(new ConstantTupleFilter(length));
+        TupleInfo info = new TupleInfo();
+        info.setField(col.getName(), col, col.getDatatype(), 0);
+        Tuple tuple = new Tuple(info);
+        tuple.setDimensionValue(col.getName(), value);
+        substr.evaluate(tuple);
+        return substr.getValues().iterator().next();
+    }
+
+    private boolean compareLength(TblColRef col, String value, FilterOperatorEnum op, String length) {
+        FunctionTupleFilter charLength = new FunctionTupleFilter("CHAR_LENGTH");
+        charLength.addChild(new ColumnTupleFilter(col));
+        CompareTupleFilter compare = new CompareTupleFilter(op);
+        compare.addChild(charLength);
+        compare.addChild(new ConstantTupleFilter(length));
+        TupleInfo info = new TupleInfo();
+        info.setField(col.getName(), col, col.getDatatype(), 0);
+        Tuple tuple = new Tuple(info);
+        tuple.setDimensionValue(col.getName(), value);
+        return compare.evaluate(tuple);
+    }
+
+    private int countMatch(Collection<Tuple> tuples, TblColRef col, String pattern) {
+        return countMatch(tuples, like(FunctionTupleFilter.LIKE, col, pattern));
+    }
+
+    private int countMatch(Collection<Tuple> tuples, TupleFilter filter) {
+        return evaluateTuples(tuples, filter);
+    }
+
+    private FunctionTupleFilter like(String name, TblColRef col, String pattern) {
+        FunctionTupleFilter like = new FunctionTupleFilter(name);
+        like.addChild(new ColumnTupleFilter(col));
+        like.addChild(new ConstantTupleFilter(pattern));
+        return like;
+    }
+}
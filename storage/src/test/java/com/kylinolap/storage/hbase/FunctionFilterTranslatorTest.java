@@ -0,0 +1,74 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage.hbase;
+
+import static org.junit.Assert.*;
+
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+import com.kylinolap.dict.Dictionary;
+import com.kylinolap.dict.StringBytesConverter;
+import com.kylinolap.dict.TrieDictionaryBuilder;
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.metadata.model.schema.ColumnDesc;
+import com.kylinolap.metadata.model.schema.TableDesc;
+import com.kylinolap.storage.filter.ColumnTupleFilter;
+import com.kylinolap.storage.filter.ConstantTupleFilter;
+import com.kylinolap.storage.filter.FunctionTupleFilter;
+
+/**
+ * @author yangli9
+ */
+public class FunctionFilterTranslatorTest {
+
+    static final String DICT_PATH = "/dict/FACT/SELLER/global_cube.dict";
+
+    @Test
+    public void testCacheOnAppendedDictionary() {
+        TableDesc table = new TableDesc();
+        table.setName("FACT");
+        ColumnDesc c = new ColumnDesc();
+        c.setName("SELLER");
+        c.setDatatype("string");
+        c.setTable(table);
+        TblColRef col = new TblColRef(c);
+
+        FunctionTupleFilter like = new FunctionTupleFilter(FunctionTupleFilter.LIKE);
+        like.addChild(new ColumnTupleFilter(col));
+        like.addChild(new ConstantTupleFilter("a%"));
+
+        FunctionFilterTranslator.clearCache();
+        Dictionary<String> dict = newDict("a1", "b1");
+        Set<String> matches = FunctionFilterTranslator.getMatches(like, col, DICT_PATH, dict);
+        assertEquals(Sets.newHashSet("a1"), matches);
+        assertSame(matches, FunctionFilterTranslator.getMatches(like, col, DICT_PATH, dict));
+
+        // appended at the same path, reloaded as a new instance
+        Dictionary<String> appended = newDict("a1", "b1", "a2");
+        assertEquals(Sets.newHashSet("a1", "a2"), FunctionFilterTranslator.getMatches(like, col, DICT_PATH, appended));
+    }
+
+    private static Dictionary<String> newDict(String... values) {
+        TrieDictionaryBuilder<String> b = new TrieDictionaryBuilder<String>(new StringBytesConverter());
+        for (String v : values)
+            b.addValue(v);
+        return b.build(0);
+    }
+}
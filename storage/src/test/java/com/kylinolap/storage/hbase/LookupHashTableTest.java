@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.storage.hbase;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.kylinolap.common.util.Array;
+import com.kylinolap.dict.Dictionary;
+import com.kylinolap.dict.StringBytesConverter;
+import com.kylinolap.dict.TrieDictionaryBuilder;
+import com.kylinolap.dict.lookup.LookupStringTable;
+import com.kylinolap.dict.lookup.ReadableTable;
+import com.kylinolap.dict.lookup.TableReader;
+import com.kylinolap.dict.lookup.TableSignature;
+import com.kylinolap.metadata.model.schema.ColumnDesc;
+import com.kylinolap.metadata.model.schema.TableDesc;
+
+/**
+ * @author yangli9
+ *
+ */
+public class LookupHashTableTest {
+
+    static final int N_ROWS = 10000;
+
+    @Test
+    public void testProbe() throws IOException {
+        LookupStringTable lookup = newLookup(N_ROWS);
+
+        // FK values on fact, some of lookup and some not in lookup
+        TrieDictionaryBuilder<String> b = new TrieDictionaryBuilder<String>(new StringBytesConverter());
+        for (int i = 0; i < N_ROWS; i += 2)
+            b.addValue(key(i));
+        b.addValue("not-in-lookup");
+        Dictionary<String> fkDict = b.build(0);
+
+        LookupHashTable table = new LookupHashTable(lookup, 0, fkDict);
+        assertEquals(N_ROWS / 2, table.size());
+
+        String[][] rows = table.getRowArray();
+        for (int i = 0; i < N_ROWS; i += 2) {
+            int row = table.getRow(fkDict.getIdFromValue(key(i)));
+            assertEquals(key(i), rows[row][0]);
+            assertEquals(name(i), rows[row][1]);
+        }
+        assertEquals(-1, table.getRow(fkDict.getIdFromValue("not-in-lookup")));
+    }
+
+    @Test
+    public void testCache() throws IOException {
+        LookupStringTable lookup = newLookup(100);
+        TrieDictionaryBuilder<String> b = new TrieDictionaryBuilder<String>(new StringBytesConverter());
+        for (int i = 0; i < 100; i++)
+            b.addValue(key(i));
+        Dictionary<String> fkDict = b.build(0);
+
+        LookupHashTable.clearCache();
+        LookupHashTable table = LookupHashTable.get("/table_snapshot/LOOKUP/1.snapshot", lookup, 0, "/dict/FACT/FK/1.dict", fkDict);
+        assertSame(table, LookupHashTable.get("/table_snapshot/LOOKUP/1.snapshot", lookup, 0, "/dict/FACT/FK/1.dict", fkDict));
+        // a new segment with its own dictionary
+        assertNotSame(table, LookupHashTable.get("/table_snapshot/LOOKUP/1.snapshot", lookup, 0, "/dict/FACT/FK/2.dict", fkDict));
+
+        for (int i = 0; i < 200; i++)
+            LookupHashTable.get("/table_snapshot/LOOKUP/" + i + ".snapshot", lookup, 0, "/dict/FACT/FK/1.dict", fkDict);
+        assertTrue(LookupHashTable.getCacheSize() <= 100);
+        LookupHashTable.clearCache();
+    }
+
+    @Test
+    public void testBenchmark() throws IOException {
+        LookupStringTable lookup = newLookup(N_ROWS);
+        TrieDictionaryBuilder<String> b = new TrieDictionaryBuilder<String>(new StringBytesConverter());
+        for (int i = 0; i < N_ROWS; i++)
+            b.addValue(key(i));
+        Dictionary<String> fkDict = b.build(0);
+        LookupHashTable table = new LookupHashTable(lookup, 0, fkDict);
+
+        int rounds = 50;
+        int[] ids = new int[N_ROWS];
+        for (int i = 0; i < N_ROWS; i++)
+            ids[i] = fkDict.getIdFromValue(key(i));
+
+        // decode FK and probe by string, the way of derived columns
+        int hits = 0;
+        long start = System.nanoTime();
+        Array<String> key = new Array<String>(new String[1]);
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < N_ROWS; i++) {
+                key.data[0] = fkDict.getValueFromId(ids[i]);
+                if (lookup.getRow(key) != null)
+                    hits++;
+            }
+        }
+        long stringTime = System.nanoTime() - start;
+
+        int idHits = 0;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < N_ROWS; i++) {
+                if (table.getRow(ids[i]) >= 0)
+                    idHits++;
+            }
+        }
+        long idTime = System.nanoTime() - start;
+
+        System.out.println("Lookup join by decoded string: " + stringTime / rounds / N_ROWS + " ns/row");
+        System.out.println("Lookup join by dictionary ID:  " + idTime / rounds / N_ROWS + " ns/row");
+        assertEquals(hits, idHits);
+        assertEquals(rounds * N_ROWS, idHits);
+    }
+
+    private static String key(int i) {
+        return "k" + i;
+    }
+
+    private static String name(int i) {
+        return "name" + i;
+    }
+
+    private static LookupStringTable newLookup(int nRows) throws IOException {
+        TableDesc tableDesc = new TableDesc();
+        tableDesc.setName("LOOKUP");
+        ColumnDesc[] cols = new ColumnDesc[2];
+        for (int i = 0; i < cols.length; i++) {
+            cols[i] = new ColumnDesc();
+            cols[i].setId(String.valueOf(i + 1));
+            cols[i].setName(i == 0 ? "KEY" : "NAME");
+            cols[i].setDatatype("varchar(256)");
+        }
+        tableDesc.setColumns(cols);
+        tableDesc.init();
+
+        final List<String[]> rows = new ArrayList<String[]>();
+        for (int i = 0; i < nRows; i++)
+            rows.add(new String[] { key(i), name(i) });
+        return new LookupStringTable(tableDesc, new String[] { "KEY" }, new InMemoryTable(rows));
+    }
+
+    private static class InMemoryTable implements ReadableTable {
+        final List<String[]> rows;
+
+        InMemoryTable(List<String[]> rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public TableReader getReader() throws IOException {
+            final Iterator<String[]> it = rows.iterator();
+            return new TableReader() {
+                String[] row;
+
+                @Override
+                public boolean next() throws IOException {
+                    row = it.hasNext() ? it.next() : null;
+                    return row != null;
+                }
+
+                @Override
+                public String[] getRow() {
+                    return row;
+                }
+
+                @Override
+                public void setExpectedColumnNumber(int expectedColumnNumber) {
+                }
+
+                @Override
+                public void close() throws IOException {
+                }
+            };
+        }
+
+        @Override
+        public TableSignature getSignature() throws IOException {
+            return new TableSignature();
+        }
+
+        @Override
+        public String getColumnDelimeter() throws IOException {
+            return DELIM_COMMA;
+        }
+    }
+}
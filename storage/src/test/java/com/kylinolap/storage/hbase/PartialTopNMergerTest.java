@@ -0,0 +1,254 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage.hbase;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.metadata.model.schema.ColumnDesc;
+import com.kylinolap.metadata.model.schema.TableDesc;
+import com.kylinolap.storage.StorageContext.OrderEnum;
+import com.kylinolap.storage.hbase.coprocessor.SRowTopN;
+import com.kylinolap.storage.tuple.ITuple;
+import com.kylinolap.storage.tuple.ITupleIterator;
+import com.kylinolap.storage.tuple.Tuple;
+import com.kylinolap.storage.tuple.TupleInfo;
+
+/**
+ * @author yangli9
+ *
+ */
+public class PartialTopNMergerTest {
+
+    static final TblColRef GROUP = newCol("G");
+    static final String MEASURE = "M";
+    static final int K = 10;
+
+    static final TupleInfo INFO = new TupleInfo();
+    static {
+        INFO.setField("G", GROUP, "string", 0);
+        INFO.setField(MEASURE, null, "bigint", 1);
+    }
+
+    @Test
+    public void testCandidatesContainTopN() {
+        for (int seed = 0; seed < 50; seed++) {
+            verify(new Random(seed), OrderEnum.DESCENDING, -20, 100);
+            verify(new Random(seed), OrderEnum.ASCENDING, -100, 20);
+        }
+    }
+
+    @Test
+    public void testPrune() {
+        // skewed positive values, a few groups stand out
+        Random rand = new Random(1);
+        List<Map<String, Long>> regions = Lists.newArrayList();
+        for (int r = 0; r < 8; r++) {
+            Map<String, Long> region = Maps.newHashMap();
+            for (int g = 0; g < 500; g++) {
+                region.put("g" + g, (long) (100000 / (g + 1) + rand.nextInt(10)));
+            }
+            regions.add(region);
+        }
+
+        PartialTopNMerger merger = merge(regions, OrderEnum.DESCENDING);
+        assertFalse(merger.isComplete());
+        List<List<Object>> candidates = merger.findCandidates(10000);
+        assertNotNull(candidates);
+        assertTrue(candidates.size() >= K && candidates.size() < 500);
+        assertTopN(regions, OrderEnum.DESCENDING, candidates);
+    }
+
+    @Test
+    public void testComplete() {
+        List<Map<String, Long>> regions = Lists.newArrayList();
+        for (int r = 0; r < 3; r++) {
+            Map<String, Long> region = Maps.newHashMap();
+            for (int g = 0; g < K; g++)
+                region.put("g" + (g + r), (long) g);
+            regions.add(region);
+        }
+
+        PartialTopNMerger merger = merge(regions, OrderEnum.DESCENDING);
+        assertTrue(merger.isComplete());
+        int count = 0;
+        for (ITupleIterator it = merger.getConsumedTuples(); it.hasNext(); it.next())
+            count++;
+        assertEquals(3 * K, count);
+    }
+
+    @Test
+    public void testInconsistent() {
+        // a region whose rows came without the stats row
+        List<Object> script = Lists.newArrayList();
+        script.add(tuple("a", 1));
+        script.add(tuple("b", 2));
+        SRowTopN.Stats stats = new SRowTopN.Stats();
+        stats.kept = 1;
+        stats.drop(BigDecimal.ONE);
+        script.add(tuple("c", 3));
+        script.add(stats);
+
+        PartialTopNMerger merger = new PartialTopNMerger(Lists.newArrayList(GROUP), MEASURE, OrderEnum.DESCENDING, 1);
+        merger.consume(new ScriptIterator(script, merger.getStatsCollector()));
+        assertFalse(merger.isComplete());
+        assertNull(merger.findCandidates(10000));
+    }
+
+    private void verify(Random rand, OrderEnum order, int min, int max) {
+        List<Map<String, Long>> regions = Lists.newArrayList();
+        int nRegions = 2 + rand.nextInt(6);
+        for (int r = 0; r < nRegions; r++) {
+            Map<String, Long> region = Maps.newHashMap();
+            for (int g = 0; g < 100; g++) {
+                if (rand.nextBoolean())
+                    region.put("g" + g, (long) (min + rand.nextInt(max - min)));
+            }
+            regions.add(region);
+        }
+
+        PartialTopNMerger merger = merge(regions, order);
+        if (merger.isComplete())
+            return;
+        List<List<Object>> candidates = merger.findCandidates(10000);
+        if (candidates != null)
+            assertTopN(regions, order, candidates);
+    }
+
+    // simulates regions each returning top K followed by stats
+    private PartialTopNMerger merge(List<Map<String, Long>> regions, final OrderEnum order) {
+        List<Object> script = Lists.newArrayList();
+        for (Map<String, Long> region : regions) {
+            List<Map.Entry<String, Long>> entries = Lists.newArrayList(region.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+                @Override
+                public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                    int comp = o2.getValue().compareTo(o1.getValue());
+                    return order == OrderEnum.DESCENDING ? comp : -comp;
+                }
+            });
+            SRowTopN.Stats stats = new SRowTopN.Stats();
+            for (int i = 0; i < entries.size(); i++) {
+                if (i < K) {
+                    script.add(tuple(entries.get(i).getKey(), entries.get(i).getValue()));
+                    stats.kept++;
+                } else {
+                    stats.drop(BigDecimal.valueOf(entries.get(i).getValue()));
+                }
+            }
+            script.add(stats);
+        }
+
+        PartialTopNMerger merger = new PartialTopNMerger(Lists.newArrayList(GROUP), MEASURE, order, K);
+        merger.consume(new ScriptIterator(script, merger.getStatsCollector()));
+        return merger;
+    }
+
+    // the top N can be picked from candidates alone
+    private void assertTopN(List<Map<String, Long>> regions, OrderEnum order, List<List<Object>> candidates) {
+        final Map<String, Long> totals = Maps.newHashMap();
+        for (Map<String, Long> region : regions) {
+            for (Map.Entry<String, Long> entry : region.entrySet()) {
+                Long sum = totals.get(entry.getKey());
+                totals.put(entry.getKey(), (sum == null ? 0 : sum) + entry.getValue() * (order == OrderEnum.DESCENDING ? 1 : -1));
+            }
+        }
+        List<Long> scores = Lists.newArrayList(totals.values());
+        Collections.sort(scores, Collections.reverseOrder());
+        long kth = scores.get(K - 1);
+
+        Set<String> candidateSet = new HashSet<String>();
+        for (List<Object> c : candidates)
+            candidateSet.add((String) c.get(0));
+
+        int qualified = 0;
+        for (Map.Entry<String, Long> entry : totals.entrySet()) {
+            if (entry.getValue() > kth)
+                assertTrue(entry.getKey() + " is missing", candidateSet.contains(entry.getKey()));
+            if (entry.getValue() >= kth && candidateSet.contains(entry.getKey()))
+                qualified++;
+        }
+        assertTrue(qualified >= K);
+    }
+
+    private static Tuple tuple(String group, long value) {
+        Tuple t = new Tuple(INFO);
+        t.setDimensionValue("G", group);
+        t.setMeasureValue(MEASURE, value);
+        return t;
+    }
+
+    private static TblColRef newCol(String name) {
+        TableDesc table = new TableDesc();
+        table.setName("T");
+        ColumnDesc col = new ColumnDesc();
+        col.setName(name);
+        col.setTable(table);
+        return new TblColRef(col);
+    }
+
+    // stats rows are collected as the scan goes by, like CubeSegmentTupleIterator
+    private static class ScriptIterator implements ITupleIterator {
+        final Iterator<Object> script;
+        final List<SRowTopN.Stats> collector;
+        ITuple next;
+
+        ScriptIterator(List<Object> script, List<SRowTopN.Stats> collector) {
+            this.script = new ArrayList<Object>(script).iterator();
+            this.collector = collector;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && script.hasNext()) {
+                Object o = script.next();
+                if (o instanceof SRowTopN.Stats)
+                    collector.add((SRowTopN.Stats) o);
+                else
+                    next = (ITuple) o;
+            }
+            return next != null;
+        }
+
+        @Override
+        public ITuple next() {
+            hasNext();
+            ITuple t = next;
+            next = null;
+            return t;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
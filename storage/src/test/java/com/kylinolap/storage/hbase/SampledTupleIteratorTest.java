@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.kylinolap.storage.hbase;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author yangli9
+ *
+ */
+public class SampledTupleIteratorTest {
+
+    @Test
+    public void testScale() {
+        assertEquals(25L, SampledTupleIterator.scale(10L, 2.5));
+        assertEquals(25, SampledTupleIterator.scale(10, 2.5));
+        assertEquals(2.5, (Double) SampledTupleIterator.scale(1.0, 2.5), 0.0000001);
+        assertEquals(new BigDecimal("3.75"), SampledTupleIterator.scale(new BigDecimal("1.50"), 2.5));
+
+        // HLL counters and others are left alone
+        Object other = new Object();
+        assertSame(other, SampledTupleIterator.scale(other, 2.5));
+    }
+
+    @Test
+    public void testEstimateError() {
+        double[] x = { 100, 200, 300, 400 };
+
+        // all sampled, exact
+        assertEquals(0, SampledTupleIterator.estimateError(x, new double[] { 10, 20, 30, 40 }, 4, 1000, 4), 0);
+        // one sampled, unknown
+        assertTrue(Double.isNaN(SampledTupleIterator.estimateError(x, new double[] { 10 }, 1, 1000, 4)));
+        // y proportional to x, no error
+        assertEquals(0, SampledTupleIterator.estimateError(x, new double[] { 10, 20, 30 }, 3, 1000, 4), 0.0000001);
+        // noisier y, more error
+        double small = SampledTupleIterator.estimateError(x, new double[] { 11, 19, 30 }, 3, 1000, 4);
+        double large = SampledTupleIterator.estimateError(x, new double[] { 20, 10, 30 }, 3, 1000, 4);
+        assertTrue(small > 0 && small < large);
+    }
+
+    @Test
+    public void testErrorCoverage() {
+        // segments of random size, COUNT roughly 10% of source records
+        Random rand = new Random(1);
+        int totalN = 100, n = 20;
+        double[] x = new double[totalN];
+        double[] y = new double[totalN];
+        double totalX = 0, totalY = 0;
+        for (int i = 0; i < totalN; i++) {
+            x[i] = 1000 + rand.nextInt(9000);
+            y[i] = x[i] * (0.08 + rand.nextDouble() * 0.04);
+            totalX += x[i];
+            totalY += y[i];
+        }
+
+        // the true total falls within the 95% error most of the time
+        int rounds = 1000, covered = 0;
+        for (int r = 0; r < rounds; r++) {
+            double[] sx = new double[n];
+            double[] sy = new double[n];
+            double sumX = 0, sumY = 0;
+            boolean[] picked = new boolean[totalN];
+            for (int i = 0; i < n; i++) {
+                int k;
+                do {
+                    k = rand.nextInt(totalN);
+                } while (picked[k]);
+                picked[k] = true;
+                sx[i] = x[k];
+                sy[i] = y[k];
+                sumX += x[k];
+                sumY += y[k];
+            }
+            double estimate = sumY * totalX / sumX;
+            double error = SampledTupleIterator.estimateError(sx, sy, n, totalX, totalN);
+            if (Math.abs(estimate - totalY) / estimate <= error)
+                covered++;
+        }
+        assertTrue("covered " + covered, covered > rounds * 0.85);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage.hbase;
+
+import static org.junit.Assert.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+
+import com.kylinolap.cube.measure.TopNCounter;
+import com.kylinolap.metadata.model.cube.FunctionDesc;
+import com.kylinolap.metadata.model.cube.ParameterDesc;
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.metadata.model.schema.ColumnDesc;
+import com.kylinolap.metadata.model.schema.TableDesc;
+import com.kylinolap.storage.StorageContext;
+import com.kylinolap.storage.tuple.ITuple;
+import com.kylinolap.storage.tuple.ITupleIterator;
+import com.kylinolap.storage.tuple.Tuple;
+import com.kylinolap.storage.tuple.TupleInfo;
+
+/**
+ * @author yangli9
+ */
+public class TopNTupleIteratorTest {
+
+    static final TblColRef GROUP = newCol("G", "string");
+    static final TblColRef PRICE = newCol("PRICE", "decimal");
+    static final TblColRef SELLER = newCol("SELLER", "string");
+    static final int N = 5;
+    static final int SEGMENTS = 3;
+
+    @Test
+    public void testExactSumsBeyondCapacity() {
+        // a few heavy sellers, and many more light ones than the counters keep
+        Random rand = new Random(1);
+        Map<String, BigDecimal> truth = new HashMap<String, BigDecimal>();
+        List<TopNCounter> partials = new ArrayList<TopNCounter>();
+        for (int seg = 0; seg < SEGMENTS; seg++) {
+            TopNCounter partial = new TopNCounter(N);
+            for (int i = 0; i < 20000; i++) {
+                int seller = i % 2 == 0 ? rand.nextInt(N) : N + rand.nextInt(2000);
+                BigDecimal price = BigDecimal.valueOf(1 + rand.nextInt(10));
+                offer(partial, truth, "s" + seller, price);
+            }
+            assertTrue(partial.getFloor().signum() > 0);
+            partials.add(partial);
+        }
+
+        TopNTupleIterator iterator = newIterator(partials);
+        assertTrue(iterator.isExact());
+
+        List<String> sellers = new ArrayList<String>();
+        while (iterator.hasNext()) {
+            ITuple t = iterator.next();
+            assertEquals("g", t.getValue("G"));
+            String seller = (String) t.getValue("SELLER");
+            assertEquals(0, truth.get(seller).compareTo((BigDecimal) t.getValue("PRICE")));
+            sellers.add(seller);
+        }
+        assertEquals(N, sellers.size());
+        for (int seller = 0; seller < N; seller++) {
+            assertTrue(sellers.contains("s" + seller));
+        }
+    }
+
+    @Test
+    public void testNotExactBeyondCapacity() {
+        // no seller stands out, top counters are bounds only
+        Random rand = new Random(1);
+        Map<String, BigDecimal> truth = new HashMap<String, BigDecimal>();
+        List<TopNCounter> partials = new ArrayList<TopNCounter>();
+        for (int seg = 0; seg < SEGMENTS; seg++) {
+            TopNCounter partial = new TopNCounter(N);
+            for (int i = 0; i < 20000; i++) {
+                offer(partial, truth, "s" + rand.nextInt(2000), BigDecimal.valueOf(1 + rand.nextInt(10)));
+            }
+            partials.add(partial);
+        }
+
+        assertFalse(newIterator(partials).isExact());
+    }
+
+    @Test
+    public void testExactWithinCapacity() {
+        Map<String, BigDecimal> truth = new HashMap<String, BigDecimal>();
+        TopNCounter partial = new TopNCounter(N);
+        for (int seller = 0; seller < N * 2; seller++) {
+            offer(partial, truth, "s" + seller, BigDecimal.valueOf(seller));
+        }
+
+        TopNTupleIterator iterator = newIterator(Arrays.asList(partial));
+        assertTrue(iterator.isExact());
+        int count = 0;
+        while (iterator.hasNext()) {
+            ITuple t = iterator.next();
+            assertEquals(0, truth.get(t.getValue("SELLER")).compareTo((BigDecimal) t.getValue("PRICE")));
+            count++;
+        }
+        assertEquals(N, count);
+    }
+
+    private static void offer(TopNCounter counter, Map<String, BigDecimal> truth, String key, BigDecimal value) {
+        counter.offer(Bytes.toBytes(key), value);
+        BigDecimal sum = truth.get(key);
+        truth.put(key, sum == null ? value : sum.add(value));
+    }
+
+    private static TopNTupleIterator newIterator(List<TopNCounter> partials) {
+        FunctionDesc topNFunc = newFunc(FunctionDesc.FUNC_TOP_N, PRICE, SELLER);
+        FunctionDesc sumFunc = newFunc(FunctionDesc.FUNC_SUM, PRICE);
+
+        TupleInfo info = new TupleInfo();
+        info.setField("G", GROUP, "string", 0);
+        info.setField(topNFunc.getRewriteFieldName(), null, "any", 1);
+        List<ITuple> tuples = new ArrayList<ITuple>();
+        for (TopNCounter partial : partials) {
+            Tuple t = new Tuple(info);
+            t.setDimensionValue("G", "g");
+            t.setMeasureValue(topNFunc.getRewriteFieldName(), partial);
+            tuples.add(t);
+        }
+
+        StorageContext context = new StorageContext();
+        context.setLimit(N);
+        return new TopNTupleIterator(new ListIterator(tuples), topNFunc, sumFunc, context);
+    }
+
+    private static FunctionDesc newFunc(String expression, TblColRef... params) {
+        List<TblColRef> colRefs = Arrays.asList(params);
+        StringBuilder value = new StringBuilder();
+        for (TblColRef col : colRefs) {
+            value.append(value.length() == 0 ? "" : ",").append(col.getName());
+        }
+        ParameterDesc parameter = new ParameterDesc();
+        parameter.setType(ParameterDesc.COLUMN_TYPE);
+        parameter.setValue(value.toString());
+        parameter.setColRefs(colRefs);
+        FunctionDesc func = new FunctionDesc();
+        func.setExpression(expression);
+        func.setParameter(parameter);
+        return func;
+    }
+
+    private static TblColRef newCol(String name, String datatype) {
+        TableDesc table = new TableDesc();
+        table.setName("T");
+        ColumnDesc col = new ColumnDesc();
+        col.setName(name);
+        col.setDatatype(datatype);
+        col.setTable(table);
+        return new TblColRef(col);
+    }
+
+    private static class ListIterator implements ITupleIterator {
+        final Iterator<ITuple> iterator;
+
+        ListIterator(List<ITuple> tuples) {
+            this.iterator = tuples.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public ITuple next() {
+            return iterator.next();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -31,6 +31,7 @@ import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.HRegionInfo;
 import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.KeyValue.Type;
+import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.regionserver.RegionScanner;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.io.LongWritable;
@@ -184,6 +185,93 @@ public class AggregateRegionObserverTest {
         aggrScanner.close();
     }
 
+    @Test
+    public void testTopN() throws IOException {
+        assertEquals(Arrays.asList("\\x02\\x02\\x00\\x00"), runTopN(true, "22.0"));
+        assertEquals(Arrays.asList("\\x01\\x01\\x00\\x00"), runTopN(false, "26.0"));
+    }
+
+    @Test(expected = DeadlineExceededException.class)
+    public void testDeadline() throws IOException {
+        List<Cell> manyCells = Lists.newArrayList();
+        for (int i = 0; i < 2000; i++) {
+            manyCells.add(newCell(new byte[] { 0x01, 0x01, (byte) (i >> 8), (byte) i }, c1, "1.0", 1));
+        }
+        SRowAggregators aggregators = new SRowAggregators(new HCol[] { c1 });
+
+        // deadline passed already, gives up after the first check
+        new AggregationScanner(newRowType(), SRowFilter.deserialize(null), new SRowProjector(mask), aggregators, null, System.currentTimeMillis() - 1, new MockupRegionScanner(manyCells));
+    }
+
+    // top 1 group on SUM of q1, expects the other group dropped
+    @Test
+    public void testTraceStats() throws IOException {
+        SRowAggregators aggregators = new SRowAggregators(new HCol[] { c1, c2 });
+        SRowTopN topN = new SRowTopN(aggregators.getMeasureIndex(family, q1, 0), true, 1);
+
+        RegionScanner aggrScanner = new AggregationScanner(newRowType(), SRowFilter.deserialize(null), new SRowProjector(mask), aggregators, topN, Long.MAX_VALUE, true, new MockupRegionScanner(cellsInput));
+        ArrayList<Cell> result = Lists.newArrayList();
+        Result statsRow = null;
+        boolean hasMore = true;
+        while (hasMore) {
+            result.clear();
+            hasMore = aggrScanner.next(result);
+            if (result.isEmpty() == false && SRowTopN.isStatsRow(Bytes.copy(result.get(0).getRowArray(), result.get(0).getRowOffset(), result.get(0).getRowLength())))
+                statsRow = Result.create(result);
+        }
+        aggrScanner.close();
+
+        // one stats row carries both top-N and scan stats
+        assertNotNull(statsRow);
+        assertEquals(1, SRowTopN.readStats(statsRow).kept);
+        AggregationScanner.Stats stats = AggregationScanner.Stats.readStats(statsRow);
+        assertNotNull(stats);
+        assertTrue(stats.inputRows > 0);
+        assertEquals(1, stats.outputRows);
+        assertTrue(stats.memoryBytes > 0);
+        assertNull(stats.region);
+    }
+
+    private List<String> runTopN(boolean descending, String dropped) throws IOException {
+        SRowType rowType = newRowType();
+        SRowProjector projector = new SRowProjector(mask);
+        SRowAggregators aggregators = new SRowAggregators(new HCol[] { c1, c2 });
+        SRowFilter filter = SRowFilter.deserialize(null);
+        SRowTopN topN = SRowTopN.deserialize(SRowTopN.serialize(new SRowTopN(aggregators.getMeasureIndex(family, q1, 0), descending, 1)));
+
+        MockupRegionScanner innerScanner = new MockupRegionScanner(cellsInput);
+
+        RegionScanner aggrScanner = new AggregationScanner(rowType, filter, projector, aggregators, topN, innerScanner);
+        ArrayList<Cell> result = Lists.newArrayList();
+        List<String> rows = Lists.newArrayList();
+        SRowTopN.Stats stats = null;
+        boolean hasMore = true;
+        while (hasMore) {
+            result.clear();
+            hasMore = aggrScanner.next(result);
+            if (result.isEmpty())
+                continue;
+
+            Cell cell = result.get(0);
+            byte[] row = Bytes.copy(cell.getRowArray(), cell.getRowOffset(), cell.getRowLength());
+            if (SRowTopN.isStatsRow(row)) {
+                assertNull(stats);
+                stats = SRowTopN.Stats.deserialize(ByteBuffer.wrap(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength()));
+            } else {
+                assertNull("stats row must come last", stats);
+                rows.add(toString(cell.getRowArray(), cell.getRowOffset(), cell.getRowLength(), mask));
+            }
+        }
+        aggrScanner.close();
+
+        assertNotNull(stats);
+        assertEquals(1, stats.kept);
+        assertEquals(1, stats.dropped);
+        assertEquals(0, new BigDecimal(dropped).compareTo(stats.maxDropped));
+        assertEquals(0, new BigDecimal(dropped).compareTo(stats.minDropped));
+        return rows;
+    }
+
     private String toString(byte[] array, int offset, short length, byte[] mask) {
         StringBuilder result = new StringBuilder();
         for (int i = 0; i < length; i++) {
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage.hbase.coprocessor;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.kylinolap.common.util.BytesUtil;
+import com.kylinolap.cube.kv.RowConstants;
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.metadata.model.schema.ColumnDesc;
+import com.kylinolap.metadata.model.schema.TableDesc;
+import com.kylinolap.storage.filter.ColumnTupleFilter;
+import com.kylinolap.storage.filter.CompareTupleFilter;
+import com.kylinolap.storage.filter.CompiledTupleFilter;
+import com.kylinolap.storage.filter.ConstantTupleFilter;
+import com.kylinolap.storage.filter.LogicalTupleFilter;
+import com.kylinolap.storage.filter.TupleFilter;
+import com.kylinolap.storage.filter.TupleFilter.FilterOperatorEnum;
+
+/**
+ * @author yangli9
+ *
+ */
+public class RowIdFilterTest {
+
+    // a 2 bytes ID column (evaluated as long) and a 9 bytes one (evaluated as bytes)
+    static final int[] COL_SIZES = new int[] { 2, 9 };
+    static final TblColRef[] COLS = new TblColRef[] { newCol("A"), newCol("B") };
+    static final SRowType TYPE = new SRowType(COLS, COL_SIZES);
+
+    Random rand = new Random();
+
+    @Test
+    public void testCompare() {
+        for (int c = 0; c < COLS.length; c++) {
+            for (FilterOperatorEnum op : new FilterOperatorEnum[] { FilterOperatorEnum.EQ, FilterOperatorEnum.NEQ, FilterOperatorEnum.LT, FilterOperatorEnum.LTE, FilterOperatorEnum.GT, FilterOperatorEnum.GTE }) {
+                verify(compare(c, op, 50));
+            }
+        }
+    }
+
+    @Test
+    public void testIn() {
+        verify(in(0, 3, 7, 50, 99));
+        verify(in(1, 3, 7, 50, 99));
+
+        // an ID close to NULL
+        CompareTupleFilter in = new CompareTupleFilter(FilterOperatorEnum.IN);
+        in.setNullString(nullString(0));
+        in.addChild(new ColumnTupleFilter(COLS[0]));
+        List<String> values = new ArrayList<String>();
+        values.add(id(0, 5));
+        values.add(id(0, 0xfffe));
+        in.addChild(new ConstantTupleFilter(values));
+        verify(in);
+    }
+
+    @Test
+    public void testLogical() {
+        LogicalTupleFilter and = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        and.addChild(compare(0, FilterOperatorEnum.GTE, 20));
+        and.addChild(compare(1, FilterOperatorEnum.LT, 70));
+        verify(and);
+
+        LogicalTupleFilter or = new LogicalTupleFilter(FilterOperatorEnum.OR);
+        or.addChild(in(0, 1, 2, 3));
+        or.addChild(and);
+        verify(or);
+
+        LogicalTupleFilter not = new LogicalTupleFilter(FilterOperatorEnum.NOT);
+        not.addChild(or);
+        verify(not);
+
+        LogicalTupleFilter folded = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        folded.addChild(or);
+        folded.addChild(ConstantTupleFilter.FALSE);
+        assertTrue(SRowIdFilter.compile(folded).isAlwaysFalse());
+        verify(folded);
+    }
+
+    @Test
+    public void testSerialize() {
+        LogicalTupleFilter and = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        and.addChild(in(0, 3, 7, 50));
+        and.addChild(compare(1, FilterOperatorEnum.GT, 10));
+
+        SRowIdFilter idFilter = SRowIdFilter.compile(and);
+        SRowIdFilter copy = SRowIdFilter.deserialize(SRowIdFilter.serialize(idFilter));
+        assertEquals(idFilter.toString(), copy.toString());
+
+        SRowTuple tuple = new SRowTuple(TYPE);
+        for (int i = 0; i < 1000; i++) {
+            byte[] row = randomRow();
+            tuple.setUnderlying(row, 0, row.length);
+            assertEquals(idFilter.evaluate(tuple), copy.evaluate(tuple));
+        }
+    }
+
+    @Test
+    public void testPerformance() {
+        LogicalTupleFilter and = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        and.addChild(in(0, 3, 7, 50, 77, 91));
+        and.addChild(compare(1, FilterOperatorEnum.LT, 70));
+        LogicalTupleFilter or = new LogicalTupleFilter(FilterOperatorEnum.OR);
+        or.addChild(and);
+        or.addChild(compare(0, FilterOperatorEnum.EQ, 20));
+
+        CompiledTupleFilter stringFilter = CompiledTupleFilter.compile(or);
+        SRowIdFilter idFilter = SRowIdFilter.compile(or);
+
+        byte[][] rows = new byte[10000][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = randomRow();
+        }
+        int rounds = 200;
+        SRowTuple tuple = new SRowTuple(TYPE);
+
+        // warm up
+        evaluateString(rows, tuple, stringFilter, rounds);
+        evaluateId(rows, tuple, idFilter, rounds);
+
+        long start = System.currentTimeMillis();
+        int m1 = evaluateString(rows, tuple, stringFilter, rounds);
+        long stringTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        int m2 = evaluateId(rows, tuple, idFilter, rounds);
+        long idTime = System.currentTimeMillis() - start;
+
+        assertEquals(m1, m2);
+        System.out.println("Evaluate " + rounds * rows.length + " rows, string IDs " + stringTime + " ms, byte IDs " + idTime + " ms");
+    }
+
+    private int evaluateString(byte[][] rows, SRowTuple tuple, CompiledTupleFilter filter, int rounds) {
+        int match = 0;
+        for (int r = 0; r < rounds; r++) {
+            for (byte[] row : rows) {
+                tuple.setUnderlying(row, 0, row.length);
+                if (filter.evaluate(tuple))
+                    match++;
+            }
+        }
+        return match;
+    }
+
+    private int evaluateId(byte[][] rows, SRowTuple tuple, SRowIdFilter filter, int rounds) {
+        int match = 0;
+        for (int r = 0; r < rounds; r++) {
+            for (byte[] row : rows) {
+                tuple.setUnderlying(row, 0, row.length);
+                if (filter.evaluate(tuple))
+                    match++;
+            }
+        }
+        return match;
+    }
+
+    private void verify(TupleFilter filter) {
+        SRowIdFilter idFilter = SRowIdFilter.compile(filter);
+        SRowTuple tuple = new SRowTuple(TYPE);
+        for (int i = 0; i < 2000; i++) {
+            byte[] row = randomRow();
+            tuple.setUnderlying(row, 0, row.length);
+            boolean expected = filter.evaluate(tuple);
+            tuple.setUnderlying(row, 0, row.length);
+            assertEquals(filter.toString(), expected, idFilter.evaluate(tuple));
+        }
+    }
+
+    // IDs in [0, 100) or NULL
+    private byte[] randomRow() {
+        int len = RowConstants.ROWKEY_CUBOIDID_LEN;
+        for (int size : COL_SIZES)
+            len += size;
+        byte[] row = new byte[len];
+        int offset = RowConstants.ROWKEY_CUBOIDID_LEN;
+        for (int c = 0; c < COL_SIZES.length; c++) {
+            int v = rand.nextInt(101);
+            if (v == 100) {
+                for (int i = 0; i < COL_SIZES[c]; i++)
+                    row[offset + i] = (byte) 0xff;
+            } else {
+                BytesUtil.writeUnsignedLong(v, row, offset, COL_SIZES[c]);
+            }
+            offset += COL_SIZES[c];
+        }
+        return row;
+    }
+
+    private CompareTupleFilter compare(int c, FilterOperatorEnum op, int id) {
+        CompareTupleFilter compf = new CompareTupleFilter(op);
+        compf.setNullString(nullString(c));
+        compf.addChild(new ColumnTupleFilter(COLS[c]));
+        compf.addChild(new ConstantTupleFilter(id(c, id)));
+        return compf;
+    }
+
+    private CompareTupleFilter in(int c, int... ids) {
+        CompareTupleFilter compf = new CompareTupleFilter(FilterOperatorEnum.IN);
+        compf.setNullString(nullString(c));
+        compf.addChild(new ColumnTupleFilter(COLS[c]));
+        List<String> values = new ArrayList<String>();
+        for (int id : ids)
+            values.add(id(c, id));
+        compf.addChild(new ConstantTupleFilter(values));
+        return compf;
+    }
+
+    private String id(int c, long id) {
+        byte[] bytes = new byte[COL_SIZES[c]];
+        BytesUtil.writeUnsignedLong(id, bytes, 0, bytes.length);
+        return SRowTuple.dictIdToString(bytes, 0, bytes.length);
+    }
+
+    private String nullString(int c) {
+        byte[] bytes = new byte[COL_SIZES[c]];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) 0xff;
+        return SRowTuple.dictIdToString(bytes, 0, bytes.length);
+    }
+
+    private static TblColRef newCol(String name) {
+        TableDesc table = new TableDesc();
+        table.setName("T");
+        ColumnDesc col = new ColumnDesc();
+        col.setName(name);
+        col.setTable(table);
+        return new TblColRef(col);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013-2014 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.kylinolap.storage.hbase.coprocessor;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Field;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Sets;
+import com.kylinolap.common.util.LocalFileMetadataTestCase;
+import com.kylinolap.cube.CubeInstance;
+import com.kylinolap.cube.CubeManager;
+import com.kylinolap.metadata.model.cube.CubeDesc;
+import com.kylinolap.metadata.model.cube.RowKeyColDesc;
+import com.kylinolap.metadata.model.cube.RowKeyDesc;
+import com.kylinolap.metadata.model.cube.TblColRef;
+import com.kylinolap.storage.filter.ColumnTupleFilter;
+import com.kylinolap.storage.filter.CompareTupleFilter;
+import com.kylinolap.storage.filter.ConstantTupleFilter;
+import com.kylinolap.storage.filter.LogicalTupleFilter;
+import com.kylinolap.storage.filter.TupleFilter.FilterOperatorEnum;
+
+/**
+ * Filters on a column of global dictionary, LEAF_CATEG_ID made global here.
+ *
+ * @author yangli9
+ */
+public class SRowFilterTest extends LocalFileMetadataTestCase {
+
+    CubeInstance cube;
+    RowKeyDesc rowkey;
+    TblColRef global;
+    TblColRef other;
+
+    @Before
+    public void setUp() throws Exception {
+        this.createTestMetadata();
+
+        cube = CubeManager.getInstance(getTestConfig()).getCube("test_kylin_cube_without_slr_ready");
+        CubeDesc cubeDesc = cube.getDescriptor();
+        rowkey = cubeDesc.getRowkey();
+        global = cubeDesc.findColumnRef("TEST_KYLIN_FACT", "LEAF_CATEG_ID");
+        other = cubeDesc.findColumnRef("TEST_KYLIN_FACT", "LSTG_SITE_ID");
+
+        Field dictionary = RowKeyColDesc.class.getDeclaredField("dictionary");
+        dictionary.setAccessible(true);
+        for (RowKeyColDesc colDesc : rowkey.getRowKeyColumns()) {
+            if (colDesc.getColRef().equals(global))
+                dictionary.set(colDesc, RowKeyColDesc.DICT_GLOBAL);
+        }
+        assertTrue(rowkey.isUseGlobalDictionary(global));
+    }
+
+    @After
+    public void after() throws Exception {
+        this.cleanupTestMetadata();
+    }
+
+    @Test
+    public void testRangeDroppedOnStorage() {
+        CompareTupleFilter range = compare(global, FilterOperatorEnum.GT, "100");
+        SRowFilter filter = SRowFilter.fromFilter(cube.getLatestReadySegment(), range);
+        assertTrue(filter.filter instanceof ConstantTupleFilter);
+        assertTrue(filter.filter.evaluate(null));
+
+        // equality still goes to coprocessor on IDs, never relaxed to TRUE
+        CompareTupleFilter eq = compare(global, FilterOperatorEnum.EQ, "100");
+        filter = SRowFilter.fromFilter(cube.getLatestReadySegment(), eq);
+        assertFalse(filter.filter instanceof ConstantTupleFilter && filter.filter.evaluate(null));
+    }
+
+    @Test
+    public void testCollectRelaxedColumns() {
+        // the range column returns even if not grouped by, other columns are evaluated on storage
+        LogicalTupleFilter and = new LogicalTupleFilter(FilterOperatorEnum.AND);
+        and.addChild(compare(global, FilterOperatorEnum.GT, "100"));
+        and.addChild(compare(other, FilterOperatorEnum.EQ, "0"));
+        Set<TblColRef> groups = Sets.newHashSet();
+        SRowFilter.collectRelaxedColumns(rowkey, and, groups);
+        assertEquals(Sets.newHashSet(global), groups);
+
+        // nothing is relaxed
+        groups.clear();
+        SRowFilter.collectRelaxedColumns(rowkey, compare(global, FilterOperatorEnum.EQ, "100"), groups);
+        SRowFilter.collectRelaxedColumns(rowkey, compare(other, FilterOperatorEnum.GT, "0"), groups);
+        assertTrue(groups.isEmpty());
+
+        // a NOT over the range is dropped as a whole
+        LogicalTupleFilter not = new LogicalTupleFilter(FilterOperatorEnum.NOT);
+        not.addChild(and);
+        SRowFilter.collectRelaxedColumns(rowkey, not, groups);
+        assertEquals(Sets.newHashSet(global, other), groups);
+    }
+
+    private static CompareTupleFilter compare(TblColRef col, FilterOperatorEnum op, String value) {
+        CompareTupleFilter compare = new CompareTupleFilter(op);
+        compare.addChild(new ColumnTupleFilter(col));
+        compare.addChild(new ConstantTupleFilter(value));
+        return compare;
+    }
+}
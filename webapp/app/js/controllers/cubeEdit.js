@@ -5,7 +5,7 @@ KylinApp.controller('CubeEditCtrl', function ($scope, $q, $routeParams, $locatio
 
     //~ Define metadata & class
     $scope.measureParamType = ['column', 'constant'];
-    $scope.measureExpressions = ['SUM', 'MIN', 'MAX', 'COUNT', 'COUNT_DISTINCT'];
+    $scope.measureExpressions = ['SUM', 'MIN', 'MAX', 'COUNT', 'COUNT_DISTINCT', 'TOP_N'];
     $scope.dimensionDataTypes = ["string", "tinyint", "int", "bigint", "date"];
     $scope.cubeCapacities = ["MEDIUM", "SMALL", "LARGE"];
     $scope.cubePartitionTypes = ['APPEND', 'UPDATE_INSERT'];
@@ -32,7 +32,8 @@ KylinApp.controller('CubeEditCtrl', function ($scope, $q, $routeParams, $locatio
         {name: 'Error Rate < 4.88%', value: 'hllc12'},
         {name: 'Error Rate < 2.44%', value: 'hllc14'},
         {name: 'Error Rate < 1.72%', value: 'hllc15'},
-        {name: 'Error Rate < 1.22%', value: 'hllc16'}
+        {name: 'Error Rate < 1.22%', value: 'hllc16'},
+        {name: 'Precisely', value: 'bitmap'}
     ];
 
     $scope.dftSelections = {
@@ -45,7 +46,7 @@ KylinApp.controller('CubeEditCtrl', function ($scope, $q, $routeParams, $locatio
         cubePartitionType: 'APPEND'
     };
 
-    $scope.dictionaries = ['date(yyyy-mm-dd)', 'string'];
+    $scope.dictionaries = ['date(yyyy-mm-dd)', 'string', 'global'];
     $scope.srcTablesInProject = [];
 
     $scope.getColumnsByTable = function (name) {
@@ -419,7 +420,7 @@ KylinApp.controller('CubeEditCtrl', function ($scope, $q, $routeParams, $locatio
         var colFamily = ColFamily();
         var normalMeasures = [], distinctCountMeasures=[];
         angular.forEach($scope.cubeMetaFrame.measures, function (measure, index) {
-            if(measure.function.expression === 'COUNT_DISTINCT'){
+            if(measure.function.expression === 'COUNT_DISTINCT' || measure.function.expression === 'TOP_N'){
                 distinctCountMeasures.push(measure);
             }else{
                 normalMeasures.push(measure);